@@ -16,6 +16,7 @@ import org.apache.logging.log4j.Logger;
 import net.maizegenetics.dna.snp.GenotypeTableUtils;
 import net.maizegenetics.dna.snp.score.SiteScore;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
 import net.maizegenetics.phenotype.GenotypePhenotype;
 import net.maizegenetics.phenotype.PhenotypeAttribute;
 import net.maizegenetics.phenotype.Phenotype.ATTRIBUTE_TYPE;
@@ -459,28 +460,85 @@ public abstract class AbstractFixedEffectLM implements FixedEffectLM {
 			}
 			
 		} else {
-			int iter = 0;
-			int numberOfModelEffects = myModel.size();
-			for (DoubleMatrix pdata : permutedData) {
-				double[] y = AssociationUtils.getNonMissingDoubles(pdata.to1DArray(), newMissing);
-		        SweepFastLinearModel sflm = new SweepFastLinearModel(myModel, y);
-		        markerSSdf = sflm.getIncrementalSSdf(numberOfModelEffects - 1);
-		        errorSSdf = sflm.getResidualSSdf();
-		        double F = markerSSdf[0] / markerSSdf[1] / errorSSdf[0] * errorSSdf[1];
-		        double p;
-		        try {
-		        	p = LinearModelUtils.Ftest(F, markerSSdf[1], errorSSdf[1]);
-		        	if (minP[iter] > p) minP[iter] = p;
-		        } catch (Exception e) {
-		        	//do nothing
-		        }
-				
-				iter++;
-			}
+			updateMinPForStackedPermutations(newMissing);
 		}
 		
 	}
 	
+	/**
+	 * Tests the marker, the last effect in myModel, against all the permuted data sets at once. The permuted data sets
+	 * are stacked as the columns of one matrix Y, so that X'Y is a single matrix product for all permutations, in
+	 * place of a linear model fit for each permutation. The inverse of X'X depends only on the model, so it is
+	 * calculated once for the full model and once for the model without the marker.
+	 * @param newMissing	the observations of the permuted data missing for this site
+	 */
+	protected void updateMinPForStackedPermutations(BitSet newMissing) {
+		int numberOfModelEffects = myModel.size();
+		int nperm = permutedData.size();
+		double[] stacked = null;
+		int nobs = 0;
+		int iter = 0;
+		for (DoubleMatrix pdata : permutedData) {
+			double[] y = AssociationUtils.getNonMissingDoubles(pdata.to1DArray(), newMissing);
+			if (stacked == null) {
+				nobs = y.length;
+				stacked = new double[nobs * nperm];
+			}
+			System.arraycopy(y, 0, stacked, iter * nobs, nobs);
+			iter++;
+		}
+		if (nobs == 0) return;
+		DoubleMatrix Y = DoubleMatrixFactory.DEFAULT.make(nobs, nperm, stacked, true);
+
+		//the model matrices do not depend on the data, so both models are fit to the first permutation for G and df
+		double[] y0 = Arrays.copyOf(stacked, nobs);
+		SweepFastLinearModel fullModel = new SweepFastLinearModel(myModel, y0);
+		SweepFastLinearModel reducedModel = new SweepFastLinearModel(myModel.subList(0, numberOfModelEffects - 1), y0);
+		double markerdf = fullModel.getIncrementalSSdf(numberOfModelEffects - 1)[1];
+		double errordf = fullModel.getResidualSSdf()[1];
+		if (markerdf <= 0 || errordf <= 0) return;
+
+		DoubleMatrix[][] components = new DoubleMatrix[1][numberOfModelEffects];
+		int numberOfReducedColumns = 0;
+		for (int i = 0; i < numberOfModelEffects; i++) {
+			components[0][i] = myModel.get(i).getX();
+			if (i < numberOfModelEffects - 1) numberOfReducedColumns += components[0][i].numberOfColumns();
+		}
+		DoubleMatrix XtY = DoubleMatrixFactory.DEFAULT.compose(components).crossproduct(Y);
+		int[] reducedRows = new int[numberOfReducedColumns];
+		for (int i = 0; i < numberOfReducedColumns; i++) reducedRows[i] = i;
+		DoubleMatrix X0tY = XtY.getSelection(reducedRows, null);
+
+		//model SS = y'XGX'y for each column of Y
+		double[] fullSS = columnQuadraticForms(XtY, fullModel.getInverseOfXtX().mult(XtY));
+		double[] reducedSS = columnQuadraticForms(X0tY, reducedModel.getInverseOfXtX().mult(X0tY));
+		for (int p = 0; p < nperm; p++) {
+			double totalSS = 0;
+			for (int i = p * nobs, end = i + nobs; i < end; i++) totalSS += stacked[i] * stacked[i];
+			double errorSS = totalSS - fullSS[p];
+			double F = (fullSS[p] - reducedSS[p]) / markerdf / errorSS * errordf;
+			try {
+				double pval = LinearModelUtils.Ftest(F, markerdf, errordf);
+				if (minP[p] > pval) minP[p] = pval;
+			} catch (Exception e) {
+				//do nothing
+			}
+		}
+	}
+
+	//the sum of the elementwise products of each column of A and B
+	private static double[] columnQuadraticForms(DoubleMatrix A, DoubleMatrix B) {
+		int nrows = A.numberOfRows();
+		int ncols = A.numberOfColumns();
+		double[] result = new double[ncols];
+		for (int c = 0; c < ncols; c++) {
+			double sum = 0;
+			for (int r = 0; r < nrows; r++) sum += A.get(r, c) * B.get(r, c);
+			result[c] = sum;
+		}
+		return result;
+	}
+
 	@Override
 	public void maxP(double maxP) {
 		this.maxP = maxP;
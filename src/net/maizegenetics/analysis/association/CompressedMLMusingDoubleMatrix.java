@@ -43,6 +43,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import net.maizegenetics.taxa.distance.DistanceMatrixBuilder;
 
 public class CompressedMLMusingDoubleMatrix {
@@ -50,6 +51,8 @@ public class CompressedMLMusingDoubleMatrix {
     private static final Logger myLogger = LogManager.getLogger(CompressedMLMusingDoubleMatrix.class);
     private static final List<String> homGenotypes = Arrays.asList("A","C","G","T","Z");
     private static final List<String> hetGenotypes = Arrays.asList("R","W","K","Y","S","M","0");
+    //markers tested together with P3D, which share one rotation of their columns
+    private static final int MARKERS_PER_BLOCK = 64;
     private final boolean useCompression;
     private final boolean useP3D;
     private final double compression;
@@ -373,164 +376,54 @@ public class CompressedMLMusingDoubleMatrix {
             //the BLUPs
             //not implemented
 
+            DoubleMatrix V = null;
             if (useP3D) {
                 DoubleMatrix ZKZ = zk[0].mult(zk[1]).tcrossproduct(zk[0]);
                 //Check to see if W exists. Alter V calculation accordingly
             	if(W==null) {
-            	    Vminus = new SymmetricMatrixInverterDM(calculateV(ZKZ, genvar, resvar));
+            	    V = calculateV(ZKZ, genvar, resvar);
             	}
             	else {
-            	    Vminus = new SymmetricMatrixInverterDM(calculateV(ZKZ, WOriginal, genvar, resvar));
+            	    V = calculateV(ZKZ, WOriginal, genvar, resvar);
             	}
+            	Vminus = new SymmetricMatrixInverterDM(V);
             }
 
             //iterate markers
-            if (testMarkers) {
-                for (int m = 0; m < numberOfMarkers; m++) {
-                	OpenBitSet missingObsForSite = new OpenBitSet(missing);
-                	missingObsForSite.or(missingForSite(m));
-                	
-                    //only data for which missing=false are in the Z matrix
-                    //the block below finds the rows of Z that have no marker data.
-                    //Those rows/columns will need to be removed from ZKZ or from V, depending on the analysis method.
-                	OpenBitSet missingFromZ = new OpenBitSet(nonMissingObs);
-                	
-                    int nonMissingCount = 0;
-                    for (int i = 0; i < totalObs; i++) {
-                        if (!missing.fastGet(i)) {
-                            if (missingObsForSite.fastGet(i)) {
-                            	missingFromZ.fastSet(nonMissingCount);
-                            }
-                            nonMissingCount++;
-                        }
-                    }
-
-                    //test for all missing
-                    if (nonMissingCount == 0) {
-                        myLogger.error("All values missing for " + myGenotype.siteName(m));
-                        continue;
-                    }
-
-                    //adjust y for missing data
-                    DoubleMatrix ymarker = AssociationUtils.getNonMissingValues(y, missingFromZ);
-
-                    //adjust the fixed effects
-                    DoubleMatrix fixed2 = AssociationUtils.getNonMissingValues(fixed, missingFromZ);
-
-                    //add marker data to fixed effects
-                    ArrayList<Byte> markerIds = new ArrayList<>();
-                    int nAlleles = 0;
-                    int markerdf = 0;
-                    DoubleMatrix X;
-                    int[] alleleCounts = null;
-                    
-                    if (useGenotypeCalls) {
-                    	byte[] genotypes = ModelEffectUtils.genotypesToUnphasedSorted(AssociationUtils.getNonMissingBytes(myGenoPheno.genotypeAllTaxa(m), missingObsForSite));
-                        FactorModelEffect markerEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(genotypes, markerIds), true);
-                        X = fixed2.concatenate(markerEffect.getX(), false);
-                        nAlleles = markerEffect.getNumberOfLevels();
-                        alleleCounts = markerEffect.getLevelCounts();
-                        markerdf = nAlleles - 1;
-                    } else if (useReferenceProbability) { 
-                        double[] genotypes = AssociationUtils.getNonMissingDoubles(myGenoPheno.referenceProb(m), missingObsForSite);
-                        int nrows = genotypes.length;
-                        X = fixed2.concatenate(DoubleMatrixFactory.DEFAULT.make(nrows, 1, genotypes), false);
-                        nAlleles = 1;
-                        alleleCounts = new int[]{nrows};
-                        markerdf = 1;
-                    } else {
-                    	X = null;
-                    }
-                    
-                    CompressedMLMResult result = new CompressedMLMResult();
-                    //need to add marker information to result once Alignment is stable
-
-                    if (useP3D) {
-                        testMarkerUsingP3D(result, ymarker, X, Vminus.getInverse(missingFromZ, nonMissingObs), markerdf, markerIds);
-                    } else {
-                    	DoubleMatrix Zsel = AssociationUtils.getNonMissingValues(zk[0], missingFromZ);
-                        if (!testMarkerUsingEMMA(result, ymarker, X, zk[1], Zsel, nAlleles, markerIds)) continue;
-                        markerdf = result.modeldf - baseModeldf;
-                    }
-
-                    //if the results are to be filtered on pmax check for that condition
-                    boolean recordTheseResults = true;
-                    if (parentPlugin.isFilterOutput() && result.p > parentPlugin.getMaxp()) {
-                        recordTheseResults = false;
+            if (testMarkers && useP3D) {
+                //with P3D the markers are independent, so blocks of markers are tested in parallel and recorded in order.
+                //Markers scored for every observation are tested in the eigenbasis of V.
+                RotatedP3DModel rotatedModel = (useGenotypeCalls || useReferenceProbability) ? new RotatedP3DModel(V, y, fixed) : null;
+                int markersPerBatch = MARKERS_PER_BLOCK * 4 * Runtime.getRuntime().availableProcessors();
+                for (int batchStart = 0; batchStart < numberOfMarkers; batchStart += markersPerBatch) {
+                    int firstMarker = batchStart;
+                    int lastMarker = Math.min(batchStart + markersPerBatch, numberOfMarkers);
+                    int numberOfBlocks = (lastMarker - firstMarker + MARKERS_PER_BLOCK - 1) / MARKERS_PER_BLOCK;
+                    List<MarkerTest> tests = IntStream.range(0, numberOfBlocks).parallel()
+                            .mapToObj(b -> testMarkersUsingP3D(firstMarker + b * MARKERS_PER_BLOCK,
+                                    Math.min(firstMarker + (b + 1) * MARKERS_PER_BLOCK, lastMarker), rotatedModel,
+                                    missing, totalObs, nonMissingObs, y, fixed))
+                            .flatMap(List::stream)
+                            .collect(Collectors.toList());
+                    for (MarkerTest test : tests) {
+                        if (test == null) continue;
+                        recordMarkerTest(attr.name(), test, totalObs);
+                        iterationsSofar++;
+                        int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
+                        progress = Math.min(99, progress);
+                        parentPlugin.updateProgress(progress);
                     }
+                }
+            } else if (testMarkers) {
+                for (int m = 0; m < numberOfMarkers; m++) {
+                    MarkerTest test = markerTest(m, missing, totalObs, nonMissingObs, y, fixed, false);
+                    if (test == null) continue;
 
-                    if (recordTheseResults) {
-                        //add result to main
-                        //{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"};
-                    	//results with additive and dominance effects
-                    	//{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","add_effect","add_F","add_p","dom_effect","dom_F","dom_p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"}
-                    	
-                        String markername = myGenotype.siteName(m);
-                        String chr = "";
-                        String pos = "";
-                        String locus = myGenotype.chromosomeName(m);
-                        String site = Integer.toString(myGenotype.chromosomalPosition(m));
-                        double errordf = (double) (ymarker.numberOfRows() - result.modeldf);
-
-                        tableRow = new Object[]{attr.name(),
-                        		markername,
-                        		locus,
-                        		site,
-                        		new Integer(markerdf),
-                        		new Double(result.F),
-                        		new Double(result.p),
-                        		new Double(result.addEffect),
-                        		new Double(result.Fadd),
-                        		new Double(result.padd),
-                        		new Double(result.domEffect),
-                        		new Double(result.Fdom),
-                        		new Double(result.pdom),
-                        		new Double(errordf),
-                        		new Double(result.r2),
-                        		new Double(genvar),
-                        		new Double(resvar),
-                        		new Double(-2 * lnlk)};
-                        siteReportBuilder.add(tableRow);
-
-                        //add result to alleles
-                        //"Trait","Marker","Chr","Pos","Allele","Effect", obs
-                        int numberOfRowsKept = totalObs - (int) missingObsForSite.cardinality();
-                        if (useReferenceProbability) {
-                        	tableRow = new Object[]{attr.name(),
-                        			markername,
-                        			locus,
-                        			site,
-                        			"",
-                        			result.beta.get(result.beta.numberOfRows() - 1, 0),
-                        			numberOfRowsKept
-                        	};
-
-                            //record the results
-                        	alleleReportBuilder.add(tableRow);
-                        } else if (nAlleles > 1) {
-                            for (int a = 0; a < nAlleles; a++) {
-                                Double estimate;
-                                if (a < nAlleles - 1) {
-                                    estimate = result.beta.get(result.beta.numberOfRows() - nAlleles + 1 + a, 0);
-                                } else {
-                                    estimate = 0.0;
-                                }
-                                tableRow = new Object[]{attr.name(),
-                                		markername,
-                                		locus,
-                                		site,
-//                                		markerIds.get(a),
-                                		NucleotideAlignmentConstants.getNucleotideIUPAC(markerIds.get(a)),
-                                		estimate,
-                                		alleleCounts[a]
-                                };
-
-                                //record the results
-                            	alleleReportBuilder.add(tableRow);
-                            }
-                        }
+                    DoubleMatrix Zsel = AssociationUtils.getNonMissingValues(zk[0], test.missingFromZ);
+                    if (!testMarkerUsingEMMA(test.result, test.ymarker, test.X, zk[1], Zsel, test.nAlleles, test.markerIds)) continue;
+                    test.markerdf = test.result.modeldf - baseModeldf;
 
-                    }
+                    recordMarkerTest(attr.name(), test, totalObs);
                     iterationsSofar++;
                     int progress = (int) ((double) iterationsSofar / (double) expectedIterations * 100);
                     progress = Math.min(99, progress);
@@ -547,6 +440,212 @@ public class CompressedMLMusingDoubleMatrix {
         return results;
     }
 
+    /**
+     * Gets the observations and the model of a marker.
+     * @param m	the marker
+     * @param missing	the observations missing from the model without markers
+     * @param totalObs	the number of observations
+     * @param nonMissingObs	the number of observations in the model without markers
+     * @param y	the phenotypes in the model without markers
+     * @param fixed	the fixed effects in the model without markers
+     * @param rotate	true if a marker scored in every observation will be tested in the rotated model, which needs
+     * neither X nor ymarker
+     * @return	the marker, or null if all values are missing
+     */
+    private MarkerTest markerTest(int m, BitSet missing, int totalObs, int nonMissingObs, DoubleMatrix y, DoubleMatrix fixed, boolean rotate) {
+    	MarkerTest test = new MarkerTest(m);
+    	test.missingObsForSite = new OpenBitSet(missing);
+    	test.missingObsForSite.or(missingForSite(m));
+
+        //only data for which missing=false are in the Z matrix
+        //the block below finds the rows of Z that have no marker data.
+        //Those rows/columns will need to be removed from ZKZ or from V, depending on the analysis method.
+    	test.missingFromZ = new OpenBitSet(nonMissingObs);
+
+        int nonMissingCount = 0;
+        for (int i = 0; i < totalObs; i++) {
+            if (!missing.fastGet(i)) {
+                if (test.missingObsForSite.fastGet(i)) {
+                	test.missingFromZ.fastSet(nonMissingCount);
+                }
+                nonMissingCount++;
+            }
+        }
+
+        //test for all missing
+        if (nonMissingCount == 0) {
+            myLogger.error("All values missing for " + myGenotype.siteName(m));
+            return null;
+        }
+
+        test.rotated = rotate && test.missingFromZ.cardinality() == 0;
+        test.numberOfObservations = nonMissingObs - (int) test.missingFromZ.cardinality();
+
+        //adjust y and the fixed effects for missing data
+        DoubleMatrix fixed2 = null;
+        if (!test.rotated) {
+            test.ymarker = AssociationUtils.getNonMissingValues(y, test.missingFromZ);
+            fixed2 = AssociationUtils.getNonMissingValues(fixed, test.missingFromZ);
+        }
+
+        //add marker data to fixed effects
+        if (useGenotypeCalls) {
+        	byte[] genotypes = ModelEffectUtils.genotypesToUnphasedSorted(AssociationUtils.getNonMissingBytes(myGenoPheno.genotypeAllTaxa(m), test.missingObsForSite));
+            FactorModelEffect markerEffect = new FactorModelEffect(ModelEffectUtils.getIntegerLevels(genotypes, test.markerIds), true);
+            test.markerX = markerEffect.getX();
+            if (!test.rotated) test.X = fixed2.concatenate(test.markerX, false);
+            test.nAlleles = markerEffect.getNumberOfLevels();
+            test.alleleCounts = markerEffect.getLevelCounts();
+            test.markerdf = test.nAlleles - 1;
+        } else if (useReferenceProbability) {
+            double[] genotypes = AssociationUtils.getNonMissingDoubles(myGenoPheno.referenceProb(m), test.missingObsForSite);
+            int nrows = genotypes.length;
+            test.markerX = DoubleMatrixFactory.DEFAULT.make(nrows, 1, genotypes);
+            if (!test.rotated) test.X = fixed2.concatenate(test.markerX, false);
+            test.nAlleles = 1;
+            test.alleleCounts = new int[]{nrows};
+            test.markerdf = 1;
+        } else {
+        	test.X = null;
+        }
+        return test;
+    }
+
+    /**
+     * Tests a block of markers with P3D.  The columns of the markers scored in every observation are rotated together
+     * into the eigenbasis of V.  The others are tested with the inverse of V for their observations.
+     * @return	the tests in marker order, with null for markers with all values missing
+     */
+    private List<MarkerTest> testMarkersUsingP3D(int firstMarker, int lastMarker, RotatedP3DModel rotatedModel,
+    		BitSet missing, int totalObs, int nonMissingObs, DoubleMatrix y, DoubleMatrix fixed) {
+    	List<MarkerTest> tests = new ArrayList<>();
+    	List<MarkerTest> rotatedTests = new ArrayList<>();
+    	int numberOfRotatedColumns = 0;
+    	for (int m = firstMarker; m < lastMarker; m++) {
+    		MarkerTest test = markerTest(m, missing, totalObs, nonMissingObs, y, fixed, rotatedModel != null);
+    		tests.add(test);
+    		if (test == null) continue;
+    		if (test.rotated) {
+    			rotatedTests.add(test);
+    			numberOfRotatedColumns += test.markerX.numberOfColumns();
+    		} else {
+    			testMarkerUsingP3D(test.result, test.ymarker, test.X, Vminus.getInverse(test.missingFromZ, nonMissingObs), test.markerdf, test.markerIds);
+    			test.clearModel();
+    		}
+    	}
+    	if (rotatedTests.isEmpty()) return tests;
+
+    	//rotate the columns of all the markers with one matrix multiplication
+    	DoubleMatrix rotatedColumns = null;
+    	if (numberOfRotatedColumns > 0) {
+    		int n = nonMissingObs;
+    		double[] columns = new double[n * numberOfRotatedColumns];
+    		int offset = 0;
+    		for (MarkerTest test : rotatedTests) {
+    			for (int c = 0; c < test.markerX.numberOfColumns(); c++) {
+    				for (int i = 0; i < n; i++) columns[offset++] = test.markerX.get(i, c);
+    			}
+    		}
+    		rotatedColumns = rotatedModel.rotate(DoubleMatrixFactory.DEFAULT.make(n, numberOfRotatedColumns, columns, true));
+    	}
+    	int firstColumn = 0;
+    	for (MarkerTest test : rotatedTests) {
+    		int ncol = test.markerX.numberOfColumns();
+    		DoubleMatrix rotatedMarker = null;
+    		if (ncol > 0) {
+    			int[] markerColumns = new int[ncol];
+    			for (int c = 0; c < ncol; c++) markerColumns[c] = firstColumn + c;
+    			rotatedMarker = rotatedColumns.getSelection(null, markerColumns);
+    		}
+    		testMarkerUsingRotatedP3D(test.result, rotatedModel, rotatedMarker, test.markerdf, test.markerIds);
+    		test.clearModel();
+    		firstColumn += ncol;
+    	}
+    	return tests;
+    }
+
+    /**
+     * Adds the results of a marker test to the reports, unless they are filtered out
+     */
+    private void recordMarkerTest(String traitName, MarkerTest test, int totalObs) {
+        CompressedMLMResult result = test.result;
+        int m = test.marker;
+        int nAlleles = test.nAlleles;
+
+        //if the results are to be filtered on pmax check for that condition
+        if (parentPlugin.isFilterOutput() && result.p > parentPlugin.getMaxp()) {
+            return;
+        }
+
+        //add result to main
+        //{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"};
+    	//results with additive and dominance effects
+    	//{"Trait","Marker","Chr","Pos","Locus","Site","df","F","p","add_effect","add_F","add_p","dom_effect","dom_F","dom_p","errordf","MarkerR2","Genetic Var","Residual Var", "-2LnLikelihood"}
+
+        String markername = myGenotype.siteName(m);
+        String locus = myGenotype.chromosomeName(m);
+        String site = Integer.toString(myGenotype.chromosomalPosition(m));
+        double errordf = (double) (test.numberOfObservations - result.modeldf);
+
+        Object[] tableRow = new Object[]{traitName,
+        		markername,
+        		locus,
+        		site,
+        		new Integer(test.markerdf),
+        		new Double(result.F),
+        		new Double(result.p),
+        		new Double(result.addEffect),
+        		new Double(result.Fadd),
+        		new Double(result.padd),
+        		new Double(result.domEffect),
+        		new Double(result.Fdom),
+        		new Double(result.pdom),
+        		new Double(errordf),
+        		new Double(result.r2),
+        		new Double(genvar),
+        		new Double(resvar),
+        		new Double(-2 * lnlk)};
+        siteReportBuilder.add(tableRow);
+
+        //add result to alleles
+        //"Trait","Marker","Chr","Pos","Allele","Effect", obs
+        int numberOfRowsKept = totalObs - (int) test.missingObsForSite.cardinality();
+        if (useReferenceProbability) {
+        	tableRow = new Object[]{traitName,
+        			markername,
+        			locus,
+        			site,
+        			"",
+        			result.beta.get(result.beta.numberOfRows() - 1, 0),
+        			numberOfRowsKept
+        	};
+
+            //record the results
+        	alleleReportBuilder.add(tableRow);
+        } else if (nAlleles > 1) {
+            for (int a = 0; a < nAlleles; a++) {
+                Double estimate;
+                if (a < nAlleles - 1) {
+                    estimate = result.beta.get(result.beta.numberOfRows() - nAlleles + 1 + a, 0);
+                } else {
+                    estimate = 0.0;
+                }
+                tableRow = new Object[]{traitName,
+                		markername,
+                		locus,
+                		site,
+//                		markerIds.get(a),
+                		NucleotideAlignmentConstants.getNucleotideIUPAC(test.markerIds.get(a)),
+                		estimate,
+                		test.alleleCounts[a]
+                };
+
+                //record the results
+            	alleleReportBuilder.add(tableRow);
+            }
+        }
+    }
+
 //    private BitSet missingForSiteX(int site) {
 //    	int ntaxa = myGenotype.numberOfTaxa();
 //    	OpenBitSet missing = new OpenBitSet(ntaxa);
@@ -848,76 +947,123 @@ public class CompressedMLMusingDoubleMatrix {
             result.p = Double.NaN;
             result.r2 = 0.0;
         } else {  //full model
-        	
-            //calculate F test, p-value of F test
-            int nparm = result.beta.numberOfRows();
-            DoubleMatrix M = DoubleMatrixFactory.DEFAULT.make(markerdf, nparm, 0);
-            for (int i = 0; i < markerdf; i++) {
-                M.set(i, nparm - markerdf + i, 1);
-            }
-            DoubleMatrix Mb = M.mult(result.beta);
-            DoubleMatrix invMiM = M.mult(invXVX.tcrossproduct(M));
+            testMarkerEffects(result, invXVX, y.numberOfRows(), markerdf, markerIds);
+            calculateRsquare(X, y, invV, result, markerdf);
+        }
+
+    }
+
+    /**
+     * Same as {@link #testMarkerUsingP3D(CompressedMLMResult, DoubleMatrix, DoubleMatrix, DoubleMatrix, int, ArrayList)}
+     * for a marker scored in every observation, with the marker columns of X rotated into the eigenbasis of V
+     * @param result	the result
+     * @param model	the rotated model without the marker
+     * @param rotatedMarker	the rotated marker columns of X, or null if there are none
+     * @param markerdf	the marker degrees of freedom
+     * @param markerIds	the genotypes of the marker levels
+     */
+    public void testMarkerUsingRotatedP3D(CompressedMLMResult result, RotatedP3DModel model, DoubleMatrix rotatedMarker, int markerdf, ArrayList<Byte> markerIds) {
+        //calculate beta
+        DoubleMatrix X;
+        DoubleMatrix invXVX;
+        DoubleMatrix Xy;
+        if (rotatedMarker == null) {
+            X = model.fixed();
+            invXVX = model.fixedCrossproduct().copy();
+            Xy = model.fixedCrossproductY();
+        } else {
+            X = model.fixed().concatenate(rotatedMarker, false);
+            DoubleMatrix FtM = model.fixed().crossproduct(rotatedMarker);
+            invXVX = DoubleMatrixFactory.DEFAULT.compose(new DoubleMatrix[][]{
+                {model.fixedCrossproduct(), FtM},
+                {FtM.transpose(), rotatedMarker.crossproduct()}});
+            Xy = model.fixedCrossproductY().concatenate(rotatedMarker.crossproduct(model.y()), true);
+        }
+        invXVX.invert();
+        result.beta = invXVX.mult(Xy);
+
+        //test for markerdf = 0
+        if (markerdf == 0) {
+            result.F = Double.NaN;
+            result.p = Double.NaN;
+            result.r2 = 0.0;
+        } else {  //full model
+            testMarkerEffects(result, invXVX, model.numberOfObservations(), markerdf, markerIds);
+
+            //R^2 as in calculateRsquare, with yhat = yhat(full model) - yhat(model without marker) already rotated
+            DoubleMatrix yhat = X.mult(result.beta);
+            yhat.minusEquals(model.reducedFit());
+            result.r2 = yhat.crossproduct().get(0, 0) / model.totalSS();
+        }
+    }
+
+    //the F test of the marker and, for markers with two homozygous genotypes and a heterozygous one, the additive and dominance tests
+    private void testMarkerEffects(CompressedMLMResult result, DoubleMatrix invXVX, int nobs, int markerdf, ArrayList<Byte> markerIds) {
+        //calculate F test, p-value of F test
+        int nparm = result.beta.numberOfRows();
+        DoubleMatrix M = DoubleMatrixFactory.DEFAULT.make(markerdf, nparm, 0);
+        for (int i = 0; i < markerdf; i++) {
+            M.set(i, nparm - markerdf + i, 1);
+        }
+        DoubleMatrix Mb = M.mult(result.beta);
+        DoubleMatrix invMiM = M.mult(invXVX.tcrossproduct(M));
+        try {
+            invMiM.invert();
+            result.F = Mb.crossproduct(invMiM.mult(Mb)).get(0, 0) / markerdf;
+        } catch (Exception ex) {
+            result.F = Double.NaN;
+        }
+        try {
+            result.p = LinearModelUtils.Ftest(result.F, markerdf, nobs - nparm);
+        } catch (Exception e) {
+            result.p = Double.NaN;
+        }
+
+        boolean markerTest = markerIds.size() == 3;
+        if (markerTest) {
+        	markerTest = markerTest && !GenotypeTableUtils.isHeterozygous(markerIds.get(0));
+        	markerTest = markerTest && !GenotypeTableUtils.isHeterozygous(markerIds.get(1));
+        	markerTest = markerTest && GenotypeTableUtils.isHeterozygous(markerIds.get(2));
+        }
+        if (markerdf == 2 && markerTest) { //calculate additive and dominance tests and effects
+
+        	//additive test
+            M = DoubleMatrixFactory.DEFAULT.make(1, nparm, 0);
+            M.set(0, nparm - 2, 0.5);
+            M.set(0, nparm - 1, -0.5);
+
+            Mb = M.mult(result.beta);
+            result.addEffect = Mb.get(0, 0);
             try {
-                invMiM.invert();
-                result.F = Mb.crossproduct(invMiM.mult(Mb)).get(0, 0) / markerdf;
+               result.Fadd = Mb.get(0, 0) * Mb.get(0,0) / (M.mult(invXVX.tcrossproduct(M))).get(0,0);
             } catch (Exception ex) {
-                result.F = Double.NaN;
+                result.Fadd = Double.NaN;
             }
             try {
-                result.p = LinearModelUtils.Ftest(result.F, markerdf, y.numberOfRows() - nparm);
+                result.padd = LinearModelUtils.Ftest(result.Fadd, 1, nobs - nparm);
             } catch (Exception e) {
-                result.p = Double.NaN;
+                result.padd = Double.NaN;
             }
 
-            calculateRsquare(X, y, invV, result, markerdf);
-            
-            boolean markerTest = markerIds.size() == 3;
-            if (markerTest) {
-            	markerTest = markerTest && !GenotypeTableUtils.isHeterozygous(markerIds.get(0));
-            	markerTest = markerTest && !GenotypeTableUtils.isHeterozygous(markerIds.get(1));
-            	markerTest = markerTest && GenotypeTableUtils.isHeterozygous(markerIds.get(2));
-            }
-            if (markerdf == 2 && markerTest) { //calculate additive and dominance tests and effects
-            	
-            	//additive test 
-                M = DoubleMatrixFactory.DEFAULT.make(1, nparm, 0);
-                M.set(0, nparm - 2, 0.5);
-                M.set(0, nparm - 1, -0.5);
-                    
-                Mb = M.mult(result.beta);
-                result.addEffect = Mb.get(0, 0);
-                try {
-                   result.Fadd = Mb.get(0, 0) * Mb.get(0,0) / (M.mult(invXVX.tcrossproduct(M))).get(0,0);
-                } catch (Exception ex) {
-                    result.Fadd = Double.NaN;
-                }
-                try {
-                    result.padd = LinearModelUtils.Ftest(result.Fadd, 1, y.numberOfRows() - nparm);
-                } catch (Exception e) {
-                    result.padd = Double.NaN;
-                }
+            //dominance test
+            M = DoubleMatrixFactory.DEFAULT.make(1, nparm, 0);
+            M.set(0, nparm - 2, -0.5);
+            M.set(0, nparm - 1, -0.5);
 
-                //dominance test
-                M = DoubleMatrixFactory.DEFAULT.make(1, nparm, 0);
-                M.set(0, nparm - 2, -0.5);
-                M.set(0, nparm - 1, -0.5);
-                    
-                Mb = M.mult(result.beta);
-                result.domEffect = Mb.get(0, 0);
-                try {
-                    result.Fdom = Mb.get(0, 0) * Mb.get(0,0) / (M.mult(invXVX.tcrossproduct(M))).get(0,0);
-                } catch (Exception ex) {
-                    result.Fdom = Double.NaN;
-                }
-                try {
-                    result.pdom = LinearModelUtils.Ftest(result.Fdom, 1, y.numberOfRows() - nparm);
-                } catch (Exception e) {
-                    result.pdom = Double.NaN;
-                }
-                
+            Mb = M.mult(result.beta);
+            result.domEffect = Mb.get(0, 0);
+            try {
+                result.Fdom = Mb.get(0, 0) * Mb.get(0,0) / (M.mult(invXVX.tcrossproduct(M))).get(0,0);
+            } catch (Exception ex) {
+                result.Fdom = Double.NaN;
+            }
+            try {
+                result.pdom = LinearModelUtils.Ftest(result.Fdom, 1, nobs - nparm);
+            } catch (Exception e) {
+                result.pdom = Double.NaN;
             }
-        }
 
+        }
     }
     
     private void calculateRsquare(DoubleMatrix X, DoubleMatrix y, DoubleMatrix invV, CompressedMLMResult result, int markerdf) {
@@ -1063,6 +1209,40 @@ public class CompressedMLMusingDoubleMatrix {
         int ngroups;
     }
 
+    /**
+     * The observations, model and result of one marker
+     */
+    class MarkerTest {
+
+        final int marker;
+        final CompressedMLMResult result = new CompressedMLMResult();
+        final ArrayList<Byte> markerIds = new ArrayList<>();
+        OpenBitSet missingObsForSite;
+        OpenBitSet missingFromZ;
+        boolean rotated = false;
+        int numberOfObservations = 0;
+        DoubleMatrix ymarker;
+        DoubleMatrix markerX;
+        DoubleMatrix X;
+        int nAlleles = 0;
+        int markerdf = 0;
+        int[] alleleCounts = null;
+
+        MarkerTest(int marker) {
+            this.marker = marker;
+        }
+
+        /**
+         * Drops the matrices of the model once the marker is tested, so a batch of tests waiting to be recorded
+         * holds only the results.
+         */
+        void clearModel() {
+            ymarker = null;
+            markerX = null;
+            X = null;
+        }
+    }
+
     public void setTestMarkers(boolean testMarkers) {
         this.testMarkers = testMarkers;
     }
@@ -21,7 +21,6 @@ import org.apache.logging.log4j.Logger;
 
 import net.maizegenetics.dna.map.Position;
 import net.maizegenetics.dna.snp.GenotypeTable;
-import net.maizegenetics.dna.snp.GenotypeTableUtils;
 import net.maizegenetics.dna.snp.GenotypeTable.GENOTYPE_TABLE_COMPONENT;
 import net.maizegenetics.phenotype.CategoricalAttribute;
 import net.maizegenetics.phenotype.GenotypePhenotype;
@@ -45,6 +44,10 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
             GENOTYPE_TABLE_COMPONENT.AlleleProbability };
 
     private final byte NN = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+    //sites tested together, so that each phenotype is read once per block
+    private static final int SITES_PER_BLOCK = 16;
+    //results passed to the report at once
+    private static final int RESULTS_PER_BLOCK = 4096;
     private Phenotype myPhenotype;
     private GenotypeTable myGenotype;
     List<String >phenotypeNames;
@@ -101,7 +104,6 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
         long start = System.currentTimeMillis();
         
         int maxSitesInQueue = 2000;
-        int maxObjectsInQueue = 1000;
         
         Datum inDatum = input.getDataOfType(GenotypePhenotype.class).get(0);
         myGenoPheno = (GenotypePhenotype) inDatum.getData();
@@ -129,46 +131,52 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
         int siteTesterThreads = nthreads - 1;
         ExecutorService myExecutor = Executors.newFixedThreadPool(nthreads);
                 
-        //start report thread
-        BlockingQueue<Object[]> reportQueue = new LinkedBlockingQueue<>();
+        //results are passed to the report thread in blocks, which it returns to freeResults for reuse.
+        //When the report is written to a file, the site testers format and write their own results and there is no report thread.
+        BlockingQueue<SiteResults> reportQueue = new LinkedBlockingQueue<>();
+        BlockingQueue<SiteResults> freeResults = new LinkedBlockingQueue<>();
         
         //start processing and output threads
-        BlockingQueue<Marker> siteQueue = new LinkedBlockingQueue<>(maxSitesInQueue);
+        BlockingQueue<Marker[]> siteQueue = new LinkedBlockingQueue<>(maxSitesInQueue / SITES_PER_BLOCK);
         List<double[]> dataList = sbo.getOrthogonalizedData();
         List<double[]> uList = sbo.getUColumns();
         
         for (int i = 0; i < siteTesterThreads; i++) {
-            myExecutor.execute(new SiteTester(dataList, phenotypeNames, uList, siteQueue, reportQueue, minR2, errdf, numberOfObservations));
+            myExecutor.execute(new SiteTester(dataList, phenotypeNames, uList, siteQueue, reportQueue, freeResults, myReport, minR2, errdf, numberOfObservations));
             //the next line can be used to test whether each thread should have its own copy of the phenotype data
-//            myExecutor.execute(new SiteTester(sbo.copyOrthogonalizedData(), phenotypeNames, sbo.copyUColumns(), siteQueue, reportQueue, minR2, errdf, numberOfObservations));
+//            myExecutor.execute(new SiteTester(sbo.copyOrthogonalizedData(), phenotypeNames, sbo.copyUColumns(), siteQueue, reportQueue, freeResults, myReport, minR2, errdf, numberOfObservations));
         }
         
         //start the reporter
-        myExecutor.execute(new ReportWriter(myReport, reportQueue, siteTesterThreads));
+        if (!saveAsFile.value()) myExecutor.execute(new ReportWriter(myReport, reportQueue, freeResults, siteTesterThreads));
         
         System.out.printf("Time to set up threads = %d ms.\n", System.currentTimeMillis() - start);
         start = System.currentTimeMillis();
         
-        //add sites to the siteQueue
+        //add blocks of sites to the siteQueue
         int nsites = myGenotype.numberOfSites();
         System.out.printf("myGenotype has %d sites\n", nsites);
-        for (int s = 0; s < nsites; s++) {
-            if (s % 1000000 == 0) myLogger.info("Adding site " + s + " to the site queue.");
-            try {
+        for (int first = 0; first < nsites; first += SITES_PER_BLOCK) {
+            if (first % 1000000 < SITES_PER_BLOCK) myLogger.info("Adding site " + first + " to the site queue.");
+            Marker[] block = new Marker[Math.min(SITES_PER_BLOCK, nsites - first)];
+            for (int b = 0; b < block.length; b++) {
+                int s = first + b;
                 byte major = myGenotype.majorAllele(s);
                 double freq = myGenotype.majorAlleleFrequency(s);
                 byte[] geno = myGenoPheno.genotypeAllTaxa(s);
-                siteQueue.put(new Marker(geno, major, freq, myGenotype.positions().get(s)));
+                block[b] = new Marker(geno, major, freq, myGenotype.positions().get(s));
+            }
+            try {
+                siteQueue.put(block);
             } catch (Exception e) {
-                throw new RuntimeException("Site thread interrupted at site " + s, e);
+                throw new RuntimeException("Site thread interrupted at site " + first, e);
             }
         }
         
         //add end signal times number of threads to queue
         for (int i = 0; i < nthreads; i++) {
-            byte zerobyte = (byte) 0;
             try {
-                siteQueue.put(new Marker(new byte[0], zerobyte, 0.0, null));
+                siteQueue.put(new Marker[0]);
             } catch (InterruptedException e) {
                 throw new RuntimeException("siteQueue interrupted", e);
             }
@@ -296,116 +304,145 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
         final List<double[]> orthogonalPhenotypes;
         final List<String> phenotypeNames;
         final List<double[]> Ucolumns;
-        final BlockingQueue<Marker> siteQueue;
-        final BlockingQueue<Object[]> outQueue;
+        final BlockingQueue<Marker[]> siteQueue;
+        final BlockingQueue<SiteResults> outQueue;
+        final BlockingQueue<SiteResults> freeResults;
+        final TableReportBuilder myReport;
         final double minR2;
         final int nphenotypes;
         final int numberOfObservations;
         final double errdf;
         final private FDistribution Fdist;
+
+        //working arrays, reused for every block of sites
+        final double[][] siteValues;
+        final boolean[] isVariant;
+        final double[] innerProducts;
+        final StringBuilder formattedResults = new StringBuilder();
+        SiteResults myResults;
         
-        SiteTester(List<double[]> orthogonalPhenotypes, List<String> phenotypeNames, List<double[]> Ucol, BlockingQueue<Marker> siteQueue, BlockingQueue<Object[]> outQueue, double minRSquare, double errdf, int ntaxa) {
+        SiteTester(List<double[]> orthogonalPhenotypes, List<String> phenotypeNames, List<double[]> Ucol, BlockingQueue<Marker[]> siteQueue,
+                BlockingQueue<SiteResults> outQueue, BlockingQueue<SiteResults> freeResults, TableReportBuilder report, double minRSquare, double errdf, int ntaxa) {
             this.orthogonalPhenotypes = orthogonalPhenotypes;
             this.phenotypeNames = phenotypeNames;
             Ucolumns = Ucol;
             this.siteQueue = siteQueue;
             this.outQueue = outQueue;
+            this.freeResults = freeResults;
+            myReport = report;
             minR2 = minRSquare;
             numberOfObservations = ntaxa;
             this.errdf = errdf;
             nphenotypes = orthogonalPhenotypes.size();
             Fdist = new FDistribution(1, errdf);
+            siteValues = new double[SITES_PER_BLOCK][numberOfObservations];
+            isVariant = new boolean[SITES_PER_BLOCK];
+            innerProducts = new double[Ucol == null ? 0 : Ucol.size()];
+            myResults = new SiteResults(RESULTS_PER_BLOCK);
         }
         
         public void run() {
             try {
-                Marker thisMarker = siteQueue.poll(30, TimeUnit.SECONDS);
-                if (thisMarker == null) {
+                Marker[] theMarkers = siteQueue.poll(30, TimeUnit.SECONDS);
+                if (theMarkers == null) {
                     //send end signal to reporter
-                    outQueue.put(new Object[0]);
+                    outQueue.put(SiteResults.END);
                     throw new IllegalStateException("ERROR: The site tester timeout was exceeded.");
                 }
-                byte[] geno = thisMarker.geno;
-                while (geno.length > 0) {
-                    byte major = thisMarker.major;
-                    double genoMean = thisMarker.majorFrequency;
-                    
-                    //convert genotypes to centered values
-                    double[] siteValues = new double[numberOfObservations];
-                    for (int t = 0; t < numberOfObservations; t++) {
-                        if (geno[t] == NN) siteValues[t] = 0;
-                        else {
-                            siteValues[t] = -genoMean;
-                            byte[] alleles = GenotypeTableUtils.getDiploidValues(geno[t]);
-                            if (alleles[0] == major) siteValues[t] += 0.5;
-                            if (alleles[1] == major) siteValues[t] += 0.5;
+                while (theMarkers.length > 0) {
+                    int nsites = theMarkers.length;
+                    for (int b = 0; b < nsites; b++) {
+                        Marker thisMarker = theMarkers[b];
+                        isVariant[b] = siteValues(thisMarker, siteValues[b]);
+                        if (!isVariant[b]) {
+                            System.err.printf("siteValues null at position %d, probably invariant\n", thisMarker.myPosition.getPosition());
                         }
                     }
 
-                    //debug
-                    double sum = 0;
-                    for (double d : siteValues) sum += d;
-                    sum /= numberOfObservations;
-                    
-                    siteValues = orthogonalizeByBase(siteValues);
-                    siteValues = SolveByOrthogonalizing.centerAndScale(siteValues);
-                    
-                    if (siteValues == null) {
-                        System.err.printf("siteValues null at position %d, probably invariant\n", thisMarker.myPosition.getPosition());
-                    } else {
-                        double[] r2values = new double[nphenotypes];
-                        for (int p = 0; p < nphenotypes; p++) {
+                    //each phenotype is read once for the block of sites
+                    for (int p = 0; p < nphenotypes; p++) {
+                        double[] pheno = orthogonalPhenotypes.get(p);
+                        for (int b = 0; b < nsites; b++) {
+                            if (!isVariant[b]) continue;
+                            double[] values = siteValues[b];
                             double sumprod = 0;
-                            double[] pheno = orthogonalPhenotypes.get(p);
-                            for (int t = 0; t < numberOfObservations; t++) sumprod += siteValues[t] * pheno[t];
-                            r2values[p] = sumprod * sumprod;
+                            for (int t = 0; t < numberOfObservations; t++) sumprod += values[t] * pheno[t];
+                            double r2 = sumprod * sumprod;
+                            //only r2 values >= minR2 are output
+                            if (r2 >= minR2) {
+                                myResults.add(p, theMarkers[b].myPosition, r2, pvalue(r2));
+                                if (myResults.isFull()) outputResults();
+                            }
                         }
-                        
-                        outputResult(r2values, thisMarker.myPosition);
                     }
 
-                    thisMarker = siteQueue.poll(2, TimeUnit.SECONDS);
-                    if (thisMarker == null) {
+                    theMarkers = siteQueue.poll(2, TimeUnit.SECONDS);
+                    if (theMarkers == null) {
                         //send end signal to reporter
-                        outQueue.put(new Object[0]);
+                        outQueue.put(SiteResults.END);
                         throw new IllegalStateException("Error: The site tester timeout was exceeded.");
                     }
-
-                    geno = thisMarker.geno;
                 }
+                if (myResults.size() > 0) outputResults();
                 //send end signal to reporter
-                outQueue.put(new Object[0]);
+                outQueue.put(SiteResults.END);
                 
             } catch (InterruptedException e) {
                 throw new RuntimeException("InterruptedException occurred in SiteTester thread", e);
             }
         }
+
+        /**
+         * Sets values to the genotypes of a marker coded as the number of major alleles, centered,
+         * orthogonalized to the base model, and scaled to length one.
+         * @return false if the marker is invariant
+         */
+        private boolean siteValues(Marker marker, double[] values) {
+            byte[] geno = marker.geno;
+            byte major = marker.major;
+            double genoMean = marker.majorFrequency;
+
+            //convert genotypes to centered values
+            for (int t = 0; t < numberOfObservations; t++) {
+                if (geno[t] == NN) values[t] = 0;
+                else {
+                    values[t] = -genoMean;
+                    if (((geno[t] >>> 4) & 0xf) == major) values[t] += 0.5;
+                    if ((geno[t] & 0xf) == major) values[t] += 0.5;
+                }
+            }
+
+            orthogonalizeByBase(values);
+            return SolveByOrthogonalizing.centerAndScale(values) != null;
+        }
         
-        private double[] orthogonalizeByBase(double[] vector) {
-            if (Ucolumns == null || Ucolumns.size() == 0) return vector;
+        private void orthogonalizeByBase(double[] vector) {
+            if (Ucolumns == null || Ucolumns.size() == 0) return;
             int nrows = vector.length;
-            double[] result = Arrays.copyOf(vector, nrows);
-
-            for (double[] u : Ucolumns) {
-                double ip = SolveByOrthogonalizing.innerProduct(vector, u);
+            int ncols = Ucolumns.size();
+            for (int i = 0; i < ncols; i++) {
+                innerProducts[i] = SolveByOrthogonalizing.innerProduct(vector, Ucolumns.get(i));
+            }
+            for (int i = 0; i < ncols; i++) {
+                double ip = innerProducts[i];
+                double[] u = Ucolumns.get(i);
                 for (int j = 0; j < nrows; j++)
-                    result[j] -= ip * u[j];
+                    vector[j] -= ip * u[j];
             }
-
-            return result;
         }
 
-        private void outputResult(double[] rvalues, Position pos) throws InterruptedException {
-            //for r2 values >= minR2, create an output record and add it to the output queue
-        	for (int p = 0; p < nphenotypes; p++) {
-        		if (rvalues[p] >= minR2) {
-        		    Object[] result = new Object[]{ phenotypeNames.get(p), pos.getSNPID(),
-                                pos.getChromosome().getName(), pos.getPosition(),
-                                1, rvalues[p],
-                                pvalue(rvalues[p])};
-        		    outQueue.put(result);
-        		}
-        	}
+        private void outputResults() throws InterruptedException {
+            if (saveAsFile.value()) {
+                //format the results in this thread, then write them with one call
+                formattedResults.setLength(0);
+                myResults.format(phenotypeNames, formattedResults);
+                myReport.addDelimitedRows(formattedResults);
+                myResults.clear();
+            } else {
+                outQueue.put(myResults);
+                myResults = freeResults.poll();
+                if (myResults == null) myResults = new SiteResults(RESULTS_PER_BLOCK);
+            }
         }
         
         private double pvalue(double rvalue) {
@@ -423,12 +460,14 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
     
     class ReportWriter extends Thread {
         TableReportBuilder myReportBuilder;
-        BlockingQueue<Object[]> myReportQueue;
+        BlockingQueue<SiteResults> myReportQueue;
+        BlockingQueue<SiteResults> myFreeResults;
         int numberOfSources;
         
-        ReportWriter(TableReportBuilder reportBuilder, BlockingQueue<Object[]> reportQueue, int numberOfSourceThreads) {
+        ReportWriter(TableReportBuilder reportBuilder, BlockingQueue<SiteResults> reportQueue, BlockingQueue<SiteResults> freeResults, int numberOfSourceThreads) {
             myReportBuilder = reportBuilder;
             myReportQueue = reportQueue;
+            myFreeResults = freeResults;
             numberOfSources = numberOfSourceThreads;
         }
         
@@ -437,12 +476,16 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
             int numberOfFinishedThreads = 0;
             try {
                 do {
-                    Object[] reportRow = myReportQueue.poll(30, TimeUnit.MINUTES);
-                    if (reportRow == null) {
+                    SiteResults results = myReportQueue.poll(30, TimeUnit.MINUTES);
+                    if (results == null) {
                         throw new IllegalStateException("ERROR: report queue timed out.");
                     }
-                    if (reportRow.length > 0) {
-                        myReportBuilder.add(reportRow);
+                    if (results != SiteResults.END) {
+                        for (int r = 0; r < results.size(); r++) {
+                            myReportBuilder.add(results.row(r, phenotypeNames));
+                        }
+                        results.clear();
+                        myFreeResults.offer(results);
                     }
                     else {
                         numberOfFinishedThreads++;
@@ -457,6 +500,75 @@ public class FastMultithreadedAssociationPlugin extends AbstractPlugin {
             System.out.println("report thread finished");
         }
     }
+
+    /**
+     * The results of site tests that pass the p-value threshold, held in columns of primitives, so that the site testers
+     * do not create a row of objects for each result.  A full block is passed to the report thread, which returns it for reuse.
+     */
+    static class SiteResults {
+        //signals the end of the results of a site tester
+        static final SiteResults END = new SiteResults(0);
+
+        final int[] phenotype;
+        final Position[] position;
+        final double[] r2;
+        final double[] p;
+        int size = 0;
+
+        SiteResults(int capacity) {
+            phenotype = new int[capacity];
+            position = new Position[capacity];
+            r2 = new double[capacity];
+            p = new double[capacity];
+        }
+
+        void add(int phenotypeIndex, Position pos, double rsquare, double pvalue) {
+            phenotype[size] = phenotypeIndex;
+            position[size] = pos;
+            r2[size] = rsquare;
+            p[size] = pvalue;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isFull() {
+            return size == phenotype.length;
+        }
+
+        void clear() {
+            Arrays.fill(position, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * @return	a report row of the result
+         */
+        Object[] row(int index, List<String> phenotypeNames) {
+            Position pos = position[index];
+            return new Object[]{ phenotypeNames.get(phenotype[index]), pos.getSNPID(),
+                    pos.getChromosome().getName(), pos.getPosition(),
+                    1, r2[index], p[index]};
+        }
+
+        /**
+         * Appends the results as tab delimited lines, the same as the rows written by TableReportBuilder
+         */
+        void format(List<String> phenotypeNames, StringBuilder sb) {
+            for (int i = 0; i < size; i++) {
+                Position pos = position[i];
+                sb.append(phenotypeNames.get(phenotype[i])).append('\t')
+                        .append(pos.getSNPID()).append('\t')
+                        .append(pos.getChromosome().getName()).append('\t')
+                        .append(pos.getPosition()).append('\t')
+                        .append(1).append('\t')
+                        .append(r2[i]).append('\t')
+                        .append(p[i]).append('\n');
+            }
+        }
+    }
     
     class Marker {
     	byte[] geno;
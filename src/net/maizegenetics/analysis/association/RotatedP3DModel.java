@@ -0,0 +1,123 @@
+package net.maizegenetics.analysis.association;
+
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+import net.maizegenetics.matrixalgebra.decomposition.EigenvalueDecomposition;
+
+/**
+ * The P3D model of a trait, with the phenotypes and fixed effects rotated into the eigenbasis of the variance matrix V.
+ * With V = U D U', the rotation R = D^-1/2 U' makes R'R the inverse of V, so that the generalized least squares fit of
+ * a marker, X'inverse(V)X and X'inverse(V)y, is the ordinary least squares fit of the rotated data, RX and Ry.
+ * <p></p>
+ * V is decomposed once per trait, and the parts of the fit that do not depend on the marker (the rotated fixed effects
+ * and their cross products, the fit of the model without markers, and the total sum of squares for R2) are calculated
+ * once, so a marker costs the rotation of its own columns, which is batched over many markers with
+ * {@link #rotate(DoubleMatrix)}, and small solves the size of the model.  The model is read only once made, so markers
+ * are tested in parallel.  It applies only to markers scored in every observation of the trait; the rows of V of
+ * observations without a genotype change its inverse.
+ */
+public class RotatedP3DModel {
+
+    private final DoubleMatrix myRotation;
+    private final DoubleMatrix myFixed;
+    private final DoubleMatrix myY;
+    private final DoubleMatrix myFtF;
+    private final DoubleMatrix myFty;
+    private final DoubleMatrix myReducedFit;
+    private final double myTotalSS;
+
+    /**
+     * @param V	the variance matrix of the observations, genvar * ZKZ' + resvar * I (or W)
+     * @param y	the phenotypes
+     * @param fixed	the fixed effects other than markers
+     */
+    public RotatedP3DModel(DoubleMatrix V, DoubleMatrix y, DoubleMatrix fixed) {
+        int n = V.numberOfRows();
+        EigenvalueDecomposition eigen = V.getEigenvalueDecomposition();
+        double[] eigenvalues = eigen.getEigenvalues();
+        DoubleMatrix U = eigen.getEigenvectors();
+        double maxEigenvalue = 0;
+        for (double d : eigenvalues) maxEigenvalue = Math.max(maxEigenvalue, d);
+
+        //R = D^-1/2 U', with the directions of V that are numerically zero dropped
+        myRotation = DoubleMatrixFactory.DEFAULT.make(n, n);
+        for (int i = 0; i < n; i++) {
+            double scale = eigenvalues[i] > maxEigenvalue * 1e-12 ? 1 / Math.sqrt(eigenvalues[i]) : 0;
+            for (int j = 0; j < n; j++) {
+                myRotation.set(i, j, U.get(j, i) * scale);
+            }
+        }
+
+        myFixed = myRotation.mult(fixed);
+        myY = myRotation.mult(y);
+        myFtF = myFixed.crossproduct();
+        myFty = myFixed.crossproduct(myY);
+
+        //the model without a marker
+        DoubleMatrix invFtF = myFtF.copy();
+        invFtF.invert();
+        myReducedFit = myFixed.mult(invFtF.mult(myFty));
+
+        //the total sum of squares, (y - mean)'inverse(V)(y - mean)
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += y.get(i, 0);
+        }
+        DoubleMatrix ydev = myRotation.mult(y.scalarAdd(-sum / n));
+        myTotalSS = ydev.crossproduct().get(0, 0);
+    }
+
+    /**
+     * @param X	columns with a value for each observation
+     * @return	the rotated columns, RX.  Rotating the columns of many markers at once is much faster than one at a time.
+     */
+    public DoubleMatrix rotate(DoubleMatrix X) {
+        return myRotation.mult(X);
+    }
+
+    public int numberOfObservations() {
+        return myY.numberOfRows();
+    }
+
+    /**
+     * @return	the rotated phenotypes
+     */
+    public DoubleMatrix y() {
+        return myY;
+    }
+
+    /**
+     * @return	the rotated fixed effects
+     */
+    public DoubleMatrix fixed() {
+        return myFixed;
+    }
+
+    /**
+     * @return	X'X of the rotated fixed effects
+     */
+    public DoubleMatrix fixedCrossproduct() {
+        return myFtF;
+    }
+
+    /**
+     * @return	X'y of the rotated fixed effects and phenotypes
+     */
+    public DoubleMatrix fixedCrossproductY() {
+        return myFty;
+    }
+
+    /**
+     * @return	the rotated fitted values of the model without a marker
+     */
+    public DoubleMatrix reducedFit() {
+        return myReducedFit;
+    }
+
+    /**
+     * @return	(y - mean)'inverse(V)(y - mean)
+     */
+    public double totalSS() {
+        return myTotalSS;
+    }
+}
@@ -38,17 +38,19 @@ class MeanR2FromLDPlugin(parentFrame: Frame? = null, isInteractive: Boolean = fa
 
         val intervalMap = intervalMap(intervalFile())
 
-        Utils.getBufferedReader(ldResultFile()).readLines()
-            .drop(1)
-            .map { it.split("\t") }
-            .map { Pair(Position.of(it[0], it[1].toInt()), it[13].toDouble()) }
-            .filter { !it.second.isNaN() }
-                .forEach {
-                    intervalMap[it.first]?.let { accumulateR2 ->
-                        accumulateR2.r2Total += it.second
-                        accumulateR2.r2Count++
+        // stream lines so LD files larger than memory can be summarized
+        Utils.getBufferedReader(ldResultFile()).useLines { lines ->
+            lines.drop(1)
+                    .map { it.split("\t") }
+                    .map { Pair(Position.of(it[0], it[1].toInt()), it[13].toDouble()) }
+                    .filter { !it.second.isNaN() }
+                    .forEach {
+                        intervalMap[it.first]?.let { accumulateR2 ->
+                            accumulateR2.r2Total += it.second
+                            accumulateR2.r2Count++
+                        }
                     }
-                }
+        }
 
         Utils.getBufferedWriter(output()).use { writer ->
             writer.write("seqid,start,end,rr_id,average_r2_ld\n")
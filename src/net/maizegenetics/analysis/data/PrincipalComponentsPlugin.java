@@ -34,6 +34,8 @@ import net.maizegenetics.plugindef.GeneratePluginCode;
 import net.maizegenetics.plugindef.PluginParameter;
 import net.maizegenetics.stats.PCA.PrinComp;
 import net.maizegenetics.stats.PCA.PrinComp.PC_TYPE;
+import net.maizegenetics.stats.PCA.PrincipalComponents;
+import net.maizegenetics.stats.PCA.TruncatedPrinComp;
 import net.maizegenetics.util.OpenBitSet;
 import net.maizegenetics.util.SimpleTableReport;
 
@@ -68,6 +70,13 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
     		.guiName("total variance")
     		.dependentOnParameter(limitBy, PCA_LIMIT.total_variance)
     		.build();
+    private PluginParameter<Boolean> randomized = new PluginParameter.Builder<>("randomized", false, Boolean.class)
+    		.description("If true, the principal components of a genotype table are calculated with a randomized block Krylov method, "
+    				+ "which reads the genotypes in blocks of sites and never holds the full data matrix in memory. Only the "
+    				+ "number of components is calculated, so min_eigenvalue and total_variance select from those. "
+    				+ "Recommended for large genotype tables. Phenotypes always use the full decomposition.")
+    		.guiName("Randomized Truncated PCA")
+    		.build();
     private PluginParameter<Boolean> reportEigenvalues = new PluginParameter.Builder<>("reportEigenvalues", true, Boolean.class)
     		.description("Returns a list of eigenvalues sorted high to low.")
     		.guiName("Return Eigenvalues")
@@ -136,21 +145,27 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 					throw new IllegalArgumentException(msgBuilder.toString());
 				}
 				
-				//create the matrix, rows are taxa, columns are sites
-				int ntaxa = myGenotype.numberOfTaxa();
-				int nsites = myGenotype.numberOfSites();
-				DoubleMatrix dataMatrix = DoubleMatrixFactory.DEFAULT.make(ntaxa, nsites);
-				for (int t = 0; t < ntaxa; t++) {
-					for (int s = 0; s < nsites; s++) {
-						dataMatrix.set(t, s, myGenotype.referenceProbability(t, s));
-					}
-				}
-
-				//run PCA
 				PC_TYPE pctype;
 				if (useCovariance.value()) pctype = PC_TYPE.cov;
 				else pctype = PC_TYPE.corr;
-				PrinComp pca = new PrinComp(dataMatrix, pctype);
+				PrincipalComponents pca;
+				if (randomized.value()) {
+					//run PCA on blocks of sites read from the genotype table
+					pca = new TruncatedPrinComp(myGenotype, numberOfComponents.value(), pctype);
+				} else {
+					//create the matrix, rows are taxa, columns are sites
+					int ntaxa = myGenotype.numberOfTaxa();
+					int nsites = myGenotype.numberOfSites();
+					DoubleMatrix dataMatrix = DoubleMatrixFactory.DEFAULT.make(ntaxa, nsites);
+					for (int t = 0; t < ntaxa; t++) {
+						for (int s = 0; s < nsites; s++) {
+							dataMatrix.set(t, s, myGenotype.referenceProbability(t, s));
+						}
+					}
+
+					//run PCA
+					pca = new PrinComp(dataMatrix, pctype);
+				}
 
 				//get results
 				myResults.addAll(addResultsToDatumList(pca, myGenotype, aDatum.getName()));
@@ -279,7 +294,7 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		return results;
 	}
 	
-	private List<Datum> addResultsToDatumList(PrinComp pca, GenotypeTable myGenotype, String datasetName) {
+	private List<Datum> addResultsToDatumList(PrincipalComponents pca, GenotypeTable myGenotype, String datasetName) {
 		List<Datum> results = new ArrayList<>();
 		
 		//determine how many pc's to return
@@ -294,7 +309,7 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		if (limitBy.value() == PCA_LIMIT.number_of_components) {
 			numberOfPCs = Math.min(numberOfComponents.value(), nvalues);
 		} else if (limitBy.value() == PCA_LIMIT.total_variance) {
-			double limit = totalVar.value() * cumulativeEigenvalues[nvalues - 1];
+			double limit = totalVar.value() * pca.getTotalVariance();
 			int ndx = Arrays.binarySearch(cumulativeEigenvalues, limit);
 			if (ndx < -1) numberOfPCs = - ndx;
 			else numberOfPCs = ndx + 1;
@@ -337,7 +352,7 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 			String[] columnNames = new String[]{"PC","eigenvalue","proportion of total","cumulative proportion"};
 			int nEigenvalues = eigenvalues.length;
 			Object[][] tableData = new Object[nEigenvalues][4];
-			double sumvalues = cumulativeEigenvalues[nEigenvalues - 1];
+			double sumvalues = pca.getTotalVariance();
 			for (int i = 0; i < nEigenvalues; i++) {
 				tableData[i][0] = String.format("%d",i);
 				tableData[i][1] = new Double(eigenvalues[i]);
@@ -354,8 +369,8 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
 		}
 		
 		//create a tableReport with eigenvectors, if requested
-		DoubleMatrix eigenvectors = pca.getEigenVectors();
 		if (reportEigenvectors.value()) {
+			DoubleMatrix eigenvectors = pca.getEigenVectors();
 			String name = "Eigenvectors";
 			int ncol = numberOfPCs + 1;
 			int nrows = myGenotype.numberOfSites();
@@ -551,6 +566,40 @@ public class PrincipalComponentsPlugin extends AbstractPlugin {
         return this;
     }
 
+    /**
+     * If true, the principal components of a genotype table
+     * are calculated with a randomized block Krylov method,
+     * which reads the genotypes in blocks of sites and never
+     * holds the full data matrix in memory. Only the number
+     * of components is calculated, so min_eigenvalue and
+     * total_variance select from those. Recommended for large
+     * genotype tables. Phenotypes always use the full decomposition.
+     *
+     * @return Randomized Truncated PCA
+     */
+    public Boolean randomized() {
+        return randomized.value();
+    }
+
+    /**
+     * Set Randomized Truncated PCA. If true, the principal
+     * components of a genotype table are calculated with
+     * a randomized block Krylov method, which reads the genotypes
+     * in blocks of sites and never holds the full data matrix
+     * in memory. Only the number of components is calculated,
+     * so min_eigenvalue and total_variance select from those.
+     * Recommended for large genotype tables. Phenotypes always
+     * use the full decomposition.
+     *
+     * @param value Randomized Truncated PCA
+     *
+     * @return this plugin
+     */
+    public PrincipalComponentsPlugin randomized(Boolean value) {
+        randomized = new PluginParameter<>(randomized, value);
+        return this;
+    }
+
     /**
      * Returns a list of eigenvalues sorted high to low.
      *
@@ -5,6 +5,7 @@ package net.maizegenetics.analysis.data;
 
 import java.awt.Frame;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import javax.swing.ImageIcon;
 import net.maizegenetics.analysis.association.AssociationUtils;
@@ -29,6 +30,7 @@ import net.maizegenetics.plugindef.Datum;
 import net.maizegenetics.plugindef.PluginEvent;
 import net.maizegenetics.plugindef.PluginParameter;
 import net.maizegenetics.stats.PCA.PrinComp;
+import net.maizegenetics.stats.PCA.TruncatedPrinComp;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.util.OpenBitSet;
 import org.apache.logging.log4j.LogManager;
@@ -241,16 +243,9 @@ public class ProjectPcsAndRunModelSelectionPlugin extends AbstractPlugin {
 
                 myCharacterAlignment = (GenotypeTable) numericalData.getData(0).getData();
 
-                int ntaxa = myCharacterAlignment.numberOfTaxa();
-                int nsites = myCharacterAlignment.numberOfSites();
-                DoubleMatrix dataMatrix = DoubleMatrixFactory.DEFAULT.make(ntaxa, nsites);
-                for (int t = 0; t < ntaxa; t++) {
-                    for (int s = 0; s < nsites; s++) {
-                        dataMatrix.set(t, s, myCharacterAlignment.referenceProbability(t, s));
-                    }
-                }
-
-                PrinComp myPrinComp = new PrinComp(dataMatrix, PrinComp.PC_TYPE.cov);
+                //only the selected PCs are calculated, from blocks of sites read from the genotype table
+                int numberOfPCs = Arrays.stream(selectedColumns).max().getAsInt() + 1;
+                TruncatedPrinComp myPrinComp = new TruncatedPrinComp(myCharacterAlignment, numberOfPCs, PrinComp.PC_TYPE.cov);
                 //Use KNN to impute missing values  NOTE: Wait until the new KNN imputation code is up and running   
 
                 //Datum ImpNumGeno4CalcPCsAsDatum = createImputedData();//You need to go into createImputedData() and fix things
@@ -261,6 +256,15 @@ public class ProjectPcsAndRunModelSelectionPlugin extends AbstractPlugin {
                 DoubleMatrix myPCs = myPrinComp.getPrincipalComponents();
                 //System.out.println(myPCs.toString());
 
+                //an interval with few sites or taxa has fewer PCs than selected, so the missing PCs are zero
+                int numberOfMissingPCs = numberOfPCs - myPCs.numberOfColumns();
+                if (numberOfMissingPCs > 0) {
+                    myLogger.warn("calculatePCsAcrossNAMFounders: only " + myPCs.numberOfColumns() + " PCs for chromosome: " + chr[i]
+                            + " interval: " + startPos + " to " + endPos + ". Missing PCs set to zero.");
+                    DoubleMatrix zeroPCs = DoubleMatrixFactory.DEFAULT.make(myPCs.numberOfRows(), numberOfMissingPCs);
+                    myPCs = (myPCs.numberOfColumns() == 0) ? zeroPCs : myPCs.concatenate(zeroPCs, false);
+                }
+
                 if ((i == 0) & (j == 0)) {
                     PCResults = myPCs.getSelection(null, selectedColumns);
                 } else {
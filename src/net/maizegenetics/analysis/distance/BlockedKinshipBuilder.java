@@ -0,0 +1,374 @@
+/*
+ *  BlockedKinshipBuilder
+ */
+package net.maizegenetics.analysis.distance;
+
+import net.maizegenetics.matrixalgebra.Matrix.BlasDoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+import net.maizegenetics.prefs.TasselPrefs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Accumulates Z * Z' for a taxa by (pseudo-) site matrix Z of centered
+ * genotype values, one column at a time. This is the core of the centered
+ * genotype kinship methods (Endelman and GCTA).
+ * <p>
+ * Columns are packed into a panel of PANEL_WIDTH columns. When the panel is
+ * full, it is added to the upper triangle of sums with a rank-k update (syrk).
+ * When the native TasselBlas library is loaded, the update is done by
+ * {@link BlasDoubleMatrix#multMatrices} in blocks of BLAS_TILE taxa.
+ * Otherwise the triangle is divided into tiles of TAXA_PER_TILE by
+ * TAXA_PER_TILE taxa that are run on a work stealing fork join pool, with a
+ * two by two register blocked inner kernel.
+ * <p>
+ * Missing values are added as NaN and contribute nothing. When pair counts are
+ * requested, the number of columns where both taxa are not missing is also
+ * accumulated for each pair.
+ * <p>
+ * Not thread safe. Columns should be added from one thread.
+ *
+ * @see EndelmanDistanceMatrix
+ * @see GCTADistanceMatrix
+ */
+public class BlockedKinshipBuilder {
+
+    public static final int PANEL_WIDTH = 256;
+    private static final int WORDS_PER_TAXON = PANEL_WIDTH / 64;
+    private static final int TAXA_PER_TILE = 64;
+    private static final int BLAS_TILE = 1024;
+
+    private final int myNumTaxa;
+    private final int myNumThreads;
+    private final boolean myCountPairs;
+    private final boolean myUseBlas;
+
+    // taxon major: value of taxon t, column c is at t * PANEL_WIDTH + c
+    private final double[] myPanel;
+    // taxon major: presence of taxon t, column c is bit c of word t * WORDS_PER_TAXON + c / 64
+    private final long[] myPresence;
+    private int myNumPanelColumns = 0;
+    private long myNumColumns = 0;
+
+    // upper triangle (t <= u) in row order: index of (t, u) is myRowOffset[t] + u - t
+    private final int[] myRowOffset;
+    private final double[] mySums;
+    private final int[] myCounts;
+
+    /**
+     * Constructor
+     *
+     * @param numTaxa number of taxa
+     * @param countPairs whether to count non missing columns for each pair
+     * @param numThreads number of threads for the pure Java kernel
+     */
+    public BlockedKinshipBuilder(int numTaxa, boolean countPairs, int numThreads) {
+        this(numTaxa, countPairs, numThreads, DoubleMatrixFactory.DEFAULT.getType() == DoubleMatrixFactory.FactoryType.blas);
+    }
+
+    /**
+     * Constructor using TasselPrefs.getMaxThreads() threads.
+     *
+     * @param numTaxa number of taxa
+     * @param countPairs whether to count non missing columns for each pair
+     */
+    public BlockedKinshipBuilder(int numTaxa, boolean countPairs) {
+        this(numTaxa, countPairs, TasselPrefs.getMaxThreads());
+    }
+
+    BlockedKinshipBuilder(int numTaxa, boolean countPairs, int numThreads, boolean useBlas) {
+        long triangle = (long) numTaxa * ((long) numTaxa + 1L) / 2L;
+        if (triangle > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("BlockedKinshipBuilder: too many taxa: " + numTaxa);
+        }
+        myNumTaxa = numTaxa;
+        myNumThreads = Math.max(1, numThreads);
+        myCountPairs = countPairs;
+        myUseBlas = useBlas;
+        myPanel = new double[numTaxa * PANEL_WIDTH];
+        myPresence = countPairs ? new long[numTaxa * WORDS_PER_TAXON] : null;
+        myRowOffset = new int[numTaxa];
+        for (int t = 0; t < numTaxa; t++) {
+            myRowOffset[t] = (int) ((long) t * (long) numTaxa - (long) t * (long) (t - 1) / 2L);
+        }
+        mySums = new double[(int) triangle];
+        myCounts = countPairs ? new int[(int) triangle] : null;
+    }
+
+    /**
+     * Adds a column (pseudo-site) of centered values. NaN indicates missing.
+     *
+     * @param values value for each taxon
+     */
+    public void addColumn(double[] values) {
+        if (values.length != myNumTaxa) {
+            throw new IllegalArgumentException("BlockedKinshipBuilder: addColumn: number of values: " + values.length + " doesn't match number of taxa: " + myNumTaxa);
+        }
+        int column = myNumPanelColumns;
+        int word = column >>> 6;
+        long bit = 1L << (column & 0x3F);
+        for (int t = 0; t < myNumTaxa; t++) {
+            double value = values[t];
+            if (!Double.isNaN(value)) {
+                myPanel[t * PANEL_WIDTH + column] = value;
+                if (myCountPairs) {
+                    myPresence[t * WORDS_PER_TAXON + word] |= bit;
+                }
+            }
+        }
+        myNumColumns++;
+        if (++myNumPanelColumns == PANEL_WIDTH) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds any partially filled panel to the sums. Called automatically by
+     * the accessors.
+     */
+    public void flush() {
+
+        if (myNumPanelColumns == 0) {
+            return;
+        }
+
+        if (myUseBlas) {
+            updateBlas();
+        } else {
+            int numTileRows = (myNumTaxa + TAXA_PER_TILE - 1) / TAXA_PER_TILE;
+            int numTiles = numTileRows * (numTileRows + 1) / 2;
+            int[] tileRow = new int[numTiles];
+            int[] tileColumn = new int[numTiles];
+            int index = 0;
+            for (int r = 0; r < numTileRows; r++) {
+                for (int c = r; c < numTileRows; c++) {
+                    tileRow[index] = r;
+                    tileColumn[index++] = c;
+                }
+            }
+            ForkJoinPool pool = new ForkJoinPool(myNumThreads);
+            try {
+                pool.invoke(new TileRange(this, tileRow, tileColumn, 0, numTiles));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // unused columns must be zero for the next panel
+        Arrays.fill(myPanel, 0.0);
+        if (myCountPairs) {
+            Arrays.fill(myPresence, 0L);
+        }
+        myNumPanelColumns = 0;
+
+    }
+
+    /**
+     * Fills column with (count - mean) / scale for each taxon, where count is
+     * the number of copies (0, 1, 2) of the allele in the diploid genotype.
+     * Genotypes with both alleles unknown are NaN.
+     *
+     * @param genotypes diploid genotypes of all taxa at a site
+     * @param allele allele to count
+     * @param mean expected count
+     * @param scale divisor
+     * @param column result
+     */
+    static void centeredAlleleCounts(byte[] genotypes, byte allele, double mean, double scale, double[] column) {
+        int a = allele & 0x7;
+        double[] values = new double[]{(0.0 - mean) / scale, (1.0 - mean) / scale, (2.0 - mean) / scale};
+        for (int t = 0; t < genotypes.length; t++) {
+            int first = (genotypes[t] & 0x70) >>> 4;
+            int second = genotypes[t] & 0x7;
+            if ((first == 7) && (second == 7)) {
+                column[t] = Double.NaN;
+            } else {
+                column[t] = values[((first == a) ? 1 : 0) + ((second == a) ? 1 : 0)];
+            }
+        }
+    }
+
+    /**
+     * Fills column with the dominance deviation of each taxon. Genotypes
+     * heterozygous for the allele are 1 - h. Others are -h. Genotypes with
+     * both alleles unknown are NaN.
+     *
+     * @param genotypes diploid genotypes of all taxa at a site
+     * @param allele allele
+     * @param h expected heterozygosity
+     * @param column result
+     */
+    static void dominanceDeviations(byte[] genotypes, byte allele, double h, double[] column) {
+        int a = allele & 0x7;
+        for (int t = 0; t < genotypes.length; t++) {
+            int first = (genotypes[t] & 0x70) >>> 4;
+            int second = genotypes[t] & 0x7;
+            if ((first == 7) && (second == 7)) {
+                column[t] = Double.NaN;
+            } else if (((first == a) || (second == a)) && (first != second)) {
+                column[t] = 1.0 - h;
+            } else {
+                column[t] = -h;
+            }
+        }
+    }
+
+    public int numberOfTaxa() {
+        return myNumTaxa;
+    }
+
+    /**
+     * Number of columns added.
+     */
+    public long numberOfColumns() {
+        return myNumColumns;
+    }
+
+    /**
+     * Sum over columns of value(taxon1) * value(taxon2).
+     */
+    public double sum(int taxon1, int taxon2) {
+        flush();
+        return mySums[index(taxon1, taxon2)];
+    }
+
+    /**
+     * Number of columns where neither taxon is missing.
+     */
+    public int count(int taxon1, int taxon2) {
+        if (!myCountPairs) {
+            throw new IllegalStateException("BlockedKinshipBuilder: count: pair counts were not requested.");
+        }
+        flush();
+        return myCounts[index(taxon1, taxon2)];
+    }
+
+    private int index(int taxon1, int taxon2) {
+        if (taxon1 > taxon2) {
+            return myRowOffset[taxon2] + taxon1 - taxon2;
+        } else {
+            return myRowOffset[taxon1] + taxon2 - taxon1;
+        }
+    }
+
+    //
+    // Splits range of tiles in half until one tile remains.
+    // Idle threads steal the other halves.
+    //
+    private static class TileRange extends RecursiveAction {
+
+        private final BlockedKinshipBuilder myBuilder;
+        private final int[] myTileRow;
+        private final int[] myTileColumn;
+        private final int myStart;
+        private final int myEnd;
+
+        private TileRange(BlockedKinshipBuilder builder, int[] tileRow, int[] tileColumn, int start, int end) {
+            myBuilder = builder;
+            myTileRow = tileRow;
+            myTileColumn = tileColumn;
+            myStart = start;
+            myEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (myEnd - myStart > 1) {
+                int mid = (myStart + myEnd) >>> 1;
+                invokeAll(new TileRange(myBuilder, myTileRow, myTileColumn, myStart, mid),
+                        new TileRange(myBuilder, myTileRow, myTileColumn, mid, myEnd));
+            } else {
+                myBuilder.updateTile(myTileRow[myStart] * TAXA_PER_TILE, myTileColumn[myStart] * TAXA_PER_TILE);
+            }
+        }
+    }
+
+    private void updateTile(int rowStart, int columnStart) {
+
+        int rowEnd = Math.min(myNumTaxa, rowStart + TAXA_PER_TILE);
+        int columnEnd = Math.min(myNumTaxa, columnStart + TAXA_PER_TILE);
+        int k = myNumPanelColumns;
+        double[] panel = myPanel;
+
+        for (int i = rowStart; i < rowEnd; i += 2) {
+            int i2 = Math.min(i + 1, rowEnd - 1);
+            int iOffset = i * PANEL_WIDTH;
+            int i2Offset = i2 * PANEL_WIDTH;
+            for (int j = Math.max(i, columnStart); j < columnEnd; j += 2) {
+                int j2 = Math.min(j + 1, columnEnd - 1);
+                int jOffset = j * PANEL_WIDTH;
+                int j2Offset = j2 * PANEL_WIDTH;
+                double s11 = 0.0, s12 = 0.0, s21 = 0.0, s22 = 0.0;
+                for (int x = 0; x < k; x++) {
+                    double a1 = panel[iOffset + x];
+                    double a2 = panel[i2Offset + x];
+                    double b1 = panel[jOffset + x];
+                    double b2 = panel[j2Offset + x];
+                    s11 += a1 * b1;
+                    s12 += a1 * b2;
+                    s21 += a2 * b1;
+                    s22 += a2 * b2;
+                }
+                add(i, j, s11);
+                if (j2 != j) {
+                    add(i, j2, s12);
+                }
+                if (i2 != i) {
+                    // (i2, j) is below the diagonal when j == i
+                    if (j >= i2) {
+                        add(i2, j, s21);
+                    }
+                    if (j2 != j) {
+                        add(i2, j2, s22);
+                    }
+                }
+            }
+        }
+
+    }
+
+    private void add(int taxon1, int taxon2, double value) {
+        int index = myRowOffset[taxon1] + taxon2 - taxon1;
+        mySums[index] += value;
+        if (myCountPairs) {
+            int offset1 = taxon1 * WORDS_PER_TAXON;
+            int offset2 = taxon2 * WORDS_PER_TAXON;
+            int count = 0;
+            for (int w = 0; w < WORDS_PER_TAXON; w++) {
+                count += Long.bitCount(myPresence[offset1 + w] & myPresence[offset2 + w]);
+            }
+            myCounts[index] += count;
+        }
+    }
+
+    //
+    // Native BLAS is multithreaded itself, so blocks are run sequentially.
+    // The panel of a block of taxa is a column major PANEL_WIDTH by taxa
+    // matrix, so the block product is panel(rows)' * panel(columns).
+    //
+    private void updateBlas() {
+
+        for (int rowStart = 0; rowStart < myNumTaxa; rowStart += BLAS_TILE) {
+            int rowEnd = Math.min(myNumTaxa, rowStart + BLAS_TILE);
+            int numRows = rowEnd - rowStart;
+            double[] rows = Arrays.copyOfRange(myPanel, rowStart * PANEL_WIDTH, rowEnd * PANEL_WIDTH);
+            for (int columnStart = rowStart; columnStart < myNumTaxa; columnStart += BLAS_TILE) {
+                int columnEnd = Math.min(myNumTaxa, columnStart + BLAS_TILE);
+                int numColumns = columnEnd - columnStart;
+                double[] columns = (columnStart == rowStart) ? rows : Arrays.copyOfRange(myPanel, columnStart * PANEL_WIDTH, columnEnd * PANEL_WIDTH);
+                double[] product = new double[numRows * numColumns];
+                BlasDoubleMatrix.multMatrices(rows, PANEL_WIDTH, numRows, columns, PANEL_WIDTH, numColumns, product, 1.0, 0.0, true, false);
+                for (int j = columnStart; j < columnEnd; j++) {
+                    int productOffset = (j - columnStart) * numRows - rowStart;
+                    for (int i = rowStart, n = Math.min(rowEnd - 1, j); i <= n; i++) {
+                        add(i, j, product[productOffset + i]);
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ *  IBSBitKernel
+ */
+package net.maizegenetics.analysis.distance;
+
+import net.maizegenetics.dna.WHICH_ALLELE;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.bit.BitStorage;
+import net.maizegenetics.prefs.TasselPrefs;
+import net.maizegenetics.util.BitUtil;
+import net.maizegenetics.util.ProgressListener;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bit level kernel that counts, for every pair of taxa, the sites that share
+ * an allele (same), the sites that have differing alleles (different), and
+ * the sites that are both (het). These are the counts used by the IBS distance
+ * matrices.
+ * <p>
+ * The taxa by taxa triangle is divided into tiles of TAXA_PER_TILE by
+ * TAXA_PER_TILE taxa. Tiles are run as tasks on a work stealing fork join
+ * pool. Each tile reads the allele presence words of its taxa with
+ * {@link BitStorage#allelePresenceForSitesBlock(int, int, int)} in chunks of
+ * WORDS_PER_CHUNK words, so the words being compared stay in cache, and
+ * counts them with Long.bitCount() (a single popcnt instruction when
+ * compiled).
+ *
+ * @see IBSDistanceMatrix2Alleles
+ * @see IBSDistanceMatrix3Alleles
+ */
+public class IBSBitKernel {
+
+    private static final int TAXA_PER_TILE = 64;
+    private static final int WORDS_PER_CHUNK = 256;
+
+    private IBSBitKernel() {
+        // utility
+    }
+
+    /**
+     * Receives the counts for a pair of taxa. Called concurrently from
+     * multiple threads, but only once for each pair.
+     */
+    public interface PairCounts {
+
+        public void accept(int taxon1, int taxon2, int sameCount, int diffCount, int hetCount);
+
+    }
+
+    /**
+     * Counts same, different, and het sites for all pairs of taxa (taxon1
+     * &lt;= taxon2).
+     *
+     * @param genotype genotype table
+     * @param useThirdState whether to use second minor allele
+     * @param includeDiagonal whether to include each taxon paired with itself
+     * @param numThreads number of threads
+     * @param listener progress listener (may be null)
+     * @param result receives counts
+     */
+    public static void compute(GenotypeTable genotype, boolean useThirdState, boolean includeDiagonal, int numThreads,
+                               ProgressListener listener, PairCounts result) {
+        compute(genotype, useThirdState, includeDiagonal, 0, numThreads, listener, result);
+    }
+
+    /**
+     * Counts same, different, and het sites for pairs of taxa (taxon1 &lt;=
+     * taxon2) where taxon2 is at least firstTaxon. This is used to add the
+     * pairs of taxa appended to a genotype table without counting the pairs
+     * already known.
+     *
+     * @param genotype genotype table
+     * @param useThirdState whether to use second minor allele
+     * @param includeDiagonal whether to include each taxon paired with itself
+     * @param firstTaxon pairs with both taxa before this are skipped
+     * @param numThreads number of threads
+     * @param listener progress listener (may be null)
+     * @param result receives counts
+     */
+    public static void compute(GenotypeTable genotype, boolean useThirdState, boolean includeDiagonal, int firstTaxon,
+                               int numThreads, ProgressListener listener, PairCounts result) {
+
+        // bit storage is cached by the genotype table on first request, which isn't thread safe
+        BitStorage[] storage;
+        if (useThirdState) {
+            storage = new BitStorage[]{genotype.bitStorage(WHICH_ALLELE.Major), genotype.bitStorage(WHICH_ALLELE.Minor),
+                genotype.bitStorage(WHICH_ALLELE.Minor2)};
+        } else {
+            storage = new BitStorage[]{genotype.bitStorage(WHICH_ALLELE.Major), genotype.bitStorage(WHICH_ALLELE.Minor)};
+        }
+
+        int numTaxa = genotype.numberOfTaxa();
+        int numWords = BitUtil.bits2words(genotype.numberOfSites());
+        int numTileRows = (numTaxa + TAXA_PER_TILE - 1) / TAXA_PER_TILE;
+        int firstTileColumn = firstTaxon / TAXA_PER_TILE;
+        int numTiles = 0;
+        for (int r = 0; r < numTileRows; r++) {
+            numTiles += numTileRows - Math.max(r, firstTileColumn);
+        }
+        int[] tileRow = new int[numTiles];
+        int[] tileColumn = new int[numTiles];
+        int index = 0;
+        for (int r = 0; r < numTileRows; r++) {
+            for (int c = Math.max(r, firstTileColumn); c < numTileRows; c++) {
+                tileRow[index] = r;
+                tileColumn[index++] = c;
+            }
+        }
+
+        Context context = new Context(storage, numTaxa, numWords, includeDiagonal, firstTaxon, tileRow, tileColumn, listener, result);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, numThreads));
+        try {
+            pool.invoke(new TileRange(context, 0, numTiles));
+        } finally {
+            pool.shutdown();
+        }
+
+    }
+
+    /**
+     * Counts same, different, and het sites for all pairs of taxa using
+     * TasselPrefs.getMaxThreads() threads.
+     */
+    public static void compute(GenotypeTable genotype, boolean useThirdState, boolean includeDiagonal,
+                               ProgressListener listener, PairCounts result) {
+        compute(genotype, useThirdState, includeDiagonal, TasselPrefs.getMaxThreads(), listener, result);
+    }
+
+    private static class Context {
+
+        private final BitStorage[] myStorage;
+        private final int myNumTaxa;
+        private final int myNumWords;
+        private final boolean myIncludeDiagonal;
+        private final int myFirstTaxon;
+        private final int[] myTileRow;
+        private final int[] myTileColumn;
+        private final ProgressListener myListener;
+        private final PairCounts myResult;
+        private final AtomicInteger myNumTilesDone = new AtomicInteger();
+
+        private Context(BitStorage[] storage, int numTaxa, int numWords, boolean includeDiagonal, int firstTaxon,
+                        int[] tileRow, int[] tileColumn, ProgressListener listener, PairCounts result) {
+            myStorage = storage;
+            myNumTaxa = numTaxa;
+            myNumWords = numWords;
+            myIncludeDiagonal = includeDiagonal;
+            myFirstTaxon = firstTaxon;
+            myTileRow = tileRow;
+            myTileColumn = tileColumn;
+            myListener = listener;
+            myResult = result;
+        }
+
+        private void tileDone() {
+            int done = myNumTilesDone.incrementAndGet();
+            if (myListener != null) {
+                int percent = (int) ((long) done * 100L / (long) myTileRow.length);
+                int previous = (int) ((long) (done - 1) * 100L / (long) myTileRow.length);
+                if (percent != previous) {
+                    myListener.progress(percent, null);
+                }
+            }
+        }
+    }
+
+    //
+    // Splits range of tiles in half until one tile remains.
+    // Idle threads steal the other halves.
+    //
+    private static class TileRange extends RecursiveAction {
+
+        private final Context myContext;
+        private final int myStart;
+        private final int myEnd;
+
+        private TileRange(Context context, int start, int end) {
+            myContext = context;
+            myStart = start;
+            myEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (myEnd - myStart > 1) {
+                int mid = (myStart + myEnd) >>> 1;
+                invokeAll(new TileRange(myContext, myStart, mid), new TileRange(myContext, mid, myEnd));
+            } else {
+                computeTile(myContext, myContext.myTileRow[myStart], myContext.myTileColumn[myStart]);
+                myContext.tileDone();
+            }
+        }
+    }
+
+    private static void computeTile(Context context, int tileRow, int tileColumn) {
+
+        int rowStart = tileRow * TAXA_PER_TILE;
+        int rowEnd = Math.min(context.myNumTaxa, rowStart + TAXA_PER_TILE);
+        int columnStart = tileColumn * TAXA_PER_TILE;
+        int columnEnd = Math.min(context.myNumTaxa, columnStart + TAXA_PER_TILE);
+        int numRows = rowEnd - rowStart;
+        int numColumns = columnEnd - columnStart;
+        boolean isDiagonalTile = tileRow == tileColumn;
+        int numAlleles = context.myStorage.length;
+
+        // same, diff, het for each pair of the tile
+        int[] counts = new int[numRows * numColumns * 3];
+
+        // [allele][taxon in tile] words of the current chunk
+        long[][][] rowWords = new long[numAlleles][numRows][];
+        long[][][] columnWords = isDiagonalTile ? rowWords : new long[numAlleles][numColumns][];
+
+        for (int w0 = 0; w0 < context.myNumWords; w0 += WORDS_PER_CHUNK) {
+            int w1 = Math.min(context.myNumWords, w0 + WORDS_PER_CHUNK);
+            for (int a = 0; a < numAlleles; a++) {
+                for (int i = 0; i < numRows; i++) {
+                    rowWords[a][i] = context.myStorage[a].allelePresenceForSitesBlock(rowStart + i, w0, w1);
+                }
+                if (!isDiagonalTile) {
+                    for (int j = 0; j < numColumns; j++) {
+                        columnWords[a][j] = context.myStorage[a].allelePresenceForSitesBlock(columnStart + j, w0, w1);
+                    }
+                }
+            }
+            int numChunkWords = w1 - w0;
+            for (int i = 0; i < numRows; i++) {
+                int firstColumn = isDiagonalTile ? i : 0;
+                for (int j = firstColumn; j < numColumns; j++) {
+                    int offset = (i * numColumns + j) * 3;
+                    if (numAlleles == 2) {
+                        countTwoAlleles(rowWords[0][i], rowWords[1][i], columnWords[0][j], columnWords[1][j], numChunkWords, counts, offset);
+                    } else {
+                        countThreeAlleles(rowWords[0][i], rowWords[1][i], rowWords[2][i],
+                                columnWords[0][j], columnWords[1][j], columnWords[2][j], numChunkWords, counts, offset);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < numRows; i++) {
+            int firstColumn = isDiagonalTile ? (context.myIncludeDiagonal ? i : i + 1) : 0;
+            firstColumn = Math.max(firstColumn, context.myFirstTaxon - columnStart);
+            for (int j = firstColumn; j < numColumns; j++) {
+                int offset = (i * numColumns + j) * 3;
+                context.myResult.accept(rowStart + i, columnStart + j, counts[offset], counts[offset + 1], counts[offset + 2]);
+            }
+        }
+
+    }
+
+    private static void countTwoAlleles(long[] iMj, long[] iMn, long[] jMj, long[] jMn, int numWords, int[] counts, int offset) {
+        int sameCnt = 0, diffCnt = 0, hetCnt = 0;
+        for (int x = 0; x < numWords; x++) {
+            long same = (iMj[x] & jMj[x]) | (iMn[x] & jMn[x]);
+            long diff = (iMj[x] & jMn[x]) | (iMn[x] & jMj[x]);
+            sameCnt += Long.bitCount(same);
+            diffCnt += Long.bitCount(diff);
+            hetCnt += Long.bitCount(same & diff);
+        }
+        counts[offset] += sameCnt;
+        counts[offset + 1] += diffCnt;
+        counts[offset + 2] += hetCnt;
+    }
+
+    private static void countThreeAlleles(long[] iMj, long[] iMn, long[] iMn2, long[] jMj, long[] jMn, long[] jMn2,
+                                          int numWords, int[] counts, int offset) {
+        int sameCnt = 0, diffCnt = 0, hetCnt = 0;
+        for (int x = 0; x < numWords; x++) {
+            long same = (iMj[x] & jMj[x]) | (iMn[x] & jMn[x]) | (iMn2[x] & jMn2[x]);
+            long diff = (iMj[x] & jMn[x]) | (iMn[x] & jMj[x]) | (iMj[x] & jMn2[x])
+                    | (iMn2[x] & jMj[x]) | (iMn[x] & jMn2[x]) | (iMn2[x] & jMn[x]);
+            sameCnt += Long.bitCount(same);
+            diffCnt += Long.bitCount(diff);
+            hetCnt += Long.bitCount(same & diff);
+        }
+        counts[offset] += sameCnt;
+        counts[offset + 1] += diffCnt;
+        counts[offset + 2] += hetCnt;
+    }
+
+}
@@ -0,0 +1,686 @@
+/*
+ *  KinshipAccumulator
+ */
+package net.maizegenetics.analysis.distance;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.genotypecall.AlleleFreqCache;
+import net.maizegenetics.prefs.TasselPrefs;
+import net.maizegenetics.taxa.TaxaList;
+import net.maizegenetics.taxa.TaxaListBuilder;
+import net.maizegenetics.taxa.distance.DistanceMatrix;
+import net.maizegenetics.taxa.distance.DistanceMatrixBuilder;
+import net.maizegenetics.util.ExceptionUtils;
+import net.maizegenetics.util.GeneralAnnotationStorage;
+import net.maizegenetics.util.ProgressListener;
+import net.maizegenetics.util.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Sufficient statistics of a Centered_IBS (Endelman), Dominance_Centered_IBS,
+ * or two allele IBS distance matrix. Sites and taxa can be added, and the
+ * accumulators of different sites for the same taxa (i.e. per chromosome jobs)
+ * merged, without recomputing what is already accumulated. The accumulator is
+ * serializable, so it can be saved with the resulting matrix and updated
+ * later.
+ * <p>
+ * Centered_IBS and Dominance_Centered_IBS keep the numerator of every pair of
+ * taxa and the sum of the per site denominators. IBS keeps the number of
+ * identical alleles and the number of sites compared for every pair, like
+ * {@link net.maizegenetics.taxa.distance.DistanceMatrixWithCounts}.
+ * <p>
+ * New taxa are centered with the allele frequencies of the sites when they
+ * were added, so the accumulated pairs don't change. The genotype table of new
+ * taxa must also contain the existing taxa (first, in the same order) and all
+ * accumulated sites (in the same order).
+ * <p>
+ * The chromosome and position of every accumulated site are recorded, so sites
+ * already accumulated are rejected rather than counted twice.
+ *
+ * @see EndelmanDistanceMatrix
+ * @see DominanceRelationshipMatrix
+ * @see IBSDistanceMatrix2Alleles
+ */
+public class KinshipAccumulator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger myLogger = LogManager.getLogger(KinshipAccumulator.class);
+
+    public static enum METHOD {
+
+        Centered_IBS,
+        Dominance_Centered_IBS,
+        IBS
+    };
+
+    private final METHOD myMethod;
+    private final int myMaxAlleles;
+    private final KinshipPlugin.ALGORITHM_VARIATION myVariation;
+
+    private String[] myTaxa;
+    private final Sites mySites = new Sites();
+
+    //
+    // Pairs are stored as lower triangle (taxon2 <= taxon1) in row order.
+    // Index of (taxon1, taxon2) is taxon1 * (taxon1 + 1) / 2 + taxon2, which
+    // doesn't change when taxa are added.
+    //
+    // Centered_IBS and Dominance_Centered_IBS numerators
+    private double[] mySums;
+    private double myDenominator = 0.0;
+
+    // Centering of each (pseudo-) site column. Needed to add taxa.
+    private int myNumColumns = 0;
+    private int[] myColumnSite = new int[1024];
+    private byte[] myColumnAllele = new byte[1024];
+    private double[] myColumnCenter = new double[1024];
+
+    // IBS: 2 * same - het, and sites compared (same + diff - het)
+    private int[] myIdentity;
+    private int[] mySitesCompared;
+
+    private KinshipAccumulator(METHOD method, int maxAlleles, KinshipPlugin.ALGORITHM_VARIATION variation, String[] taxa) {
+
+        if ((method != METHOD.IBS) && ((maxAlleles < 2) || (maxAlleles > 6))) {
+            throw new IllegalArgumentException("KinshipAccumulator: max alleles must be between 2 and 6 inclusive.");
+        }
+
+        if ((method == METHOD.Dominance_Centered_IBS) && (variation != KinshipPlugin.ALGORITHM_VARIATION.Observed_Allele_Freq) && (variation != KinshipPlugin.ALGORITHM_VARIATION.Proportion_Heterozygous)) {
+            throw new IllegalArgumentException("KinshipAccumulator: variation must be: " + KinshipPlugin.ALGORITHM_VARIATION.Observed_Allele_Freq + " or " + KinshipPlugin.ALGORITHM_VARIATION.Proportion_Heterozygous);
+        }
+
+        myMethod = method;
+        myMaxAlleles = maxAlleles;
+        myVariation = variation;
+        myTaxa = taxa;
+        int size = triangleSize(taxa.length);
+        if (method == METHOD.IBS) {
+            myIdentity = new int[size];
+            mySitesCompared = new int[size];
+        } else {
+            mySums = new double[size];
+        }
+
+    }
+
+    /**
+     * Creates empty accumulator.
+     *
+     * @param method method
+     * @param maxAlleles maximum alleles per site to evaluate (ignored for IBS)
+     * @param variation dominance algorithm variation (ignored unless
+     * Dominance_Centered_IBS)
+     * @param taxa taxa
+     *
+     * @return accumulator
+     */
+    public static KinshipAccumulator getInstance(METHOD method, int maxAlleles, KinshipPlugin.ALGORITHM_VARIATION variation, TaxaList taxa) {
+        String[] names = new String[taxa.numberOfTaxa()];
+        for (int t = 0; t < names.length; t++) {
+            names[t] = taxa.taxaName(t);
+        }
+        return new KinshipAccumulator(method, maxAlleles, variation, names);
+    }
+
+    /**
+     * Creates accumulator of the sites of the given genotype table.
+     *
+     * @param genotype genotype table
+     * @param method method
+     * @param maxAlleles maximum alleles per site to evaluate (ignored for IBS)
+     * @param variation dominance algorithm variation (ignored unless
+     * Dominance_Centered_IBS)
+     * @param listener progress listener
+     *
+     * @return accumulator
+     */
+    public static KinshipAccumulator getInstance(GenotypeTable genotype, METHOD method, int maxAlleles, KinshipPlugin.ALGORITHM_VARIATION variation, ProgressListener listener) {
+        KinshipAccumulator result = getInstance(method, maxAlleles, variation, genotype.taxa());
+        result.addSites(genotype, listener);
+        return result;
+    }
+
+    private static int triangleSize(int numTaxa) {
+        long size = (long) numTaxa * ((long) numTaxa + 1L) / 2L;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("KinshipAccumulator: too many taxa: " + numTaxa);
+        }
+        return (int) size;
+    }
+
+    private static int rowOffset(int taxon) {
+        return (int) ((long) taxon * ((long) taxon + 1L) / 2L);
+    }
+
+    private static int index(int taxon1, int taxon2) {
+        if (taxon1 < taxon2) {
+            return rowOffset(taxon2) + taxon1;
+        } else {
+            return rowOffset(taxon1) + taxon2;
+        }
+    }
+
+    /**
+     * Adds new sites for the same taxa.
+     *
+     * @param genotype genotype table with same taxa (in the same order) and
+     * new sites
+     * @param listener progress listener (may be null)
+     */
+    public void addSites(GenotypeTable genotype, ProgressListener listener) {
+
+        long time = System.currentTimeMillis();
+
+        int numTaxa = myTaxa.length;
+        if (genotype.numberOfTaxa() != numTaxa) {
+            throw new IllegalArgumentException("KinshipAccumulator: addSites: genotype has: " + genotype.numberOfTaxa() + " taxa but expected: " + numTaxa);
+        }
+        checkTaxa(genotype);
+
+        Sites sites = Sites.of(genotype);
+        String overlap = mySites.firstOverlap(sites);
+        if (overlap != null) {
+            throw new IllegalArgumentException("KinshipAccumulator: addSites: site at: " + overlap + " is already accumulated.");
+        }
+
+        int numSites = genotype.numberOfSites();
+        int firstSite = mySites.size();
+        if (myMethod == METHOD.IBS) {
+            // each pair is set by only one thread
+            IBSBitKernel.compute(genotype, false, true, listener, (i, j, sameCount, diffCount, hetCount) -> {
+                int index = index(i, j);
+                myIdentity[index] += 2 * sameCount - hetCount;
+                mySitesCompared[index] += sameCount + diffCount - hetCount;
+            });
+        } else {
+            BlockedKinshipBuilder kinship = new BlockedKinshipBuilder(numTaxa, false);
+            double[] column = new double[numTaxa];
+            for (int site = 0; site < numSites; site++) {
+                addSiteColumns(genotype.genotypeAllTaxa(site), firstSite + site, column, kinship);
+                if ((listener != null) && (site % 1000 == 999)) {
+                    listener.progress((int) ((long) (site + 1) * 100L / (long) numSites), null);
+                }
+            }
+            for (int t = 0; t < numTaxa; t++) {
+                int offset = rowOffset(t);
+                for (int u = 0; u <= t; u++) {
+                    mySums[offset + u] += kinship.sum(u, t);
+                }
+            }
+        }
+        mySites.addAll(sites);
+
+        myLogger.info("addSites: added " + numSites + " sites for " + numTaxa + " taxa in " + (System.currentTimeMillis() - time) / 1000 + " seconds");
+
+    }
+
+    //
+    // Adds the (pseudo-) site columns of a site to the kinship builder and
+    // records their centering and denominator terms.
+    //
+    private void addSiteColumns(byte[] genotypes, int site, double[] column, BlockedKinshipBuilder kinship) {
+
+        int[][] alleles = AlleleFreqCache.allelesSortedByFrequencyNucleotide(genotypes);
+        int numAlleles = Math.min(alleles[0].length - 1, myMaxAlleles - 1);
+
+        int totalAlleleCount = 0;
+        for (int i = 0; i < alleles[1].length; i++) {
+            totalAlleleCount += alleles[1][i];
+        }
+
+        for (int a = 0; a < numAlleles; a++) {
+            byte allele = (byte) alleles[0][a];
+            double alleleFreq = (double) alleles[1][a] / (double) totalAlleleCount;
+            double center;
+            if (myMethod == METHOD.Centered_IBS) {
+                myDenominator += 2.0 * alleleFreq * (1.0 - alleleFreq);
+                center = 2.0 * alleleFreq;
+            } else if (myVariation == KinshipPlugin.ALGORITHM_VARIATION.Observed_Allele_Freq) {
+                center = 2.0 * alleleFreq * (1.0 - alleleFreq);
+                myDenominator += center * (1.0 - center);
+            } else {
+                center = AlleleFreqCache.proportionHeterozygous(genotypes);
+                myDenominator += center * (1.0 - center);
+            }
+            if (allele != GenotypeTable.UNKNOWN_ALLELE) {
+                encode(genotypes, allele, center, column);
+                kinship.addColumn(column);
+                addColumn(site, allele, center);
+            }
+        }
+
+    }
+
+    private void encode(byte[] genotypes, byte allele, double center, double[] column) {
+        if (myMethod == METHOD.Centered_IBS) {
+            BlockedKinshipBuilder.centeredAlleleCounts(genotypes, allele, center, 1.0, column);
+        } else {
+            BlockedKinshipBuilder.dominanceDeviations(genotypes, allele, center, column);
+        }
+    }
+
+    private void addColumn(int site, byte allele, double center) {
+        if (myNumColumns == myColumnSite.length) {
+            int newSize = myNumColumns * 3 / 2 + 1;
+            myColumnSite = Arrays.copyOf(myColumnSite, newSize);
+            myColumnAllele = Arrays.copyOf(myColumnAllele, newSize);
+            myColumnCenter = Arrays.copyOf(myColumnCenter, newSize);
+        }
+        myColumnSite[myNumColumns] = site;
+        myColumnAllele[myNumColumns] = allele;
+        myColumnCenter[myNumColumns] = center;
+        myNumColumns++;
+    }
+
+    /**
+     * Adds new taxa. Only pairs that include a new taxon are calculated.
+     *
+     * @param genotype genotype table with the existing taxa first (in the same
+     * order) followed by the new taxa, and the accumulated sites (in the same
+     * order)
+     * @param listener progress listener (may be null)
+     */
+    public void addTaxa(GenotypeTable genotype, ProgressListener listener) {
+
+        long time = System.currentTimeMillis();
+
+        int oldNumTaxa = myTaxa.length;
+        int newNumTaxa = genotype.numberOfTaxa();
+        if (newNumTaxa <= oldNumTaxa) {
+            throw new IllegalArgumentException("KinshipAccumulator: addTaxa: genotype has: " + newNumTaxa + " taxa but expected more than: " + oldNumTaxa);
+        }
+        if (genotype.numberOfSites() != mySites.size()) {
+            throw new IllegalArgumentException("KinshipAccumulator: addTaxa: genotype has: " + genotype.numberOfSites() + " sites but expected: " + mySites.size());
+        }
+        int mismatch = mySites.firstDifference(Sites.of(genotype));
+        if (mismatch >= 0) {
+            throw new IllegalArgumentException("KinshipAccumulator: addTaxa: genotype site: " + genotype.siteName(mismatch) + " doesn't match accumulated site at: " + mySites.name(mismatch));
+        }
+        checkTaxa(genotype);
+
+        int size = triangleSize(newNumTaxa);
+        if (myMethod == METHOD.IBS) {
+            myIdentity = Arrays.copyOf(myIdentity, size);
+            mySitesCompared = Arrays.copyOf(mySitesCompared, size);
+            // each pair is set by only one thread
+            IBSBitKernel.compute(genotype, false, true, oldNumTaxa, TasselPrefs.getMaxThreads(), listener, (i, j, sameCount, diffCount, hetCount) -> {
+                int index = index(i, j);
+                myIdentity[index] = 2 * sameCount - hetCount;
+                mySitesCompared[index] = sameCount + diffCount - hetCount;
+            });
+        } else {
+            mySums = Arrays.copyOf(mySums, size);
+            addTaxaColumns(genotype, oldNumTaxa, listener);
+        }
+
+        TaxaList taxa = genotype.taxa();
+        myTaxa = Arrays.copyOf(myTaxa, newNumTaxa);
+        for (int t = oldNumTaxa; t < newNumTaxa; t++) {
+            myTaxa[t] = taxa.taxaName(t);
+        }
+
+        myLogger.info("addTaxa: added " + (newNumTaxa - oldNumTaxa) + " taxa in " + (System.currentTimeMillis() - time) / 1000 + " seconds");
+
+    }
+
+    //
+    // Re-encodes the recorded columns for all taxa into a taxon major panel,
+    // and adds the products of each new taxon with all taxa up to itself.
+    //
+    private void addTaxaColumns(GenotypeTable genotype, int firstNewTaxon, ProgressListener listener) {
+
+        int numTaxa = genotype.numberOfTaxa();
+        int width = BlockedKinshipBuilder.PANEL_WIDTH;
+        double[] panel = new double[numTaxa * width];
+        double[] column = new double[numTaxa];
+        int currentSite = -1;
+        byte[] genotypes = null;
+        int numPanelColumns = 0;
+
+        for (int c = 0; c < myNumColumns; c++) {
+
+            if (myColumnSite[c] != currentSite) {
+                currentSite = myColumnSite[c];
+                genotypes = genotype.genotypeAllTaxa(currentSite);
+            }
+            encode(genotypes, myColumnAllele[c], myColumnCenter[c], column);
+            for (int t = 0; t < numTaxa; t++) {
+                panel[t * width + numPanelColumns] = Double.isNaN(column[t]) ? 0.0 : column[t];
+            }
+            numPanelColumns++;
+
+            if ((numPanelColumns == width) || (c == myNumColumns - 1)) {
+                int k = numPanelColumns;
+                // each new taxon's row is set by only one thread
+                IntStream.range(firstNewTaxon, numTaxa).parallel().forEach(i -> {
+                    int iOffset = i * width;
+                    int rowOffset = rowOffset(i);
+                    for (int j = 0; j <= i; j++) {
+                        int jOffset = j * width;
+                        double sum = 0.0;
+                        for (int x = 0; x < k; x++) {
+                            sum += panel[iOffset + x] * panel[jOffset + x];
+                        }
+                        mySums[rowOffset + j] += sum;
+                    }
+                });
+                Arrays.fill(panel, 0.0);
+                numPanelColumns = 0;
+                if (listener != null) {
+                    listener.progress((int) ((long) (c + 1) * 100L / (long) myNumColumns), null);
+                }
+            }
+
+        }
+
+    }
+
+    private void checkTaxa(GenotypeTable genotype) {
+        TaxaList taxa = genotype.taxa();
+        for (int t = 0; t < myTaxa.length; t++) {
+            if (!myTaxa[t].equals(taxa.taxaName(t))) {
+                throw new IllegalArgumentException("KinshipAccumulator: accumulated taxon: " + myTaxa[t] + " doesn't match genotype taxon: " + taxa.taxaName(t));
+            }
+        }
+    }
+
+    /**
+     * Merges accumulator of other sites for the same taxa into this one (i.e.
+     * results of per chromosome jobs). Sites of the other accumulator are
+     * considered to follow the sites of this one.
+     *
+     * @param other other accumulator
+     */
+    public void merge(KinshipAccumulator other) {
+
+        if ((myMethod != other.myMethod) || (myMaxAlleles != other.myMaxAlleles) || (myVariation != other.myVariation)) {
+            throw new IllegalArgumentException("KinshipAccumulator: merge: accumulators must have the same method, max alleles, and variation.");
+        }
+        if (!Arrays.equals(myTaxa, other.myTaxa)) {
+            throw new IllegalArgumentException("KinshipAccumulator: merge: accumulators must have the same taxa in the same order.");
+        }
+        String overlap = mySites.firstOverlap(other.mySites);
+        if (overlap != null) {
+            throw new IllegalArgumentException("KinshipAccumulator: merge: site at: " + overlap + " is in both accumulators.");
+        }
+
+        if (myMethod == METHOD.IBS) {
+            for (int i = 0; i < myIdentity.length; i++) {
+                myIdentity[i] += other.myIdentity[i];
+                mySitesCompared[i] += other.mySitesCompared[i];
+            }
+        } else {
+            for (int i = 0; i < mySums.length; i++) {
+                mySums[i] += other.mySums[i];
+            }
+            myDenominator += other.myDenominator;
+            for (int c = 0; c < other.myNumColumns; c++) {
+                addColumn(mySites.size() + other.myColumnSite[c], other.myColumnAllele[c], other.myColumnCenter[c]);
+            }
+        }
+        mySites.addAll(other.mySites);
+
+    }
+
+    public METHOD method() {
+        return myMethod;
+    }
+
+    public KinshipPlugin.ALGORITHM_VARIATION variation() {
+        return myVariation;
+    }
+
+    public int numberOfTaxa() {
+        return myTaxa.length;
+    }
+
+    /**
+     * Returns whether the given taxa are the accumulated taxa, by name and in
+     * the same order.
+     *
+     * @param taxa taxa
+     *
+     * @return whether same taxa
+     */
+    public boolean hasTaxa(TaxaList taxa) {
+        if (taxa.numberOfTaxa() != myTaxa.length) {
+            return false;
+        }
+        for (int t = 0; t < myTaxa.length; t++) {
+            if (!myTaxa[t].equals(taxa.taxaName(t))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int numberOfSites() {
+        return mySites.size();
+    }
+
+    /**
+     * Returns distance matrix of the accumulated sites and taxa. IBS uses
+     * minimum sites compared of 0 and not true IBS.
+     *
+     * @return distance matrix
+     */
+    public DistanceMatrix distanceMatrix() {
+
+        if (myMethod == METHOD.IBS) {
+            return ibsDistanceMatrix(0, false);
+        }
+
+        int numTaxa = myTaxa.length;
+        GeneralAnnotationStorage.Builder annotations = GeneralAnnotationStorage.getBuilder();
+        if (myMethod == METHOD.Centered_IBS) {
+            annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, KinshipPlugin.KINSHIP_METHOD.Centered_IBS.toString());
+            annotations.addAnnotation(DistanceMatrixBuilder.CENTERED_IBS_SUMPK, myDenominator);
+        } else {
+            annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, KinshipPlugin.KINSHIP_METHOD.Dominance_Centered_IBS.toString());
+            annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_ALGORITHM_VARIATION, myVariation.toString());
+        }
+
+        DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(taxa());
+        builder.annotation(annotations.build());
+        for (int t = 0; t < numTaxa; t++) {
+            int offset = rowOffset(t);
+            for (int u = 0; u <= t; u++) {
+                builder.set(t, u, mySums[offset + u] / myDenominator);
+            }
+        }
+        return builder.build();
+
+    }
+
+    /**
+     * Returns IBS distance matrix of the accumulated sites and taxa.
+     *
+     * @param minSitesComp minimum sites compared. Pairs with fewer are NaN.
+     * @param trueIBS whether to calculate distance of taxa to themselves
+     *
+     * @return distance matrix
+     */
+    public DistanceMatrix ibsDistanceMatrix(int minSitesComp, boolean trueIBS) {
+
+        if (myMethod != METHOD.IBS) {
+            throw new IllegalStateException("KinshipAccumulator: ibsDistanceMatrix: method is: " + myMethod);
+        }
+
+        int numTaxa = myTaxa.length;
+        DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(taxa());
+        double totalSites = 0.0;
+        long count = 0;
+        for (int t = 0; t < numTaxa; t++) {
+            int offset = rowOffset(t);
+            for (int u = 0; u <= t; u++) {
+                if ((u == t) && !trueIBS) {
+                    builder.set(t, u, 0.0);
+                    continue;
+                }
+                int sites = mySitesCompared[offset + u];
+                double dist = 1.0 - (double) myIdentity[offset + u] / (2.0 * (double) sites);
+                if (sites < minSitesComp) {
+                    dist = Double.NaN;
+                }
+                builder.set(t, u, dist);
+                totalSites += sites;
+                count++;
+            }
+        }
+
+        GeneralAnnotationStorage.Builder annotations = GeneralAnnotationStorage.getBuilder();
+        annotations.addAnnotation(DistanceMatrixBuilder.MATRIX_TYPE, DistanceMatrixBuilder.IBS_DISTANCE_MATRIX_TYPE);
+        annotations.addAnnotation(DistanceMatrixBuilder.IBS_DISTANCE_MATRIX_NUM_ALLELES, "2");
+        annotations.addAnnotation(DistanceMatrixBuilder.IBS_DISTANCE_MATRIX_TRUE_IBS, String.valueOf(trueIBS));
+        annotations.addAnnotation(DistanceMatrixBuilder.IBS_DISTANCE_MATRIX_AVE_TOTAL_SITES, String.valueOf(totalSites / (double) count));
+        builder.annotation(annotations.build());
+
+        return builder.build();
+
+    }
+
+    private TaxaList taxa() {
+        return new TaxaListBuilder().addAll(myTaxa).build();
+    }
+
+    /**
+     * Writes accumulator to file. Compressed if filename ends with .gz
+     *
+     * @param filename file name
+     */
+    public void write(String filename) {
+        try (ObjectOutputStream output = new ObjectOutputStream(Utils.getBufferedOutputStream(filename))) {
+            output.writeObject(this);
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("KinshipAccumulator: write: problem writing: " + filename + ": " + ExceptionUtils.getExceptionCauses(e));
+        }
+    }
+
+    /**
+     * Reads accumulator written by {@link #write(String)}
+     *
+     * @param filename file name
+     *
+     * @return accumulator
+     */
+    public static KinshipAccumulator read(String filename) {
+        try (ObjectInputStream input = new ObjectInputStream(Utils.getInputStream(filename))) {
+            return (KinshipAccumulator) input.readObject();
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("KinshipAccumulator: read: problem reading: " + filename + ": " + ExceptionUtils.getExceptionCauses(e));
+        }
+    }
+
+    //
+    // Chromosome and position of each accumulated site in the order added.
+    //
+    private static class Sites implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> myChromosomeNames = new ArrayList<>();
+        private int[] myChromosome = new int[1024];
+        private int[] myPosition = new int[1024];
+        private int mySize = 0;
+
+        static Sites of(GenotypeTable genotype) {
+            Sites result = new Sites();
+            for (int s = 0, n = genotype.numberOfSites(); s < n; s++) {
+                result.add(genotype.chromosomeName(s), genotype.chromosomalPosition(s));
+            }
+            return result;
+        }
+
+        int size() {
+            return mySize;
+        }
+
+        String name(int site) {
+            return myChromosomeNames.get(myChromosome[site]) + ":" + myPosition[site];
+        }
+
+        void add(String chromosome, int position) {
+            int index = myChromosomeNames.indexOf(chromosome);
+            if (index < 0) {
+                index = myChromosomeNames.size();
+                myChromosomeNames.add(chromosome);
+            }
+            if (mySize == myPosition.length) {
+                int newSize = mySize * 3 / 2 + 1;
+                myChromosome = Arrays.copyOf(myChromosome, newSize);
+                myPosition = Arrays.copyOf(myPosition, newSize);
+            }
+            myChromosome[mySize] = index;
+            myPosition[mySize] = position;
+            mySize++;
+        }
+
+        void addAll(Sites other) {
+            for (int s = 0; s < other.mySize; s++) {
+                add(other.myChromosomeNames.get(other.myChromosome[s]), other.myPosition[s]);
+            }
+        }
+
+        /**
+         * Returns chromosome:position of the first site of other that is also
+         * in these sites, or null if none.
+         */
+        String firstOverlap(Sites other) {
+            // sorted positions of each chromosome
+            int[] counts = new int[myChromosomeNames.size()];
+            for (int s = 0; s < mySize; s++) {
+                counts[myChromosome[s]]++;
+            }
+            Map<String, int[]> positions = new HashMap<>();
+            for (int c = 0; c < counts.length; c++) {
+                positions.put(myChromosomeNames.get(c), new int[counts[c]]);
+            }
+            Arrays.fill(counts, 0);
+            for (int s = 0; s < mySize; s++) {
+                int c = myChromosome[s];
+                positions.get(myChromosomeNames.get(c))[counts[c]++] = myPosition[s];
+            }
+            for (int[] current : positions.values()) {
+                Arrays.sort(current);
+            }
+
+            for (int s = 0; s < other.mySize; s++) {
+                int[] current = positions.get(other.myChromosomeNames.get(other.myChromosome[s]));
+                if ((current != null) && (Arrays.binarySearch(current, other.myPosition[s]) >= 0)) {
+                    return other.name(s);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns index of the first site that differs from other, or -1 if
+         * the sites are the same.
+         */
+        int firstDifference(Sites other) {
+            for (int s = 0, n = Math.min(mySize, other.mySize); s < n; s++) {
+                if ((myPosition[s] != other.myPosition[s])
+                        || !myChromosomeNames.get(myChromosome[s]).equals(other.myChromosomeNames.get(other.myChromosome[s]))) {
+                    return s;
+                }
+            }
+            return (mySize == other.mySize) ? -1 : Math.min(mySize, other.mySize);
+        }
+
+    }
+
+}
@@ -63,6 +63,20 @@ public class KinshipPlugin extends AbstractPlugin {
             .dependentOnParameter(myMethod, new Object[]{KINSHIP_METHOD.Dominance_Centered_IBS})
             .build();
 
+    private PluginParameter<String> myAccumulatorIn = new PluginParameter.Builder<>("accumulatorIn", null, String.class)
+            .description("Kinship accumulator previously saved with -accumulatorOut. The input genotype is added to it. "
+                    + "If the genotype has the same taxa, its sites are added. If it has the accumulated taxa first "
+                    + "followed by new taxa, and the same sites, the new taxa are added.")
+            .inFile()
+            .dependentOnParameter(myMethod, new Object[]{KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Dominance_Centered_IBS})
+            .build();
+
+    private PluginParameter<String> myAccumulatorOut = new PluginParameter.Builder<>("accumulatorOut", null, String.class)
+            .description("Save kinship accumulator to this file, so that sites or taxa can be added later without recomputing.")
+            .outFile()
+            .dependentOnParameter(myMethod, new Object[]{KINSHIP_METHOD.Centered_IBS, KINSHIP_METHOD.Dominance_Centered_IBS})
+            .build();
+
     public KinshipPlugin(Frame parentFrame, boolean isInteractive) {
         super(parentFrame, isInteractive);
     }
@@ -112,10 +126,16 @@ public class KinshipPlugin extends AbstractPlugin {
             Datum current = itr.next();
             String datasetName = current.getName();
             DistanceMatrix kin = null;
+            ALGORITHM_VARIATION variation = algorithmVariation();
 
             if (current.getData() instanceof GenotypeTable) {
                 GenotypeTable myGenotype = (GenotypeTable) current.getData();
-                if (kinshipMethod() == KINSHIP_METHOD.Centered_IBS) {
+                if ((accumulatorIn() != null) || (accumulatorOut() != null)) {
+                    KinshipAccumulator accumulator = accumulate(myGenotype);
+                    kin = accumulator.distanceMatrix();
+                    // an existing accumulator keeps the variation it was created with
+                    variation = accumulator.variation();
+                } else if (kinshipMethod() == KINSHIP_METHOD.Centered_IBS) {
                     kin = EndelmanDistanceMatrix.getInstance(myGenotype, maxAlleles(), this);
                 } else if (kinshipMethod() == KINSHIP_METHOD.Normalized_IBS) {
                     kin = GCTADistanceMatrix.getInstance(myGenotype, this);
@@ -135,7 +155,7 @@ public class KinshipPlugin extends AbstractPlugin {
                 comment.append(kinshipMethod());
                 if (kinshipMethod() == KINSHIP_METHOD.Dominance_Centered_IBS) {
                     comment.append("(variation: ");
-                    comment.append(algorithmVariation());
+                    comment.append(variation);
                     comment.append(")");
                 }
                 comment.append(" matrix created from ");
@@ -150,6 +170,40 @@ public class KinshipPlugin extends AbstractPlugin {
 
     }
 
+    private KinshipAccumulator accumulate(GenotypeTable genotype) {
+
+        KinshipAccumulator.METHOD method;
+        if (kinshipMethod() == KINSHIP_METHOD.Centered_IBS) {
+            method = KinshipAccumulator.METHOD.Centered_IBS;
+        } else if (kinshipMethod() == KINSHIP_METHOD.Dominance_Centered_IBS) {
+            method = KinshipAccumulator.METHOD.Dominance_Centered_IBS;
+        } else {
+            throw new IllegalArgumentException("KinshipPlugin: accumulator only supported for methods: " + KINSHIP_METHOD.Centered_IBS + " and " + KINSHIP_METHOD.Dominance_Centered_IBS);
+        }
+
+        KinshipAccumulator accumulator;
+        if (accumulatorIn() == null) {
+            accumulator = KinshipAccumulator.getInstance(genotype, method, maxAlleles(), algorithmVariation(), this);
+        } else {
+            accumulator = KinshipAccumulator.read(accumulatorIn());
+            if (accumulator.method() != method) {
+                throw new IllegalArgumentException("KinshipPlugin: accumulator: " + accumulatorIn() + " method: " + accumulator.method() + " doesn't match: " + kinshipMethod());
+            }
+            if (accumulator.hasTaxa(genotype.taxa())) {
+                accumulator.addSites(genotype, this);
+            } else {
+                accumulator.addTaxa(genotype, this);
+            }
+        }
+
+        if (accumulatorOut() != null) {
+            accumulator.write(accumulatorOut());
+        }
+
+        return accumulator;
+
+    }
+
     @Override
     public String pluginUserManualURL() {
         return "https://bitbucket.org/tasseladmin/tassel-5-source/wiki/UserManual/Kinship/Kinship";
@@ -261,4 +315,50 @@ public class KinshipPlugin extends AbstractPlugin {
         myAlgorithmVariation = new PluginParameter<>(myAlgorithmVariation, value);
         return this;
     }
+
+    /**
+     * Kinship accumulator previously saved with -accumulatorOut. The input
+     * genotype is added to it.
+     *
+     * @return Accumulator In
+     */
+    public String accumulatorIn() {
+        return myAccumulatorIn.value();
+    }
+
+    /**
+     * Set Accumulator In. Kinship accumulator previously saved with
+     * -accumulatorOut. The input genotype is added to it.
+     *
+     * @param value Accumulator In
+     *
+     * @return this plugin
+     */
+    public KinshipPlugin accumulatorIn(String value) {
+        myAccumulatorIn = new PluginParameter<>(myAccumulatorIn, value);
+        return this;
+    }
+
+    /**
+     * Save kinship accumulator to this file, so that sites or taxa can be
+     * added later without recomputing.
+     *
+     * @return Accumulator Out
+     */
+    public String accumulatorOut() {
+        return myAccumulatorOut.value();
+    }
+
+    /**
+     * Set Accumulator Out. Save kinship accumulator to this file, so that
+     * sites or taxa can be added later without recomputing.
+     *
+     * @param value Accumulator Out
+     *
+     * @return this plugin
+     */
+    public KinshipPlugin accumulatorOut(String value) {
+        myAccumulatorOut = new PluginParameter<>(myAccumulatorOut, value);
+        return this;
+    }
 }
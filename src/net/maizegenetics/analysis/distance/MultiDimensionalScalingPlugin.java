@@ -55,8 +55,8 @@ public class MultiDimensionalScalingPlugin extends AbstractPlugin {
             if (removeNaN()) {
                 myDistanceMatrix = RemoveNaNFromDistanceMatrixPlugin.runPlugin(myDistanceMatrix);
             }
-            ClassicMds myMDS = new ClassicMds(myDistanceMatrix);
             int numberOfAxesToReport = numberOfAxes.value();
+            ClassicMds myMDS = new ClassicMds(myDistanceMatrix, numberOfAxesToReport);
 
             //get requested number of axes and package as a Phenotype (covariates)
             List<PhenotypeAttribute> attrList = new ArrayList<>();
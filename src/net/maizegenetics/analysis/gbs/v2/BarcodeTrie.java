@@ -29,6 +29,7 @@ public class BarcodeTrie{
             root.addWord(word.toUpperCase());
             String bcode = word;
             barcodeInformation.put(bcode, barcode);
+            setBarcode(word.toUpperCase(), barcode);
         }
     }
     
@@ -41,7 +42,16 @@ public class BarcodeTrie{
         root.addWord(barcodeAlone.toUpperCase());
         String bcode = barcodeAlone;
         barcodeInformation.put(bcode, barcode);
- 
+        setBarcode(barcodeAlone.toUpperCase(), barcode);
+    }
+
+    // Stores barcode at the node ending the word, for longestPrefix(byte[], int, int)
+    private void setBarcode(String word, Barcode barcode) {
+        TrieNode node = root;
+        for (int i = 0; i < word.length(); i++) {
+            node = node.getNode(word.charAt(i));
+        }
+        node.barcode = barcode;
     }
 
     /**
@@ -134,6 +144,31 @@ public class BarcodeTrie{
     }
 
 
+    /**
+     * Find the barcode that is the longest prefix of sequence[offset, offset + length).
+     * Same result as longestPrefix(String) without creating Strings, for reads held as bytes.
+     * @param sequence buffer holding the read
+     * @param offset start of the read
+     * @param length length of the read
+     * @return barcode or null if none matches
+     */
+    public Barcode longestPrefix(byte[] sequence, int offset, int length){
+        TrieNode crawl = root;
+        Barcode result = null;
+        for (int level = 0; level < length-1; level++){
+            int ch = sequence[offset + level];
+            if(ch<'A' || ch>'T') {
+                ch=Character.toUpperCase(ch);
+                if(ch<'A' || ch>'T') return null;
+            }
+            TrieNode child = crawl.children[ch-'A'];
+            if (child == null) break;
+            crawl = child;
+            if (crawl.isWord) result = crawl.barcode;
+        }
+        return result;
+    }
+
     public static void main(String args[]){
     }
 
@@ -143,6 +178,7 @@ public class BarcodeTrie{
         public boolean isLeaf; // Quick way to check if any children exist
         public boolean isWord; // does this node represent teh last character
         public char character; //character the node represents
+        public Barcode barcode; // barcode of the word ending at this node
 
 
         /**
@@ -0,0 +1,337 @@
+package net.maizegenetics.analysis.gbs.v2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.maizegenetics.util.Utils;
+
+/**
+ * Reads the four line records of a FastQ file as blocks of raw bytes.  A
+ * background thread reads (and for .gz files decompresses) the file and finds
+ * the sequence and quality lines of each read, while the caller processes the
+ * previous blocks.  Blocks come from a small pool and are returned with
+ * {@link #release(Block)}, so no Strings or per read objects are created.
+ */
+public class FastqByteBlockReader implements Closeable {
+
+    private static final Logger myLogger = LogManager.getLogger(FastqByteBlockReader.class);
+
+    public static final int DEFAULT_READS_PER_BLOCK = 1 << 14;
+    public static final int DEFAULT_NUM_BLOCKS = 4;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 22;
+
+    // marks the end of the file in the queue of filled blocks
+    private static final Block END_OF_FILE = new Block(0, 0);
+
+    private final String myFilename;
+    private final InputStream myInput;
+    private final BlockingQueue<Block> myFreeBlocks;
+    private final BlockingQueue<Block> myFilledBlocks;
+    private final Thread myReaderThread;
+    private volatile IOException myException = null;
+    private volatile boolean myClosed = false;
+    private boolean myEndOfFile = false;
+
+    /**
+     * Opens FastQ file (text or gzipped text) and starts reading.
+     *
+     * @param filename FastQ file
+     * @param readsPerBlock maximum number of reads per block
+     * @param numBlocks number of blocks in the pool (at least 2)
+     */
+    public FastqByteBlockReader(String filename, int readsPerBlock, int numBlocks) {
+        if (readsPerBlock < 1) {
+            throw new IllegalArgumentException("FastqByteBlockReader: reads per block must be at least 1: " + readsPerBlock);
+        }
+        if (numBlocks < 2) {
+            throw new IllegalArgumentException("FastqByteBlockReader: number of blocks must be at least 2: " + numBlocks);
+        }
+        myFilename = filename;
+        myInput = Utils.getInputStream(filename);
+        if (myInput == null) {
+            throw new IllegalStateException("FastqByteBlockReader: unable to open: " + filename);
+        }
+        myFreeBlocks = new ArrayBlockingQueue<>(numBlocks);
+        myFilledBlocks = new ArrayBlockingQueue<>(numBlocks + 1);
+        for (int i = 0; i < numBlocks; i++) {
+            myFreeBlocks.add(new Block(readsPerBlock, INITIAL_BUFFER_SIZE));
+        }
+        myReaderThread = new Thread(this::readFile, "FastqByteBlockReader: " + filename);
+        myReaderThread.setDaemon(true);
+        myReaderThread.start();
+    }
+
+    public FastqByteBlockReader(String filename) {
+        this(filename, DEFAULT_READS_PER_BLOCK, DEFAULT_NUM_BLOCKS);
+    }
+
+    /**
+     * Returns next block of reads.  The block must be given back with
+     * {@link #release(Block)} when finished.
+     *
+     * @return next block or null at the end of the file
+     *
+     * @throws IOException if reading the file failed
+     */
+    public Block next() throws IOException {
+        if (myEndOfFile) {
+            return null;
+        }
+        Block result;
+        try {
+            result = myFilledBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("FastqByteBlockReader: interrupted reading: " + myFilename, e);
+        }
+        if (result == END_OF_FILE) {
+            myEndOfFile = true;
+            if (myException != null) {
+                throw myException;
+            }
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns block to the pool so it can be filled again.
+     *
+     * @param block block from {@link #next()}
+     */
+    public void release(Block block) {
+        myFreeBlocks.offer(block);
+    }
+
+    @Override
+    public void close() throws IOException {
+        myClosed = true;
+        myReaderThread.interrupt();
+        myInput.close();
+    }
+
+    //
+    // Runs on the reader thread.  The incomplete record at the end of a
+    // block is copied to the start of the next block before the block is
+    // handed to the caller.
+    //
+    private void readFile() {
+        try {
+            Block current = myFreeBlocks.take();
+            current.myLength = 0;
+            long firstRead = 0;
+            boolean endOfInput = false;
+            while (current != null && !myClosed) {
+                current.myFirstRead = firstRead;
+                int recordStart = 0;
+                current.myNumReads = 0;
+                while (current.myNumReads < current.myCapacity) {
+                    int recordEnd = current.findRecord(recordStart, endOfInput);
+                    if (recordEnd >= 0) {
+                        recordStart = recordEnd;
+                        continue;
+                    }
+                    if (endOfInput) {
+                        break;
+                    }
+                    if (recordStart > 0 && current.myNumReads == 0) {
+                        // only blank lines so far
+                        current.shift(recordStart);
+                        recordStart = 0;
+                    }
+                    endOfInput = !current.fill(myInput);
+                }
+                firstRead += current.myNumReads;
+
+                Block next = null;
+                if (!endOfInput || current.myNumReads == current.myCapacity) {
+                    next = myFreeBlocks.take();
+                    next.copyRemainder(current, recordStart);
+                } else if (recordStart < current.myLength && !isBlank(current, recordStart)) {
+                    myLogger.warn("FastqByteBlockReader: incomplete record at the end of: " + myFilename);
+                }
+                if (current.myNumReads > 0) {
+                    myFilledBlocks.put(current);
+                } else {
+                    myFreeBlocks.offer(current);
+                }
+                current = next;
+            }
+        } catch (InterruptedException e) {
+            // closed before the end of the file
+        } catch (IOException e) {
+            if (!myClosed) {
+                myLogger.error("FastqByteBlockReader: problem reading: " + myFilename + ": " + e.getMessage());
+                myException = e;
+            }
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            myException = new IOException("FastqByteBlockReader: problem reading: " + myFilename + ": " + e.getMessage(), e);
+        } finally {
+            myFilledBlocks.offer(END_OF_FILE);
+        }
+    }
+
+    private static boolean isBlank(Block block, int start) {
+        for (int i = start; i < block.myLength; i++) {
+            if (block.myBuffer[i] != '\n' && block.myBuffer[i] != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads of a block.  The sequence of read i occupies
+     * buffer()[sequenceStart(i), sequenceStart(i) + sequenceLength(i)) and the
+     * quality scores occupy buffer()[qualityStart(i), qualityStart(i) +
+     * qualityLength(i)).  Line terminators are excluded.
+     */
+    public static class Block {
+
+        private final int myCapacity;
+        private final int[] mySeqStarts;
+        private final int[] mySeqLengths;
+        private final int[] myQualStarts;
+        private final int[] myQualLengths;
+        private byte[] myBuffer;
+        private int myLength = 0;
+        private int myNumReads = 0;
+        private long myFirstRead = 0;
+
+        private Block(int capacity, int bufferSize) {
+            myCapacity = capacity;
+            mySeqStarts = new int[capacity];
+            mySeqLengths = new int[capacity];
+            myQualStarts = new int[capacity];
+            myQualLengths = new int[capacity];
+            myBuffer = new byte[bufferSize];
+        }
+
+        public byte[] buffer() {
+            return myBuffer;
+        }
+
+        public int numberOfReads() {
+            return myNumReads;
+        }
+
+        /**
+         * Index of the first read of this block in the file.
+         */
+        public long firstRead() {
+            return myFirstRead;
+        }
+
+        public int sequenceStart(int read) {
+            return mySeqStarts[read];
+        }
+
+        public int sequenceLength(int read) {
+            return mySeqLengths[read];
+        }
+
+        public int qualityStart(int read) {
+            return myQualStarts[read];
+        }
+
+        public int qualityLength(int read) {
+            return myQualLengths[read];
+        }
+
+        //
+        // Finds the four lines of the record starting at start.  Blank lines
+        // before the header are skipped.  Returns the start of the following
+        // record, or -1 if the record isn't complete in the buffer.
+        //
+        private int findRecord(int start, boolean endOfInput) {
+            while (start < myLength && (myBuffer[start] == '\n' || myBuffer[start] == '\r')) {
+                start++;
+            }
+            int headerEnd = lineEnd(start, endOfInput);
+            if (headerEnd < 0) {
+                return -1;
+            }
+            int seqStart = headerEnd + 1;
+            int seqEnd = lineEnd(seqStart, endOfInput);
+            if (seqEnd < 0) {
+                return -1;
+            }
+            int plusEnd = lineEnd(seqEnd + 1, endOfInput);
+            if (plusEnd < 0) {
+                return -1;
+            }
+            int qualStart = plusEnd + 1;
+            int qualEnd = lineEnd(qualStart, endOfInput);
+            if (qualEnd < 0) {
+                return -1;
+            }
+            int read = myNumReads++;
+            mySeqStarts[read] = seqStart;
+            mySeqLengths[read] = trimmedLength(seqStart, seqEnd);
+            myQualStarts[read] = qualStart;
+            myQualLengths[read] = trimmedLength(qualStart, qualEnd);
+            return Math.min(qualEnd + 1, myLength);
+        }
+
+        //
+        // Position of the newline ending the line at start.  At the end of the
+        // input, the end of the data ends the last line.
+        //
+        private int lineEnd(int start, boolean endOfInput) {
+            if (start >= myLength) {
+                return -1;
+            }
+            for (int i = start; i < myLength; i++) {
+                if (myBuffer[i] == '\n') {
+                    return i;
+                }
+            }
+            return endOfInput ? myLength : -1;
+        }
+
+        private int trimmedLength(int start, int end) {
+            return (end > start && myBuffer[end - 1] == '\r') ? end - start - 1 : end - start;
+        }
+
+        //
+        // Reads more of the input, growing the buffer if it is full.  Returns
+        // false at the end of the input.
+        //
+        private boolean fill(InputStream input) throws IOException {
+            if (myLength == myBuffer.length) {
+                byte[] temp = new byte[myBuffer.length * 2];
+                System.arraycopy(myBuffer, 0, temp, 0, myLength);
+                myBuffer = temp;
+            }
+            int numRead = input.read(myBuffer, myLength, myBuffer.length - myLength);
+            if (numRead < 0) {
+                return false;
+            }
+            myLength += numRead;
+            return true;
+        }
+
+        private void shift(int start) {
+            System.arraycopy(myBuffer, start, myBuffer, 0, myLength - start);
+            myLength -= start;
+        }
+
+        private void copyRemainder(Block previous, int start) {
+            int remainder = previous.myLength - start;
+            if (myBuffer.length < remainder) {
+                myBuffer = new byte[previous.myBuffer.length];
+            }
+            System.arraycopy(previous.myBuffer, start, myBuffer, 0, remainder);
+            myLength = remainder;
+        }
+
+    }
+
+}
@@ -1,7 +1,6 @@
 package net.maizegenetics.analysis.gbs.v2;
 
 import java.awt.Frame;
-import java.io.BufferedReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -12,7 +11,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.IntStream;
 
 import javax.swing.ImageIcon;
 
@@ -36,7 +34,6 @@ import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListIOUtils;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.DirectoryCrawler;
-import net.maizegenetics.util.Utils;
 
 /**
  * Develops a discovery TBT file from a set of GBS sequence files.
@@ -73,18 +70,23 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
     private PluginParameter<Integer> myMinQualScore = new PluginParameter.Builder<>("mnQS", 0, Integer.class).guiName("Minimum quality score").required(false)
             .description("Minimum quality score within the barcode and read length to be accepted").build();
     private PluginParameter<Integer> myMaxKmerNumber = new PluginParameter.Builder<>("mxKmerNum", 50000000, Integer.class).guiName("Maximum Kmer Number").required(false)
-            .description("Maximum number of kmers").build();
+            .description("Maximum number of kmers held in memory before kmer counts are written to temporary files").build();
     private PluginParameter<Integer> myBatchSize = new PluginParameter.Builder<>("batchSize", 8, Integer.class).guiName("Batch size of fastq files").required(false)
             .description("Number of flow cells being processed simultaneously").build();
     private PluginParameter<Boolean> myDeleteOldData = new PluginParameter.Builder<Boolean>("deleteOldData",true,Boolean.class).guiName("Delete Old Data")
             .description("Delete existing SNP quality data from db tables").build();
+    private PluginParameter<String> myTempDir = new PluginParameter.Builder<>("tempDir", null, String.class).guiName("Temporary Directory").required(false).outDir()
+            .description("Directory for temporary kmer count files (default system temporary directory)").build();
     LongAdder roughTagCnt = new LongAdder();
 
-    private TagDistributionMap tagCntMap;
+    private Map<Tag, TaxaDistribution> tagCntMap;
+    private TagCountTable tagCountTable;
     private boolean taglenException;
     protected static int readEndCutSiteRemnantLength;
     private Trie ahoCorasickTrie; // import from ahocorasick-0.2.1.jar
     String[] likelyReadEndStrings;
+    private byte[][] likelyReadEndBytes;
+    private boolean isApeKI;
     
     public GBSSeqToTagDBPlugin() {
         super(null, false);
@@ -127,21 +129,6 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
         return np;
     }
     
-    private long[] calcTagMapStats(TagDistributionMap tagCntMap) {
-        long totalDepth=0, memory=0;
-        int cnt=0;
-        for (Map.Entry<Tag, TaxaDistribution> entry : tagCntMap.entrySet()) {       	
-            memory+=entry.getValue().memorySize();
-            memory+=25;
-            totalDepth+=entry.getValue().totalDepth();
-            cnt++;
-        }
-        int currentSize = tagCntMap.size();
-        memory+=tagCntMap.size()*2*16;  //estimate for the map size
-        long[] stats={currentSize,memory, totalDepth,totalDepth/cnt};
-        System.out.printf("Map Tags:%,d  Memory:%,d  TotalDepth:%,d  AvgDepthPerTag:%d%n",stats[0],stats[1],stats[2],stats[3]);
-        return stats;
-    }
     @Override
     public void postProcessParameters() {
 
@@ -149,15 +136,16 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
             // Add likelyReadEnds for later processing
             EnzymeList.Enzyme enzyme = EnzymeList.defaultCache.getEnzyme(enzyme()); 
             likelyReadEndStrings = enzyme.likelyReadEnd; // for removeSecondCutSiteIndexOf()
+            likelyReadEndBytes = GBSUtils.asciiBytes(likelyReadEndStrings);
             readEndCutSiteRemnantLength = enzyme.readEndCutSiteRemnantLength;
+            isApeKI = enzyme().equalsIgnoreCase("ApeKI");
         }
         
     }
     @Override
     public DataSet processData(DataSet input) {
         int batchSize = myBatchSize.value();
-        float loadFactor = 0.95f;
-        tagCntMap = new TagDistributionMap (myMaxKmerNumber.value(),loadFactor, 128, this.minKmerCount());        
+        tagCntMap = new ConcurrentHashMap<>();
         try {
             //Get the list of fastq files
             Path keyPath= Paths.get(keyFile()).toAbsolutePath();
@@ -182,6 +170,8 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
             
             // Check if user wants to clear existing db. 
             TagDataWriter tdw = null;
+            Map<Tag, TaxaDistribution> existingTDM = null;
+            int maxTaxaNumber = masterTaxaList.size();
             if (Files.exists(Paths.get(myOutputDB.value()))) {
                 if (deleteOldData()) {
                     try {
@@ -210,13 +200,33 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                         ((TagDataSQLite)tdw).close();
                         return null;
                     }
-                    // Grab existing data from db, append to empty tagCntMap
-                    Map<Tag, TaxaDistribution> existingTDM = tdw.getAllTagsTaxaMap(); 
-                    tagCntMap.putAll(existingTDM);
+                    // Grab existing data from db, appended to empty tagCountTable below
+                    existingTDM = tdw.getAllTagsTaxaMap(); 
+                    maxTaxaNumber = Math.max(maxTaxaNumber, oldTaxaList.size());
                     tdw.clearTagTaxaDistributionData(); // clear old data - it will be re-added at the end.
                 }
             } 
             if (tdw == null) tdw=new TagDataSQLite(myOutputDB.value());
+            // existing tags can be longer than the current kmer length, so the table is sized to hold them
+            int maxTagLength = kmerLength();
+            if (existingTDM != null) {
+                int numLongerTags = 0;
+                for (Tag tag : existingTDM.keySet()) {
+                    if (tag.seqLength() > kmerLength()) {
+                        numLongerTags++;
+                        maxTagLength = Math.max(maxTagLength, tag.seqLength());
+                    }
+                }
+                if (numLongerTags > 0) {
+                    myLogger.info("processData: " + numLongerTags + " existing tags are longer than kmer length: " + kmerLength()
+                            + ". Longest: " + maxTagLength + " bp. They are kept as they are.");
+                }
+            }
+            tagCountTable = new TagCountTable(maxTagLength, maxTaxaNumber, myMaxKmerNumber.value(),
+                    (tempDir() == null) ? null : Paths.get(tempDir()));
+            if (existingTDM != null) {
+                existingTDM.forEach(tagCountTable::add);
+            }
             taglenException = false;
             for (int i = 0; i < inputSeqFiles.size(); i+=batchSize) {
                 int end = i+batchSize;
@@ -228,7 +238,7 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                 .forEach(inputSeqFile -> {
                     try {
                         processFastQFile(masterTaxaList,keyPath, inputSeqFile, enzyme(),
-                                minimumQualityScore(), tagCntMap, kmerLength());
+                                minimumQualityScore(), tagCountTable, kmerLength());
                     } catch (StringIndexOutOfBoundsException oobe) {
                         oobe.printStackTrace();
                         myLogger.error(oobe.getMessage());
@@ -239,29 +249,14 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                 if (taglenException == true) return null; // Tag length failure from processFastQ - halt processing
 
                 System.out.println("\nKmers are added from batch "+String.valueOf(i/batchSize+1) + ". Total batch number: " + batchNum);
-                int currentSize = tagCntMap.size();
-                System.out.println("Current number: " + String.valueOf(currentSize) + ". Max kmer number: " + String.valueOf(myMaxKmerNumber.value()));
-                System.out.println(String.valueOf((float)currentSize/(float)myMaxKmerNumber.value()) + " of max tag number");
-
-                if (currentSize > 0) { // calcTagMapStats() gets "divide by 0" error when size == 0
-                    this.calcTagMapStats(tagCntMap);
-                    System.out.println();
-                    //make sure don't lose rare ones, need to set maxTagNumber large enough
-                    removeTagsWithoutReplication(tagCntMap);
-                    if (tagCntMap.size() == 0) {
-                        System.out.println("WARNING:  After removing tags without replication, there are NO  tags left in the database");
-                    } else {
-                        this.calcTagMapStats(tagCntMap);
-                        System.out.println();
-                        System.out.println("Kmer number is reduced to " + tagCntMap.size()+"\n");  
-                    }                   
-                    this.roughTagCnt.reset();
-                    this.roughTagCnt.add(tagCntMap.size());
-                } else {
-                    System.out.println("WARNING: Current tagcntmap size is 0 after processing batch " + String.valueOf(i/batchSize+1) );
-                    System.out.println("  This could happen if your total number of good barcoded reads is 0, or if there are no kmers that contain the min specified count");
+                long currentSize = tagCountTable.numberOfTagsInMemory();
+                System.out.println("Kmers in memory: " + currentSize + ". Max kmer number: " + myMaxKmerNumber.value()
+                        + ". Sorted kmer count files written: " + tagCountTable.numberOfRuns());
+                if (currentSize == 0 && tagCountTable.numberOfRuns() == 0) {
+                    System.out.println("WARNING: No kmers counted after processing batch " + String.valueOf(i/batchSize+1) );
+                    System.out.println("  This could happen if your total number of good barcoded reads is 0.");
                     System.out.println("  If your good barcoded reads are 0, your reads may contain something other than ACGT or your minimum tag length may not be met.");
-                    System.out.println("  Adjust your minimum kmer count paramter,  adjust your minimum tag length, and/or inspect your fastQ files.");
+                    System.out.println("  Adjust your minimum tag length, and/or inspect your fastQ files.");
                 }
 
                 System.out.println("Total memory: "+ String.valueOf((double)(Runtime.getRuntime().totalMemory()/1024/1024/1024))+" Gb");
@@ -270,24 +265,45 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                 System.out.println("\n");
             }
             System.out.println("\nAll the batch are processed");
-            tagCntMap.removeTagByCount(myMinKmerCount.value());
-            System.out.println("By removing kmers with minCount of " + myMinKmerCount.value() + "Kmer number is reduced to " + tagCntMap.size()+"\n");
+            // counts written to disk are merged, so kmers are only removed once all reads are counted
+            int minCount = myMinKmerCount.value();
+            LongAdder tagsRemoved = new LongAdder();
+            tagCountTable.forEach((tag, taxaDistribution) -> {
+                if (taxaDistribution.totalDepth() >= minCount && hasReplication(taxaDistribution)) {
+                    tagCntMap.put(tag, taxaDistribution);
+                } else {
+                    tagsRemoved.increment();
+                }
+            });
+            System.out.println("By removing kmers without replication or with less than minCount of " + minCount + ", " + tagsRemoved
+                    + " kmers removed. Kmer number is " + tagCntMap.size()+"\n");
             
             // now done in processFastQ
             //removeSecondCutSitesFromMap(new GBSEnzyme(enzyme()));
 
-            tdw.putTaxaList(masterTaxaList);
-            tdw.putAllTag(tagCntMap.keySet());
-            tdw.putTaxaDistribution(tagCntMap);
-            ((TagDataSQLite)tdw).close();  //todo autocloseable should do this but it is not working.
+            // indices are created when the database is closed, even if loading fails
+            ((TagDataSQLite)tdw).startBulkLoad();
+            try {
+                tdw.putTaxaList(masterTaxaList);
+                tdw.putAllTag(tagCntMap.keySet());
+                tdw.putTaxaDistribution(tagCntMap);
+            } finally {
+                ((TagDataSQLite)tdw).close();  //todo autocloseable should do this but it is not working.
+            }
         } catch(Exception e) {
             e.printStackTrace();
+        } finally {
+            // release the spill files and counts now, rather than with this plugin
+            if (tagCountTable != null) {
+                tagCountTable.close();
+                tagCountTable = null;
+            }
         }
         return new DataSet(new Datum("TagMap",tagCntMap,""),this);
     }
     
     private void processFastQFile(TaxaList masterTaxaList, Path keyPath, Path fastQPath, String enzymeName,
-                     int minQuality, TagDistributionMap masterTagTaxaMap, int preferredTagLength) throws StringIndexOutOfBoundsException {
+                     int minQuality, TagCountTable masterTagTaxaMap, int preferredTagLength) throws StringIndexOutOfBoundsException {
     	ArrayList<Taxon> tl=GBSUtils.getLaneAnnotatedTaxaList(keyPath, fastQPath);
     	if (tl.size() == 0) return; 
         BarcodeTrie barcodeTrie=GBSUtils.initializeBarcodeTrie(tl, masterTaxaList, EnzymeList.defaultCache.getEnzyme(enzymeName));
@@ -299,56 +315,55 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
     }
 
     private void processFastQ(Path fastqFile, BarcodeTrie barcodeTrie, TaxaList masterTaxaList,
-                              TagDistributionMap masterTagTaxaMap, int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException{
-        int allReads=0, goodBarcodedReads = 0, lowQualityReads = 0;
-        int maxTaxaNumber=masterTaxaList.size();
+                              TagCountTable masterTagTaxaMap, int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException{
+        long allReads=0, goodBarcodedReads = 0, lowQualityReads = 0;
         int checkSize = 10000000;
+        long[] seq2Bit = new long[(preferredTagLength + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize];
         myLogger.info("processing file " + fastqFile.toString());
-        try {
+        // reading and decompressing runs on the reader's thread, demultiplexing and encoding on this one
+        try (FastqByteBlockReader reader = new FastqByteBlockReader(fastqFile.toString())) {
             int qualityScoreBase=GBSUtils.determineQualityScoreBase(fastqFile);
-            BufferedReader br = Utils.getBufferedReader(fastqFile.toString(), 1 << 22);
             long time=System.nanoTime();
-            String[] seqAndQual;
- 
-            while ((seqAndQual=GBSUtils.readFastQBlock(br,allReads)) != null) {
-                allReads++;
-                //After quality score is read, decode barcode using the current sequence & quality  score
-                Barcode barcode=barcodeTrie.longestPrefix(seqAndQual[0]);
-                if(barcode==null) continue;
-                if(minQual>0) {
-                    //todo move getFirstLowQualityPos into this class?
-                    if(BaseEncoder.getFirstLowQualityPos(seqAndQual[1],minQual, qualityScoreBase)<(barcode.getBarLength()+preferredTagLength)){
-                    	lowQualityReads++;
-                    	continue;
+            FastqByteBlockReader.Block block;
+            while ((block = reader.next()) != null) {
+                byte[] buffer = block.buffer();
+                for (int read = 0; read < block.numberOfReads(); read++) {
+                    allReads++;
+                    int seqStart = block.sequenceStart(read);
+                    int seqLength = block.sequenceLength(read);
+                    //After quality score is read, decode barcode using the current sequence & quality  score
+                    Barcode barcode=barcodeTrie.longestPrefix(buffer, seqStart, seqLength);
+                    if(barcode==null) continue;
+                    int barcodeLen = barcode.getBarLength();
+                    if(minQual>0) {
+                        if(BaseEncoder.getFirstLowQualityPos(buffer, block.qualityStart(read), block.qualityLength(read), minQual, qualityScoreBase)
+                                <(barcodeLen+preferredTagLength)){
+                            lowQualityReads++;
+                            continue;
+                        }
                     }
-                }
 
-                int barcodeLen = barcode.getBarLength();               
-                if (seqAndQual[0].length() - barcodeLen < preferredTagLength) {
-                	String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
-                			"Reading entry number " + allReads + " fails the length test.\n" +
-                			"Sequence length " + seqAndQual[0].length() + " minus barcode length "+ barcodeLen +
-                			" is less than kmerLength " + preferredTagLength + ".\n" +
-                			"Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
-                	throw new StringIndexOutOfBoundsException(errMsg);
-                }
-                // This one has best performance
-                Tag tag = removeSecondCutSiteIndexOf(seqAndQual[0].substring(barcodeLen),preferredTagLength);
-                
-                //Tag tag=TagBuilder.instance(seqAndQual[0].substring(barcodeLen, barcodeLen + preferredTagLength)).build();
-                if(tag==null) continue;   //null occurs when any base was not A, C, G, T
-                goodBarcodedReads++;
-                TaxaDistribution taxaDistribution=masterTagTaxaMap.get(tag);
-                if(taxaDistribution==null) {
-                    masterTagTaxaMap.put(tag,TaxaDistBuilder.create(maxTaxaNumber,barcode.getTaxaIndex()));
-                    this.roughTagCnt.increment();
-                } else {
-                    taxaDistribution.increment(barcode.getTaxaIndex());
-                }
-                if (allReads % checkSize == 0) {
-                    myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads
-                            + " rate:" + (System.nanoTime()-time)/allReads +" ns/read. Current tag count:" + this.roughTagCnt);
+                    if (seqLength - barcodeLen < preferredTagLength) {
+                        String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
+                                "Reading entry number " + allReads + " fails the length test.\n" +
+                                "Sequence length " + seqLength + " minus barcode length "+ barcodeLen +
+                                " is less than kmerLength " + preferredTagLength + ".\n" +
+                                "Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
+                        throw new StringIndexOutOfBoundsException(errMsg);
+                    }
+                    int tagLength = GBSUtils.removeSecondCutSiteIndexOf(buffer, seqStart + barcodeLen, seqStart + seqLength, preferredTagLength,
+                            minimumKmerLength(), likelyReadEndBytes, readEndCutSiteRemnantLength, isApeKI, seq2Bit);
+                    if(tagLength==0) continue;   //0 occurs when any base was not A, C, G, T
+                    goodBarcodedReads++;
+                    if (masterTagTaxaMap.increment(seq2Bit, tagLength, barcode.getTaxaIndex())) {
+                        this.roughTagCnt.increment();
+                    }
+                    if (allReads % checkSize == 0) {
+                        myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads
+                                + " rate:" + (System.nanoTime()-time)/allReads +" ns/read. Current tag count:" + this.roughTagCnt);
+                    }
                 }
+                reader.release(block);
             }
             myLogger.info("Summary for "+fastqFile.toString()+"\n"+
                     "Total number of reads in lane=" + allReads +"\n"+
@@ -356,8 +371,7 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
                     "Total number of low quality reads=" + lowQualityReads+"\n"+
                     "Timing process (sorting, collapsing, and writing TagCount to file)."+"\n"+
                     "Process took " + (System.nanoTime() - time)/1e6 + " milliseconds.");
-            System.out.println("tagCntMap size: "+masterTagTaxaMap.size());
-            br.close();
+            System.out.println("Kmers in memory: "+masterTagTaxaMap.numberOfTagsInMemory());
         } catch (StringIndexOutOfBoundsException oobe) {
         	throw oobe; // pass it up to print error and stop processing
         } catch (Exception e) {
@@ -367,42 +381,6 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
         }
     }
 
-    // This should be moved to GBSUtils as it is used in Production as well
-    private Tag removeSecondCutSiteIndexOf(String seq, int preferredLength) {
-        Tag tag = null;
-        
-        // handle overlapping cutsite for ApeKI enzyme
-        if (enzyme().equalsIgnoreCase("ApeKI")) {
-            if (seq.startsWith("CAGCTGC") || seq.startsWith("CTGCAGC")) {
-                seq = seq.substring(3,seq.length());
-            }             
-        }
-        int indexOfReadEnd = -1;
-        String shortSeq = seq.substring(20);
-        for (String readEnd: likelyReadEndStrings){
-            int indx = shortSeq.indexOf(readEnd);
-            if (indx > 0 ) {
-                if (indexOfReadEnd < 0 || indx < indexOfReadEnd) {
-                    indexOfReadEnd = indx;
-                } 
-            }
-        }
-        
-        int tagLen = indexOfReadEnd + 20 + readEndCutSiteRemnantLength;
-        if (indexOfReadEnd > 0 &&
-                (tagLen < preferredLength)) {            
-            if (tagLen < minimumKmerLength()) { // Tag is shorter than user specified minimum length - toss it
-                return null;
-            }
-            // trim tag to sequence up to & including the cut site
-            tag = TagBuilder.instance(seq.substring(0, tagLen)).build();
-        } else {
-            int seqEnd = (byte) Math.min(seq.length(), preferredLength);
-            return TagBuilder.instance(seq.substring(0,seqEnd)).build();
-        }
-        return tag;
-    }
-    
     // THis method now obsolete, replaced with removeSecondCutSiteAhoC
     private void removeSecondCutSitesFromMap(EnzymeList.Enzyme enzyme) {
         //this is a little tricky as you cannot add entries at the same time as removing entries to a map
@@ -450,27 +428,20 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
     }
     
     /**
-     * This method removes all tags are are never repeated in a single sample (taxa).  The concept is that
-     * all biologically real tag should show up twice somewhere.  This could be called at the end of every
-     * flowcell to test all the novel tags.
+     * Whether a tag is repeated in a single sample (taxa).  The concept is that
+     * all biologically real tag should show up twice somewhere.  Tags without
+     * replication are removed after all flowcells are counted.
      */
-    private static void removeTagsWithoutReplication (TagDistributionMap masterTagTaxaMap) {
-        int currentSize = masterTagTaxaMap.size();
+    private static boolean hasReplication(TaxaDistribution td) {
         int minTaxa=2;
-        System.out.println("Starting removeTagsWithoutReplication. Current tag number: " + currentSize);
-        LongAdder tagsRemoved=new LongAdder();
-        masterTagTaxaMap.entrySet().parallelStream().forEach(t -> {
-            TaxaDistribution td = t.getValue();
-            if(td.totalDepth()<2*minTaxa) {
-                masterTagTaxaMap.remove(t.getKey());
-                tagsRemoved.increment();
-            } 
-            else if(IntStream.of(td.depths()).filter(depth -> depth>1).count()<minTaxa) {
-                masterTagTaxaMap.remove(t.getKey());
-                tagsRemoved.increment();
-            }
+        if(td.totalDepth()<2*minTaxa) {
+            return false;
+        }
+        int[] taxaWithReplication={0};
+        td.forEachTaxonDepth((taxon, depth) -> {
+            if(depth>1) taxaWithReplication[0]++;
         });
-        System.out.println("Finished removeTagsWithoutReplication.  tagsRemoved = " + tagsRemoved + ". Current tag number: " + String.valueOf(currentSize-tagsRemoved.intValue()));
+        return taxaWithReplication[0]>=minTaxa;
     }
     
     public void setTagLenException() {
@@ -713,6 +684,28 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
         myDeleteOldData = new PluginParameter<>(myDeleteOldData, value);
         return this;
     }
+
+    /**
+     * Directory for temporary kmer count files
+     *
+     * @return Temporary Directory
+     */
+    public String tempDir() {
+        return myTempDir.value();
+    }
+
+    /**
+     * Set Temporary Directory. Directory for temporary kmer
+     * count files (default system temporary directory)
+     *
+     * @param value Temporary Directory
+     *
+     * @return this plugin
+     */
+    public GBSSeqToTagDBPlugin tempDir(String value) {
+        myTempDir = new PluginParameter<>(myTempDir, value);
+        return this;
+    }
     @Override
     public ImageIcon getIcon() {
         return null;
@@ -727,59 +720,4 @@ public class GBSSeqToTagDBPlugin extends AbstractPlugin {
     public String getToolTipText() {
         return "Input GBS Sequence to Tag/Taxa tables in DB";
     }
-
-    /**
-     * This ConcurrentHashMap constrain the size of the map, and purges low distribution count tags when the size needs
-     * to be reduced.
-     */
-    static class TagDistributionMap extends ConcurrentHashMap<Tag,TaxaDistribution> {
-        private final int maxTagNum;
-        private int minDepthToRetainInMap=2;
-        private final int minCount;
-        
-        TagDistributionMap (int maxTagNumber, float loadFactor, int concurrencyLevel, int minCount) {
-            super((maxTagNumber*2), loadFactor, concurrencyLevel);
-            maxTagNum = maxTagNumber;
-            this.minCount = minCount;
-        }
-        
-        @Override
-        public TaxaDistribution put(Tag key, TaxaDistribution value) {
-            return super.put(key, value);
-        }
-
-        public synchronized void removeTagByCount(int minCnt) {
-            entrySet().parallelStream()
-                    .filter(e -> e.getValue().totalDepth()<minCnt)
-                    .forEach(e -> remove(e.getKey()));
-        }
-        
-            
-        public long estimateMapMemorySize() {
-            long size=0;
-            int cnt=0;
-            for (Map.Entry<Tag, TaxaDistribution> entry : entrySet()) {
-                size+=8+16+1; //Tag size
-                size+=16; //Map references
-                size+=entry.getValue().memorySize();
-                cnt++;
-                if(cnt>10000) break;
-        }
-            long estSize=(size()/cnt)*size;
-            return estSize;
-        }
-
-        public long[] depthDistribution() {
-            long[] base2bins=new long[34];
-            int cnt=0;
-            for (Map.Entry<Tag, TaxaDistribution> entry : entrySet()) {
-                base2bins[31-Integer.numberOfLeadingZeros(entry.getValue().totalDepth())]++;
-                cnt++;
-               // if(cnt>100000) break;
-            }
-            return base2bins;
-        }
-    }
 }
-
-
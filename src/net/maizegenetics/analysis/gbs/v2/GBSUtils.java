@@ -5,11 +5,13 @@ package net.maizegenetics.analysis.gbs.v2;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
 import net.maizegenetics.analysis.gbs.Barcode;
+import net.maizegenetics.dna.BaseEncoder;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListIOUtils;
 import net.maizegenetics.taxa.Taxon;
@@ -33,6 +35,9 @@ import com.google.common.collect.Ordering;
 public class GBSUtils {
 
     private static final Logger myLogger = LogManager.getLogger(GBSUtils.class);
+
+    private static final byte[] APEKI_OVERLAP_1 = "CAGCTGC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] APEKI_OVERLAP_2 = "CTGCAGC".getBytes(StandardCharsets.US_ASCII);
     public static final String inputFileGlob="glob:*{.fq,fq.gz,fastq,fastq.txt,fastq.gz,fastq.txt.gz,_sequence.txt,_sequence.txt.gz}";
     public static final String sampleNameField="FullSampleName";
     public static final String flowcellField="Flowcell";
@@ -280,4 +285,87 @@ public class GBSUtils {
         }
         return mMap.build();
     }
+
+    /**
+     * Converts sequences (e.g. an enzyme's likely read ends) to ASCII bytes for
+     * removeSecondCutSiteIndexOf()
+     */
+    public static byte[][] asciiBytes(String[] sequences) {
+        byte[][] result = new byte[sequences.length][];
+        for (int i = 0; i < sequences.length; i++) {
+            result[i] = sequences[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
+
+    /**
+     * Trims the read after the barcode, sequence[start, end), at the first
+     * likely read end at least 20 bases in, keeping the cut site remnant, and
+     * encodes the tag into seq2Bit.  Using indexOf() is much faster than using
+     * an Aho-Corasick trie to find the second cut site.
+     *
+     * @param sequence bytes of the reads
+     * @param start start of the read after the barcode
+     * @param end end of the read
+     * @param preferredLength maximum tag length
+     * @param minimumLength tags trimmed at a cut site shorter than this are
+     * dropped
+     * @param likelyReadEnds the enzyme's likely read ends, from asciiBytes()
+     * @param readEndCutSiteRemnantLength the enzyme's read end cut site remnant
+     * length
+     * @param isApeKI whether the enzyme is ApeKI, whose cut sites can overlap
+     * @param seq2Bit array for the encoded tag
+     *
+     * @return the tag length, or 0 if the tag is too short or has a base other
+     * than A, C, G, T
+     */
+    public static int removeSecondCutSiteIndexOf(byte[] sequence, int start, int end, int preferredLength, int minimumLength,
+            byte[][] likelyReadEnds, int readEndCutSiteRemnantLength, boolean isApeKI, long[] seq2Bit) {
+        // handle overlapping cutsite for ApeKI enzyme
+        if (isApeKI) {
+            if (startsWith(sequence, start, end, APEKI_OVERLAP_1) || startsWith(sequence, start, end, APEKI_OVERLAP_2)) {
+                start += 3;
+            }
+        }
+        int indexOfReadEnd = -1;
+        int shortSeqStart = start + 20;
+        for (byte[] readEnd : likelyReadEnds) {
+            int indx = indexOf(sequence, shortSeqStart, end, readEnd);
+            if (indx > 0) {
+                if (indexOfReadEnd < 0 || indx < indexOfReadEnd) {
+                    indexOfReadEnd = indx;
+                }
+            }
+        }
+
+        int tagLen = indexOfReadEnd + 20 + readEndCutSiteRemnantLength;
+        if (indexOfReadEnd > 0 && tagLen < preferredLength) {
+            if (tagLen < minimumLength) { // Tag is shorter than user specified minimum length - toss it
+                return 0;
+            }
+            // trim tag to sequence up to & including the cut site
+        } else {
+            tagLen = Math.min(end - start, preferredLength);
+        }
+        return BaseEncoder.getLongArrayFromSeq(sequence, start, tagLen, seq2Bit) ? tagLen : 0;
+    }
+
+    private static boolean startsWith(byte[] sequence, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (sequence[start + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    // index of the first occurrence of target in sequence[start, end) relative to start, or -1
+    private static int indexOf(byte[] sequence, int start, int end, byte[] target) {
+        int last = end - target.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < target.length && sequence[i + j] == target[j]) j++;
+            if (j == target.length) return i - start;
+        }
+        return -1;
+    }
 }
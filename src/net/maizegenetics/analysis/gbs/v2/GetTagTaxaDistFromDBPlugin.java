@@ -113,11 +113,19 @@ public class GetTagTaxaDistFromDBPlugin extends AbstractPlugin {
                     System.out.println("GetTagTaxaDist: got null tagTD at tagcount " + tagcount);
                     return null;
                 }
-                int[] depths = tagTD.depths(); // gives us the depths for each taxon
                 strB.append(myTag.sequence());
-                for (int idx = 0; idx < depths.length; idx++) {
-                    strB.append("\t"); 
-                    strB.append(depths[idx]);  // add tag depth                     
+                // taxa without the tag have depth 0
+                int[] nextTaxon = {0};
+                tagTD.forEachTaxonDepth((taxon, depth) -> {
+                    for (; nextTaxon[0] < taxon; nextTaxon[0]++) {
+                        strB.append("\t0");
+                    }
+                    strB.append("\t");
+                    strB.append(depth);  // add tag depth
+                    nextTaxon[0]++;
+                });
+                for (; nextTaxon[0] < tagTD.maxTaxa(); nextTaxon[0]++) {
+                    strB.append("\t0");
                 }
                 strB.append("\n"); // end of line - start next tag
                 fileWriter.write(strB.toString());
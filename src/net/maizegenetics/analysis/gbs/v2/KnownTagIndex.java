@@ -0,0 +1,212 @@
+package net.maizegenetics.analysis.gbs.v2;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.ToIntFunction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.Multimap;
+
+import net.maizegenetics.dna.BaseEncoder;
+import net.maizegenetics.dna.map.Position;
+import net.maizegenetics.dna.snp.Allele;
+import net.maizegenetics.dna.tag.Tag;
+
+/**
+ * Immutable index from the known tags of a database to the SNP alleles they
+ * carry.  The index is read only once built, so any number of reader threads
+ * share it without locks.
+ * <p>
+ * Tags are held as their 2-bit encoded words in one sorted long[] (a fixed
+ * number of words per tag, padded with zero words), and looked up with a
+ * binary search of the tags sharing the top BUCKET_BITS bits of the first
+ * word.  A read is looked up directly from its encoded words, so no Tag object
+ * or hash is computed per read.  The alleles of each tag are held as parallel
+ * arrays of site index and allele.
+ */
+public class KnownTagIndex {
+
+    private static final Logger myLogger = LogManager.getLogger(KnownTagIndex.class);
+
+    private static final int BUCKET_BITS = 16;
+
+    private final int myWordsPerTag;
+    private final long[] myWords;
+    private final short[] myLengths;
+    // tags with first word starting with bucket b are [myBucketStarts[b], myBucketStarts[b + 1])
+    private final int[] myBucketStarts;
+    // alleles of tag t are [myAlleleStarts[t], myAlleleStarts[t + 1])
+    private final int[] myAlleleStarts;
+    private final int[] myAlleleSites;
+    private final byte[] myAlleles;
+
+    /**
+     * Builds index.
+     *
+     * @param tags known tags
+     * @param alleleMap alleles of tags.  Tags not in tags are ignored.
+     * @param siteOfPosition site index of an allele position, or negative to
+     * ignore the allele (i.e. position isn't in the genotypes being called)
+     */
+    public KnownTagIndex(Collection<Tag> tags, Multimap<Tag, Allele> alleleMap, ToIntFunction<Position> siteOfPosition) {
+
+        long time = System.nanoTime();
+        Tag[] sorted = tags.toArray(new Tag[0]);
+        int wordsPerTag = 1;
+        for (Tag tag : sorted) {
+            wordsPerTag = Math.max(wordsPerTag, numWords(tag.seqLength()));
+        }
+        myWordsPerTag = wordsPerTag;
+        Arrays.parallelSort(sorted, (tag1, tag2) -> compareTags(tag1.seq2Bit(), tag1.seqLength(), tag2.seq2Bit(), tag2.seqLength()));
+
+        int numTags = 0;
+        for (int t = 0; t < sorted.length; t++) {
+            if (t == 0 || compareTags(sorted[t].seq2Bit(), sorted[t].seqLength(), sorted[numTags - 1].seq2Bit(), sorted[numTags - 1].seqLength()) != 0) {
+                sorted[numTags++] = sorted[t];
+            }
+        }
+
+        myWords = new long[numTags * myWordsPerTag];
+        myLengths = new short[numTags];
+        myBucketStarts = new int[(1 << BUCKET_BITS) + 1];
+        myAlleleStarts = new int[numTags + 1];
+        int numAlleles = 0;
+        for (int t = 0; t < numTags; t++) {
+            long[] seq2Bit = sorted[t].seq2Bit();
+            int numWords = Math.min(seq2Bit.length, numWords(sorted[t].seqLength()));
+            System.arraycopy(seq2Bit, 0, myWords, t * myWordsPerTag, numWords);
+            myLengths[t] = sorted[t].seqLength();
+            myBucketStarts[bucket(myWords[t * myWordsPerTag]) + 1]++;
+            for (Allele allele : alleleMap.get(sorted[t])) {
+                if (siteOfPosition.applyAsInt(allele.position()) >= 0) {
+                    numAlleles++;
+                }
+            }
+            myAlleleStarts[t + 1] = numAlleles;
+        }
+        for (int b = 0; b < (1 << BUCKET_BITS); b++) {
+            myBucketStarts[b + 1] += myBucketStarts[b];
+        }
+
+        myAlleleSites = new int[numAlleles];
+        myAlleles = new byte[numAlleles];
+        int index = 0;
+        for (int t = 0; t < numTags; t++) {
+            for (Allele allele : alleleMap.get(sorted[t])) {
+                int site = siteOfPosition.applyAsInt(allele.position());
+                if (site >= 0) {
+                    myAlleleSites[index] = site;
+                    myAlleles[index++] = allele.allele();
+                }
+            }
+        }
+
+        myLogger.info(String.format("KnownTagIndex: %,d tags with %,d alleles indexed in %.1f s (%,d MB)", numTags, numAlleles,
+                (System.nanoTime() - time) / 1e9, (myWords.length * 8L + numTags * 6L + numAlleles * 5L) >> 20));
+
+    }
+
+    /**
+     * Number of known tags.
+     */
+    public int numberOfTags() {
+        return myLengths.length;
+    }
+
+    /**
+     * Number of alleles of tags at sites being called.
+     */
+    public int numberOfAlleles() {
+        return myAlleles.length;
+    }
+
+    /**
+     * Returns index of tag, or -1 if it isn't known.
+     *
+     * @param seq2Bit 2-bit encoded tag.  Words after those needed for length
+     * are ignored.
+     * @param length length of tag
+     *
+     * @return tag index in [0, numberOfTags())
+     */
+    public int indexOf(long[] seq2Bit, int length) {
+        int numWords = numWords(length);
+        if (numWords > myWordsPerTag || numWords > seq2Bit.length) {
+            return -1;
+        }
+        int bucket = (numWords == 0) ? 0 : bucket(seq2Bit[0]);
+        int low = myBucketStarts[bucket];
+        int high = myBucketStarts[bucket + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = compareTo(mid, seq2Bit, numWords, length);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns index of tag, or -1 if it isn't known.
+     */
+    public int indexOf(Tag tag) {
+        return indexOf(tag.seq2Bit(), tag.seqLength());
+    }
+
+    /**
+     * Adds count to the depth of each allele of a tag.
+     *
+     * @param tagIndex index of tag
+     * @param count number of reads of the tag
+     * @param alleleDepths depths indexed by [allele][site]
+     */
+    public void addDepths(int tagIndex, int count, int[][] alleleDepths) {
+        for (int a = myAlleleStarts[tagIndex], end = myAlleleStarts[tagIndex + 1]; a < end; a++) {
+            alleleDepths[myAlleles[a]][myAlleleSites[a]] += count;
+        }
+    }
+
+    // compares the known tag at index to the tag
+    private int compareTo(int index, long[] seq2Bit, int numWords, int length) {
+        int offset = index * myWordsPerTag;
+        for (int w = 0; w < myWordsPerTag; w++) {
+            long word = (w < numWords) ? seq2Bit[w] : 0L;
+            int compare = Long.compareUnsigned(myWords[offset + w], word);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(myLengths[index], length);
+    }
+
+    // order of the words as unsigned values, with missing words as zero, then the length
+    private static int compareTags(long[] words1, int length1, long[] words2, int length2) {
+        int numWords1 = Math.min(words1.length, numWords(length1));
+        int numWords2 = Math.min(words2.length, numWords(length2));
+        for (int w = 0, n = Math.max(numWords1, numWords2); w < n; w++) {
+            long word1 = (w < numWords1) ? words1[w] : 0L;
+            long word2 = (w < numWords2) ? words2[w] : 0L;
+            int compare = Long.compareUnsigned(word1, word2);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(length1, length2);
+    }
+
+    private static int bucket(long firstWord) {
+        return (int) (firstWord >>> (Long.SIZE - BUCKET_BITS));
+    }
+
+    private static int numWords(int length) {
+        return (length + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize;
+    }
+
+}
@@ -4,7 +4,6 @@
 package net.maizegenetics.analysis.gbs.v2;
 
 import java.awt.Frame;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -15,25 +14,28 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.ImageIcon;
 
 import net.maizegenetics.analysis.gbs.Barcode;
 import net.maizegenetics.dna.BaseEncoder;
+import net.maizegenetics.dna.map.Chromosome;
 import net.maizegenetics.dna.map.PositionList;
-import net.maizegenetics.dna.snp.Allele;
 import net.maizegenetics.dna.snp.ExportUtils;
 import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableBuilder;
 import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
-import net.maizegenetics.dna.snp.SimpleAllele;
 import net.maizegenetics.dna.snp.score.AlleleDepthUtil;
 import net.maizegenetics.dna.snp.genotypecall.BasicGenotypeMergeRule;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeMergeRule;
@@ -44,20 +46,18 @@ import net.maizegenetics.dna.tag.TagDataSQLite;
 import net.maizegenetics.plugindef.AbstractPlugin;
 import net.maizegenetics.plugindef.DataSet;
 import net.maizegenetics.plugindef.PluginParameter;
+import net.maizegenetics.prefs.TasselPrefs;
 import net.maizegenetics.taxa.TaxaList;
 import net.maizegenetics.taxa.TaxaListIOUtils;
 import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.DirectoryCrawler;
-import net.maizegenetics.util.Utils;
 
 import org.ahocorasick.trie.Emit;
 import org.ahocorasick.trie.Trie;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+import gnu.trove.map.hash.TIntIntHashMap;
 
 /**
  * This plugin converts all of the fastq (and/or qseq) files in the input folder
@@ -130,12 +130,15 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
     private String myOutputDir = null;
     private static boolean isHDF5 = false; // default is VCF
     private TagData tagDataReader = null;
-    Multimap<Taxon,Tag> tagCntMap=Multimaps.synchronizedMultimap(ArrayListMultimap.create(384, 500_000));
+    // reads of each known tag (by KnownTagIndex index) for each taxon of the current batch
+    private final Map<Taxon, TIntIntHashMap> tagCntMap = new ConcurrentHashMap<>();
     private Set<String> seqFilesInKeyAndDir = new TreeSet<>(); // fastq (or qseq) file names present in input directory that have a "Flowcell_Lane" in the key file
  
     protected static int readEndCutSiteRemnantLength;
     private Trie ahoCorasickTrie; // import from ahocorasick-0.2.1.jar
     private String[] likelyReadEndStrings;
+    private byte[][] likelyReadEndBytes;
+    private boolean isApeKI;
 
     //Documentation of read depth per sample (one recorded per replicate)
     // Treemap is synchronized as multiple threads may increment values.
@@ -174,6 +177,8 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
             EnzymeList.Enzyme enzyme = EnzymeList.defaultCache.getEnzyme(enzyme()); 
  
             likelyReadEndStrings = enzyme.likelyReadEnd; // for removeSecondCutSiteIndexOf()
+            likelyReadEndBytes = GBSUtils.asciiBytes(likelyReadEndStrings);
+            isApeKI = enzyme().equalsIgnoreCase("ApeKI");
             readEndCutSiteRemnantLength = enzyme.readEndCutSiteRemnantLength;
 //            // the junit test runs about a second faster average 15.5 vs 16.5) without Trie().removeOverlaps();
 //            String[] likelyReadEnd = enzyme.likelyReadEnd();
@@ -211,8 +216,6 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         TaxaList masterTaxaList= TaxaListIOUtils.readTaxaAnnotationFile(keyFile(), GBSUtils.sampleNameField, new HashMap<>(), true);
         writeInitialTaxaReadCounts(masterTaxaList); // initialize synchronized maps
         //todo perhaps subset the masterTaxaList based on the files in there, but it seems like it will all be figure out.
-        Map<Tag,Tag> canonicalTag=new HashMap<>();  //canonicalize them OR eventually we will use a Trie
-        tagDataReader.getTags().stream().forEach(t -> canonicalTag.put(t,t));
         int batchNum = inputSeqFiles.size()/batchSize;
        
         if (inputSeqFiles.size() % batchSize !=0) batchNum++;
@@ -228,16 +231,10 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         }
                
         GenotypeTableBuilder gtb=setUpGenotypeTableBuilder(outputGenotypesFile(), positionList, genoMergeRule);
-        final Multimap<Tag,AlleleWithPosIndex> tagsToIndex=ArrayListMultimap.create();
-        tagDataReader.getAlleleMap().entries().stream()
-                .forEach(e -> {
-                	// indexOf returns -1 if the list doesn't contain the element, which it won't
-                	// if there are snpposition entries with a quality score less than minimumQualityScore 
-                    int posIndex=positionList.indexOf(e.getValue().position());
-                    if (posIndex >= 0) {
-                    	tagsToIndex.put(e.getKey(),new AlleleWithPosIndex(e.getValue(),posIndex));
-                    }                   
-                });
+        // indexOf returns -1 if the list doesn't contain the position, which it won't
+        // if there are snpposition entries with a quality score less than minimumQualityScore
+        final KnownTagIndex knownTags=new KnownTagIndex(tagDataReader.getTags(), tagDataReader.getAlleleMap(), positionList::indexOf);
+        final int[][] chromosomeSites=chromosomeSiteRanges(positionList);
         
         taglenException = false;
         for (int idx = 0; idx < inputSeqFiles.size(); idx+=batchSize) {
@@ -250,7 +247,7 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
             sub.parallelStream()
             .forEach(inputSeqFile -> {
                 try {
-                    processFastQFile(masterTaxaList,keyPath, inputSeqFile, enzyme(),canonicalTag,kmerLength(), minimumQualityScore());
+                    processFastQFile(masterTaxaList,keyPath, inputSeqFile, enzyme(),knownTags,kmerLength(), minimumQualityScore());
                 } catch (StringIndexOutOfBoundsException oobe) {
                     oobe.printStackTrace();
                     myLogger.error(oobe.getMessage());
@@ -260,11 +257,30 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
             });
             if (taglenException == true) return null; // Tag length failure from processFastQ - halt processing
          
-            tagCntMap.asMap().entrySet().stream()
-            .forEach(e -> {
-                callGenotypes(e.getKey(), e.getValue(), tagsToIndex, positionList, genoMergeRule,gtb,depthToOutput());
-                //System.out.println(e.x.getName()+ Arrays.toString(Arrays.copyOfRange(e.y,0,10)))); 
-            });
+            // taxa are called in parallel but added in key file order, so the output taxa order doesn't change between runs
+            List<Map.Entry<Taxon, TIntIntHashMap>> taxaReads=new ArrayList<>(tagCntMap.entrySet());
+            taxaReads.sort(Comparator.comparingInt((Map.Entry<Taxon, TIntIntHashMap> e) -> masterTaxaList.indexOf(e.getKey()))
+                    .thenComparing(e -> e.getKey().getName()));
+            byte[][] taxaGenos=new byte[taxaReads.size()][];
+            byte[][][] taxaDepths=depthToOutput() ? new byte[taxaReads.size()][][] : null;
+            long time=System.nanoTime();
+            ForkJoinPool pool=new ForkJoinPool(TasselPrefs.getMaxThreads());
+            try {
+                pool.invoke(new TaxaCalls(taxaReads, 0, taxaReads.size(), knownTags, positionList.numberOfSites(), chromosomeSites,
+                        genoMergeRule, taxaGenos, taxaDepths));
+            } finally {
+                pool.shutdown();
+            }
+            for (int t = 0; t < taxaReads.size(); t++) {
+                if (taxaDepths != null) {
+                    gtb.addTaxon(taxaReads.get(t).getKey(), taxaGenos[t], taxaDepths[t]);
+                } else {
+                    gtb.addTaxon(taxaReads.get(t).getKey(), taxaGenos[t]);
+                }
+                taxaGenos[t] = null;
+                if (taxaDepths != null) taxaDepths[t] = null;
+            }
+            myLogger.info("Genotypes called for " + taxaReads.size() + " taxa in " + (System.nanoTime() - time)/1e6 + " milliseconds");
             System.out.println("\nFinished processing batch " + String.valueOf(idx/batchSize+1));
         }
  
@@ -285,145 +301,216 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         return null;
     }
 
-    private static void callGenotypes(Taxon taxon, Collection<Tag> tags, Multimap<Tag,AlleleWithPosIndex> tagsToIndex,
-                   PositionList positionList, GenotypeMergeRule genoMergeRule, GenotypeTableBuilder gtb, boolean outputDepths) {
-        int[][] alleleDepths = new int[NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES][positionList.numberOfSites()];
-        tags.stream().map(t -> tagsToIndex.get(t)).flatMap(c -> c.stream())
-                .forEach(a -> alleleDepths[a.allele()][a.positionIndex()]++);
-        if (outputDepths) {
-            byte[][] byteDepths = AlleleDepthUtil.depthIntToByte(alleleDepths);
-            gtb.addTaxon(taxon, resolveGenosForTaxon(alleleDepths, genoMergeRule),byteDepths);
-        } else {
-        	gtb.addTaxon(taxon, resolveGenosForTaxon(alleleDepths, genoMergeRule));
+    // first (inclusive) and last (exclusive) site of each chromosome
+    private static int[][] chromosomeSiteRanges(PositionList positionList) {
+        Chromosome[] chromosomes=positionList.chromosomes();
+        int[][] result=new int[chromosomes.length][];
+        for (int c = 0; c < chromosomes.length; c++) {
+            int[] startEnd=positionList.startAndEndOfChromosome(chromosomes[c]);
+            result[c]=new int[]{startEnd[0], startEnd[1] + 1};
+        }
+        return result;
+    }
+
+    //
+    // Splits range of taxa in half until one taxon remains.  Each taxon's
+    // allele depths are summed from its tag counts, then the genotypes of each
+    // chromosome are called as separate tasks.  Idle threads steal the other
+    // halves and chromosomes.  The genotypes (and depths, if output) of taxon i
+    // are stored at index i, to be added to the builder in order.
+    //
+    private static class TaxaCalls extends RecursiveAction {
+
+        private final List<Map.Entry<Taxon, TIntIntHashMap>> myTaxaReads;
+        private final int myStart;
+        private final int myEnd;
+        private final KnownTagIndex myKnownTags;
+        private final int myNumSites;
+        private final int[][] myChromosomeSites;
+        private final GenotypeMergeRule myMergeRule;
+        private final byte[][] myGenos;
+        private final byte[][][] myDepths;
+
+        private TaxaCalls(List<Map.Entry<Taxon, TIntIntHashMap>> taxaReads, int start, int end, KnownTagIndex knownTags, int numSites,
+                int[][] chromosomeSites, GenotypeMergeRule mergeRule, byte[][] genos, byte[][][] depths) {
+            myTaxaReads = taxaReads;
+            myStart = start;
+            myEnd = end;
+            myKnownTags = knownTags;
+            myNumSites = numSites;
+            myChromosomeSites = chromosomeSites;
+            myMergeRule = mergeRule;
+            myGenos = genos;
+            myDepths = depths;
+        }
+
+        @Override
+        protected void compute() {
+            if (myEnd - myStart > 1) {
+                int mid = (myStart + myEnd) >>> 1;
+                invokeAll(new TaxaCalls(myTaxaReads, myStart, mid, myKnownTags, myNumSites, myChromosomeSites, myMergeRule, myGenos, myDepths),
+                        new TaxaCalls(myTaxaReads, mid, myEnd, myKnownTags, myNumSites, myChromosomeSites, myMergeRule, myGenos, myDepths));
+            } else if (myEnd > myStart) {
+                Map.Entry<Taxon, TIntIntHashMap> taxonReads = myTaxaReads.get(myStart);
+                int[][] alleleDepths = new int[NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES][myNumSites];
+                taxonReads.getValue().forEachEntry((tagIndex, count) -> {
+                    myKnownTags.addDepths(tagIndex, count, alleleDepths);
+                    return true;
+                });
+                byte[] genos = new byte[myNumSites];
+                byte[][] byteDepths = myDepths != null ? new byte[NucleotideAlignmentConstants.NUMBER_NUCLEOTIDE_ALLELES][myNumSites] : null;
+                List<SiteCalls> chromosomes = new ArrayList<>(myChromosomeSites.length);
+                for (int[] sites : myChromosomeSites) {
+                    chromosomes.add(new SiteCalls(alleleDepths, sites[0], sites[1], myMergeRule, genos, byteDepths));
+                }
+                invokeAll(chromosomes);
+                myGenos[myStart] = genos;
+                if (myDepths != null) {
+                    myDepths[myStart] = byteDepths;
+                }
+            }
         }
     }
 
-    private class AlleleWithPosIndex extends SimpleAllele {
-        private int positionIndex;
+    // calls genotypes (and converts depths to bytes if depths not null) of a range of sites of a taxon
+    private static class SiteCalls extends RecursiveAction {
+
+        private final int[][] myAlleleDepths;
+        private final int myStart;
+        private final int myEnd;
+        private final GenotypeMergeRule myMergeRule;
+        private final byte[] myGenos;
+        private final byte[][] myByteDepths;
 
-        private AlleleWithPosIndex(Allele myAllele, int positionIndex) {
-            super(myAllele.allele(), myAllele.position());
-            this.positionIndex=positionIndex;
+        private SiteCalls(int[][] alleleDepths, int start, int end, GenotypeMergeRule mergeRule, byte[] genos, byte[][] byteDepths) {
+            myAlleleDepths = alleleDepths;
+            myStart = start;
+            myEnd = end;
+            myMergeRule = mergeRule;
+            myGenos = genos;
+            myByteDepths = byteDepths;
         }
 
-        public int positionIndex() {
-            return positionIndex;
+        @Override
+        protected void compute() {
+            resolveGenosForTaxon(myAlleleDepths, myMergeRule, myGenos, myStart, myEnd);
+            if (myByteDepths != null) {
+                for (int allele = 0; allele < myAlleleDepths.length; allele++) {
+                    for (int site = myStart; site < myEnd; site++) {
+                        myByteDepths[allele][site] = AlleleDepthUtil.depthIntToByte(myAlleleDepths[allele][site]);
+                    }
+                }
+            }
         }
     }
 
-    private class CountOfReadQuality {
-        LongAdder allReads=new LongAdder();
-        LongAdder goodBarcodedReads=new LongAdder();
-        LongAdder goodMatched=new LongAdder();
-        LongAdder perfectMatches=new LongAdder();
-        LongAdder imperfectMatches=new LongAdder();
-        LongAdder singleImperfectMatches=new LongAdder();
+    // reads of a taxon in one fastq file
+    private static class TaxonReads {
+        private final TIntIntHashMap tagCounts = new TIntIntHashMap();
+        private int rawReads = 0;
+        private int matchedReads = 0;
     }
 
     private void processFastQFile(TaxaList masterTaxaList, Path keyPath, Path fastQPath, String enzymeName,
-            Map<Tag,Tag> canonicalTags, int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException{
+            KnownTagIndex knownTags, int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException{
         ArrayList<Taxon> tl=GBSUtils.getLaneAnnotatedTaxaList(keyPath, fastQPath);
         BarcodeTrie barcodeTrie=GBSUtils.initializeBarcodeTrie(tl, masterTaxaList, EnzymeList.defaultCache.getEnzyme(enzymeName));
         try {
-            processFastQ(fastQPath,barcodeTrie,canonicalTags,preferredTagLength, minQual);
+            processFastQ(fastQPath,barcodeTrie,knownTags,preferredTagLength, minQual);
         } catch (StringIndexOutOfBoundsException oobe) {
             throw oobe; // let processData() handle it
         }
 
     }
 
-    private void processFastQ(Path fastqFile, BarcodeTrie barcodeTrie, Map<Tag,Tag> canonicalTags, 
+    private void processFastQ(Path fastqFile, BarcodeTrie barcodeTrie, KnownTagIndex knownTags,
             int preferredTagLength, int minQual) throws StringIndexOutOfBoundsException {
-        int allReads=0, goodBarcodedReads = 0, lowQualityReads = 0;
-        try {
+        long allReads=0, goodBarcodedReads = 0, lowQualityReads = 0;
+        long[] seq2Bit = new long[(preferredTagLength + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize];
+        // counted without locks for this file, and added to the batch totals at the end
+        Map<Barcode, TaxonReads> taxaReads = new IdentityHashMap<>();
+        // reading and decompressing runs on the reader's thread, demultiplexing and matching on this one
+        try (FastqByteBlockReader reader = new FastqByteBlockReader(fastqFile.toString())) {
             int qualityScoreBase=GBSUtils.determineQualityScoreBase(fastqFile);
-            BufferedReader br = Utils.getBufferedReader(fastqFile.toString(), 1 << 22);
             long time=System.nanoTime();
-            String[] seqAndQual;
-            while ((seqAndQual=GBSUtils.readFastQBlock(br, allReads)) != null) {
-                allReads++;
-                // Decode barcode using the current sequence & quality  score
-                Barcode barcode=barcodeTrie.longestPrefix(seqAndQual[0]);               
-                if(barcode==null) continue;
-                if(minQual>0) {
-                    //todo move getFirstLowQualityPos into this class?
-                    if(BaseEncoder.getFirstLowQualityPos(seqAndQual[1],minQual, qualityScoreBase)<(barcode.getBarLength()+preferredTagLength)){
-                        lowQualityReads++;
-                        continue;
+            FastqByteBlockReader.Block block;
+            while ((block = reader.next()) != null) {
+                byte[] buffer = block.buffer();
+                for (int read = 0; read < block.numberOfReads(); read++) {
+                    allReads++;
+                    int seqStart = block.sequenceStart(read);
+                    int seqLength = block.sequenceLength(read);
+                    // Decode barcode using the current sequence & quality  score
+                    Barcode barcode=barcodeTrie.longestPrefix(buffer, seqStart, seqLength);
+                    if(barcode==null) continue;
+                    int barcodeLen = barcode.getBarLength();
+                    if(minQual>0) {
+                        if(BaseEncoder.getFirstLowQualityPos(buffer, block.qualityStart(read), block.qualityLength(read), minQual, qualityScoreBase)
+                                <(barcodeLen+preferredTagLength)){
+                            lowQualityReads++;
+                            continue;
+                        }
+                    }
+                    TaxonReads taxonReads = taxaReads.computeIfAbsent(barcode, b -> new TaxonReads());
+                    taxonReads.rawReads++;
+                    if (seqLength - barcodeLen < preferredTagLength) {
+                        String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
+                                "Reading entry number " + allReads + " fails the length test.\n" +
+                                "Sequence length " + seqLength + " minus barcode length "+ barcodeLen +
+                                " is less than kmerLength " + preferredTagLength + ".\n" +
+                                "Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
+                        throw new StringIndexOutOfBoundsException(errMsg);
+                    }
+
+                    int tagLength = GBSUtils.removeSecondCutSiteIndexOf(buffer, seqStart + barcodeLen, seqStart + seqLength, preferredTagLength,
+                            0, likelyReadEndBytes, readEndCutSiteRemnantLength, isApeKI, seq2Bit);
+                    if(tagLength==0) continue;   //0 occurs when any base was not A, C, G, T
+                    goodBarcodedReads++;
+                    int tagIndex=knownTags.indexOf(seq2Bit, tagLength);
+                    if(tagIndex>=0) {
+                        taxonReads.tagCounts.adjustOrPutValue(tagIndex, 1, 1);
+                        taxonReads.matchedReads++;
+                    }
+                    if (allReads % 1000000 == 0) {
+                        myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads
+                                + " rate:" + (System.nanoTime()-time)/allReads +" ns/read");
                     }
                 }
-                rawReadCountsForFullSampleName.put(barcode.getTaxaName(), rawReadCountsForFullSampleName.get(barcode.getTaxaName()) + 1);
-                int barcodeLen = barcode.getBarLength();
-                if (seqAndQual[0].length() - barcodeLen < preferredTagLength) {
-                    String errMsg = "\n\nERROR processing " + fastqFile.toString() + "\n" +
-                            "Reading entry number " + allReads + " fails the length test.\n" +
-                            "Sequence length " + seqAndQual[0].length() + " minus barcode length "+ barcodeLen +
-                            " is less than kmerLength " + preferredTagLength + ".\n" +
-                            "Re-run your files with either a shorter kmerLength value or a higher minimum quality score.\n";
-                    throw new StringIndexOutOfBoundsException(errMsg);
-                }
- 
-                Tag tag = removeSecondCutSiteIndexOf(seqAndQual[0].substring(barcodeLen),preferredTagLength);
-                //Tag tag = removeSecondCutSiteAhoC(seqAndQual[0].substring(barcodeLen),preferredTagLength);
-                //Tag tag= TagBuilder.instance(seqAndQual[0].substring(barcode.getBarLength(), barcode.getBarLength() + preferredTagLength)).build();
-                if(tag==null) continue;   //null occurs when any base was not A, C, G, T
-                goodBarcodedReads++;
-                Tag canonicalTag=canonicalTags.get(tag);
-                if(canonicalTag!=null) {
-                    tagCntMap.put(barcode.getTaxon(),canonicalTag);
-                    matchedReadCountsForFullSampleName.put(barcode.getTaxaName(), matchedReadCountsForFullSampleName.get(barcode.getTaxaName()) + 1);
-                }
-                if (allReads % 1000000 == 0) {
-                    myLogger.info("Total Reads:" + allReads + " Reads with barcode and cut site overhang:" + goodBarcodedReads
-                            + " rate:" + (System.nanoTime()-time)/allReads +" ns/read");
-                }
+                reader.release(block);
             }
             myLogger.info("Total number of reads in lane=" + allReads);
             myLogger.info("Total number of good barcoded reads=" + goodBarcodedReads);
             myLogger.info("Total number of low quality reads=" + lowQualityReads);
             myLogger.info("Timing process (sorting, collapsing, and writing TagCount to file).");
             myLogger.info("Process took " + (System.nanoTime() - time)/1e6 + " milliseconds for file " + fastqFile.toString());
-            br.close();
+        } catch (StringIndexOutOfBoundsException oobe) {
+            throw oobe; // let processData() handle it
         } catch (Exception e) {
             myLogger.error("Good Barcodes Read: " + goodBarcodedReads);
             e.printStackTrace();
+        } finally {
+            addTaxaReads(taxaReads);
         }
     }
 
-
-    // Using indexOf() is much faster than using Aho-C trie to find
-    // the second cut site.  (junits ran on average of 15.81281 seconds
-    // for aho-c after 5 runs, vs 13.53204 for 5 runs using indexOf method)
-    private Tag removeSecondCutSiteIndexOf(String seq, int preferredLength) {
-        Tag tag = null;
-        
-        // handle overlapping cutsite for ApeKI enzyme
-        if (enzyme().equalsIgnoreCase("ApeKI")) {
-            if (seq.startsWith("CAGCTGC") || seq.startsWith("CTGCAGC")) {
-                seq = seq.substring(3,seq.length());
-            }             
-        }
-        int indexOfReadEnd = -1;
-        String shortSeq = seq.substring(20);
-        for (String readEnd: likelyReadEndStrings){
-            int indx = shortSeq.indexOf(readEnd);
-            if (indx > 0 ) {
-                if (indexOfReadEnd < 0 || indx < indexOfReadEnd) {
-                    indexOfReadEnd = indx;
-                } 
-            }
-        }
-        if (indexOfReadEnd > 0 &&
-                (indexOfReadEnd + 20 + readEndCutSiteRemnantLength < preferredLength)) {
-            // trim tag to sequence up to & including the cut site
-            tag = TagBuilder.instance(seq.substring(0, indexOfReadEnd + 20 + readEndCutSiteRemnantLength)).build();
- 
-        } else {
-            int seqEnd = (byte) Math.min(seq.length(), preferredLength);
-            return TagBuilder.instance(seq.substring(0,seqEnd)).build();
+    // adds the reads of one file to the counts of the batch
+    private void addTaxaReads(Map<Barcode, TaxonReads> taxaReads) {
+        for (Map.Entry<Barcode, TaxonReads> entry : taxaReads.entrySet()) {
+            Barcode barcode = entry.getKey();
+            TaxonReads taxonReads = entry.getValue();
+            rawReadCountsForFullSampleName.merge(barcode.getTaxaName(), taxonReads.rawReads, Integer::sum);
+            matchedReadCountsForFullSampleName.merge(barcode.getTaxaName(), taxonReads.matchedReads, Integer::sum);
+            if (taxonReads.tagCounts.isEmpty()) continue;
+            tagCntMap.merge(barcode.getTaxon(), taxonReads.tagCounts, (existing, added) -> {
+                added.forEachEntry((tagIndex, count) -> {
+                    existing.adjustOrPutValue(tagIndex, count, count);
+                    return true;
+                });
+                return existing;
+            });
         }
-        return tag;
     }
+
     private Tag removeSecondCutSiteAhoC(String seq, int preferredLength) {
         // Removes the second cut site BEFORE we trim the tag.
         // this preserves the cut site incase it shows up in the middle       
@@ -507,18 +594,16 @@ public class ProductionSNPCallerPluginV2 extends AbstractPlugin {
         }
     }
 
-    private static byte[] resolveGenosForTaxon(int[][] depthsForTaxon, GenotypeMergeRule genoMergeRule) {
+    // calls genotypes of sites [start, end) from depths indexed by [allele][site]
+    private static void resolveGenosForTaxon(int[][] depthsForTaxon, GenotypeMergeRule genoMergeRule, byte[] genos, int start, int end) {
         int nAlleles = depthsForTaxon.length;
         int[] depthsAtSite = new int[nAlleles];
-        int nSites = depthsForTaxon[0].length;
-        byte[] genos = new byte[nSites];
-        for (int site = 0; site < nSites; site++) {
+        for (int site = start; site < end; site++) {
             for (int allele = 0; allele < nAlleles; allele++) {
                 depthsAtSite[allele] = depthsForTaxon[allele][site];
             }
             genos[site] = genoMergeRule.callBasedOnDepth(depthsAtSite);
         }
-        return genos;
     }
 
     private void writeReadsPerSampleReports(int tagsProcessed) {
@@ -0,0 +1,676 @@
+package net.maizegenetics.analysis.gbs.v2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.maizegenetics.dna.BaseEncoder;
+import net.maizegenetics.dna.tag.Tag;
+import net.maizegenetics.dna.tag.TagBuilder;
+import net.maizegenetics.dna.tag.TaxaDistBuilder;
+import net.maizegenetics.dna.tag.TaxaDistribution;
+
+/**
+ * Counts the depth of each tag in each taxon without a Tag or
+ * TaxaDistribution object per tag.  Tags are keyed by their 2-bit encoded
+ * words and length.
+ * <p>
+ * The table is split into NUM_PARTITIONS partitions by the hash of the tag, and
+ * each partition has its own lock, so threads counting different tags rarely
+ * wait on each other.  A partition holds two open addressing (linear probing)
+ * hash tables in direct buffers outside the Java heap: one from tag to a local
+ * tag id, and one from (tag id, taxon) to depth.
+ * <p>
+ * When a partition holds more tags or (tag, taxon) pairs than its share of the
+ * memory limit, it writes its counts to a temporary file as a run sorted by
+ * tag, and starts again empty.  {@link #forEach(BiConsumer)} merges the runs,
+ * so no counts are lost, unlike purging rare tags when memory fills.
+ */
+public class TagCountTable implements AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(TagCountTable.class);
+
+    private static final int PARTITION_BITS = 6;
+    public static final int NUM_PARTITIONS = 1 << PARTITION_BITS;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    // keeps the pair tables below 2 GB per direct buffer
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int PAIRS_PER_TAG = 4;
+
+    private final int myMaxWords;
+    private final int myMaxTaxa;
+    private final int myMaxTagsPerPartition;
+    private final int myMaxPairsPerPartition;
+    private final Path mySpillDir;
+    private final boolean myDeleteSpillDir;
+    private final Partition[] myPartitions = new Partition[NUM_PARTITIONS];
+    private boolean myMerged = false;
+
+    /**
+     * Constructor
+     *
+     * @param maxTagLength maximum tag length (bp)
+     * @param maxTaxa number of taxa
+     * @param maxTagsInMemory number of tags held in memory before counts are
+     * written to disk
+     * @param spillDir directory for temporary files (null for system temporary
+     * directory)
+     */
+    public TagCountTable(int maxTagLength, int maxTaxa, long maxTagsInMemory, Path spillDir) {
+        if (maxTagLength < 1 || maxTagLength > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("TagCountTable: max tag length out of range: " + maxTagLength);
+        }
+        if (maxTaxa < 1) {
+            throw new IllegalArgumentException("TagCountTable: max taxa must be at least 1: " + maxTaxa);
+        }
+        myMaxWords = (maxTagLength + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize;
+        myMaxTaxa = maxTaxa;
+        myMaxTagsPerPartition = (int) Math.max(1L, Math.min(MAX_CAPACITY / 2, maxTagsInMemory / NUM_PARTITIONS));
+        myMaxPairsPerPartition = (int) Math.min((long) MAX_CAPACITY / 2, (long) myMaxTagsPerPartition * PAIRS_PER_TAG);
+        try {
+            if (spillDir == null) {
+                mySpillDir = Files.createTempDirectory("TagCountTable");
+                myDeleteSpillDir = true;
+            } else {
+                Files.createDirectories(spillDir);
+                mySpillDir = spillDir;
+                myDeleteSpillDir = false;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("TagCountTable: can't create spill directory: " + spillDir, e);
+        }
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            myPartitions[p] = new Partition(p);
+        }
+    }
+
+    /**
+     * Adds one to the depth of the tag in the taxon.  Thread safe.
+     *
+     * @param seq2Bit 2-bit encoded tag (at least (length + 31) / 32 longs)
+     * @param length tag length (bp)
+     * @param taxon taxon index
+     *
+     * @return whether the tag was new to the table since the last write to
+     * disk
+     */
+    public boolean increment(long[] seq2Bit, int length, int taxon) {
+        return add(seq2Bit, length, taxon, 1);
+    }
+
+    /**
+     * Adds depth to the tag in the taxon.  Thread safe.
+     *
+     * @param seq2Bit 2-bit encoded tag (at least (length + 31) / 32 longs)
+     * @param length tag length (bp)
+     * @param taxon taxon index
+     * @param depth depth to add
+     *
+     * @return whether the tag was new to the table since the last write to
+     * disk
+     */
+    public boolean add(long[] seq2Bit, int length, int taxon, int depth) {
+        int numWords = numWords(length);
+        if (numWords > myMaxWords) {
+            throw new IllegalArgumentException("TagCountTable: add: tag length: " + length + " longer than max: " + myMaxWords * BaseEncoder.chunkSize);
+        }
+        if (taxon < 0 || taxon >= myMaxTaxa) {
+            throw new IndexOutOfBoundsException("TagCountTable: add: taxon index: " + taxon + " out of range 0 to " + (myMaxTaxa - 1));
+        }
+        long hash = hash(seq2Bit, numWords, length);
+        return myPartitions[(int) (hash >>> (64 - PARTITION_BITS))].add(seq2Bit, length, hash, taxon, depth);
+    }
+
+    /**
+     * Adds all depths of a tag.  Thread safe.
+     *
+     * @param tag tag
+     * @param taxaDistribution depth of tag in each taxon
+     */
+    public void add(Tag tag, TaxaDistribution taxaDistribution) {
+        long[] seq2Bit = tag.seq2Bit();
+        taxaDistribution.forEachTaxonDepth((taxon, depth) -> add(seq2Bit, tag.seqLength(), taxon, depth));
+    }
+
+    /**
+     * Number of distinct tags currently held in memory.  Tags written to disk
+     * are not included, and a tag can be counted again after its partition is
+     * written to disk.
+     */
+    public long numberOfTagsInMemory() {
+        long result = 0;
+        for (Partition partition : myPartitions) {
+            result += partition.numTags();
+        }
+        return result;
+    }
+
+    /**
+     * Number of sorted runs written to disk.
+     */
+    public int numberOfRuns() {
+        int result = 0;
+        for (Partition partition : myPartitions) {
+            result += partition.numRuns();
+        }
+        return result;
+    }
+
+    /**
+     * Merges the counts in memory and on disk, and gives each tag with its
+     * total depth per taxon to the action.  Partitions are merged in parallel,
+     * so the action must be thread safe.  Tags are given in no particular
+     * order.  This can only be called once, after all counts are added.
+     *
+     * @param action receives each tag and its taxa distribution
+     */
+    public void forEach(BiConsumer<Tag, TaxaDistribution> action) {
+        synchronized (this) {
+            if (myMerged) {
+                throw new IllegalStateException("TagCountTable: forEach: can only be called once");
+            }
+            myMerged = true;
+        }
+        IntStream.range(0, NUM_PARTITIONS).parallel().forEach(p -> myPartitions[p].merge(action));
+    }
+
+    /**
+     * Deletes the runs written to temporary files, and the spill directory if
+     * this table created it.  The direct buffers holding the counts in memory
+     * aren't released here; they are freed when the table is garbage
+     * collected, so don't keep references to it after closing.
+     */
+    @Override
+    public void close() {
+        for (Partition partition : myPartitions) {
+            partition.deleteRuns();
+        }
+        if (myDeleteSpillDir) {
+            try {
+                Files.deleteIfExists(mySpillDir);
+            } catch (IOException e) {
+                myLogger.warn("TagCountTable: close: can't delete: " + mySpillDir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static int numWords(int length) {
+        return (length + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize;
+    }
+
+    private static long hash(long[] seq2Bit, int numWords, int length) {
+        long h = length;
+        for (int w = 0; w < numWords; w++) {
+            h = h * 0x9E3779B97F4A7C15L + seq2Bit[w];
+        }
+        return mix(h);
+    }
+
+    // finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static LongBuffer longBuffer(int size) {
+        if ((long) size * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalStateException("TagCountTable: partition too large: reduce max tags in memory");
+        }
+        return ByteBuffer.allocateDirect(size * Long.BYTES).asLongBuffer();
+    }
+
+    private static IntBuffer intBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * Integer.BYTES).asIntBuffer();
+    }
+
+    private static int compareTags(long[] words1, int length1, long[] words2, int length2) {
+        int numWords = Math.min(numWords(length1), numWords(length2));
+        for (int w = 0; w < numWords; w++) {
+            int result = Long.compare(words1[w], words2[w]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(length1, length2);
+    }
+
+    /**
+     * Tags in sorted order, each with the taxa (ascending) having the tag and
+     * their depths.
+     */
+    private static abstract class Run implements Comparable<Run> {
+
+        final long[] myWords;
+        int myLength;
+        int[] myTaxa = new int[16];
+        int[] myDepths = new int[16];
+        int myNumTaxa;
+
+        Run(int maxWords) {
+            myWords = new long[maxWords];
+        }
+
+        /**
+         * Moves to the next tag.
+         *
+         * @return false if no tags remain
+         */
+        abstract boolean next() throws IOException;
+
+        void close() throws IOException {
+            // nothing to release
+        }
+
+        void setNumTaxa(int numTaxa) {
+            if (myTaxa.length < numTaxa) {
+                myTaxa = new int[numTaxa];
+                myDepths = new int[numTaxa];
+            }
+            myNumTaxa = numTaxa;
+        }
+
+        @Override
+        public int compareTo(Run o) {
+            return compareTags(myWords, myLength, o.myWords, o.myLength);
+        }
+    }
+
+    private static class FileRun extends Run {
+
+        private final DataInputStream myInput;
+
+        FileRun(Path file, int maxWords) throws IOException {
+            super(maxWords);
+            myInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            try {
+                myLength = myInput.readShort();
+            } catch (EOFException e) {
+                return false;
+            }
+            int numWords = numWords(myLength);
+            for (int w = 0; w < numWords; w++) {
+                myWords[w] = myInput.readLong();
+            }
+            setNumTaxa(myInput.readInt());
+            for (int t = 0; t < myNumTaxa; t++) {
+                myTaxa[t] = myInput.readInt();
+                myDepths[t] = myInput.readInt();
+            }
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            myInput.close();
+        }
+    }
+
+    private final class Partition {
+
+        private final int myIndex;
+
+        // tag hash table: local tag id + 1, or 0 when empty
+        private IntBuffer myTagSlots = intBuffer(INITIAL_CAPACITY);
+        private int myTagMask = INITIAL_CAPACITY - 1;
+        private int myNumTags = 0;
+
+        // tag words and length by local tag id, myMaxWords + 1 longs each
+        private LongBuffer myTagWords = longBuffer(INITIAL_CAPACITY / 2 * (myMaxWords + 1));
+
+        // (tag id + 1, taxon) hash table: key 0 when empty
+        private LongBuffer myPairKeys = longBuffer(INITIAL_CAPACITY);
+        private IntBuffer myPairDepths = intBuffer(INITIAL_CAPACITY);
+        private int myPairMask = INITIAL_CAPACITY - 1;
+        private int myNumPairs = 0;
+
+        private final List<Path> myRuns = new ArrayList<>();
+
+        private Partition(int index) {
+            myIndex = index;
+        }
+
+        private synchronized int numTags() {
+            return myNumTags;
+        }
+
+        private synchronized int numRuns() {
+            return myRuns.size();
+        }
+
+        private synchronized boolean add(long[] seq2Bit, int length, long hash, int taxon, int depth) {
+            int numTagsBefore = myNumTags;
+            int tagId = findOrAddTag(seq2Bit, length, hash);
+            addPair(tagId, taxon, depth);
+            boolean isNew = myNumTags != numTagsBefore;
+            if (myNumTags >= myMaxTagsPerPartition || myNumPairs >= myMaxPairsPerPartition) {
+                spill();
+            }
+            return isNew;
+        }
+
+        private int findOrAddTag(long[] seq2Bit, int length, long hash) {
+            int stride = myMaxWords + 1;
+            int numWords = numWords(length);
+            int slot = (int) hash & myTagMask;
+            while (true) {
+                int value = myTagSlots.get(slot);
+                if (value == 0) {
+                    break;
+                }
+                int offset = (value - 1) * stride;
+                if (myTagWords.get(offset + myMaxWords) == length) {
+                    int w = 0;
+                    while (w < numWords && myTagWords.get(offset + w) == seq2Bit[w]) {
+                        w++;
+                    }
+                    if (w == numWords) {
+                        return value - 1;
+                    }
+                }
+                slot = (slot + 1) & myTagMask;
+            }
+
+            int tagId = myNumTags++;
+            if ((tagId + 1) * stride > myTagWords.capacity()) {
+                LongBuffer temp = longBuffer(myTagWords.capacity() * 2);
+                myTagWords.rewind();
+                temp.put(myTagWords);
+                myTagWords = temp;
+            }
+            int offset = tagId * stride;
+            for (int w = 0; w < numWords; w++) {
+                myTagWords.put(offset + w, seq2Bit[w]);
+            }
+            for (int w = numWords; w < myMaxWords; w++) {
+                myTagWords.put(offset + w, 0L);
+            }
+            myTagWords.put(offset + myMaxWords, length);
+            myTagSlots.put(slot, tagId + 1);
+            if (myNumTags * 2 > myTagSlots.capacity()) {
+                rehashTags();
+            }
+            return tagId;
+        }
+
+        private void rehashTags() {
+            int capacity = myTagSlots.capacity() * 2;
+            myTagSlots = intBuffer(capacity);
+            myTagMask = capacity - 1;
+            long[] words = new long[myMaxWords];
+            for (int tagId = 0; tagId < myNumTags; tagId++) {
+                int length = tagWords(tagId, words);
+                int slot = (int) hash(words, numWords(length), length) & myTagMask;
+                while (myTagSlots.get(slot) != 0) {
+                    slot = (slot + 1) & myTagMask;
+                }
+                myTagSlots.put(slot, tagId + 1);
+            }
+        }
+
+        // copies words of tag into words and returns its length
+        private int tagWords(int tagId, long[] words) {
+            int offset = tagId * (myMaxWords + 1);
+            for (int w = 0; w < myMaxWords; w++) {
+                words[w] = myTagWords.get(offset + w);
+            }
+            return (int) myTagWords.get(offset + myMaxWords);
+        }
+
+        private void addPair(int tagId, int taxon, int depth) {
+            long key = ((long) (tagId + 1) << 32) | taxon;
+            int slot = pairSlot(key);
+            long current = myPairKeys.get(slot);
+            if (current == key) {
+                myPairDepths.put(slot, myPairDepths.get(slot) + depth);
+                return;
+            }
+            myPairKeys.put(slot, key);
+            myPairDepths.put(slot, depth);
+            myNumPairs++;
+            if (myNumPairs * 10L > myPairKeys.capacity() * 6L) {
+                rehashPairs();
+            }
+        }
+
+        // slot holding key, or empty slot where it belongs
+        private int pairSlot(long key) {
+            int slot = (int) mix(key) & myPairMask;
+            while (true) {
+                long current = myPairKeys.get(slot);
+                if (current == key || current == 0) {
+                    return slot;
+                }
+                slot = (slot + 1) & myPairMask;
+            }
+        }
+
+        private void rehashPairs() {
+            LongBuffer oldKeys = myPairKeys;
+            IntBuffer oldDepths = myPairDepths;
+            int capacity = oldKeys.capacity() * 2;
+            myPairKeys = longBuffer(capacity);
+            myPairDepths = intBuffer(capacity);
+            myPairMask = capacity - 1;
+            for (int i = 0; i < oldKeys.capacity(); i++) {
+                long key = oldKeys.get(i);
+                if (key != 0) {
+                    int slot = pairSlot(key);
+                    myPairKeys.put(slot, key);
+                    myPairDepths.put(slot, oldDepths.get(i));
+                }
+            }
+        }
+
+        //
+        // Writes the tags in memory as a run sorted by tag and clears the
+        // tables.  Capacity is kept, as the tables will fill again.
+        //
+        private void spill() {
+            if (myNumTags == 0) {
+                return;
+            }
+            try {
+                Path file = Files.createTempFile(mySpillDir, "tagCounts" + myIndex + "_", ".run");
+                myRuns.add(file);
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                    MemoryRun run = new MemoryRun();
+                    while (run.next()) {
+                        output.writeShort(run.myLength);
+                        int numWords = numWords(run.myLength);
+                        for (int w = 0; w < numWords; w++) {
+                            output.writeLong(run.myWords[w]);
+                        }
+                        output.writeInt(run.myNumTaxa);
+                        for (int t = 0; t < run.myNumTaxa; t++) {
+                            output.writeInt(run.myTaxa[t]);
+                            output.writeInt(run.myDepths[t]);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("TagCountTable: problem writing counts to disk: " + mySpillDir, e);
+            }
+            clear();
+        }
+
+        private void clear() {
+            for (int i = 0; i < myTagSlots.capacity(); i++) {
+                myTagSlots.put(i, 0);
+            }
+            for (int i = 0; i < myPairKeys.capacity(); i++) {
+                myPairKeys.put(i, 0L);
+            }
+            myNumTags = 0;
+            myNumPairs = 0;
+        }
+
+        private synchronized void merge(BiConsumer<Tag, TaxaDistribution> action) {
+
+            List<Run> runs = new ArrayList<>();
+            try {
+                runs.add(new MemoryRun());
+                for (Path file : myRuns) {
+                    runs.add(new FileRun(file, myMaxWords));
+                }
+                PriorityQueue<Run> queue = new PriorityQueue<>();
+                for (Run run : runs) {
+                    if (run.next()) {
+                        queue.add(run);
+                    }
+                }
+
+                // depth per taxon of the current tag, and taxa with depth
+                int[] depths = new int[myMaxTaxa];
+                int[] taxa = new int[myMaxTaxa];
+                while (!queue.isEmpty()) {
+                    Run first = queue.poll();
+                    int length = first.myLength;
+                    long[] seq2Bit = Arrays.copyOf(first.myWords, numWords(length));
+                    int numTaxa = 0;
+                    Run current = first;
+                    while (true) {
+                        for (int t = 0; t < current.myNumTaxa; t++) {
+                            int taxon = current.myTaxa[t];
+                            if (depths[taxon] == 0) {
+                                taxa[numTaxa++] = taxon;
+                            }
+                            depths[taxon] += current.myDepths[t];
+                        }
+                        if (current.next()) {
+                            queue.add(current);
+                        }
+                        Run peek = queue.peek();
+                        if (peek == null || compareTags(peek.myWords, peek.myLength, seq2Bit, length) != 0) {
+                            break;
+                        }
+                        current = queue.poll();
+                    }
+
+                    Arrays.sort(taxa, 0, numTaxa);
+                    int[] tagTaxa = Arrays.copyOf(taxa, numTaxa);
+                    int[] tagDepths = new int[numTaxa];
+                    for (int t = 0; t < numTaxa; t++) {
+                        tagDepths[t] = depths[tagTaxa[t]];
+                        depths[tagTaxa[t]] = 0;
+                    }
+                    Tag tag = TagBuilder.instance(seq2Bit, (short) length).build();
+                    action.accept(tag, TaxaDistBuilder.create(myMaxTaxa, tagTaxa, tagDepths));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("TagCountTable: problem reading counts from disk: " + mySpillDir, e);
+            } finally {
+                for (Run run : runs) {
+                    try {
+                        run.close();
+                    } catch (IOException e) {
+                        myLogger.debug(e.getMessage(), e);
+                    }
+                }
+                clear();
+                deleteRuns();
+            }
+
+        }
+
+        private synchronized void deleteRuns() {
+            for (Path file : myRuns) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    myLogger.warn("TagCountTable: can't delete: " + file + ": " + e.getMessage());
+                }
+            }
+            myRuns.clear();
+        }
+
+        /**
+         * Tags in memory in sorted order.
+         */
+        private final class MemoryRun extends Run {
+
+            private final int[] myTagOrder;
+            // (rank of tag << 32 | taxon) of each pair, sorted
+            private final long[] myPairOrder;
+            private int myNextTag = 0;
+            private int myNextPair = 0;
+
+            private MemoryRun() {
+                super(myMaxWords);
+
+                long[][] words = new long[myNumTags][myMaxWords];
+                int[] lengths = new int[myNumTags];
+                for (int tagId = 0; tagId < myNumTags; tagId++) {
+                    lengths[tagId] = tagWords(tagId, words[tagId]);
+                }
+                myTagOrder = IntStream.range(0, myNumTags).boxed()
+                        .sorted((a, b) -> compareTags(words[a], lengths[a], words[b], lengths[b]))
+                        .mapToInt(Integer::intValue).toArray();
+                int[] rank = new int[myNumTags];
+                for (int r = 0; r < myNumTags; r++) {
+                    rank[myTagOrder[r]] = r;
+                }
+
+                myPairOrder = new long[myNumPairs];
+                int index = 0;
+                for (int i = 0; i < myPairKeys.capacity(); i++) {
+                    long key = myPairKeys.get(i);
+                    if (key != 0) {
+                        int tagId = (int) (key >>> 32) - 1;
+                        myPairOrder[index++] = ((long) rank[tagId] << 32) | (key & 0xFFFFFFFFL);
+                    }
+                }
+                Arrays.sort(myPairOrder);
+            }
+
+            @Override
+            boolean next() {
+                if (myNextTag == myTagOrder.length) {
+                    return false;
+                }
+                int tagId = myTagOrder[myNextTag];
+                myLength = tagWords(tagId, myWords);
+                int end = myNextPair;
+                while (end < myPairOrder.length && (int) (myPairOrder[end] >>> 32) == myNextTag) {
+                    end++;
+                }
+                setNumTaxa(end - myNextPair);
+                for (int t = 0; t < myNumTaxa; t++) {
+                    int taxon = (int) myPairOrder[myNextPair + t];
+                    myTaxa[t] = taxon;
+                    myDepths[t] = myPairDepths.get(pairSlot(((long) (tagId + 1) << 32) | taxon));
+                }
+                myNextPair = end;
+                myNextTag++;
+                return true;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,116 @@
+package net.maizegenetics.analysis.imputation;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.BitSet;
+
+import java.util.Arrays;
+
+import static net.maizegenetics.dna.WHICH_ALLELE.Major;
+import static net.maizegenetics.dna.WHICH_ALLELE.Minor;
+
+/**
+ * Major and minor allele presence bits of every donor in a donor genotype table, packed into one long[] per allele
+ * with the 64 site blocks of each donor contiguous (word [donor * blocks + block]).  The index is built once per donor
+ * genotype table and is read only afterwards, so all the imputation threads share it without locks and without
+ * asking the genotype table for bit sets of each donor for each target taxon.
+ * <p></p>
+ * The distance methods count one target against many donors in a single pass over the packed words.
+ */
+public class FILLINDonorBitIndex {
+    private final int numDonors;
+    private final int blocks;
+    private final long[] mj;
+    private final long[] mn;
+
+    /**
+     * Packs the allele presence bits of all donors
+     * @param donorAlign genotypeTable with donor genotypes
+     */
+    public FILLINDonorBitIndex(GenotypeTable donorAlign) {
+        numDonors=donorAlign.numberOfTaxa();
+        blocks=donorAlign.allelePresenceForAllSites(0, Major).getNumWords();
+        mj=new long[numDonors*blocks];
+        mn=new long[numDonors*blocks];
+        for (int d = 0; d < numDonors; d++) {
+            copyWords(donorAlign.allelePresenceForAllSites(d, Major), mj, d*blocks);
+            copyWords(donorAlign.allelePresenceForAllSites(d, Minor), mn, d*blocks);
+        }
+    }
+
+    private void copyWords(BitSet bits, long[] dest, int offset) {
+        long[] words=bits.getBits();
+        System.arraycopy(words, 0, dest, offset, Math.min(Math.min(words.length, bits.getNumWords()), blocks));
+    }
+
+    public int numberOfDonors() {
+        return numDonors;
+    }
+
+    /**
+     * Number of 64 site blocks per donor
+     */
+    public int numberOfBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Same as {@link FILLINImputationUtils#calcAllelePresenceCountsBtwTargetAndDonors(BitSet[], GenotypeTable)}
+     * using the packed donor bits.
+     * @param mjT major allele bits of target (aligned with the donors)
+     * @param mnT minor allele bits of target
+     * @return array with [donor index][sites, same count, diff count, het count index][block index]
+     */
+    public byte[][][] allelePresenceCounts(long[] mjT, long[] mnT) {
+        byte[][][] allDist=new byte[numDonors][4][blocks];
+        for (int d = 0; d < numDonors; d++) {
+            byte[] sitesD=allDist[d][0], sameD=allDist[d][1], diffD=allDist[d][2], hetD=allDist[d][3];
+            for (int i = 0, w = d*blocks; i < blocks; i++, w++) {
+                long same = (mjT[i] & mj[w]) | (mnT[i] & mn[w]);
+                long diff = (mjT[i] & mn[w]) | (mnT[i] & mj[w]);
+                int sameCnt = Long.bitCount(same);
+                int diffCnt = Long.bitCount(diff);
+                int hetCnt = Long.bitCount(same & diff);
+                sitesD[i]=(byte)(sameCnt + diffCnt - hetCnt);
+                sameD[i]=(byte)sameCnt;
+                diffD[i]=(byte)diffCnt;
+                hetD[i]=(byte)hetCnt;
+            }
+        }
+        return allDist;
+    }
+
+    /**
+     * Counts for each second donor the sites in which the target cannot be explained by the genotypes of either
+     * donor, as {@link FILLINImputationUtils#mendelErrorComparison(long[], long[], long[], long[], long[], long[])}.
+     * The target and first donor words are read once per block and compared against all second donors.
+     * @param mjT major allele bits of target, starting at firstBlock
+     * @param mnT minor allele bits of target, starting at firstBlock
+     * @param firstBlock index of first 64 site block
+     * @param numBlocks number of blocks compared
+     * @param d1 fixed donor
+     * @param donor2Indices second donors
+     * @param mendelianErrors output, count of mendelian errors for each second donor
+     * @param testSites output, total sites tested for each second donor
+     */
+    public void mendelErrorComparison(long[] mjT, long[] mnT, int firstBlock, int numBlocks, int d1, int[] donor2Indices,
+                                      int[] mendelianErrors, int[] testSites) {
+        Arrays.fill(mendelianErrors, 0, donor2Indices.length, 0);
+        Arrays.fill(testSites, 0, donor2Indices.length, 0);
+        int offset1=d1*blocks+firstBlock;
+        for (int i = 0; i < numBlocks; i++) {
+            long mjTi=mjT[i], mnTi=mnT[i];
+            long mj1=mj[offset1+i], mn1=mn[offset1+i];
+            long mask1=(mjTi|mnTi)&(mj1|mn1);
+            if(mask1==0) continue;
+            long mjErr1=mjTi&(mjTi^mj1);
+            long mnErr1=mnTi&(mnTi^mn1);
+            for (int j = 0; j < donor2Indices.length; j++) {
+                int w=donor2Indices[j]*blocks+firstBlock+i;
+                long mj2=mj[w], mn2=mn[w];
+                long siteMask=mask1&(mj2|mn2);
+                mendelianErrors[j]+=Long.bitCount(siteMask&mjErr1&(mjTi^mj2))+Long.bitCount(siteMask&mnErr1&(mnTi^mn2));
+                testSites[j]+=Long.bitCount(siteMask);
+            }
+        }
+    }
+}
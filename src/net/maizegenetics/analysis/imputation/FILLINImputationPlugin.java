@@ -8,6 +8,7 @@ import net.maizegenetics.dna.snp.*;
 import net.maizegenetics.dna.snp.io.ProjectionGenotypeIO;
 import net.maizegenetics.plugindef.DataSet;
 import net.maizegenetics.plugindef.GeneratePluginCode;
+import net.maizegenetics.prefs.TasselPrefs;
 import net.maizegenetics.util.BitSet;
 import net.maizegenetics.util.OpenBitSet;
 import org.apache.commons.lang.ArrayUtils;
@@ -18,9 +19,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static net.maizegenetics.dna.snp.GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
 import static net.maizegenetics.dna.WHICH_ALLELE.Major;
@@ -240,25 +240,16 @@ public class FILLINImputationPlugin extends AbstractPlugin {
                 mna= GenotypeTableBuilder.getTaxaIncremental(this.unimpAlign.positions());
             }
         }
-        int numThreads = Runtime.getRuntime().availableProcessors();
+        long indexTime=System.currentTimeMillis();
+        FILLINDonorBitIndex[] donorIndex=new FILLINDonorBitIndex[donorAlign.length];
+        for (int da = 0; da < donorAlign.length; da++) {donorIndex[da]=new FILLINDonorBitIndex(donorAlign[da]);}
+        System.out.println("Time to index donor bits: "+((System.currentTimeMillis()-indexTime)/1000)+" sec");
         System.out.println("Time to read in files and generate masks: "+((System.currentTimeMillis()-time)/1000)+" sec");
-        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
-        
-        for (int taxon = 0; taxon < unimpAlign.numberOfTaxa(); taxon+=1) {
-            int[] trackBlockNN= new int[5];//global variable to track number of focus blocks solved in NN search for system out; index 0 is inbred, 1 is viterbi, 2 is smash, 3 is not solved, 4 is total for all modes
-            ImputeOneTaxon theTaxon= (((double)unimpAlign.heterozygousCountForTaxon(taxon)/(double)unimpAlign.totalNonMissingForTaxon(taxon))<hetThresh.value())?
-                new ImputeOneTaxon(taxon, donorAlign, minTestSites.value(), conflictMasks,imputeDonorFile.value(), mna, trackBlockNN, maxInbredErrFocusHomo, maxHybridErrFocusHomo, maxSmashErrFocusHomo, true):
-                    new ImputeOneTaxon(taxon, donorAlign, minTestSites.value(), conflictMasks,imputeDonorFile.value(), mna, trackBlockNN, maxInbredErrFocusHet, 0, maxSmashErrFocusHet, false);
-            //        theTaxon.run(); //retained to provide a quick way to debug.  uncomment to help in debugging.
-            pool.execute(theTaxon);
-        }
-        pool.shutdown();
-        try{
-            if (!pool.awaitTermination(48, TimeUnit.HOURS)) {
-                System.out.println("processing threads timed out.");
-            }
-        }catch(Exception e) {
-            System.out.println("Error processing threads");
+        ForkJoinPool pool = new ForkJoinPool(TasselPrefs.getMaxThreads());
+        try {
+            pool.invoke(new ImputeTaxa(0, unimpAlign.numberOfTaxa(), donorAlign, donorIndex, conflictMasks, mna));
+        } finally {
+            pool.shutdown();
         }
         System.out.println("");
         StringBuilder s=new StringBuilder();
@@ -288,9 +279,50 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         return new DataSet(new Datum("outFile",out,null),null);
     }
 
+    /**
+     * Imputes the target taxa from start (inclusive) to end (exclusive).  Ranges are split in half down to single
+     * taxa, so idle threads steal the remaining taxa of busy threads, as the time per taxon varies widely.
+     */
+    private class ImputeTaxa extends RecursiveAction {
+        private final int start;
+        private final int end;
+        private final GenotypeTable[] donorAlign;
+        private final FILLINDonorBitIndex[] donorIndex;
+        private final OpenBitSet[][] conflictMasks;
+        private final Object mna;
+
+        ImputeTaxa(int start, int end, GenotypeTable[] donorAlign, FILLINDonorBitIndex[] donorIndex,
+                OpenBitSet[][] conflictMasks, Object mna) {
+            this.start=start;
+            this.end=end;
+            this.donorAlign=donorAlign;
+            this.donorIndex=donorIndex;
+            this.conflictMasks=conflictMasks;
+            this.mna=mna;
+        }
+
+        @Override
+        protected void compute() {
+            if (end-start>1) {
+                int mid=(start+end)>>>1;
+                invokeAll(new ImputeTaxa(start, mid, donorAlign, donorIndex, conflictMasks, mna),
+                        new ImputeTaxa(mid, end, donorAlign, donorIndex, conflictMasks, mna));
+                return;
+            }
+            for (int taxon = start; taxon < end; taxon++) {
+                int[] trackBlockNN= new int[5];//global variable to track number of focus blocks solved in NN search for system out; index 0 is inbred, 1 is viterbi, 2 is smash, 3 is not solved, 4 is total for all modes
+                ImputeOneTaxon theTaxon= (((double)unimpAlign.heterozygousCountForTaxon(taxon)/(double)unimpAlign.totalNonMissingForTaxon(taxon))<hetThresh.value())?
+                    new ImputeOneTaxon(taxon, donorAlign, donorIndex, minTestSites.value(), conflictMasks,imputeDonorFile.value(), mna, trackBlockNN, maxInbredErrFocusHomo, maxHybridErrFocusHomo, maxSmashErrFocusHomo, true):
+                        new ImputeOneTaxon(taxon, donorAlign, donorIndex, minTestSites.value(), conflictMasks,imputeDonorFile.value(), mna, trackBlockNN, maxInbredErrFocusHet, 0, maxSmashErrFocusHet, false);
+                theTaxon.run();
+            }
+        }
+    }
+
     private class ImputeOneTaxon implements Runnable{
         int taxon;
         GenotypeTable[] donorAlign;
+        FILLINDonorBitIndex[] donorIndex;  //packed donor bits shared by all taxa
         int minSitesPresent;
         OpenBitSet[][] conflictMasks;
         boolean imputeDonorFile;
@@ -303,10 +335,11 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         double focusSmashErr; //threshold for haplotype combination in focus block mode
         boolean hetsMiss; //for inbred lines in two haplotype combination, set hets to missing because likely error. for heterozygous, impute estimated hets in focus block mode
         
-        public ImputeOneTaxon(int taxon, GenotypeTable[] donorAlign, int minSitesPresent, OpenBitSet[][] conflictMasks,
+        public ImputeOneTaxon(int taxon, GenotypeTable[] donorAlign, FILLINDonorBitIndex[] donorIndex, int minSitesPresent, OpenBitSet[][] conflictMasks,
             boolean imputeDonorFile, Object mna, int[] trackBlockNN, double focusInbErr, double focusHybridErr, double focusSmashErr, boolean hetsToMissing) {
             this.taxon=taxon;
             this.donorAlign=donorAlign;
+            this.donorIndex=donorIndex;
             this.minSitesPresent=minSitesPresent;
             this.conflictMasks=conflictMasks;
             this.imputeDonorFile=imputeDonorFile;
@@ -338,7 +371,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
             int countByFocus= 0;
             for (int da = 0; (da < donorAlign.length)&&enoughData ; da++) {
                 int donorOffset=unimpAlign.siteOfPhysicalPosition(donorAlign[da].chromosomalPosition(0), donorAlign[da].chromosome(0));
-                int blocks=donorAlign[da].allelePresenceForAllSites(0, Major).getNumWords();
+                int blocks=donorIndex[da].numberOfBlocks();
                 BitSet[] maskedTargetBits=FILLINDonorGenotypeUtils.arrangeMajorMinorBtwAlignments(unimpAlign, taxon, donorOffset, donorAlign[da].numberOfSites(), conflictMasks[da][0], conflictMasks[da][1], isSwapMajorMinor);
 
                 //if imputing the donor file, these donor indices prevent self imputation
@@ -354,7 +387,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
                 //Finds the best haplotype donors for each focus block within a donorGenotypeTable
                 DonorHypoth[][] regionHypthInbred=new DonorHypoth[blocks][maxDonorHypotheses.value()];
                 byte[][][] targetToDonorDistances=FILLINImputationUtils.calcAllelePresenceCountsBtwTargetAndDonors(maskedTargetBits,
-                        donorAlign[da]);
+                        donorIndex[da]);
                 for (int focusBlock = 0; focusBlock < blocks; focusBlock++) {
                     int[] resultRange=FILLINImputationUtils.getBlockWithMinMinorCount(maskedTargetBits[0].getBits(), maskedTargetBits[1].getBits(), focusBlock, minMinorCnt.value(), minMinorCnt.value()*minMajorRatioToMinorCnt);
                     if(resultRange==null) continue; //no data in the focus Block
@@ -365,11 +398,11 @@ public class FILLINImputationPlugin extends AbstractPlugin {
                 impTaxon.setSegmentSolved(false);
 
                 //tries to solve the entire donorAlign region by Virterbi or Inbred
-                impTaxon=solveEntireDonorRegion(taxon, donorAlign[da], donorOffset, regionHypthInbred, impTaxon, maskedTargetBits, maxHybridErrorRate.value(), targetToDonorDistances);
+                impTaxon=solveEntireDonorRegion(taxon, donorAlign[da], donorIndex[da], donorOffset, regionHypthInbred, impTaxon, maskedTargetBits, maxHybridErrorRate.value(), targetToDonorDistances);
                 if(impTaxon.isSegmentSolved()) {countFullLength++; continue;}
 
                 //resorts to solving block by block, first by inbred, then by viterbi, and then by hybrid
-                impTaxon=solveByBlockNearestNeighbor(impTaxon, taxon, donorAlign[da], donorOffset, regionHypthInbred, hybridNN.value(), maskedTargetBits, minMinorCnt.value(), focusInbredErr, focusHybridErr, focusSmashErr, donorIndices, trackBlockNN, hetsMiss);
+                impTaxon=solveByBlockNearestNeighbor(impTaxon, taxon, donorAlign[da], donorIndex[da], donorOffset, regionHypthInbred, hybridNN.value(), maskedTargetBits, minMinorCnt.value(), focusInbredErr, focusHybridErr, focusSmashErr, donorIndices, trackBlockNN, hetsMiss);
                 if(impTaxon.isSegmentSolved()) {countByFocus++;}
             }
             double totalFocus= (double)trackBlockNN[3]+(double)trackBlockNN[4];
@@ -399,6 +432,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
      *
      * @param taxon
      * @param donorAlign
+     * @param donorIndex
      * @param donorOffset
      * @param regionHypoth
      * @param impT
@@ -406,7 +440,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
      * @param maxHybridErrorRate
      * @return
      */
-    private ImputedTaxon solveEntireDonorRegion(int taxon, GenotypeTable donorAlign, int donorOffset,
+    private ImputedTaxon solveEntireDonorRegion(int taxon, GenotypeTable donorAlign, FILLINDonorBitIndex donorIndex, int donorOffset,
                 DonorHypoth[][] regionHypoth, ImputedTaxon impT, BitSet[] maskedTargetBits, double maxHybridErrorRate, byte[][][] targetToDonorDistances) {
 
         int blocks=maskedTargetBits[0].getNumWords();
@@ -420,12 +454,12 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         int[] testList=FILLINImputationUtils.fillInc(0,donorAlign.numberOfTaxa()-1);
         int[] bestDonorList=Arrays.copyOfRange(d,0,Math.min(d.length,5));
         DonorHypoth[] bestDBasedOnBest=FILLINImputationUtils.findHeterozygousDonorHypoth(taxon, maskedTargetBits[0].getBits(),
-                maskedTargetBits[1].getBits(), 0, blocks-1, blocks/2, donorAlign, bestDonorList, testList, maxDonorHypotheses.value(), minTestSites.value());
+                maskedTargetBits[1].getBits(), 0, blocks-1, blocks/2, donorIndex, bestDonorList, testList, maxDonorHypotheses.value(), minTestSites.value());
 
         //make all combinations of best donor and find the the pairs that minimize errors
         //with the true switch also will make inbreds
         DonorHypoth[] best2Dsearchdonors=FILLINImputationUtils.findHeterozygousDonorHypoth(taxon, maskedTargetBits[0].getBits(),
-                maskedTargetBits[1].getBits(), 0, blocks-1, blocks/2, donorAlign, d, d, maxDonorHypotheses.value(), minTestSites.value());
+                maskedTargetBits[1].getBits(), 0, blocks-1, blocks/2, donorIndex, d, d, maxDonorHypotheses.value(), minTestSites.value());
         DonorHypoth[] best2donors=FILLINImputationUtils.combineDonorHypothArrays(maxDonorHypotheses.value(),bestDBasedOnBest,best2Dsearchdonors);
         if(testing==1) System.out.println(Arrays.toString(best2donors));
         ArrayList<DonorHypoth> goodDH=new ArrayList<DonorHypoth>();
@@ -460,7 +494,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
      * @param regionHypth
      */
     private ImputedTaxon solveByBlockNearestNeighbor(ImputedTaxon impT, int targetTaxon, GenotypeTable donorAlign,
-               int donorOffset, DonorHypoth[][] regionHypth, boolean hybridMode, BitSet[] maskedTargetBits, int minMinorCnt, double focusInbredErr, double focusHybridErr, double focusSmashErr, int[] donorIndices, int[] blockNN, boolean hetsToMiss) {
+               FILLINDonorBitIndex donorIndex, int donorOffset, DonorHypoth[][] regionHypth, boolean hybridMode, BitSet[] maskedTargetBits, int minMinorCnt, double focusInbredErr, double focusHybridErr, double focusSmashErr, int[] donorIndices, int[] blockNN, boolean hetsToMiss) {
         int[] currBlocksSolved= new int[5];//track number of focus blocks solved in NN search for system out; index 0 is inbred, 1 is viterbi, 2 is smash, 3 is not solved, 4 is total for all modes
         int blocks=maskedTargetBits[0].getNumWords();
         for (int focusBlock = 0; focusBlock < blocks; focusBlock++) {
@@ -473,7 +507,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
 //            DonorHypoth[] best2donors=getBestHybridDonors(targetTaxon, maskedTargetBits[0].getBits(resultRange[0], resultRange[2]),
 //                        maskedTargetBits[1].getBits(resultRange[0], resultRange[2]), resultRange[0], resultRange[2], focusBlock, donorAlign, d, d, true);
             DonorHypoth[] best2donors=FILLINImputationUtils.findHeterozygousDonorHypoth(targetTaxon, maskedTargetBits[0].getBits(resultRange[0], resultRange[2]),
-                    maskedTargetBits[1].getBits(resultRange[0], resultRange[2]), resultRange[0], resultRange[2], focusBlock, donorAlign, d, d, (int)maxDonorHypotheses.value(), (int)minTestSites.value());
+                    maskedTargetBits[1].getBits(resultRange[0], resultRange[2]), resultRange[0], resultRange[2], focusBlock, donorIndex, d, d, (int)maxDonorHypotheses.value(), (int)minTestSites.value());
 
 
             if(best2donors[0]==null) {currBlocksSolved[3]++; continue; } //no good hybrid donors for the focus block
@@ -569,10 +603,7 @@ public class FILLINImputationPlugin extends AbstractPlugin {
         final double phom = (1 - probHeterozygous) / 2;
         final double[] pTrue = new double[]{phom, .25*probHeterozygous ,.5 * probHeterozygous, .25*probHeterozygous, phom};
         tpF.setAverageSegmentLength(avgChrLength);
-        tpF.setPositions(informative.informSites);
-        ViterbiAlgorithm vaF = new ViterbiAlgorithm(informative.informStates, tpF, ep, pTrue);
-        vaF.calculate();
-        byte[] resultStatesF=vaF.getMostProbableStateSequence();
+        byte[] resultStatesF=new HiddenMarkovModel(tpF, pTrue).viterbi(informative.informStates, informative.informSites, ep);
         int currPos=0;
         //converts the informative states back to all states
         byte[] callsF=new byte[informative.totalSiteCnt];
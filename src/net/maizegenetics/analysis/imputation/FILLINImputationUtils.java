@@ -57,6 +57,17 @@ public class FILLINImputationUtils {
         return allDist;
     }
 
+    /**
+     * Same as {@link #calcAllelePresenceCountsBtwTargetAndDonors(BitSet[], GenotypeTable)} with the donor bits
+     * taken from a shared donor index.
+     * @param modBitsOfTarget major and minor presence bits for target genotype (must be aligned same as donor)
+     * @param donorIndex packed bits of the potential donor genotypes
+     * @return array with [donor index][sites, same count, diff count, het count index][block index]
+     */
+    public static byte[][][] calcAllelePresenceCountsBtwTargetAndDonors(BitSet[] modBitsOfTarget, FILLINDonorBitIndex donorIndex) {
+        return donorIndex.allelePresenceCounts(modBitsOfTarget[0].getBits(), modBitsOfTarget[1].getBits());
+    }
+
     /**
      *Simple algorithm that tests every possible haplotype as a homozygous donor to minimize
      * the number of unmatched informative alleles.  Currently, there is little tie
@@ -252,6 +263,62 @@ public class FILLINImputationUtils {
         return result;
     }
 
+    /**
+     * Same as {@link #findHeterozygousDonorHypoth(int, long[], long[], int, int, int, GenotypeTable, int, int[], int, int)}
+     * with the donor bits taken from a shared donor index, and all second donors counted in one pass.
+     * @param mjT masked bitset for the major allele, from firstBlock to lastBlock
+     * @param mnT  masked bitset for the minor allele, from firstBlock to lastBlock
+     * @param donorIndex packed bits of the potential donor genotypes
+     */
+    public static DonorHypoth[] findHeterozygousDonorHypoth(int targetTaxon, long[] mjT, long[] mnT,
+              int firstBlock, int lastBlock, int focusBlock, FILLINDonorBitIndex donorIndex, int d1, int[] donor2Indices,
+                                              int maxDonorHypotheses, int minTestSites) {
+        MinMaxPriorityQueue<DonorHypoth> bestDonors=MinMaxPriorityQueue.orderedBy(DonorHypoth.byErrorRateOrdering)
+                .maximumSize(maxDonorHypotheses).create();
+        int[] mendErr=new int[donor2Indices.length];
+        int[] testSites=new int[donor2Indices.length];
+        donorIndex.mendelErrorComparison(mjT, mnT, firstBlock, lastBlock-firstBlock+1, d1, donor2Indices, mendErr, testSites);
+        for (int i = 0; i < donor2Indices.length; i++) {
+            if(testSites[i]<minTestSites) continue;
+            DonorHypoth theDH=new DonorHypoth(targetTaxon, d1, donor2Indices[i], firstBlock,
+                    focusBlock, lastBlock, testSites[i], mendErr[i]);
+            bestDonors.add(theDH);
+        }
+        DonorHypoth[] result=bestDonors.toArray(new DonorHypoth[0]);
+        Arrays.sort(result,DonorHypoth.byErrorRateOrdering);  //Ques keep the top values, but not ordered
+        return result;
+    }
+
+    /**
+     * Same as {@link #findHeterozygousDonorHypoth(int, long[], long[], int, int, int, GenotypeTable, int[], int[], int, int)}
+     * with the donor bits taken from a shared donor index.
+     * @param mjT masked bitset for the major allele, from firstBlock to lastBlock
+     * @param mnT  masked bitset for the minor allele, from firstBlock to lastBlock
+     * @param donorIndex packed bits of the potential donor genotypes
+     */
+    public static DonorHypoth[] findHeterozygousDonorHypoth(int targetTaxon, long[] mjT, long[] mnT,
+                 int firstBlock, int lastBlock, int focusBlock, FILLINDonorBitIndex donorIndex, int[] donor1Indices, int[] donor2Indices,
+                                                            int maxDonorHypotheses, int minTestSites) {
+        Multimap<Integer,Integer> tests=HashMultimap.create();
+        for (int d1 : donor1Indices) {
+            for (int d2 : donor2Indices) {
+                if(d1<d2) {tests.put(d1,d2);}
+                else {tests.put(d2,d1);}
+            }
+        }
+        MinMaxPriorityQueue<DonorHypoth> bestDonors=MinMaxPriorityQueue.orderedBy(DonorHypoth.byErrorRateOrdering)
+                .maximumSize(maxDonorHypotheses).create();
+        for (int d1 : tests.keySet()) {
+            int[] d2donors=Ints.toArray(tests.get(d1));
+            DonorHypoth[] oneDimenHypoth=findHeterozygousDonorHypoth(targetTaxon, mjT, mnT, firstBlock, lastBlock,
+                    focusBlock, donorIndex, d1, d2donors, maxDonorHypotheses, minTestSites);
+            for (DonorHypoth donorHypoth : oneDimenHypoth) {bestDonors.add(donorHypoth);}
+        }
+        DonorHypoth[] result=bestDonors.toArray(new DonorHypoth[0]);
+        Arrays.sort(result,DonorHypoth.byErrorRateOrdering);  //Ques keep the top values, but not ordered
+        return result;
+    }
+
     /**
      * Combines arrays of donorHypoth, sorts them, and returns the best limited by maxDonorHypotheses
      * @param maxDonorHypotheses maximum number of donor hypotheses to retain
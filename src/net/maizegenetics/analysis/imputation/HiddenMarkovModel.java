@@ -0,0 +1,250 @@
+package net.maizegenetics.analysis.imputation;
+
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Viterbi and BackwardForward calculations for many sequences, for example one per taxon, that share a transition
+ * model. The calculations give the same results as {@link ViterbiAlgorithm} and {@link BackwardForwardAlgorithm}, but
+ * <ul>
+ * <li>the transition probabilities of each node are calculated once, into a flat array, with
+ * {@link TransitionProbability#transitionProbabilities(int[], int, double[])}, and the emission probabilities
+ * once per state, rather than for every pair of states</li>
+ * <li>the trellis (Viterbi path history, BackwardForward alpha) is held in buffers that belong to the thread and are
+ * reused for every sequence it calculates, so that a sequence allocates only its result</li>
+ * <li>no state is kept in the TransitionProbability or in this object, so sequences can be calculated in parallel.
+ * The list methods calculate all their sequences in parallel.</li>
+ * </ul>
+ * The TransitionProbability, EmissionProbability and initial state probabilities are read when a sequence is
+ * calculated, so they can be re-estimated between calls, as in EM iterations, but must not be changed during a call.
+ *
+ * The Viterbi algorithm is calculated with ln probabilities, as in ViterbiAlgorithm. BackwardForward is calculated
+ * with probabilities scaled to sum to one at each node (Rabiner 1989), which cancels in gamma and is cheaper than
+ * summing in ln space.
+ */
+public class HiddenMarkovModel {
+	private static final ThreadLocal<Trellis> threadTrellis = ThreadLocal.withInitial(Trellis::new);
+
+	private final TransitionProbability myTransitions;
+	private final double[] initialStateProbability;
+	private final int numberOfStates;
+
+	/**
+	 * @param transitions	the transition probabilities
+	 * @param initialStateProbability	the probability of each state at the first node
+	 */
+	public HiddenMarkovModel(TransitionProbability transitions, double[] initialStateProbability) {
+		myTransitions = transitions;
+		this.initialStateProbability = initialStateProbability;
+		numberOfStates = transitions.getNumberOfStates();
+		if (numberOfStates > Byte.MAX_VALUE) throw new IllegalArgumentException("HiddenMarkovModel: too many states: " + numberOfStates);
+	}
+
+	/**
+	 * @param observations	the observation at each node
+	 * @param positions	the position of each node
+	 * @param emissions	the probability of an observation given the state
+	 * @return	the most probable state at each node
+	 */
+	public byte[] viterbi(byte[] observations, int[] positions, EmissionProbability emissions) {
+		int n = numberOfStates;
+		int nObs = observations.length;
+		if (nObs == 0) return new byte[0];
+		Trellis trellis = threadTrellis.get();
+		trellis.ensureHistoryCapacity(nObs, n);
+		byte[] history = trellis.history;
+		double[] transition = trellis.transition;
+		double[] distance = trellis.distance;
+		double[] nextDistance = trellis.nextDistance;
+
+		for (int i = 0; i < n; i++) {
+			distance[i] = emissions.getLnProbObsGivenState(i, observations[0], 0) + Math.log(initialStateProbability[i]);
+		}
+
+		for (int node = 1; node < nObs; node++) {
+			myTransitions.transitionProbabilities(positions, node, transition);
+			for (int k = 0; k < n * n; k++) transition[k] = Math.log(transition[k]);
+			int obs = observations[node];
+			int historyStart = node * n;
+			for (int j = 0; j < n; j++) {
+				int max = 0;
+				double maxDistance = distance[0] + transition[j];
+				for (int i = 1; i < n; i++) {
+					double candidate = distance[i] + transition[i * n + j];
+					if (candidate > maxDistance) {
+						max = i;
+						maxDistance = candidate;
+					}
+				}
+				nextDistance[j] = maxDistance + emissions.getLnProbObsGivenState(j, obs, node);
+				history[historyStart + j] = (byte) max;
+			}
+			double[] temp = distance;
+			distance = nextDistance;
+			nextDistance = temp;
+
+			//if the min distance is less than -1e100, subtract the max distance;
+			double maxd = distance[0];
+			double mind = 0;
+			for (int i = 0; i < n; i++) {
+				if (distance[i] > maxd) maxd = distance[i];
+				if (distance[i] != Double.NEGATIVE_INFINITY && distance[i] < mind) mind = distance[i];
+			}
+			if (mind < -1e100) {
+				for (int i = 0; i < n; i++) distance[i] -= maxd;
+			}
+		}
+
+		//S(t) = h(t+1, S(t+1)), to decode best sequence
+		byte[] seq = new byte[nObs];
+		byte finalState = 0;
+		for (int i = 1; i < n; i++) {
+			if (distance[i] > distance[finalState]) finalState = (byte) i;
+		}
+		seq[nObs - 1] = finalState;
+		for (int node = nObs - 2; node >= 0; node--) {
+			seq[node] = history[(node + 1) * n + seq[node + 1]];
+		}
+		return seq;
+	}
+
+	/**
+	 * Calculates {@link #viterbi(byte[], int[], EmissionProbability)} for each sequence in parallel.
+	 * @param observations	the observations of each sequence
+	 * @param positions	the positions of each sequence
+	 * @param emissions	the EmissionProbability of each sequence, by index
+	 * @return	the most probable states of each sequence, in the same order
+	 */
+	public List<byte[]> viterbi(List<byte[]> observations, List<int[]> positions, IntFunction<EmissionProbability> emissions) {
+		return IntStream.range(0, observations.size()).parallel()
+				.mapToObj(s -> viterbi(observations.get(s), positions.get(s), emissions.apply(s)))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * The BackwardForward algorithm.
+	 * @param observations	the observation at each node
+	 * @param positions	the position of each node
+	 * @param emissions	the probability of an observation given the state
+	 * @return	gamma, the probability of each state at each node given all the observations, indexed by [node][state]
+	 */
+	public double[][] gamma(int[] observations, int[] positions, EmissionProbability emissions) {
+		int n = numberOfStates;
+		int nObs = observations.length;
+		double[][] gamma = new double[nObs][n];
+		if (nObs == 0) return gamma;
+		Trellis trellis = threadTrellis.get();
+		trellis.ensureAlphaCapacity(nObs, n);
+		double[] alpha = trellis.alpha;
+		double[] transition = trellis.transition;
+		double[] beta = trellis.distance;
+		double[] weightedBeta = trellis.nextDistance;
+
+		//alpha[1](i) = p[i]b[i](O[1])
+		for (int s = 0; s < n; s++) {
+			alpha[s] = initialStateProbability[s] * emissions.getProbObsGivenState(s, observations[0], 0);
+		}
+		scale(alpha, 0, n);
+
+		//alpha[t+1](j) = {sum[i=1 to N] alpha[t](i)a[ij]} b[j](O[t+1])
+		for (int t = 1; t < nObs; t++) {
+			myTransitions.transitionProbabilities(positions, t, transition);
+			int prev = (t - 1) * n;
+			int start = t * n;
+			for (int j = 0; j < n; j++) {
+				double sumTrans = 0;
+				for (int i = 0; i < n; i++) sumTrans += alpha[prev + i] * transition[i * n + j];
+				alpha[start + j] = sumTrans * emissions.getProbObsGivenState(j, observations[t], t);
+			}
+			scale(alpha, start, n);
+		}
+
+		//beta[T](i) = 1, beta[t](i) = sum(j=1 to N): a[i][j]*b[j](O[t+1])*beta[t+1](j)
+		//gamma[t](i) = alpha[t](i)*beta[t](i) / {sum(j=1 to N): alpha[t](j)*beta[t](j)}
+		for (int i = 0; i < n; i++) beta[i] = 1;
+		setGamma(gamma[nObs - 1], alpha, (nObs - 1) * n, beta);
+		for (int t = nObs - 2; t >= 0; t--) {
+			myTransitions.transitionProbabilities(positions, t + 1, transition);
+			for (int j = 0; j < n; j++) {
+				weightedBeta[j] = emissions.getProbObsGivenState(j, observations[t + 1], t + 1) * beta[j];
+			}
+			for (int i = 0; i < n; i++) {
+				double sumStates = 0;
+				for (int j = 0; j < n; j++) sumStates += transition[i * n + j] * weightedBeta[j];
+				beta[i] = sumStates;
+			}
+			scale(beta, 0, n);
+			setGamma(gamma[t], alpha, t * n, beta);
+		}
+		return gamma;
+	}
+
+	/**
+	 * Calculates {@link #gamma(int[], int[], EmissionProbability)} for each sequence in parallel.
+	 * @param observations	the observations of each sequence
+	 * @param positions	the positions of each sequence
+	 * @param emissions	the EmissionProbability of each sequence, by index
+	 * @return	gamma of each sequence, in the same order
+	 */
+	public List<double[][]> gamma(List<int[]> observations, List<int[]> positions, IntFunction<EmissionProbability> emissions) {
+		return IntStream.range(0, observations.size()).parallel()
+				.mapToObj(s -> gamma(observations.get(s), positions.get(s), emissions.apply(s)))
+				.collect(Collectors.toList());
+	}
+
+	public int getNumberOfStates() {
+		return numberOfStates;
+	}
+
+	private static void setGamma(double[] gamma, double[] alpha, int start, double[] beta) {
+		int n = gamma.length;
+		double divisor = 0;
+		for (int i = 0; i < n; i++) {
+			gamma[i] = alpha[start + i] * beta[i];
+			divisor += gamma[i];
+		}
+		for (int i = 0; i < n; i++) gamma[i] /= divisor;
+	}
+
+	//divides values[start, start + n) by their sum, if it is positive
+	private static void scale(double[] values, int start, int n) {
+		double sum = 0;
+		for (int i = start; i < start + n; i++) sum += values[i];
+		if (sum > 0) {
+			for (int i = start; i < start + n; i++) values[i] /= sum;
+		}
+	}
+
+	/**
+	 * Working arrays of one thread, grown as needed and reused for every sequence.
+	 */
+	private static final class Trellis {
+		private byte[] history = new byte[0];
+		private double[] alpha = new double[0];
+		private double[] transition = new double[0];
+		private double[] distance = new double[0];
+		private double[] nextDistance = new double[0];
+
+		private void ensureHistoryCapacity(int numberOfNodes, int numberOfStates) {
+			int size = numberOfNodes * numberOfStates;
+			if (history.length < size) history = new byte[Math.max(size, history.length * 3 / 2)];
+			ensureStateCapacity(numberOfStates);
+		}
+
+		private void ensureAlphaCapacity(int numberOfNodes, int numberOfStates) {
+			int size = numberOfNodes * numberOfStates;
+			if (alpha.length < size) alpha = new double[Math.max(size, alpha.length * 3 / 2)];
+			ensureStateCapacity(numberOfStates);
+		}
+
+		private void ensureStateCapacity(int numberOfStates) {
+			if (transition.length < numberOfStates * numberOfStates) {
+				transition = new double[numberOfStates * numberOfStates];
+				distance = new double[numberOfStates];
+				nextDistance = new double[numberOfStates];
+			}
+		}
+	}
+}
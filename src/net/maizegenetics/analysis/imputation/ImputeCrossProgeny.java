@@ -17,7 +17,6 @@ import net.maizegenetics.analysis.data.FileLoadPlugin;
 import net.maizegenetics.analysis.data.FileLoadPlugin.TasselFileType;
 import net.maizegenetics.analysis.imputation.EmissionProbability;
 import net.maizegenetics.analysis.imputation.TransitionProbability;
-import net.maizegenetics.analysis.imputation.ViterbiAlgorithm;
 import net.maizegenetics.dna.map.Chromosome;
 import net.maizegenetics.dna.snp.ExportUtils;
 import net.maizegenetics.dna.snp.GenotypeTable;
@@ -70,16 +69,21 @@ public class ImputeCrossProgeny {
 		Map<String, byte[]> phasedProgeny = new HashMap<>();
 		Map<String, String[]> parentMap = new HashMap<>();
 		
-		//impute all progeny in that are in Genotype
-		for (String[] plot : plotList) {
-			int ndx = myGenotype.taxa().indexOf(plot[0]);
-			if (ndx == -1) continue;
-			byte[][] hap0 = haplotypeMap.get(plot[1]);
-			byte[][] hap1 = haplotypeMap.get(plot[2]);
-			if (hap0 != null && hap1 !=null && notMissingHap(hap0) && notMissingHap(hap1)) {
-				phasedProgeny.put(plot[0], imputeCrossFromParents(plot[0], hap0, hap1));
-				parentMap.put(plot[0], new String[]{plot[1], plot[2]});
-			}
+		//impute all progeny in that are in Genotype, in parallel as each progeny is independent
+		List<String[]> imputedPlots = plotList.stream()
+				.filter(plot -> myGenotype.taxa().indexOf(plot[0]) != -1)
+				.filter(plot -> {
+					byte[][] hap0 = haplotypeMap.get(plot[1]);
+					byte[][] hap1 = haplotypeMap.get(plot[2]);
+					return hap0 != null && hap1 !=null && notMissingHap(hap0) && notMissingHap(hap1);
+				}).collect(Collectors.toList());
+		List<byte[]> imputedStates = imputedPlots.parallelStream()
+				.map(plot -> imputeCrossFromParents(plot[0], haplotypeMap.get(plot[1]), haplotypeMap.get(plot[2])))
+				.collect(Collectors.toList());
+		for (int i = 0; i < imputedPlots.size(); i++) {
+			String[] plot = imputedPlots.get(i);
+			phasedProgeny.put(plot[0], imputedStates.get(i));
+			parentMap.put(plot[0], new String[]{plot[1], plot[2]});
 		}
 
 		//fill gaps
@@ -233,11 +237,7 @@ public class ImputeCrossProgeny {
 			EmissionProbability ep = new CrossProgenyEmissionMatrix(new byte[][][]{hap0, hap1}, myGenotype, taxonIndex, nonMissingHaplotypeIndices);
 
 			//run Viterbi which returns a byte[] representing the state at each position
-			ViterbiAlgorithm va = new ViterbiAlgorithm(nonMissingGenotypes, tp, ep, new double[]{0.25, 0.25, 0.25, 0.25});
-			va.calculate();
-
-			//report number of crossovers per chromosome and taxon
-			byte[] states = va.getMostProbableStateSequence();
+			byte[] states = new HiddenMarkovModel(tp, new double[]{0.25, 0.25, 0.25, 0.25}).viterbi(nonMissingGenotypes, nonMissingPositions, ep);
 
 			for (int i = 0; i < numberNotMissing; i++) {
 				progenyGenotype[nonMissingHaplotypeIndices[i]] = states[i];
@@ -325,7 +325,7 @@ public class ImputeCrossProgeny {
 		//reimpute the progeny
 		start = System.currentTimeMillis();
 		myLogger.info("Rephasing progeny.");
-		List<Tuple<String,byte[]>> resultList = plotList.stream()
+		List<Tuple<String,byte[]>> resultList = plotList.parallelStream()
 				.filter(p -> haplotypeProbabilities.get(p[1]) != null && haplotypeProbabilities.get(p[2]) != null)
 				.map(p -> {
 			double[][] hapProb0 = haplotypeProbabilities.get(p[1]);
@@ -505,11 +505,7 @@ public class ImputeCrossProgeny {
 			EmissionProbability ep = new CrossProgenyEmissionMatrix(haplotypeProbs, myGenotype, probObsGivenState, taxonIndex, nonMissingHaplotypeIndices);
 
 			//run Viterbi which returns a byte[] representing the state at each position
-			ViterbiAlgorithm va = new ViterbiAlgorithm(nonMissingGenotypes, tp, ep, new double[]{0.25, 0.25, 0.25, 0.25});
-			va.calculate();
-
-			//report number of crossovers per chromosome and taxon
-			byte[] states = va.getMostProbableStateSequence();
+			byte[] states = new HiddenMarkovModel(tp, new double[]{0.25, 0.25, 0.25, 0.25}).viterbi(nonMissingGenotypes, nonMissingPositions, ep);
 
 //			int n = states.length;
 //			int transitionCount = 0;
@@ -4,21 +4,16 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.MinMaxPriorityQueue;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
-import net.maizegenetics.analysis.popgen.LDResult;
-import net.maizegenetics.analysis.popgen.LinkageDisequilibrium;
 import net.maizegenetics.dna.map.Position;
-import net.maizegenetics.dna.map.PositionList;
-import net.maizegenetics.dna.map.PositionListBuilder;
 import net.maizegenetics.dna.snp.*;
 import net.maizegenetics.plugindef.*;
-import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.Tuple;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
 import java.awt.*;
-import java.util.ArrayList;
+import java.io.File;
 import java.util.List;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
@@ -55,6 +50,14 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
             .description("Maximum physical distance between sites to search for LD (-1 for no distance cutoff - unlinked chromosomes will be tested)")
             .build();
 
+    private PluginParameter<String> ldIndexFile = new PluginParameter.Builder<>("ldIndex", null, String.class)
+            .guiName("LD neighbor index file")
+            .outFile()
+            .required(false)
+            .description("File with the high LD sites of each site. If it exists and matches the genotypes and LD parameters, "
+                    + "the sites are read from it, otherwise they are calculated and written to it")
+            .build();
+
 
     private static final Logger myLogger = LogManager.getLogger(LDKNNiImputationPlugin.class);
 
@@ -82,9 +85,9 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
         Datum genoDatum=input.getDataOfType(GenotypeTable.class).get(0);
         GenotypeTable genotypeTable = (GenotypeTable)genoDatum.getData();
 
-        // Create a multimap of the SNPs in highest LD with each SNP
-/*Debatable on what to calc*/ //        Multimap<Position, Position> highLDMap = getHighLDMap(GenotypeTableBuilder.getHomozygousInstance(genotypeTable), highLDSSites());
-        Multimap<Position, Position> highLDMap = getHighLDMap(genotypeTable, highLDSSites());
+        // Find the SNPs in highest LD with each SNP
+/*Debatable on what to calc*/ //        LDNeighborhoodIndex ldIndex = getLDIndex(GenotypeTableBuilder.getHomozygousInstance(genotypeTable));
+        LDNeighborhoodIndex ldIndex = getLDIndex(genotypeTable);
         System.out.println("LD calculated");
 
         GenotypeTableBuilder incSiteBuilder = GenotypeTableBuilder.getSiteIncremental(genotypeTable.taxa());
@@ -94,7 +97,6 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
         IntStream.range(0, genotypeTable.numberOfSites()).parallel().forEach(posIndex ->
         {
             Position position = genotypeTable.positions().get(posIndex);
-            PositionList positionList = PositionListBuilder.getInstance(new ArrayList<>(highLDMap.get(position)));
             byte[] currGenos = genotypeTable.genotypeAllTaxa(posIndex);
             byte[] newGenos = new byte[currGenos.length];
             //set monomorphic sites to the major allele
@@ -104,17 +106,16 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
                     newGenos[i] = (currGenos[i] == UNKNOWN_DIPLOID_ALLELE) ? monomorphicGenotype : currGenos[i];
                 }
             } else {
-                //create a site specific in memory filtered alignment to use
-                final GenotypeTable ldGenoTable = GenotypeTableBuilder.getGenotypeCopyInstance(FilterGenotypeTable.getInstance(genotypeTable, positionList));
-                final int numberSites = ldGenoTable.numberOfSites();
-                double[] taxaCoverage = IntStream.range(0, ldGenoTable.numberOfTaxa()).sequential()  //used determine when insufficient overlap is likely
-                        .mapToDouble(t -> (double) ldGenoTable.totalNonMissingForTaxon(t) / (double) numberSites)
+                //pack the genotypes of all taxa at the high LD sites
+                final LDNeighborhoodIndex.GenotypePanel ldPanel = ldIndex.panel(genotypeTable, posIndex);
+                final int numberSites = ldPanel.numberOfSites();
+                double[] taxaCoverage = IntStream.range(0, currGenos.length).sequential()  //used determine when insufficient overlap is likely
+                        .mapToDouble(t -> (double) ldPanel.numberKnown(t) / (double) numberSites)
                         .toArray();
                 for (int taxon = 0; taxon < currGenos.length; taxon++) {
                     newGenos[taxon] = currGenos[taxon];
                     if (currGenos[taxon] == UNKNOWN_DIPLOID_ALLELE) {  //starting imputing
-                        Multimap<Double, Byte> closeGenotypes = getClosestNonMissingTaxa(genotypeTable.taxa().get(taxon), genotypeTable,
-                                ldGenoTable, position, taxaCoverage, knnTaxa());
+                        Multimap<Double, Byte> closeGenotypes = getClosestNonMissingTaxa(taxon, currGenos, ldPanel, taxaCoverage, knnTaxa());
                         if (closeGenotypes.isEmpty()) {  //this is empty when two few high LD sites are shared between the target taxon and all others
                             newGenos[taxon] = UNKNOWN_DIPLOID_ALLELE;
                         } else {
@@ -138,28 +139,21 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
 
     /**
      * Create a multimap of distances between the target taxon with the closest observed genotypes.  Distance is calculated
-     * between the target taxon and all other taxa for the ldGenoTable (subset of high LD sites).
-     * @param inputTaxon Taxon being imputed
-     * @param genotypeTable Master genotype table
-     * @param ldGenoTable Subset genotype table with only the high LD sites
-     * @param targetPosition The position in the master genotype table being imputed.
+     * between the target taxon and all other taxa over the high LD sites of the target position.
+     * @param inputTaxonIdx Index of taxon being imputed
+     * @param targetGenotypes Genotypes of all taxa at the position being imputed
+     * @param ldPanel Genotypes of all taxa at the high LD sites
+     * @param inputCoverage Proportion of the high LD sites scored in each taxon
      * @param numberOfTaxa number of genotypes to retain
      * @return Map of distance to genotype call for the target position
      */
-    private Multimap<Double, Byte> getClosestNonMissingTaxa(Taxon inputTaxon, GenotypeTable genotypeTable, GenotypeTable ldGenoTable,
-                                                            Position targetPosition, double[] inputCoverage, int numberOfTaxa) {
-        final int targetPosIdx = genotypeTable.positions().indexOf(targetPosition);
-        final int inputTaxonIdx = genotypeTable.taxa().indexOf(inputTaxon);
-        byte[] inputTaxonGenotypes = ldGenoTable.genotypeAllSites(inputTaxonIdx);
-       // double inputTaxonCoverage=(double)ldGenoTable.totalNonMissingForTaxon(inputTaxonIdx)/(double)ldGenoTable.numberOfSites();
-
-        MinMaxPriorityQueue<Tuple<Double, Byte>> topTaxa = IntStream.range(0, genotypeTable.numberOfTaxa())
+    private Multimap<Double, Byte> getClosestNonMissingTaxa(int inputTaxonIdx, byte[] targetGenotypes, LDNeighborhoodIndex.GenotypePanel ldPanel,
+                                                            double[] inputCoverage, int numberOfTaxa) {
+        MinMaxPriorityQueue<Tuple<Double, Byte>> topTaxa = IntStream.range(0, targetGenotypes.length)
                 .filter(closeTaxonIdx -> closeTaxonIdx != inputTaxonIdx)  //do not test itself
-                .filter(closeTaxonIdx -> inputCoverage[closeTaxonIdx] * inputCoverage[inputTaxonIdx]*(double)ldGenoTable.numberOfSites()>10)  //skip tests with
-                .filter(closeTaxonIdx -> genotypeTable.genotype(closeTaxonIdx, targetPosIdx) != GenotypeTable.UNKNOWN_DIPLOID_ALLELE)  //ignore taxa with the genotype not scored
- /*Bad*/ //               .mapToObj(closeTaxonIdx -> new Tuple<>(IBSDistanceMatrix.computeHetDistances(inputTaxonGenotypes, ldGenoTable.genotypeAllSites(closeTaxonIdx), 10)[0], genotypeTable.genotype(closeTaxonIdx, targetPosIdx)))
- /*Best*/.mapToObj(closeTaxonIdx -> new Tuple<>(dist(inputTaxonGenotypes, ldGenoTable.genotypeAllSites(closeTaxonIdx), 10)[0], genotypeTable.genotype(closeTaxonIdx, targetPosIdx)))  //calculate the distance
-/*Best*/ //                .mapToObj(closeTaxonIdx -> new Tuple<>(LDKNNiImputationPluginEd.distance(inputTaxonGenotypes, ldGenoTable.genotypeAllSites(closeTaxonIdx), 10)[0], genotypeTable.genotype(closeTaxonIdx, targetPosIdx)))
+                .filter(closeTaxonIdx -> inputCoverage[closeTaxonIdx] * inputCoverage[inputTaxonIdx]*(double)ldPanel.numberOfSites()>10)  //skip tests with
+                .filter(closeTaxonIdx -> targetGenotypes[closeTaxonIdx] != GenotypeTable.UNKNOWN_DIPLOID_ALLELE)  //ignore taxa with the genotype not scored
+                .mapToObj(closeTaxonIdx -> new Tuple<>(ldPanel.distance(inputTaxonIdx, closeTaxonIdx, 10), targetGenotypes[closeTaxonIdx]))  //calculate the distance
                 .filter(distanceTaxon -> !Double.isNaN(distanceTaxon.x))  //skip is too few sites (<10 results in NaN)
                 .collect(Collectors.toCollection(() -> MinMaxPriorityQueue.maximumSize(numberOfTaxa).create()));
         final Multimap<Double, Byte> distGenoMap = ArrayListMultimap.create();
@@ -167,41 +161,26 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
         return distGenoMap;
     }
 
-    private Multimap<Position, Position> getHighLDMap(GenotypeTable genotypeTable, int numberOfSNPs) {
-        Multimap<Position, Position> highLDMap = ArrayListMultimap.create();
-        final int numberOfSites = genotypeTable.numberOfSites();
-        LongAdder sites1Kdone=new LongAdder();
-        IntStream.range(0, genotypeTable.numberOfSites()).parallel()
-                .forEach(posIndex ->
-                {
-                    MinMaxPriorityQueue<LDResult> highestLD = MinMaxPriorityQueue.orderedBy(LDResult.byR2Ordering.reverse())
-                            .maximumSize(numberOfSNPs).create();
-                    for (int site2 = 0; site2 < numberOfSites; site2++) {
-                        if (posIndex == site2) {
-                            continue;
-                        }
-                        if(maxDistance()>-1 && Math.abs(genotypeTable.chromosomalPosition(posIndex)-genotypeTable.chromosomalPosition(site2))>maxDistance()) {
-                            continue;
-                        }
-                        LDResult ld = LinkageDisequilibrium.calculateBitLDForHaplotype(false, 20, genotypeTable, posIndex, site2);
-                        if (Double.isNaN(ld.r2())) {
-                            continue;
-                        }
-                        highestLD.add(ld);
-                    }
-                    List<Position> positionList = new ArrayList<>();
-                    for (LDResult result : highestLD) {
-                        positionList.add(genotypeTable.positions().get(result.site2()));
-                    }
-                    highLDMap.putAll(genotypeTable.positions().get(posIndex), positionList);
-                    if((posIndex+1)%1000==0) {
-                        sites1Kdone.add(1000);
-                        fireProgress((int)(33*sites1Kdone.longValue())/numberOfSites);
-                        System.out.println(sites1Kdone.longValue());
-                    }
-                });
-
-        return highLDMap;
+    /**
+     * Reads the high LD sites of each site from the ldIndex file, if it was made for these genotypes and parameters,
+     * otherwise calculates them and writes them to the file.
+     */
+    private LDNeighborhoodIndex getLDIndex(GenotypeTable genotypeTable) {
+        String filename = ldIndexFile();
+        if (filename != null && new File(filename).exists()) {
+            LDNeighborhoodIndex ldIndex = LDNeighborhoodIndex.read(filename);
+            if (ldIndex.matches(genotypeTable, highLDSSites(), maxDistance())) {
+                myLogger.info("getLDIndex: read high LD sites from: " + filename);
+                return ldIndex;
+            }
+            myLogger.warn("getLDIndex: " + filename + " was made for other genotypes or parameters. It will be replaced.");
+        }
+        LDNeighborhoodIndex ldIndex = LDNeighborhoodIndex.build(genotypeTable, highLDSSites(), maxDistance(),
+                percent -> fireProgress(percent / 3));
+        if (filename != null) {
+            ldIndex.write(filename);
+        }
+        return ldIndex;
     }
 
     /**
@@ -378,6 +357,33 @@ public class LDKNNiImputationPlugin extends AbstractPlugin {
         return this;
     }
 
+    /**
+     * File with the high LD sites of each site. If it exists
+     * and matches the genotypes and LD parameters, the sites
+     * are read from it, otherwise they are calculated and
+     * written to it
+     *
+     * @return LD neighbor index file
+     */
+    public String ldIndexFile() {
+        return ldIndexFile.value();
+    }
+
+    /**
+     * Set LD neighbor index file. File with the high LD sites
+     * of each site. If it exists and matches the genotypes
+     * and LD parameters, the sites are read from it, otherwise
+     * they are calculated and written to it
+     *
+     * @param value LD neighbor index file
+     *
+     * @return this plugin
+     */
+    public LDKNNiImputationPlugin ldIndexFile(String value) {
+        ldIndexFile = new PluginParameter<>(ldIndexFile, value);
+        return this;
+    }
+
 
     /**
     Alternative to current IBS distance measure
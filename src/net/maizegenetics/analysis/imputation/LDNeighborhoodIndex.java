@@ -0,0 +1,340 @@
+package net.maizegenetics.analysis.imputation;
+
+import com.google.common.collect.MinMaxPriorityQueue;
+import net.maizegenetics.analysis.popgen.LDResult;
+import net.maizegenetics.analysis.popgen.LinkageDisequilibrium;
+import net.maizegenetics.dna.map.Position;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.GenotypeTableUtils;
+import net.maizegenetics.stats.statistics.FisherExact;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import static net.maizegenetics.dna.WHICH_ALLELE.Major;
+import static net.maizegenetics.dna.WHICH_ALLELE.Minor;
+import static net.maizegenetics.dna.snp.GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+import static net.maizegenetics.dna.snp.GenotypeTableUtils.getUnphasedSortedDiploidValue;
+
+/**
+ * The sites in highest LD (r2) with each site of a genotype table, as used by {@link LDKNNiImputationPlugin}.  The
+ * neighbours of all sites are held in one int[] with the neighbours of site s in [starts[s], starts[s + 1]) in
+ * increasing site order.  The index is read only once built, so it is shared by the imputation threads without locks,
+ * and it can be written to a file and read back by later runs on the same sites, as finding the neighbours compares
+ * every pair of sites and is usually most of the imputation time.
+ * <p></p>
+ * {@link #panel(GenotypeTable, int)} packs the genotypes of all taxa at the neighbours of a site into bits, which
+ * {@link GenotypePanel#distance(int, int, int)} compares 64 neighbours at a time.
+ */
+public class LDNeighborhoodIndex {
+
+    private static final Logger myLogger = LogManager.getLogger(LDNeighborhoodIndex.class);
+
+    private static final int MAGIC = 0x4C444E49;  //LDNI
+    private static final int VERSION = 1;
+
+    private final int numberOfTaxa;
+    private final int numberOfNeighbors;
+    private final int maxDistance;
+    private final long positionsHash;
+    private final int[] starts;
+    private final int[] neighbors;
+
+    private LDNeighborhoodIndex(int numberOfTaxa, int numberOfNeighbors, int maxDistance, long positionsHash, int[] starts, int[] neighbors) {
+        this.numberOfTaxa = numberOfTaxa;
+        this.numberOfNeighbors = numberOfNeighbors;
+        this.maxDistance = maxDistance;
+        this.positionsHash = positionsHash;
+        this.starts = starts;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * Finds the sites in highest LD with each site, with the sites calculated in parallel.  Pairs of sites with r2 NaN
+     * (fewer than 20 taxa scored at both sites or a monomorphic site) are skipped.
+     * @param genotypeTable genotypes
+     * @param numberOfNeighbors maximum number of sites in high LD kept for each site
+     * @param maxDistance maximum physical distance between sites to test (-1 for no cutoff)
+     * @param progress called with the percent of sites done
+     * @return index
+     */
+    public static LDNeighborhoodIndex build(GenotypeTable genotypeTable, int numberOfNeighbors, int maxDistance, IntConsumer progress) {
+        long time = System.nanoTime();
+        final int numberOfSites = genotypeTable.numberOfSites();
+        //the allele presence of every site is read once, rather than for every pair of sites
+        long[][] mj = new long[numberOfSites][];
+        long[][] mn = new long[numberOfSites][];
+        int[] physicalPositions = new int[numberOfSites];
+        IntStream.range(0, numberOfSites).parallel().forEach(site -> {
+            mj[site] = words(genotypeTable.allelePresenceForAllTaxa(site, Major));
+            mn[site] = words(genotypeTable.allelePresenceForAllTaxa(site, Minor));
+            physicalPositions[site] = genotypeTable.chromosomalPosition(site);
+        });
+        FisherExact fisherExact = FisherExact.getInstance((2 * genotypeTable.numberOfTaxa()) + 10);
+
+        int[][] siteNeighbors = new int[numberOfSites][];
+        LongAdder sites1Kdone = new LongAdder();
+        IntStream.range(0, numberOfSites).parallel().forEach(site1 -> {
+            MinMaxPriorityQueue<LDResult> highestLD = MinMaxPriorityQueue.orderedBy(LDResult.byR2Ordering.reverse())
+                    .maximumSize(numberOfNeighbors).create();
+            for (int site2 = 0; site2 < numberOfSites; site2++) {
+                if (site1 == site2) {
+                    continue;
+                }
+                if (maxDistance > -1 && Math.abs(physicalPositions[site1] - physicalPositions[site2]) > maxDistance) {
+                    continue;
+                }
+                int numWords = Math.min(Math.min(mj[site1].length, mn[site1].length), Math.min(mj[site2].length, mn[site2].length));
+                LDResult ld = LinkageDisequilibrium.getLDForSitePair(mj[site1], mn[site1], mj[site2], mn[site2], numWords,
+                        2, 20, -1.0f, fisherExact, site1, site2);
+                if (Double.isNaN(ld.r2())) {
+                    continue;
+                }
+                highestLD.add(ld);
+            }
+            siteNeighbors[site1] = highestLD.stream().mapToInt(LDResult::site2).sorted().toArray();
+            if ((site1 + 1) % 1000 == 0) {
+                sites1Kdone.add(1000);
+                progress.accept((int) ((100 * sites1Kdone.longValue()) / numberOfSites));
+            }
+        });
+
+        int[] starts = new int[numberOfSites + 1];
+        for (int site = 0; site < numberOfSites; site++) {
+            starts[site + 1] = starts[site] + siteNeighbors[site].length;
+        }
+        int[] neighbors = new int[starts[numberOfSites]];
+        for (int site = 0; site < numberOfSites; site++) {
+            System.arraycopy(siteNeighbors[site], 0, neighbors, starts[site], siteNeighbors[site].length);
+        }
+        myLogger.info(String.format("LDNeighborhoodIndex: %,d sites with %,d neighbors indexed in %.1f s", numberOfSites,
+                neighbors.length, (System.nanoTime() - time) / 1e9));
+        return new LDNeighborhoodIndex(genotypeTable.numberOfTaxa(), numberOfNeighbors, maxDistance,
+                positionsHash(genotypeTable), starts, neighbors);
+    }
+
+    private static long[] words(BitSet bits) {
+        return Arrays.copyOf(bits.getBits(), bits.getNumWords());
+    }
+
+    /**
+     * Whether this index was built with the same parameters for the sites and taxa of a genotype table.  Only the
+     * number of taxa and the positions are checked, so an index must not be reused after the genotypes are changed.
+     */
+    public boolean matches(GenotypeTable genotypeTable, int numberOfNeighbors, int maxDistance) {
+        return numberOfSites() == genotypeTable.numberOfSites() && numberOfTaxa == genotypeTable.numberOfTaxa()
+                && this.numberOfNeighbors == numberOfNeighbors && this.maxDistance == maxDistance
+                && positionsHash == positionsHash(genotypeTable);
+    }
+
+    private static long positionsHash(GenotypeTable genotypeTable) {
+        long hash = 1;
+        for (Position position : genotypeTable.positions()) {
+            hash = 31 * hash + position.getChromosome().getName().hashCode();
+            hash = 31 * hash + position.getPosition();
+        }
+        return hash;
+    }
+
+    public int numberOfSites() {
+        return starts.length - 1;
+    }
+
+    /**
+     * Maximum number of neighbors of each site
+     */
+    public int numberOfNeighbors() {
+        return numberOfNeighbors;
+    }
+
+    /**
+     * Sites in highest LD with site, in increasing order
+     */
+    public int[] neighbors(int site) {
+        return Arrays.copyOfRange(neighbors, starts[site], starts[site + 1]);
+    }
+
+    /**
+     * Writes the index.  Filenames ending in .gz are compressed.
+     */
+    public void write(String filename) {
+        try (DataOutputStream out = Utils.getDataOutputStream(filename, 1 << 16)) {
+            if (out == null) {
+                throw new IllegalStateException("LDNeighborhoodIndex: write: can't write: " + filename);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numberOfSites());
+            out.writeInt(numberOfTaxa);
+            out.writeInt(numberOfNeighbors);
+            out.writeInt(maxDistance);
+            out.writeLong(positionsHash);
+            for (int site = 0; site < numberOfSites(); site++) {
+                out.writeInt(starts[site + 1] - starts[site]);
+            }
+            for (int neighbor : neighbors) {
+                out.writeInt(neighbor);
+            }
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("LDNeighborhoodIndex: write: problem writing: " + filename + "\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(String)}.
+     */
+    public static LDNeighborhoodIndex read(String filename) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Utils.getInputStream(filename), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalStateException("LDNeighborhoodIndex: read: not an LD neighborhood index: " + filename);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalStateException("LDNeighborhoodIndex: read: unsupported version: " + version + " in: " + filename);
+            }
+            int numberOfSites = in.readInt();
+            int numberOfTaxa = in.readInt();
+            int numberOfNeighbors = in.readInt();
+            int maxDistance = in.readInt();
+            long positionsHash = in.readLong();
+            int[] starts = new int[numberOfSites + 1];
+            for (int site = 0; site < numberOfSites; site++) {
+                starts[site + 1] = starts[site] + in.readInt();
+            }
+            int[] neighbors = new int[starts[numberOfSites]];
+            for (int i = 0; i < neighbors.length; i++) {
+                neighbors[i] = in.readInt();
+            }
+            return new LDNeighborhoodIndex(numberOfTaxa, numberOfNeighbors, maxDistance, positionsHash, starts, neighbors);
+        } catch (IOException e) {
+            myLogger.debug(e.getMessage(), e);
+            throw new IllegalStateException("LDNeighborhoodIndex: read: problem reading: " + filename + "\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Packs the genotypes of all taxa at the neighbors of a site.
+     */
+    public GenotypePanel panel(GenotypeTable genotypeTable, int site) {
+        int start = starts[site];
+        int numNeighbors = starts[site + 1] - start;
+        byte[][] genotypes = new byte[numNeighbors][];
+        for (int n = 0; n < numNeighbors; n++) {
+            genotypes[n] = genotypeTable.genotypeAllTaxa(neighbors[start + n]);
+        }
+        return new GenotypePanel(genotypes, genotypeTable.numberOfTaxa());
+    }
+
+    /**
+     * Genotypes of all taxa at a set of sites, packed 64 sites to a word.  For each taxon there are words with the
+     * sites scored, the heterozygous sites, and the bits of a code for the genotype, numbered per site, so two taxa have
+     * the same genotype at a site where all their code bits are the same.
+     */
+    public static final class GenotypePanel {
+        private final int numberOfSites;
+        private final int words;
+        private final long[] known;
+        private final long[] het;
+        //code bit p of taxon t is codes[p][t * words + w]
+        private final long[][] codes;
+        private final int[] numberKnown;
+
+        GenotypePanel(byte[][] genotypes, int numberOfTaxa) {
+            numberOfSites = genotypes.length;
+            words = (numberOfSites + 63) >>> 6;
+            known = new long[numberOfTaxa * words];
+            het = new long[numberOfTaxa * words];
+            numberKnown = new int[numberOfTaxa];
+            byte[][] siteCodes = new byte[numberOfSites][numberOfTaxa];
+            byte[] codeOfGenotype = new byte[256];
+            int maxCode = 0;
+            for (int s = 0; s < numberOfSites; s++) {
+                Arrays.fill(codeOfGenotype, (byte) -1);
+                int nextCode = 0;
+                int w = s >>> 6;
+                long bit = 1L << (s & 63);
+                for (int t = 0; t < numberOfTaxa; t++) {
+                    byte genotype = getUnphasedSortedDiploidValue(genotypes[s][t]);
+                    if (genotype == UNKNOWN_DIPLOID_ALLELE) {
+                        continue;
+                    }
+                    known[t * words + w] |= bit;
+                    numberKnown[t]++;
+                    if (GenotypeTableUtils.isHeterozygous(genotype)) {
+                        het[t * words + w] |= bit;
+                    }
+                    if (codeOfGenotype[genotype & 0xFF] < 0) {
+                        codeOfGenotype[genotype & 0xFF] = (byte) nextCode++;
+                    }
+                    siteCodes[s][t] = codeOfGenotype[genotype & 0xFF];
+                }
+                maxCode = Math.max(maxCode, nextCode - 1);
+            }
+            int numberOfCodeBits = 32 - Integer.numberOfLeadingZeros(maxCode);
+            codes = new long[numberOfCodeBits][numberOfTaxa * words];
+            for (int s = 0; s < numberOfSites; s++) {
+                int w = s >>> 6;
+                long bit = 1L << (s & 63);
+                for (int t = 0; t < numberOfTaxa; t++) {
+                    int code = siteCodes[s][t];
+                    for (int p = 0; code != 0; p++, code >>>= 1) {
+                        if ((code & 1) != 0) {
+                            codes[p][t * words + w] |= bit;
+                        }
+                    }
+                }
+            }
+        }
+
+        public int numberOfSites() {
+            return numberOfSites;
+        }
+
+        /**
+         * Number of sites scored for taxon
+         */
+        public int numberKnown(int taxon) {
+            return numberKnown[taxon];
+        }
+
+        /**
+         * Same as {@link LDKNNiImputationPlugin#dist(byte[], byte[], int)} of the genotypes of two taxa at the sites.
+         * @return distance, or NaN if fewer than min sites are scored in both taxa
+         */
+        public double distance(int taxon1, int taxon2, int min) {
+            int offset1 = taxon1 * words;
+            int offset2 = taxon2 * words;
+            int distance = 0;
+            int count = 0;
+            for (int w = 0; w < words; w++) {
+                long both = known[offset1 + w] & known[offset2 + w];
+                if (both == 0) {
+                    continue;
+                }
+                long differ = 0;
+                for (long[] code : codes) {
+                    differ |= code[offset1 + w] ^ code[offset2 + w];
+                }
+                differ &= both;
+                long eitherHet = het[offset1 + w] | het[offset2 + w];
+                count += Long.bitCount(both);
+                distance += Long.bitCount(differ & eitherHet) + 2 * Long.bitCount(differ & ~eitherHet);
+            }
+            if (count < min) {
+                return Double.NaN;
+            }
+            return (double) distance / (double) (2 * count);
+        }
+    }
+}
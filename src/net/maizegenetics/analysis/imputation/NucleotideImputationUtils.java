@@ -30,6 +30,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class NucleotideImputationUtils {
 	private static final Logger myLogger = LogManager.getLogger(NucleotideImputationUtils.class);
@@ -1410,6 +1412,9 @@ public class NucleotideImputationUtils {
 			double phom = (1 - probHeterozygous) / 2;
 			double[] pTrue = new double[]{phom, .25*probHeterozygous ,.5 * probHeterozygous, .25*probHeterozygous, phom};
 
+			//the model reads tp, ep and pTrue as re-estimated by each iteration
+			HiddenMarkovModel hmm = new HiddenMarkovModel(tp, pTrue);
+
 			//iterate
 			ArrayList<byte[]> bestStates = new ArrayList<byte[]>();
 			int[][] previousStateCount = new int[5][3];
@@ -1419,13 +1424,11 @@ public class NucleotideImputationUtils {
 				//apply Viterbi
 				myLogger.info("Iteration " + iter++ + " for " + familyName);
 				bestStates.clear();
-				for (int t = 0; t < ntaxa; t++) {
-					tp.setPositions(snpPositions.get(t));
+				//taxa are independent given the model, so run them in parallel
+				bestStates.addAll(IntStream.range(0, ntaxa).parallel().mapToObj(t -> {
 					int nobs = notMissingCount[t];
 					if (nobs >= 20) {
-						ViterbiAlgorithm va = new ViterbiAlgorithm(nonMissingObs.get(t), tp, ep, pTrue);
-						va.calculate();
-						bestStates.add(va.getMostProbableStateSequence());
+						return hmm.viterbi(nonMissingObs.get(t), snpPositions.get(t), ep);
 					} else { //do not impute if obs < 20
 						myLogger.info("Fewer then 20 observations for " + a.taxa().taxaName(t));
 						byte[] states = new byte[nobs];
@@ -1435,9 +1438,9 @@ public class NucleotideImputationUtils {
 							else if (obs[i] == CC) states[i] = 4;
 							else states[i] = 2;
 						}
-						bestStates.add(states);
+						return states;
 					}
-				}
+				}).collect(Collectors.toList()));
 
 				//re-estimate transition probabilities
 				int[][] transitionCounts = new int[5][5];
@@ -57,8 +57,22 @@ public class TransitionProbability {
 
 	public void setNode(int node) {
 		if (node <= 0) return;
-		int n = probabilityOfATransition.length;
+		int n = getNumberOfStates();
+		double[] table = transitionProbabilities(positions, node, new double[n * n]);
 		adjustedProbability = new double[n][n];
+		for (int row = 0; row < n; row++) System.arraycopy(table, row * n, adjustedProbability[row], 0, n);
+	}
+
+	/**
+	 * Calculates the transition probabilities into a node without changing the state of this object, so that
+	 * one TransitionProbability can be used by many threads, each with its own sequence of positions.
+	 * @param positions	the positions of the nodes of a sequence
+	 * @param node	a node > 0
+	 * @param table	the output, of length at least number of states squared
+	 * @return	table, with table[state1 * number of states + state2] = the probability of a transition from state1 at node - 1 to state2 at node
+	 */
+	public double[] transitionProbabilities(int[] positions, int node, double[] table) {
+		int n = probabilityOfATransition.length;
 		int segmentLength = Math.abs(positions[node] - positions[node - 1]);
 		double m;
 		for (int row = 0; row < n; row++) {
@@ -66,12 +80,13 @@ public class TransitionProbability {
 			for (int col = 0; col < n; col++) {
 				if (col != row) {
 					m = -Math.log(1 - 2 * probabilityOfATransition[row][col]) * segmentLength / avgSegmentLength / 2;
-					adjustedProbability[row][col] = (1 - Math.exp(-2*m)) / 2;
-					offdiagsum += adjustedProbability[row][col];
+					table[row * n + col] = (1 - Math.exp(-2*m)) / 2;
+					offdiagsum += table[row * n + col];
 				}
 			}
-			adjustedProbability[row][row] = 1 - offdiagsum;
+			table[row * n + row] = 1 - offdiagsum;
 		}
+		return table;
 	}
 
 	public void setAverageSegmentLength(double length) { avgSegmentLength = length; }
@@ -20,26 +20,24 @@ public class TransitionProbabilityWithVariableRecombination extends TransitionPr
 	}
 
 	@Override
-	public void setNode(int node) {
-		if (node <= 0) return;
-		double rrr = getRelativeRecombinationRate(node);
+	public double[] transitionProbabilities(int[] positions, int node, double[] table) {
+		double rrr = getRelativeRecombinationRate(positions, node);
 		int n = transitionCounts.length;
-		adjustedProbability = new double[n][n];
 		int segmentLength = positions[node] - positions[node - 1];
-		double m;
 		for (int row = 0; row < n; row++) {
 			double offdiagsum = 0;
 			for (int col = 0; col < n; col++) {
 				if (col != row) {
-					adjustedProbability[row][col] = segmentLength * rrr * transitionCounts[row][col] / numberOfTaxa;
-					offdiagsum += adjustedProbability[row][col];
+					table[row * n + col] = segmentLength * rrr * transitionCounts[row][col] / numberOfTaxa;
+					offdiagsum += table[row * n + col];
 				}
 			}
-			adjustedProbability[row][row] = 1 - offdiagsum;
+			table[row * n + row] = 1 - offdiagsum;
 		}
+		return table;
 	}
 	
-//	private double getRelativeRecombinationRate(int node) {
+//	private double getRelativeRecombinationRate(int[] positions, int node) {
 //		int start = Arrays.binarySearch(ratePosition, positions[node - 1]);
 //		int end = Arrays.binarySearch(ratePosition, positions[node]);
 //		if (start < 0) start = -start - 2;
@@ -61,7 +59,7 @@ public class TransitionProbabilityWithVariableRecombination extends TransitionPr
 		this.numberOfTaxa = numberOfTaxa;
 	}
 
-	private double getRelativeRecombinationRate(int node) {
+	private double getRelativeRecombinationRate(int[] positions, int node) {
 		int index1 = Arrays.binarySearch(ratePosition, positions[node]);
 		if (index1 < 0) {
 			index1 = -index1 - 1;
@@ -23,6 +23,16 @@ public interface AdditiveSite extends Comparable<AdditiveSite>, Serializable {
      */
     double[] getCovariate(int[] subset);
 
+    /**
+     * Returns the same values as {@link #getCovariate()}, written into buffer when an implementation can do so. Callers
+     * that read many sites reuse one buffer rather than allocating an array per site.
+     * @param buffer	an array to hold the covariate, which must not be shared between threads
+     * @return			the covariate for this site, either buffer or a new array
+     */
+    default double[] getCovariate(double[] buffer) {
+        return getCovariate();
+    }
+
     /**
      * @return	the site index corresponding to the site number in the source GenotypeTable
      */
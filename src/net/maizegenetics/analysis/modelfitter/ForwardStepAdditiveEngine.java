@@ -0,0 +1,311 @@
+package net.maizegenetics.analysis.modelfitter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.stats.linearmodels.LinearModelUtils;
+import net.maizegenetics.stats.linearmodels.ModelEffect;
+
+/**
+ * Scores every AdditiveSite against a base model for one forward step of stepwise model fitting. The result is the
+ * same as that of {@link ForwardStepAdditiveSpliterator}, but the base model is factored once per step rather than
+ * once per site:
+ * <ul>
+ * <li>the columns of the base model design matrix X1 are replaced by an orthonormal basis Q (Gram-Schmidt, with
+ * columns that depend on earlier ones dropped), and y by its residual e = y - QQ'y</li>
+ * <li>for a site covariate x, X2'M1X2 = x'x - |Q'x|^2 and X2'M1y = x'e, so a site costs one pass over its
+ * covariate, in place of a sweep or partitioned fit with matrices the size of the model</li>
+ * <li>sites are scored in blocks of SITES_PER_BLOCK in parallel. Each thread reads the covariates of a block into
+ * buffers it reuses and multiplies them by Q in a single pass over the rows of Q, so that Q is read once per block.</li>
+ * </ul>
+ * The engine is read only once made, so nothing is copied for the threads.
+ * <p></p>
+ * The same factoring is used for permutation tests by {@link #permutationMinP(List, List)}, which stacks the permuted
+ * data sets as the columns of one matrix, so that each block of site covariates is read once for all permutations.
+ */
+public class ForwardStepAdditiveEngine {
+    private static final int SITES_PER_BLOCK = 16;
+
+    private final int nobs;
+    private final int rank;
+    private final double[][] columns;  //Q, by column
+    private final double[] basis;  //Q, row major: basis[row * rank + column]
+    private final double[] residuals;
+    private final double residualSS;
+    private final ThreadLocal<double[][]> threadCovariates;
+    private final ThreadLocal<double[]> threadProjections;
+
+    /**
+     * @param baseModel	the model effects of the current model
+     * @param y	the data
+     */
+    public ForwardStepAdditiveEngine(List<ModelEffect> baseModel, double[] y) {
+        nobs = y.length;
+        columns = orthonormalColumns(baseModel, nobs);
+        rank = columns.length;
+        basis = new double[nobs * rank];
+        for (int j = 0; j < rank; j++) {
+            for (int i = 0; i < nobs; i++)
+                basis[i * rank + j] = columns[j][i];
+        }
+
+        residuals = y.clone();
+        for (double[] q : columns)
+            subtractProjection(residuals, q);
+        double ss = 0;
+        for (double r : residuals)
+            ss += r * r;
+        residualSS = ss;
+
+        threadCovariates = ThreadLocal.withInitial(() -> new double[SITES_PER_BLOCK][nobs]);
+        threadProjections = ThreadLocal.withInitial(() -> new double[SITES_PER_BLOCK * rank]);
+    }
+
+    /**
+     * Sets the criterion value of each site, as {@link ForwardStepAdditiveSpliterator} does: the model sum of squares of
+     * the site for pval, or the aic, bic or mbic of the base model plus the site. The error sum of squares used for aic,
+     * bic and mbic is the residual sum of squares of the base model less the model sum of squares of the site.
+     * @param sites	the sites to score
+     */
+    public void scoreSites(List<AdditiveSite> sites) {
+        int nsites = sites.size();
+        int numberOfBlocks = (nsites + SITES_PER_BLOCK - 1) / SITES_PER_BLOCK;
+        IntStream.range(0, numberOfBlocks).parallel()
+                .forEach(b -> scoreBlock(sites, b * SITES_PER_BLOCK, Math.min(nsites, (b + 1) * SITES_PER_BLOCK), nsites));
+    }
+
+    /**
+     * Scores the sites with {@link #scoreSites(List)}
+     * @param sites	the sites to score
+     * @return	the site with the best criterion value, or an empty Optional if there are no sites
+     */
+    public Optional<AdditiveSite> bestSite(List<AdditiveSite> sites) {
+        scoreSites(sites);
+        return sites.stream().max((a, b) -> a.compareTo(b));
+    }
+
+    /**
+     * The permutation test of {@link CovariatePermutationTestSpliterator}: for each permuted data set, the minimum over
+     * all sites of the p-value of the site added to the base model. The permuted data sets are residualized against the
+     * base model once and held as an observations x permutations matrix. For each block of sites, the product of the
+     * block covariates and that matrix gives x'M1y for every site and permutation in one pass, while the block is in
+     * cache. Because every site has the same df, the minimum p-value is that of the maximum F, so only the maximum F of
+     * each permutation is kept and converted to a p-value at the end.
+     * @param permutedData	the permuted data sets, each with a value for each observation
+     * @param sites	the sites to test
+     * @return	the minimum p-value of each permuted data set, or 1 if no site can be tested
+     */
+    public double[] permutationMinP(List<double[]> permutedData, List<AdditiveSite> sites) {
+        int nperm = permutedData.size();
+        int nsites = sites.size();
+
+        //M1y for each permutation, row major: permutedResiduals[observation * nperm + permutation]
+        double[] permutedResiduals = new double[nobs * nperm];
+        double[] errorSS = new double[nperm];
+        for (int p = 0; p < nperm; p++) {
+            double[] e = permutedData.get(p).clone();
+            if (e.length != nobs)
+                throw new IllegalArgumentException("ForwardStepAdditiveEngine: permutationMinP: permuted data length " + e.length
+                        + " does not equal the number of observations " + nobs);
+            for (double[] q : columns)
+                subtractProjection(e, q);
+            for (int i = 0; i < nobs; i++) {
+                permutedResiduals[i * nperm + p] = e[i];
+                errorSS[p] += e[i] * e[i];
+            }
+        }
+        double errordf = nobs - rank - 1;
+
+        ThreadLocal<double[]> threadProducts = ThreadLocal.withInitial(() -> new double[SITES_PER_BLOCK * nperm]);
+        int numberOfBlocks = (nsites + SITES_PER_BLOCK - 1) / SITES_PER_BLOCK;
+        double[] maxF = IntStream.range(0, numberOfBlocks).parallel()
+                .collect(() -> new double[nperm],
+                        (max, b) -> permutationBlock(sites, b * SITES_PER_BLOCK, Math.min(nsites, (b + 1) * SITES_PER_BLOCK),
+                                permutedResiduals, errorSS, errordf, threadProducts.get(), max),
+                        (max, other) -> {
+                            for (int p = 0; p < nperm; p++)
+                                if (other[p] > max[p]) max[p] = other[p];
+                        });
+
+        double[] minP = new double[nperm];
+        for (int p = 0; p < nperm; p++) {
+            minP[p] = maxF[p] > 0 ? LinearModelUtils.Ftest(maxF[p], 1, errordf) : 1;
+        }
+        return minP;
+    }
+
+    /**
+     * @return	the rank of the base model, which is its model df
+     */
+    public int rank() {
+        return rank;
+    }
+
+    /**
+     * @return	the residual sum of squares of the base model
+     */
+    public double residualSS() {
+        return residualSS;
+    }
+
+    private void scoreBlock(List<AdditiveSite> sites, int first, int last, int nsites) {
+        int nblock = last - first;
+        double[][] x = new double[nblock][];
+        double[] xtx = new double[nblock];
+        double[] xte = new double[nblock];
+        readCovariates(sites, first, last, x);
+
+        //Q'x for the block, with x'x and x'e, in one pass over the rows of Q
+        double[] qtx = threadProjections.get();
+        Arrays.fill(qtx, 0, nblock * rank, 0);
+        for (int i = 0; i < nobs; i++) {
+            int row = i * rank;
+            double e = residuals[i];
+            for (int s = 0; s < nblock; s++) {
+                double xi = x[s][i];
+                if (xi == 0)
+                    continue;
+                xtx[s] += xi * xi;
+                xte[s] += xi * e;
+                int offset = s * rank;
+                for (int j = 0; j < rank; j++)
+                    qtx[offset + j] += basis[row + j] * xi;
+            }
+        }
+
+        for (int s = 0; s < nblock; s++) {
+            double projectedSS = 0;
+            for (int j = s * rank, end = j + rank; j < end; j++)
+                projectedSS += qtx[j] * qtx[j];
+            double x2tm1x2 = xtx[s] - projectedSS;
+            double modelSS = x2tm1x2 < 1e-12 ? 0 : xte[s] * xte[s] / x2tm1x2;
+            AdditiveSite as = sites.get(first + s);
+            as.criterionValue(criterionValue(as.selectionCriterion(), modelSS, nsites));
+        }
+    }
+
+    //updates maxF with the F values of the sites [first, last) for each permutation
+    private void permutationBlock(List<AdditiveSite> sites, int first, int last, double[] permutedResiduals,
+            double[] errorSS, double errordf, double[] xte, double[] maxF) {
+        int nblock = last - first;
+        int nperm = errorSS.length;
+        double[][] x = new double[nblock][];
+        double[] xtx = new double[nblock];
+        readCovariates(sites, first, last, x);
+
+        //Q'x and x'M1Y for the block, in one pass over the rows of Q and M1Y
+        double[] qtx = threadProjections.get();
+        Arrays.fill(qtx, 0, nblock * rank, 0);
+        Arrays.fill(xte, 0, nblock * nperm, 0);
+        for (int i = 0; i < nobs; i++) {
+            int row = i * rank;
+            int residualRow = i * nperm;
+            for (int s = 0; s < nblock; s++) {
+                double xi = x[s][i];
+                if (xi == 0)
+                    continue;
+                xtx[s] += xi * xi;
+                int offset = s * rank;
+                for (int j = 0; j < rank; j++)
+                    qtx[offset + j] += basis[row + j] * xi;
+                offset = s * nperm;
+                for (int p = 0; p < nperm; p++)
+                    xte[offset + p] += xi * permutedResiduals[residualRow + p];
+            }
+        }
+
+        for (int s = 0; s < nblock; s++) {
+            double projectedSS = 0;
+            for (int j = s * rank, end = j + rank; j < end; j++)
+                projectedSS += qtx[j] * qtx[j];
+            double x2tm1x2 = xtx[s] - projectedSS;
+            if (x2tm1x2 < 1e-12)
+                continue;
+            for (int p = 0, offset = s * nperm; p < nperm; p++) {
+                double modelSS = xte[offset + p] * xte[offset + p] / x2tm1x2;
+                double F = modelSS / (errorSS[p] - modelSS) * errordf;
+                if (F > maxF[p])
+                    maxF[p] = F;
+            }
+        }
+    }
+
+    //reads the covariates of the sites [first, last) into the buffers of this thread
+    private void readCovariates(List<AdditiveSite> sites, int first, int last, double[][] x) {
+        double[][] buffers = threadCovariates.get();
+        for (int s = 0; s < last - first; s++) {
+            x[s] = sites.get(first + s).getCovariate(buffers[s]);
+            if (x[s].length != nobs)
+                throw new IllegalArgumentException("ForwardStepAdditiveEngine: readCovariates: covariate length " + x[s].length
+                        + " does not equal the number of observations " + nobs);
+        }
+    }
+
+    private double criterionValue(AdditiveSite.CRITERION criterion, double modelSS, int nsites) {
+        double modeldf = rank + 1;
+        switch (criterion) {
+        case pval:
+            return modelSS;
+        case aic:
+            return nobs * Math.log((residualSS - modelSS) / nobs) + 2 * modeldf;
+        case bic:
+            return nobs * Math.log((residualSS - modelSS) / nobs) + Math.log(nobs) * modeldf;
+        case mbic:
+            return nobs * Math.log((residualSS - modelSS) / nobs) + Math.log(nobs) * modeldf
+                    + 2 * modeldf * Math.log(nsites / 2.2 - 1);
+        default:
+            throw new IllegalArgumentException("ForwardStepAdditiveEngine: criterionValue: unknown criterion " + criterion);
+        }
+    }
+
+    //modified Gram-Schmidt, applied twice to each column, dropping columns that are numerically in the span of earlier ones
+    private static double[][] orthonormalColumns(List<ModelEffect> baseModel, int nobs) {
+        int ncol = 0;
+        DoubleMatrix[] designMatrices = new DoubleMatrix[baseModel.size()];
+        for (int e = 0; e < designMatrices.length; e++) {
+            designMatrices[e] = baseModel.get(e).getX();
+            ncol += designMatrices[e].numberOfColumns();
+        }
+
+        double[][] columns = new double[ncol][];
+        int rank = 0;
+        for (DoubleMatrix X : designMatrices) {
+            for (int c = 0; c < X.numberOfColumns(); c++) {
+                double[] v = new double[nobs];
+                double originalSS = 0;
+                for (int i = 0; i < nobs; i++) {
+                    v[i] = X.get(i, c);
+                    originalSS += v[i] * v[i];
+                }
+                if (originalSS == 0)
+                    continue;
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int j = 0; j < rank; j++)
+                        subtractProjection(v, columns[j]);
+                }
+                double ss = 0;
+                for (double d : v)
+                    ss += d * d;
+                if (ss <= originalSS * 1e-10)
+                    continue;
+                double scale = 1 / Math.sqrt(ss);
+                for (int i = 0; i < nobs; i++)
+                    v[i] *= scale;
+                columns[rank++] = v;
+            }
+        }
+        return Arrays.copyOf(columns, rank);
+    }
+
+    //v = v - qq'v, for q of unit length
+    private static void subtractProjection(double[] v, double[] q) {
+        double qtv = 0;
+        for (int i = 0; i < v.length; i++)
+            qtv += q[i] * v[i];
+        for (int i = 0; i < v.length; i++)
+            v[i] -= qtv * q[i];
+    }
+}
@@ -127,8 +127,27 @@ public class GenotypeAdditiveSite extends AbstractAdditiveSite {
             return getCovariateWithReindex(subset);
     }
 
+    @Override
+    public double[] getCovariate(double[] buffer) {
+        if (taxaIndex == null) {
+            if (buffer.length != ntaxa)
+                return getCovariateNoReindex();
+            return getCovariateNoReindex(buffer);
+        } else {
+            if (buffer.length != taxaIndex.length)
+                return getCovariateWithReindex();
+            for (int i = 0; i < buffer.length; i++) {
+                buffer[i] = byteConversion[genotypeIndex(taxaIndex[i])];
+            }
+            return buffer;
+        }
+    }
+
     public double[] getCovariateNoReindex() {
-        double[] cov = new double[ntaxa];
+        return getCovariateNoReindex(new double[ntaxa]);
+    }
+
+    private double[] getCovariateNoReindex(double[] cov) {
         int intCount = 0;
         int genoCount = 0;
         while (genoCount < ntaxa) {
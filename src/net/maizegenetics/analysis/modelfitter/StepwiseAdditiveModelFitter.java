@@ -327,15 +327,14 @@ public class StepwiseAdditiveModelFitter {
         //create a stream returning AdditiveSites that have an ordering; select the max
         //criteria can be one of SS, pvalue, aic, bic, mbic (handled by ForwardStepAdditiveSpliterator)
 
-        Spliterator<AdditiveSite> siteEvaluator;
+        Optional<AdditiveSite> bestSite;
         if (isNested) {
-            siteEvaluator =
+            Spliterator<AdditiveSite> siteEvaluator =
                     new ForwardStepNestedAdditiveSpliterator(mySites, myModel, y, nestingFactor);
+            bestSite = StreamSupport.stream(siteEvaluator, true).max((a, b) -> a.compareTo(b));
         } else {
-            siteEvaluator = new ForwardStepAdditiveSpliterator(mySites, myModel, y);
+            bestSite = new ForwardStepAdditiveEngine(myModel, y).bestSite(mySites);
         }
-        Optional<AdditiveSite> bestSite =
-                StreamSupport.stream(siteEvaluator, true).max((a, b) -> a.compareTo(b));
 
         if (!bestSite.isPresent())
             return Double.NaN;
@@ -677,15 +676,7 @@ public class StepwiseAdditiveModelFitter {
                                 return a;
                             });
         } else {
-            minP =
-                    StreamSupport.stream(new CovariatePermutationTestSpliterator(permutedData, mySites, myModel), true).reduce(maxP, (a, b) -> {
-                        int n = a.length;
-                        for (int i = 0; i < n; i++) {
-                            if (a[i] > b[i])
-                                a[i] = b[i];
-                        }
-                        return a;
-                    });
+            minP = new ForwardStepAdditiveEngine(myModel, y).permutationMinP(permutedData, mySites);
         }
 
         Arrays.sort(minP);
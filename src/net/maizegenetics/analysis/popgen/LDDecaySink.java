@@ -0,0 +1,98 @@
+package net.maizegenetics.analysis.popgen;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.TableReport;
+import net.maizegenetics.util.TableReportBuilder;
+
+/**
+ * Accumulates mean r^2 by physical distance (LD decay) as results are
+ * received.  Site pairs on the same chromosome are binned by distance in
+ * fixed width bins up to a maximum distance.  Memory is one sum and count
+ * per bin.  Results with an r^2 of NaN, on different chromosomes, or beyond
+ * the maximum distance are ignored.
+ */
+public class LDDecaySink implements LDResultSink {
+
+    private final GenotypeTable myGenotypes;
+    private final int myBinWidth;
+    private final int myMaxDistance;
+    private final double[] myR2Sums;
+    private final long[] myCounts;
+
+    /**
+     * Constructor
+     *
+     * @param genotypes genotypes used for site positions
+     * @param binWidth bin width (bp)
+     * @param maxDistance maximum distance (bp)
+     */
+    public LDDecaySink(GenotypeTable genotypes, int binWidth, int maxDistance) {
+        if (binWidth < 1) {
+            throw new IllegalArgumentException("LDDecaySink: bin width must be at least 1: " + binWidth);
+        }
+        if (maxDistance < 0) {
+            throw new IllegalArgumentException("LDDecaySink: max distance can't be negative: " + maxDistance);
+        }
+        myGenotypes = genotypes;
+        myBinWidth = binWidth;
+        myMaxDistance = maxDistance;
+        // last bin ends at maxDistance, so it can be narrower than binWidth
+        int numBins = maxDistance / binWidth + 1;
+        myR2Sums = new double[numBins];
+        myCounts = new long[numBins];
+    }
+
+    @Override
+    public void accept(LDResult result) {
+        float r2 = result.r2();
+        if (Float.isNaN(r2)) {
+            return;
+        }
+        int site1 = result.site1();
+        int site2 = result.site2();
+        if (!myGenotypes.chromosome(site1).equals(myGenotypes.chromosome(site2))) {
+            return;
+        }
+        int distance = Math.abs(myGenotypes.chromosomalPosition(site1) - myGenotypes.chromosomalPosition(site2));
+        if (distance > myMaxDistance) {
+            return;
+        }
+        int bin = distance / myBinWidth;
+        myR2Sums[bin] += r2;
+        myCounts[bin]++;
+    }
+
+    /**
+     * Mean r^2 of the bin
+     *
+     * @param bin bin index
+     *
+     * @return mean r^2 or NaN if bin is empty
+     */
+    public double meanR2(int bin) {
+        return (myCounts[bin] == 0) ? Double.NaN : myR2Sums[bin] / (double) myCounts[bin];
+    }
+
+    public long count(int bin) {
+        return myCounts[bin];
+    }
+
+    public int numberOfBins() {
+        return myCounts.length;
+    }
+
+    /**
+     * Returns table with one row per distance bin.
+     *
+     * @return table report
+     */
+    public TableReport report() {
+        TableReportBuilder builder = TableReportBuilder.getInstance("LD Decay",
+                new String[]{"DistanceMin_bp", "DistanceMax_bp", "MeanR^2", "N"});
+        for (int bin = 0; bin < myCounts.length; bin++) {
+            builder.add(new Object[]{bin * myBinWidth, Math.min((bin + 1) * myBinWidth - 1, myMaxDistance), meanR2(bin), myCounts[bin]});
+        }
+        return builder.build();
+    }
+
+}
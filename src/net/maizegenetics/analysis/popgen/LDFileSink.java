@@ -0,0 +1,74 @@
+package net.maizegenetics.analysis.popgen;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.DoubleFormat;
+import net.maizegenetics.util.Utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+/**
+ * Writes linkage disequilibrium results to a tab delimited file as they are
+ * calculated.  Columns are the same as the {@link LinkageDisequilibrium} table
+ * report.
+ */
+public class LDFileSink implements LDResultSink {
+
+    private final GenotypeTable myGenotypes;
+    private final String myFilename;
+    private final BufferedWriter myWriter;
+
+    /**
+     * Constructor
+     *
+     * @param genotypes genotypes used to annotate sites
+     * @param filename output file (.gz to compress)
+     */
+    public LDFileSink(GenotypeTable genotypes, String filename) {
+        myGenotypes = genotypes;
+        myFilename = filename;
+        myWriter = Utils.getBufferedWriter(filename);
+        try {
+            String[] colNames = LinkageDisequilibrium.SITE_PAIR_COLUMN_NAMES;
+            for (int i = 0; i < colNames.length; i++) {
+                if (i != 0) {
+                    myWriter.write('\t');
+                }
+                myWriter.write(colNames[i]);
+            }
+            myWriter.write('\n');
+        } catch (IOException e) {
+            throw new IllegalStateException("LDFileSink: problem writing file: " + filename + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void accept(LDResult result) {
+        Object[] row = LinkageDisequilibrium.getRow(myGenotypes, result.site1(), result.site2(), result);
+        try {
+            for (int i = 0; i < row.length; i++) {
+                if (i != 0) {
+                    myWriter.write('\t');
+                }
+                if (row[i] instanceof Double) {
+                    myWriter.write(DoubleFormat.format((Double) row[i]));
+                } else {
+                    myWriter.write(row[i].toString());
+                }
+            }
+            myWriter.write('\n');
+        } catch (IOException e) {
+            throw new IllegalStateException("LDFileSink: accept: problem writing file: " + myFilename + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            myWriter.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("LDFileSink: finish: problem closing file: " + myFilename + ": " + e.getMessage());
+        }
+    }
+
+}
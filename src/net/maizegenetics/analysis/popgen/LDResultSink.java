@@ -0,0 +1,59 @@
+package net.maizegenetics.analysis.popgen;
+
+import java.util.List;
+
+/**
+ * Receives linkage disequilibrium results as they are calculated by
+ * {@link LinkageDisequilibriumEngine}, so that results do not need to be held
+ * in memory.  Calls are made from a single thread.
+ *
+ * @see LDFileSink
+ * @see LDThresholdSink
+ * @see LDTopKSink
+ * @see LDDecaySink
+ */
+public interface LDResultSink {
+
+    /**
+     * Accepts the result for one site pair.
+     *
+     * @param result LD result
+     */
+    public void accept(LDResult result);
+
+    /**
+     * Called once after the last result.
+     */
+    public default void finish() {
+        // nothing by default
+    }
+
+    /**
+     * Returns sink that passes each result to all the given sinks.
+     *
+     * @param sinks sinks
+     *
+     * @return combined sink
+     */
+    public static LDResultSink of(List<? extends LDResultSink> sinks) {
+        if (sinks.size() == 1) {
+            return sinks.get(0);
+        }
+        return new LDResultSink() {
+            @Override
+            public void accept(LDResult result) {
+                for (LDResultSink sink : sinks) {
+                    sink.accept(result);
+                }
+            }
+
+            @Override
+            public void finish() {
+                for (LDResultSink sink : sinks) {
+                    sink.finish();
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,53 @@
+package net.maizegenetics.analysis.popgen;
+
+/**
+ * Passes only results with r^2 at or above a threshold to another sink.
+ * Results with an r^2 of NaN are dropped.
+ */
+public class LDThresholdSink implements LDResultSink {
+
+    private final float myMinR2;
+    private final LDResultSink mySink;
+    private long myNumAccepted = 0;
+    private long myNumTotal = 0;
+
+    /**
+     * Constructor
+     *
+     * @param minR2 minimum r^2
+     * @param sink sink for results that pass
+     */
+    public LDThresholdSink(float minR2, LDResultSink sink) {
+        myMinR2 = minR2;
+        mySink = sink;
+    }
+
+    @Override
+    public void accept(LDResult result) {
+        myNumTotal++;
+        if (result.r2() >= myMinR2) {
+            myNumAccepted++;
+            mySink.accept(result);
+        }
+    }
+
+    @Override
+    public void finish() {
+        mySink.finish();
+    }
+
+    /**
+     * Number of results passed to the sink.
+     */
+    public long numberAccepted() {
+        return myNumAccepted;
+    }
+
+    /**
+     * Number of results received.
+     */
+    public long numberTotal() {
+        return myNumTotal;
+    }
+
+}
@@ -0,0 +1,163 @@
+package net.maizegenetics.analysis.popgen;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.util.TableReport;
+import net.maizegenetics.util.TableReportBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the K site pairs with the highest r^2 for each site.  Each result is
+ * considered for both of its sites.  Memory is fixed at K partners per site,
+ * held in one min heap per site.  Results with an r^2 of NaN are ignored.
+ */
+public class LDTopKSink implements LDResultSink {
+
+    private final GenotypeTable myGenotypes;
+    private final int myK;
+    // heap of site s occupies [s * myK, s * myK + myCounts[s])
+    private final int[] myPartners;
+    private final float[] myR2;
+    private final int[] myCounts;
+
+    /**
+     * Constructor
+     *
+     * @param genotypes genotypes used to annotate sites
+     * @param k number of partners kept per site
+     */
+    public LDTopKSink(GenotypeTable genotypes, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LDTopKSink: k must be at least 1: " + k);
+        }
+        myGenotypes = genotypes;
+        myK = k;
+        long size = (long) genotypes.numberOfSites() * (long) k;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("LDTopKSink: number of sites times k too large: " + size);
+        }
+        myPartners = new int[(int) size];
+        myR2 = new float[(int) size];
+        myCounts = new int[genotypes.numberOfSites()];
+    }
+
+    @Override
+    public void accept(LDResult result) {
+        float r2 = result.r2();
+        if (Float.isNaN(r2)) {
+            return;
+        }
+        add(result.site1(), result.site2(), r2);
+        add(result.site2(), result.site1(), r2);
+    }
+
+    private void add(int site, int partner, float r2) {
+        int base = site * myK;
+        int count = myCounts[site];
+        if (count < myK) {
+            // sift up
+            int i = count;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (myR2[base + parent] <= r2) {
+                    break;
+                }
+                myR2[base + i] = myR2[base + parent];
+                myPartners[base + i] = myPartners[base + parent];
+                i = parent;
+            }
+            myR2[base + i] = r2;
+            myPartners[base + i] = partner;
+            myCounts[site] = count + 1;
+        } else if (r2 > myR2[base]) {
+            // replace minimum and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= myK) {
+                    break;
+                }
+                if (child + 1 < myK && myR2[base + child + 1] < myR2[base + child]) {
+                    child++;
+                }
+                if (myR2[base + child] >= r2) {
+                    break;
+                }
+                myR2[base + i] = myR2[base + child];
+                myPartners[base + i] = myPartners[base + child];
+                i = child;
+            }
+            myR2[base + i] = r2;
+            myPartners[base + i] = partner;
+        }
+    }
+
+    /**
+     * Partners of the given site ordered by decreasing r^2.
+     *
+     * @param site site
+     *
+     * @return partner sites
+     */
+    public int[] topPartners(int site) {
+        return sorted(site).partners;
+    }
+
+    /**
+     * r^2 values matching {@link #topPartners(int)}.
+     *
+     * @param site site
+     *
+     * @return r^2 values
+     */
+    public float[] topR2(int site) {
+        return sorted(site).r2;
+    }
+
+    private Sorted sorted(int site) {
+        int base = site * myK;
+        int count = myCounts[site];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(myR2[base + b], myR2[base + a]));
+        Sorted result = new Sorted(count);
+        for (int i = 0; i < count; i++) {
+            result.partners[i] = myPartners[base + order[i]];
+            result.r2[i] = myR2[base + order[i]];
+        }
+        return result;
+    }
+
+    private static class Sorted {
+
+        private final int[] partners;
+        private final float[] r2;
+
+        private Sorted(int count) {
+            partners = new int[count];
+            r2 = new float[count];
+        }
+    }
+
+    /**
+     * Returns table with one row per site and partner.
+     *
+     * @return table report
+     */
+    public TableReport report() {
+        TableReportBuilder builder = TableReportBuilder.getInstance("LD Top " + myK + " Partners",
+                new String[]{"Locus", "Position", "Site", "Rank", "PartnerLocus", "PartnerPosition", "PartnerSite", "R^2"});
+        for (int site = 0, n = myCounts.length; site < n; site++) {
+            Sorted sorted = sorted(site);
+            for (int i = 0; i < sorted.partners.length; i++) {
+                int partner = sorted.partners[i];
+                builder.add(new Object[]{myGenotypes.chromosomeName(site), myGenotypes.chromosomalPosition(site), site, i + 1,
+                        myGenotypes.chromosomeName(partner), myGenotypes.chromosomalPosition(partner), partner, sorted.r2[i]});
+            }
+        }
+        return builder.build();
+    }
+
+}
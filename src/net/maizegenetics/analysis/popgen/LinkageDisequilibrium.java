@@ -12,7 +12,7 @@ import net.maizegenetics.dna.snp.GenotypeTable;
 import net.maizegenetics.dna.snp.GenotypeTableBuilder;
 import net.maizegenetics.stats.statistics.FisherExact;
 import net.maizegenetics.util.BitSet;
-import net.maizegenetics.util.OpenBitSet;
+import net.maizegenetics.util.BitUtil;
 import net.maizegenetics.util.ProgressListener;
 import net.maizegenetics.util.TableReport;
 import org.apache.logging.log4j.LogManager;
@@ -112,6 +112,9 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
     private static String NotImplemented = "NotImplemented";
     private static String NA = "N/A";
     private static Integer IntegerTwo = Integer.valueOf(2);
+    static final String[] SITE_PAIR_COLUMN_NAMES = new String[]{"Locus1", "Position1", "Site1",
+        "NumberOfStates1", "States1", "Frequency1", "Locus2", "Position2",
+        "Site2", "NumberOfStates2", "States2", "Frequency2", "Dist_bp", "R^2", "DPrime", "pDiseq", "N"};
     private HetTreatment myHetTreatment = HetTreatment.Homozygous;
 
     /**
@@ -152,12 +155,23 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      */
     public void run() {
         initMatrices();
+        run(this::addResult);
+        if (myMapResults != null) myMapResults.trimToSize();
+    }
+
+    /**
+     * Calculates LD and passes results to the given sink instead of keeping
+     * them for this table report.
+     *
+     * @param sink result sink
+     */
+    public void run(LDResultSink sink) {
         switch (myHetTreatment) {
             case Haplotype:
-                calculateBitLDForHaplotype(false);
+                calculateBitLDForHaplotype(false, sink);
                 break;
             case Homozygous:
-                calculateBitLDForHaplotype(true);
+                calculateBitLDForHaplotype(true, sink);
                 break;
             case Genotype:
                 calculateBitLDWithHets();
@@ -212,7 +226,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         return getLDForSitePair(rMj, rMn, cMj, cMn, minorCnt, minTaxaForEstimate, -1.0f, fisherExact, site1, site2);
     }
 
-    private void calculateBitLDForHaplotype(boolean ignoreHets) {
+    private void calculateBitLDForHaplotype(boolean ignoreHets, LDResultSink sink) {
         //It will ignore hets, make a new Alignment and set all het calls to missing. Otherwise set the pointer to the old alignment
         GenotypeTable workingAlignment;
         if (ignoreHets) {
@@ -220,32 +234,25 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         } else {
             workingAlignment = myAlignment;
         }
-        for (long currTest = 0; currTest < myTotalTests; currTest++) {
-            int r = getRowFromIndex(currTest);
-            int c = getColFromIndex(currTest);
-            int currentProgress = (int) (100.0 * ((double) currTest / (double) myTotalTests));
-            fireProgress(currentProgress);
-            BitSet rMj = workingAlignment.allelePresenceForAllTaxa(r, WHICH_ALLELE.Major);
-            BitSet rMn = workingAlignment.allelePresenceForAllTaxa(r, WHICH_ALLELE.Minor);
-            BitSet cMj = workingAlignment.allelePresenceForAllTaxa(c, WHICH_ALLELE.Major);
-            BitSet cMn = workingAlignment.allelePresenceForAllTaxa(c, WHICH_ALLELE.Minor);
-            LDResult ldr = getLDForSitePair(rMj, rMn, cMj, cMn, 2, myMinTaxaForEstimate, -1.0f, myFisherExact,r,c);
-            if (myIsAccumulativeReport) {
-                if (Float.isNaN(ldr.r2())) {
-                    myAccumulativeRValueBins[myNumAccumulativeBins]++;
-                } else if (ldr.r2() == 1.0f) {
-                    myAccumulativeRValueBins[myNumAccumulativeBins - 1]++;
-                } else {
-                    int index = (int) Math.floor(ldr.r2() / myAccumulativeInterval);
-                    myAccumulativeRValueBins[index]++;
-                }
+        LinkageDisequilibriumEngine engine = new LinkageDisequilibriumEngine(workingAlignment, myCurrDesign, myWindowSize,
+                myTestSite, mySiteList, myMinTaxaForEstimate, myListener);
+        engine.run(sink);
+    }
+
+    private void addResult(LDResult ldr) {
+        if (myIsAccumulativeReport) {
+            if (Float.isNaN(ldr.r2())) {
+                myAccumulativeRValueBins[myNumAccumulativeBins]++;
+            } else if (ldr.r2() == 1.0f) {
+                myAccumulativeRValueBins[myNumAccumulativeBins - 1]++;
             } else {
-                long key = getMapKey(r, c);
-                myMapResults.put(key, ldr);
+                int index = (int) Math.floor(ldr.r2() / myAccumulativeInterval);
+                myAccumulativeRValueBins[index]++;
             }
-
-        } //end of currTest
-        if (myMapResults != null) myMapResults.trimToSize();
+        } else {
+            long key = getMapKey(ldr.site1(), ldr.site2());
+            myMapResults.put(key, ldr);
+        }
     }
 
     private void calculateBitLDWithHets() {
@@ -317,21 +324,44 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
      */
     public static LDResult getLDForSitePair(BitSet rMj, BitSet rMn, BitSet cMj, BitSet cMn,
             int minMinorCnt, int minCnt, float minR2, FisherExact myFisherExact, int site1Index, int site2Index) {
-        // float[] results = {Float.NaN, Float.NaN, Float.NaN, Float.NaN};
         if(myFisherExact==null) myFisherExact=FisherExact.getInstance((2 * (int)rMj.size()) + 10);
+        int numWords = Math.min(Math.min(rMj.getNumWords(), rMn.getNumWords()), Math.min(cMj.getNumWords(), cMn.getNumWords()));
+        return getLDForSitePair(rMj.getBits(), rMn.getBits(), cMj.getBits(), cMn.getBits(), numWords,
+                minMinorCnt, minCnt, minR2, myFisherExact, site1Index, site2Index);
+    }
+
+    /**
+     * Method for estimating LD between a pair of sites given the words of their allele presence bit sets (taxa
+     * are the bits).  Same as {@link #getLDForSitePair(BitSet, BitSet, BitSet, BitSet, int, int, float, FisherExact, int, int)}
+     * without the BitSet overhead.
+     * @param rMj site 1 major alleles
+     * @param rMn site 1 minor alleles
+     * @param cMj site 2 major alleles
+     * @param cMn site 2 minor alleles
+     * @param numWords number of words to intersect
+     * @param minMinorCnt minimum minor allele count after intersection
+     * @param minCnt minimum count after intersection
+     * @param minR2 results below this r2 are ignored for p-value calculation (save times)
+     * @param myFisherExact
+     * @param site1Index annotation of LDresult with sites indices
+     * @param site2Index annotation of LDresult with sites indices
+     * @return
+     */
+    public static LDResult getLDForSitePair(long[] rMj, long[] rMn, long[] cMj, long[] cMn, int numWords,
+            int minMinorCnt, int minCnt, float minR2, FisherExact myFisherExact, int site1Index, int site2Index) {
         LDResult.Builder results = new LDResult.Builder(site1Index,site2Index);
         int n = 0;
         int[][] contig = new int[2][2];
-        n += contig[1][1] = (int) OpenBitSet.intersectionCount(rMn, cMn);
-        n += contig[1][0] = (int) OpenBitSet.intersectionCount(rMn, cMj);
+        n += contig[1][1] = (int) BitUtil.pop_intersect(rMn, cMn, 0, numWords);
+        n += contig[1][0] = (int) BitUtil.pop_intersect(rMn, cMj, 0, numWords);
         if (contig[1][0] + contig[1][1] < minMinorCnt) {
             return results.build();
         }
-        n += contig[0][1] = (int) OpenBitSet.intersectionCount(rMj, cMn);
+        n += contig[0][1] = (int) BitUtil.pop_intersect(rMj, cMn, 0, numWords);
         if (contig[0][1] + contig[1][1] < minMinorCnt) {
             return results.build();
         }
-        n += contig[0][0] = (int) OpenBitSet.intersectionCount(rMj, cMj);
+        n += contig[0][0] = (int) BitUtil.pop_intersect(rMj, cMj, 0, numWords);
         results.n(n);
         if (n < minCnt) {
             return results.build();
@@ -543,9 +573,7 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
         if (myIsAccumulativeReport) {
             annotatedLabels = new String[]{"R2BinMin", "R2BinMax", "Count"};
         } else {
-            annotatedLabels = new String[]{"Locus1", "Position1", "Site1",
-                "NumberOfStates1", "States1", "Frequency1", "Locus2", "Position2",
-                "Site2", "NumberOfStates2", "States2", "Frequency2", "Dist_bp", "R^2", "DPrime", "pDiseq", "N"};
+            annotatedLabels = SITE_PAIR_COLUMN_NAMES.clone();
         }
         return annotatedLabels;
     }
@@ -567,44 +595,59 @@ public class LinkageDisequilibrium extends Thread implements Serializable, Table
             }
             return data;
         } else {
-            int labelOffset = 0;
-            Object[] data = new Object[17];
-
             int r = getRowFromIndex(row);
             int c = getColFromIndex(row);
+            LDResult result = (myMapResults == null) ? null : (LDResult) myMapResults.get(getMapKey(r, c));
+            return getRow(myAlignment, r, c, result);
+        }
+
+    }
 
-            String rState = myAlignment.majorAlleleAsString(r) + ":" + myAlignment.minorAlleleAsString(r);
-            Integer rStr = Integer.valueOf(r);
+    /**
+     * Returns table report row (without accumulative report) for the given site pair.
+     *
+     * @param alignment genotypes
+     * @param r is site 1
+     * @param c is site 2
+     * @param result LD result or null if not calculated
+     * @return row
+     */
+    static Object[] getRow(GenotypeTable alignment, int r, int c, LDResult result) {
 
-            String cState = myAlignment.majorAlleleAsString(c) + ":" + myAlignment.minorAlleleAsString(c);
-            Integer cStr = Integer.valueOf(c);
+        int labelOffset = 0;
+        Object[] data = new Object[17];
 
-            data[labelOffset++] = myAlignment.chromosomeName(r);
-            data[labelOffset++] = Integer.valueOf(myAlignment.chromosomalPosition(r));
-            data[labelOffset++] = rStr;
+        String rState = alignment.majorAlleleAsString(r) + ":" + alignment.minorAlleleAsString(r);
+        Integer rStr = Integer.valueOf(r);
 
-            data[labelOffset++] = IntegerTwo;
-            data[labelOffset++] = rState;
-            data[labelOffset++] = NotImplemented;
-            data[labelOffset++] = myAlignment.chromosomeName(c);
-            data[labelOffset++] = Integer.valueOf(myAlignment.chromosomalPosition(c));
-            data[labelOffset++] = cStr;
+        String cState = alignment.majorAlleleAsString(c) + ":" + alignment.minorAlleleAsString(c);
+        Integer cStr = Integer.valueOf(c);
 
-            data[labelOffset++] = IntegerTwo;
-            data[labelOffset++] = cState;
-            data[labelOffset++] = NotImplemented;
-            if (myAlignment.chromosomeName(r).equals(myAlignment.chromosomeName(c))) {
-                data[labelOffset++] = Integer.valueOf(Math.abs(myAlignment.chromosomalPosition(r) - myAlignment.chromosomalPosition(c)));
-            } else {
-                data[labelOffset++] = NA;
-            }
-            data[labelOffset++] = getRSqr(r, c);
-            data[labelOffset++] = getDPrime(r, c);
-            data[labelOffset++] = getPVal(r, c);
-            data[labelOffset++] = getSampleSize(r, c);
+        data[labelOffset++] = alignment.chromosomeName(r);
+        data[labelOffset++] = Integer.valueOf(alignment.chromosomalPosition(r));
+        data[labelOffset++] = rStr;
 
-            return data;
+        data[labelOffset++] = IntegerTwo;
+        data[labelOffset++] = rState;
+        data[labelOffset++] = NotImplemented;
+        data[labelOffset++] = alignment.chromosomeName(c);
+        data[labelOffset++] = Integer.valueOf(alignment.chromosomalPosition(c));
+        data[labelOffset++] = cStr;
+
+        data[labelOffset++] = IntegerTwo;
+        data[labelOffset++] = cState;
+        data[labelOffset++] = NotImplemented;
+        if (alignment.chromosomeName(r).equals(alignment.chromosomeName(c))) {
+            data[labelOffset++] = Integer.valueOf(Math.abs(alignment.chromosomalPosition(r) - alignment.chromosomalPosition(c)));
+        } else {
+            data[labelOffset++] = NA;
         }
+        data[labelOffset++] = (result == null) ? Float.NaN : result.r2();
+        data[labelOffset++] = (result == null) ? Float.NaN : result.dPrime();
+        data[labelOffset++] = (result == null) ? Double.NaN : (double) result.p();
+        data[labelOffset++] = (result == null) ? 0 : result.n();
+
+        return data;
 
     }
 
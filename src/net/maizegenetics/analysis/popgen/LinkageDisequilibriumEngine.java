@@ -0,0 +1,336 @@
+package net.maizegenetics.analysis.popgen;
+
+import net.maizegenetics.dna.WHICH_ALLELE;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.bit.BitStorage;
+import net.maizegenetics.stats.statistics.FisherExact;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.BitUtil;
+import net.maizegenetics.util.ProgressListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Calculates linkage disequilibrium for the site pairs of a
+ * {@link LinkageDisequilibrium.testDesign} in parallel.  The lower triangle of
+ * site pairs (site1 &gt; site2) is divided into square tiles that are
+ * calculated as fork-join tasks.  Each task reads the allele presence words of
+ * its sites from {@link BitStorage} once and calculates the pairs with
+ * popcounts.  Results are passed to an {@link LDResultSink} as tiles finish,
+ * so only the tiles in progress are held in memory.
+ * <p>
+ * Tiles are passed to the sink in order of row block then column block, and
+ * the results of a tile in order of site1 then site2.
+ * <p>
+ * Heterozygous genotypes are treated as by
+ * {@link LinkageDisequilibrium.HetTreatment#Haplotype}.  Use
+ * GenotypeTableBuilder.getHomozygousInstance() first to treat them as
+ * missing.
+ */
+public class LinkageDisequilibriumEngine {
+
+    private static final Logger myLogger = LogManager.getLogger(LinkageDisequilibriumEngine.class);
+
+    private static final int TILE_SIZE = 256;
+
+    private final GenotypeTable myGenotypes;
+    private final LinkageDisequilibrium.testDesign myDesign;
+    private final int myWindowSize;
+    private final int myTestSite;
+    private final int[] mySiteList;
+    private final boolean[] myIsInSiteList;
+    private final int myMinTaxaForEstimate;
+    private final ProgressListener myListener;
+    private final int myNumSites;
+    private final int myNumWords;
+
+    private int myMinMinorCount = 2;
+    private float myMinR2ForPValue = -1.0f;
+    private int myNumThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constructor
+     *
+     * @param genotypes genotypes with segregating sites
+     * @param design test design
+     * @param windowSize size of sliding window (SlidingWindow only)
+     * @param testSite test site (SiteByAll only)
+     * @param siteList site list (SiteList only)
+     * @param minTaxaForEstimate minimum number of gametes for an estimate
+     * @param listener progress listener (may be null)
+     */
+    public LinkageDisequilibriumEngine(GenotypeTable genotypes, LinkageDisequilibrium.testDesign design, int windowSize,
+                                       int testSite, int[] siteList, int minTaxaForEstimate, ProgressListener listener) {
+
+        myGenotypes = genotypes;
+        myDesign = design;
+        myWindowSize = windowSize;
+        myTestSite = testSite;
+        myMinTaxaForEstimate = minTaxaForEstimate;
+        myListener = listener;
+        myNumSites = genotypes.numberOfSites();
+        myNumWords = BitUtil.bits2words(genotypes.numberOfTaxa());
+
+        if (myDesign == LinkageDisequilibrium.testDesign.SiteByAll && (myTestSite < 0 || myTestSite >= myNumSites)) {
+            throw new IllegalArgumentException("LinkageDisequilibriumEngine: test site out of range: " + myTestSite);
+        }
+
+        if (myDesign == LinkageDisequilibrium.testDesign.SiteList) {
+            if (siteList == null) {
+                throw new IllegalArgumentException("LinkageDisequilibriumEngine: site list required for design: " + myDesign);
+            }
+            mySiteList = Arrays.copyOf(siteList, siteList.length);
+            Arrays.sort(mySiteList);
+            myIsInSiteList = new boolean[myNumSites];
+            for (int site : mySiteList) {
+                myIsInSiteList[site] = true;
+            }
+        } else {
+            mySiteList = null;
+            myIsInSiteList = null;
+        }
+
+    }
+
+    /**
+     * Minimum minor allele count after intersection.  Default is 2.
+     */
+    public LinkageDisequilibriumEngine minMinorCount(int minMinorCount) {
+        myMinMinorCount = minMinorCount;
+        return this;
+    }
+
+    /**
+     * Results with r^2 below this value get no p-value, which saves time.
+     * Default is -1 (p-value always calculated).
+     */
+    public LinkageDisequilibriumEngine minR2ForPValue(float minR2) {
+        myMinR2ForPValue = minR2;
+        return this;
+    }
+
+    public LinkageDisequilibriumEngine numThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("LinkageDisequilibriumEngine: numThreads: must be at least 1: " + numThreads);
+        }
+        myNumThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Number of site pairs tested by this design.
+     *
+     * @return number of tests
+     */
+    public long numberOfTests() {
+        long numSites = myNumSites;
+        switch (myDesign) {
+            case All:
+                return numSites * (numSites - 1L) / 2L;
+            case SlidingWindow:
+                long n = Math.min(numSites - 1L, myWindowSize);
+                return ((n * (n + 1L)) / 2L) + (numSites - n - 1L) * n;
+            case SiteByAll:
+                return numSites - 1L;
+            case SiteList:
+                long numList = mySiteList.length;
+                return numList * (numList - 1L) / 2L + numList * (numSites - numList);
+            default:
+                throw new IllegalStateException("LinkageDisequilibriumEngine: numberOfTests: unknown design: " + myDesign);
+        }
+    }
+
+    /**
+     * Calculates LD for all site pairs of the design and passes the results
+     * to the sink. The sink's finish() is called at the end.
+     *
+     * @param sink result sink
+     */
+    public void run(LDResultSink sink) {
+
+        // bit storage is cached by the genotype table on first request, which isn't thread safe
+        BitStorage major = myGenotypes.bitStorage(WHICH_ALLELE.Major);
+        BitStorage minor = myGenotypes.bitStorage(WHICH_ALLELE.Minor);
+        FisherExact fisherExact = FisherExact.getInstance((2 * myGenotypes.numberOfTaxa()) + 10);
+
+        long totalTests = numberOfTests();
+        long numDone = 0;
+        int lastProgress = -1;
+        int maxInFlight = myNumThreads * 4;
+        ForkJoinPool pool = new ForkJoinPool(myNumThreads);
+        Deque<ForkJoinTask<LDResult[]>> inFlight = new ArrayDeque<>();
+        try {
+            for (int r0 = 0; r0 < myNumSites; r0 += TILE_SIZE) {
+                int r1 = Math.min(myNumSites, r0 + TILE_SIZE);
+                int firstColumn = (myDesign == LinkageDisequilibrium.testDesign.SlidingWindow) ? Math.max(0, r0 - myWindowSize) : 0;
+                for (int c0 = firstColumn - firstColumn % TILE_SIZE; c0 < r1 - 1; c0 += TILE_SIZE) {
+                    int c1 = Math.min(r1 - 1, c0 + TILE_SIZE);
+                    if (!hasPairs(r0, r1, c0, c1)) {
+                        continue;
+                    }
+                    inFlight.add(pool.submit(new Tile(r0, r1, c0, c1, major, minor, fisherExact)));
+                    while (inFlight.size() >= maxInFlight) {
+                        numDone += emit(inFlight.poll().join(), sink);
+                        lastProgress = progress(numDone, totalTests, lastProgress);
+                    }
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                numDone += emit(inFlight.poll().join(), sink);
+                lastProgress = progress(numDone, totalTests, lastProgress);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        sink.finish();
+        myLogger.info("run: number of site pairs: " + numDone);
+
+    }
+
+    private static int emit(LDResult[] results, LDResultSink sink) {
+        for (LDResult result : results) {
+            sink.accept(result);
+        }
+        return results.length;
+    }
+
+    private int progress(long numDone, long totalTests, int lastProgress) {
+        if (myListener == null || totalTests == 0) {
+            return lastProgress;
+        }
+        int percent = (int) (100L * numDone / totalTests);
+        if (percent != lastProgress) {
+            myListener.progress(percent, null);
+        }
+        return percent;
+    }
+
+    /**
+     * Whether tile of rows [r0, r1) and columns [c0, c1) has any pairs of the
+     * design.
+     */
+    private boolean hasPairs(int r0, int r1, int c0, int c1) {
+        switch (myDesign) {
+            case SlidingWindow:
+                return c1 > r0 - myWindowSize;
+            case SiteByAll:
+                return (myTestSite >= r0 && myTestSite < r1) || (myTestSite >= c0 && myTestSite < c1 && myTestSite < r1 - 1);
+            case SiteList:
+                return containsListSite(r0, r1) || containsListSite(c0, c1);
+            default:
+                return true;
+        }
+    }
+
+    private boolean containsListSite(int start, int end) {
+        int index = Arrays.binarySearch(mySiteList, start);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        return index < mySiteList.length && mySiteList[index] < end;
+    }
+
+    private class Tile extends RecursiveTask<LDResult[]> {
+
+        private final int myRowStart;
+        private final int myRowEnd;
+        private final int myColumnStart;
+        private final int myColumnEnd;
+        private final BitStorage myMajor;
+        private final BitStorage myMinor;
+        private final FisherExact myFisherExact;
+        // allele presence words of the tile's row sites and column sites, read when first needed
+        private final long[][] myRowMajorWords;
+        private final long[][] myRowMinorWords;
+        private final long[][] myColumnMajorWords;
+        private final long[][] myColumnMinorWords;
+
+        private Tile(int rowStart, int rowEnd, int columnStart, int columnEnd, BitStorage major, BitStorage minor, FisherExact fisherExact) {
+            myRowStart = rowStart;
+            myRowEnd = rowEnd;
+            myColumnStart = columnStart;
+            myColumnEnd = columnEnd;
+            myMajor = major;
+            myMinor = minor;
+            myFisherExact = fisherExact;
+            myRowMajorWords = new long[rowEnd - rowStart][];
+            myRowMinorWords = new long[rowEnd - rowStart][];
+            myColumnMajorWords = new long[columnEnd - columnStart][];
+            myColumnMinorWords = new long[columnEnd - columnStart][];
+        }
+
+        @Override
+        protected LDResult[] compute() {
+            List<LDResult> result = new ArrayList<>();
+            for (int r = myRowStart; r < myRowEnd; r++) {
+                int start = myColumnStart;
+                int end = Math.min(myColumnEnd, r);
+                switch (myDesign) {
+                    case SlidingWindow:
+                        start = Math.max(start, r - myWindowSize);
+                        break;
+                    case SiteByAll:
+                        if (r != myTestSite) {
+                            if (myTestSite >= start && myTestSite < end) {
+                                result.add(calculate(r, myTestSite));
+                            }
+                            continue;
+                        }
+                        break;
+                    case SiteList:
+                        if (!myIsInSiteList[r]) {
+                            int index = Arrays.binarySearch(mySiteList, start);
+                            if (index < 0) {
+                                index = -(index + 1);
+                            }
+                            for (; index < mySiteList.length && mySiteList[index] < end; index++) {
+                                result.add(calculate(r, mySiteList[index]));
+                            }
+                            continue;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                for (int c = start; c < end; c++) {
+                    result.add(calculate(r, c));
+                }
+            }
+            return result.toArray(new LDResult[result.size()]);
+        }
+
+        private LDResult calculate(int r, int c) {
+            return LinkageDisequilibrium.getLDForSitePair(words(myRowMajorWords, myMajor, r, myRowStart), words(myRowMinorWords, myMinor, r, myRowStart),
+                    words(myColumnMajorWords, myMajor, c, myColumnStart), words(myColumnMinorWords, myMinor, c, myColumnStart), myNumWords,
+                    myMinMinorCount, myMinTaxaForEstimate, myMinR2ForPValue, myFisherExact, r, c);
+        }
+
+        private long[] words(long[][] cache, BitStorage storage, int site, int start) {
+            int index = site - start;
+            if (cache[index] == null) {
+                cache[index] = words(storage.allelePresenceForAllTaxa(site));
+            }
+            return cache[index];
+        }
+
+        private long[] words(BitSet bits) {
+            long[] result = bits.getBits();
+            if (result.length < myNumWords) {
+                result = Arrays.copyOf(result, myNumWords);
+            }
+            return result;
+        }
+    }
+
+}
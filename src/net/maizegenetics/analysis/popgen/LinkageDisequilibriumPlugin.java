@@ -42,6 +42,11 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
     private String myPossibleAlignmentName;
     private int[] myPossibleSiteList;
     private LinkageDisequilibrium.HetTreatment myHetTreatment = LinkageDisequilibrium.HetTreatment.Homozygous;
+    private String myOutputFile = null;
+    private float myMinR2 = Float.NaN;
+    private int myTopK = 0;
+    private int myDecayBinWidth = 0;
+    private int myDecayMaxDistance = 1000000;
 
     /**
      * Creates a new instance of LinkageDisequilibriumPlugin
@@ -59,6 +64,10 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
     @Override
     public DataSet performFunction(DataSet input) {
 
+        if (!Float.isNaN(myMinR2) && myOutputFile == null) {
+            throw new IllegalArgumentException("LinkageDisequilibriumPlugin: performFunction: minimum r^2 only applies to site pairs written to an output file (-ldOutputFile), and no output file is set.");
+        }
+
         try {
             List<Datum> alignInList = input.getDataOfType(GenotypeTable.class);
             if (alignInList.size() < 1) {
@@ -132,6 +141,36 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
                 setTestSiteFromName(aa);
             }
             LinkageDisequilibrium theLD = new LinkageDisequilibrium(aa, myWindowSize, myLDType, myTestSite, this, myIsAccumulateResults, myNumAccumulateIntervals, myPossibleSiteList, myHetTreatment);
+            if (myOutputFile != null || myTopK > 0 || myDecayBinWidth > 0) {
+                // stream site pairs to sinks rather than keeping them in memory
+                List<LDResultSink> sinks = new ArrayList<>();
+                if (myOutputFile != null) {
+                    LDResultSink fileSink = new LDFileSink(aa, myOutputFile);
+                    sinks.add(Float.isNaN(myMinR2) ? fileSink : new LDThresholdSink(myMinR2, fileSink));
+                }
+                LDTopKSink topK = null;
+                if (myTopK > 0) {
+                    topK = new LDTopKSink(aa, myTopK);
+                    sinks.add(topK);
+                }
+                LDDecaySink decay = null;
+                if (myDecayBinWidth > 0) {
+                    decay = new LDDecaySink(aa, myDecayBinWidth, myDecayMaxDistance);
+                    sinks.add(decay);
+                }
+                theLD.run(LDResultSink.of(sinks));
+                if (myOutputFile != null) {
+                    myLogger.info("processDatum: wrote LD results to: " + myOutputFile);
+                }
+                List<Datum> reports = new ArrayList<>();
+                if (topK != null) {
+                    reports.add(new Datum("LDTop" + myTopK + ":" + input.getName(), topK.report(), "LD Top " + myTopK + " Partners"));
+                }
+                if (decay != null) {
+                    reports.add(new Datum("LDDecay:" + input.getName(), decay.report(), "LD Decay"));
+                }
+                return reports.isEmpty() ? null : new DataSet(reports, this);
+            }
             theLD.run();
             Datum td = new Datum("LD:" + input.getName(), theLD, "LD Analysis");
             DataSet tds = new DataSet(td, this);
@@ -223,6 +262,71 @@ public class LinkageDisequilibriumPlugin extends AbstractPlugin {
         return myHetTreatment;
     }
 
+    /**
+     * Sets file to which site pair results are written as they are
+     * calculated.  When set, no LinkageDisequilibrium table is returned.
+     *
+     * @param filename output file
+     */
+    public void setOutputFile(String filename) {
+        myOutputFile = filename;
+    }
+
+    public String getOutputFile() {
+        return myOutputFile;
+    }
+
+    /**
+     * Sets minimum r^2 of site pairs written to the output file.  It requires
+     * an output file; without one, performFunction() throws an
+     * IllegalArgumentException rather than ignore it.
+     *
+     * @param minR2 minimum r^2
+     */
+    public void setMinR2(float minR2) {
+        myMinR2 = minR2;
+    }
+
+    public float getMinR2() {
+        return myMinR2;
+    }
+
+    /**
+     * Sets number of highest r^2 partners reported for each site.  Zero
+     * disables the report.
+     *
+     * @param k number of partners
+     */
+    public void setTopK(int k) {
+        myTopK = k;
+    }
+
+    public int getTopK() {
+        return myTopK;
+    }
+
+    /**
+     * Sets bin width (bp) of the mean r^2 by distance (LD decay) report.
+     * Zero disables the report.
+     *
+     * @param binWidth bin width
+     */
+    public void setDecayBinWidth(int binWidth) {
+        myDecayBinWidth = binWidth;
+    }
+
+    public int getDecayBinWidth() {
+        return myDecayBinWidth;
+    }
+
+    public void setDecayMaxDistance(int maxDistance) {
+        myDecayMaxDistance = maxDistance;
+    }
+
+    public int getDecayMaxDistance() {
+        return myDecayMaxDistance;
+    }
+
     private void setTestSiteFromName(GenotypeTable aa) {
         //Find index of any sites with the given names
         int[] matches = IntStream.range(0, aa.numberOfSites())
@@ -14,9 +14,10 @@ import net.maizegenetics.plugindef.Datum;
 import net.maizegenetics.plugindef.PluginParameter;
 import net.maizegenetics.taxa.distance.DistanceMatrix;
 import net.maizegenetics.taxa.tree.NeighborJoiningTree;
+import net.maizegenetics.taxa.tree.RapidNeighborJoiningTree;
 import net.maizegenetics.taxa.tree.Tree;
 import net.maizegenetics.taxa.tree.UPGMATree;
-import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.swing.*;
@@ -35,11 +36,11 @@ public class CreateTreePlugin extends AbstractPlugin {
 
     public static enum CLUSTERING_METHOD {
 
-        Neighbor_Joining, UPGMA
+        Neighbor_Joining, Rapid_Neighbor_Joining, UPGMA
     }
 
     private PluginParameter<CLUSTERING_METHOD> myClusteringMethod = new PluginParameter.Builder<>("clusteringMethod", CLUSTERING_METHOD.Neighbor_Joining, CLUSTERING_METHOD.class)
-            .description("")
+            .description("Rapid_Neighbor_Joining joins as Neighbor_Joining does, except possibly for pairs tied to within rounding, with a faster search for large numbers of taxa.")
             .range(CLUSTERING_METHOD.values())
             .build();
     private PluginParameter<Boolean> mySaveDistanceMatrix = new PluginParameter.Builder<>("saveDistanceMatrix", true, Boolean.class)
@@ -98,6 +99,9 @@ public class CreateTreePlugin extends AbstractPlugin {
         if (clusteringMethod() == CLUSTERING_METHOD.Neighbor_Joining) {
             Tree theTree = new NeighborJoiningTree(distanceMatrix);
             results.add(new Datum("Tree:" + datum.getName(), theTree, "NJ Tree"));
+        } else if (clusteringMethod() == CLUSTERING_METHOD.Rapid_Neighbor_Joining) {
+            Tree theTree = new RapidNeighborJoiningTree(distanceMatrix, true, false);
+            results.add(new Datum("Tree:" + datum.getName(), theTree, "NJ Tree"));
         } else if (clusteringMethod() == CLUSTERING_METHOD.UPGMA) {
             Tree theTree = new UPGMATree(distanceMatrix);
             results.add(new Datum("Tree:" + datum.getName(), theTree, "UPGMA Tree"));
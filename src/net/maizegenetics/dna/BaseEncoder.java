@@ -81,6 +81,49 @@ public class BaseEncoder {
         return result;
     }
     
+    /**
+     * Encodes sequence[offset, offset + length) held as bytes (A, C, G, T in
+     * either case) into result, 32 bases per long.  The last long is filled
+     * with A, the same as getLongFromSeq(String).
+     * @param sequence buffer holding the DNA sequence
+     * @param offset start of the sequence
+     * @param length number of bases
+     * @param result receives (length + 31) / 32 longs
+     * @return false if any base is not A, C, G, or T
+     */
+    public static boolean getLongArrayFromSeq(byte[] sequence, int offset, int length, long[] result) {
+        int numLongs = (length + chunkSize - 1) / chunkSize;
+        for (int i = 0; i < numLongs; i++) {
+            int start = offset + i * chunkSize;
+            int end = Math.min(start + chunkSize, offset + length);
+            long v = 0;
+            for (int j = start; j < end; j++) {
+                switch (sequence[j]) {
+                    case 'A':
+                    case 'a':
+                        v = v << 2;
+                        break;
+                    case 'C':
+                    case 'c':
+                        v = (v << 2) + 1;
+                        break;
+                    case 'G':
+                    case 'g':
+                        v = (v << 2) + 2;
+                        break;
+                    case 'T':
+                    case 't':
+                        v = (v << 2) + 3;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            result[i] = v << (2 * (chunkSize - (end - start))); //if shorter fill with AAAA
+        }
+        return true;
+    }
+
     /**
      * @param seq A String containing a DNA sequence.
      * @return result A array of Long containing the binary representation of the sequence.
@@ -441,6 +484,27 @@ public class BaseEncoder {
         return quality.length();
     }
 
+    /**
+     * Returns the position of the first low quality position in
+     * quality[offset, offset + length) of a fastq read held as bytes.
+     * @param quality buffer holding fastq quality line
+     * @param offset start of quality line
+     * @param length length of quality line
+     * @param minQual minimum quality threshold
+     * @param qualBase quality score base (33 or 64)
+     * @return position relative to offset of first low quality position (length is returned if no low
+     * quality base is found)
+     */
+    public static int getFirstLowQualityPos(byte[] quality, int offset, int length, int minQual, int qualBase) {
+        int threshold = minQual + qualBase;
+        for (int i = 0; i < length; i++) {
+            if (quality[offset + i] < threshold) {
+                return i;
+            }
+        }
+        return length;
+    }
+
 
     /**
      * Return a string representation of the 2-bit encoded long.
@@ -8,6 +8,7 @@ import net.maizegenetics.dna.map.Chromosome;
 import net.maizegenetics.dna.map.PositionList;
 import net.maizegenetics.dna.snp.bit.BitStorage;
 import net.maizegenetics.dna.snp.bit.DynamicBitStorage;
+import net.maizegenetics.dna.snp.genotypecall.BitPackedGenotypeCallTable;
 import net.maizegenetics.dna.snp.genotypecall.GenotypeCallTable;
 import net.maizegenetics.dna.snp.score.AlleleDepth;
 import net.maizegenetics.dna.snp.score.AlleleProbability;
@@ -527,16 +528,20 @@ public class CoreGenotypeTable implements GenotypeTable {
 
         switch (allele) {
             case Major:
-                result = new DynamicBitStorage(myGenotype, allele, myGenotype.majorAlleleForAllSites());
+                result = newBitStorage(allele, myGenotype.majorAlleleForAllSites());
                 break;
             case Minor:
-                result = new DynamicBitStorage(myGenotype, allele, myGenotype.minorAlleleForAllSites());
+                result = newBitStorage(allele, myGenotype.minorAlleleForAllSites());
                 break;
             case Minor2:
-                result = new DynamicBitStorage(myGenotype, allele, myGenotype.thirdAlleleForAllSites());
+                result = newBitStorage(allele, myGenotype.thirdAlleleForAllSites());
                 break;
             case Unknown:
-                result = DynamicBitStorage.getUnknownInstance(myGenotype);
+                if (myGenotype instanceof BitPackedGenotypeCallTable) {
+                    result = ((BitPackedGenotypeCallTable) myGenotype).unknownBitStorage();
+                } else {
+                    result = DynamicBitStorage.getUnknownInstance(myGenotype);
+                }
                 break;
             default:
                 myLogger.warn("bitStorage: Unsupported allele: " + allele);
@@ -547,6 +552,13 @@ public class CoreGenotypeTable implements GenotypeTable {
         return result;
     }
 
+    private BitStorage newBitStorage(WHICH_ALLELE allele, byte[] prefAllele) {
+        if (myGenotype instanceof BitPackedGenotypeCallTable) {
+            return ((BitPackedGenotypeCallTable) myGenotype).bitStorage(allele, prefAllele);
+        }
+        return new DynamicBitStorage(myGenotype, allele, prefAllele);
+    }
+
     @Override
     public AlleleProbability alleleProbability() {
         return myAlleleProbability;
@@ -26,6 +26,12 @@ import net.maizegenetics.util.Tassel5HDF5Constants;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Builder for GenotypeTables. New genotypeTables are built from a minimum of
@@ -96,6 +102,11 @@ public class GenotypeTableBuilder {
     private boolean isHDF5 = false;
     private IHDF5Writer writer = null;
     private BuildType myBuildType;
+    // HDF5 site blocks are written by one thread, so threads adding blocks
+    // don't wait on each other's writes
+    private ExecutorService mySiteBlockWriter = null;
+    private Semaphore mySiteBlockPermits = null;
+    private final List<Future<?>> mySiteBlockWrites = new ArrayList<>();
     private final GeneralAnnotationStorage.Builder myAnnotationBuilder = GeneralAnnotationStorage.getBuilder();
 
     /**
@@ -186,6 +197,14 @@ public class GenotypeTableBuilder {
             HDF5Utils.writeHDF5GenotypesCalls(writer, taxon.getName(), missingGenotypes);
         }
 
+        mySiteBlockWriter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "GenotypeTableBuilder site block writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // limits blocks waiting to be written
+        mySiteBlockPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+
         this.myBuildType = BuildType.SITE_INC;
         isHDF5 = true;
 
@@ -519,31 +538,67 @@ public class GenotypeTableBuilder {
     }
 
     /**
-     * Add TasselHDF5 Block of positions (generally 1<<16 positions). @note
-     *
-     * This is synchronized, which certainly slows things down but it is needed
-     * to prevent the same taxa dataset from being accessed at once. This can
-     * probably be rethought with parallelization at this stage across datasets
+     * Add TasselHDF5 Block of positions (generally 1<<16 positions). Can be
+     * called concurrently from multiple threads as long as the blocks are
+     * disjoint site ranges. The block is queued and written to the HDF5 file by
+     * a single writer thread, so callers return to their own work instead of
+     * waiting on each other's writes. Callers only wait when the number of
+     * queued blocks reaches the number of processors. The arrays must not be
+     * changed after this call. Write errors are thrown by build().
      *
      * @param startSite start site for positioning blocks correction
      * @param blkPositionList
      * @param blockGenotypes array of genotypes[taxonIndex][siteIndex] true site=startSite+siteIndex
      * @param blockDepths
      */
-    public synchronized void addSiteBlock(int startSite, PositionList blkPositionList, byte[][] blockGenotypes, byte[][][] blockDepths) {
+    public void addSiteBlock(int startSite, PositionList blkPositionList, byte[][] blockGenotypes, byte[][][] blockDepths) {
         if ((myBuildType != BuildType.SITE_INC) || (isHDF5 == false)) {
             throw new IllegalArgumentException("addSite only be used with AlignmentBuilder.getSiteIncremental and with HDF5");
         }
         if (blockGenotypes.length != taxaList.numberOfTaxa()) {
             throw new IndexOutOfBoundsException("Number of taxa and genotypes do not agree");
         }
-        int s = startSite;
-        System.out.println("startSite = [" + startSite + "], blkPositionList = [" + blkPositionList.size() + "], blockGenotypes = [" + blockGenotypes.length + "], blockDepths = [" + blockDepths + "]");
-        for (Position position : blkPositionList) {
-            posListBuilder.set(s++, position);
+        mySiteBlockPermits.acquireUninterruptibly();
+        Future<?> write = mySiteBlockWriter.submit(() -> {
+            try {
+                int s = startSite;
+                for (Position position : blkPositionList) {
+                    posListBuilder.set(s++, position);
+                }
+                for (int t = 0; t < taxaList.numberOfTaxa(); t++) {
+                    HDF5Utils.replaceHDF5GenotypesCalls(writer, taxaList.taxaName(t), startSite, blockGenotypes[t]);
+                }
+            } finally {
+                mySiteBlockPermits.release();
+            }
+        });
+        synchronized (mySiteBlockWrites) {
+            mySiteBlockWrites.add(write);
         }
-        for (int t = 0; t < taxaList.numberOfTaxa(); t++) {
-            HDF5Utils.replaceHDF5GenotypesCalls(writer, taxaList.taxaName(t), startSite, blockGenotypes[t]);
+    }
+
+    /**
+     * Waits for queued site blocks to be written and stops the writer thread.
+     */
+    private void finishSiteBlocks() {
+        if (mySiteBlockWriter == null) {
+            return;
+        }
+        try {
+            synchronized (mySiteBlockWrites) {
+                for (Future<?> write : mySiteBlockWrites) {
+                    write.get();
+                }
+                mySiteBlockWrites.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("GenotypeTableBuilder: finishSiteBlocks: interrupted while writing site blocks");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("GenotypeTableBuilder: finishSiteBlocks: problem writing site block: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            mySiteBlockWriter.shutdown();
+            mySiteBlockWriter = null;
         }
     }
 
@@ -632,6 +687,7 @@ public class GenotypeTableBuilder {
      */
     public GenotypeTable build() {
         if (isHDF5) {
+            finishSiteBlocks();
             switch (myBuildType) {
                 case TAXA_INC: {
                     break;
@@ -708,6 +764,7 @@ public class GenotypeTableBuilder {
         if (isHDF5 == false) {
             throw new UnsupportedOperationException("Only a HDF5 GenotypeTableBuilder can be closed");
         }
+        finishSiteBlocks();
         taxaListBuilder = null;
         writer.close();
     }
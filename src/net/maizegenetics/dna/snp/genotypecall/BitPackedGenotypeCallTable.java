@@ -0,0 +1,384 @@
+/*
+ *  BitPackedGenotypeCallTable
+ */
+package net.maizegenetics.dna.snp.genotypecall;
+
+import net.maizegenetics.dna.WHICH_ALLELE;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.dna.snp.bit.BitStorage;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.OpenBitSet;
+import net.maizegenetics.util.SuperByteMatrix;
+import net.maizegenetics.util.SuperByteMatrixBuilder;
+import net.maizegenetics.util.UnmodifiableBitSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * In memory GenotypeCallTable that stores each call in two bits. Every site
+ * has its own code table of up to three diploid values (code 3 is always
+ * unknown), which covers a biallelic site (two homozygotes and the
+ * heterozygote). Sites with more distinct values are stored as bytes. All
+ * values are kept exactly, including heterozygote order and phase.
+ * <p>
+ * </p>
+ * Codes for each taxon are stored as 64 site words, low bits and high bits
+ * interleaved, so allele presence bits (BitStorage) are computed a word at a
+ * time without decoding individual calls.
+ *
+ * @see GenotypeCallTableBuilder
+ */
+public class BitPackedGenotypeCallTable extends AbstractGenotypeCallTable {
+
+    private static final Logger myLogger = LogManager.getLogger(BitPackedGenotypeCallTable.class);
+
+    private static final int NUM_CODED_VALUES = 3;
+    private static final int UNKNOWN_CODE = 3;
+    private static final int SCAN_BLOCK_SIZE = 4096;
+
+    /**
+     * Minimum fraction of sites with at most three values for packing to be
+     * used.
+     */
+    static final double MIN_PACKED_SITE_FRACTION = 0.9;
+
+    private final int myNumWords;
+    // per taxon, low code bits of word w at 2 * w and high code bits at 2 * w + 1
+    private final long[][] myCodes;
+    // diploid values for codes 0, 1, and 2 of each site
+    private final byte[] mySiteValues;
+    // column in myUnpacked for sites with more than three values, otherwise -1
+    private final int[] myUnpackedIndex;
+    // bits set for sites stored in myUnpacked
+    private final long[] myUnpackedSites;
+    private final SuperByteMatrix myUnpacked;
+    private final boolean myIsNucleotide;
+
+    private BitPackedGenotypeCallTable(int numTaxa, int numSites, boolean phased, String[][] alleleEncodings, long[][] codes,
+                                       byte[] siteValues, int[] unpackedIndex, long[] unpackedSites, SuperByteMatrix unpacked) {
+        super(numTaxa, numSites, phased, alleleEncodings);
+        myNumWords = unpackedSites.length;
+        myCodes = codes;
+        mySiteValues = siteValues;
+        myUnpackedIndex = unpackedIndex;
+        myUnpackedSites = unpackedSites;
+        myUnpacked = unpacked;
+        myIsNucleotide = NucleotideAlignmentConstants.isNucleotideEncodings(alleleEncodings);
+    }
+
+    /**
+     * Packs the given genotypes.
+     *
+     * @param genotype genotypes (taxa are rows)
+     * @param phased whether phased
+     * @param alleleEncodings allele encodings
+     *
+     * @return packed genotypes or null if less than MIN_PACKED_SITE_FRACTION
+     * of the sites can be packed.
+     */
+    static BitPackedGenotypeCallTable getInstance(SuperByteMatrix genotype, boolean phased, String[][] alleleEncodings) {
+
+        final int numTaxa = genotype.getNumRows();
+        final int numSites = genotype.getNumColumns();
+
+        // find distinct values of each site, NUM_CODED_VALUES + 1 means too many
+        final byte[] siteValues = new byte[numSites * NUM_CODED_VALUES];
+        Arrays.fill(siteValues, GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+        final byte[] numValues = new byte[numSites];
+        IntStream.range(0, (numSites + SCAN_BLOCK_SIZE - 1) / SCAN_BLOCK_SIZE).parallel().forEach(block -> {
+            int start = block * SCAN_BLOCK_SIZE;
+            int end = Math.min(numSites, start + SCAN_BLOCK_SIZE);
+            for (int t = 0; t < numTaxa; t++) {
+                for (int s = start; s < end; s++) {
+                    byte value = genotype.get(t, s);
+                    int num = numValues[s];
+                    if (value == GenotypeTable.UNKNOWN_DIPLOID_ALLELE || num > NUM_CODED_VALUES) {
+                        continue;
+                    }
+                    int base = s * NUM_CODED_VALUES;
+                    int i = 0;
+                    while (i < num && siteValues[base + i] != value) {
+                        i++;
+                    }
+                    if (i == num) {
+                        if (num < NUM_CODED_VALUES) {
+                            siteValues[base + num] = value;
+                        }
+                        numValues[s] = (byte) (num + 1);
+                    }
+                }
+            }
+        });
+
+        final int numWords = (numSites + 63) >>> 6;
+        final int[] unpackedIndex = new int[numSites];
+        final long[] unpackedSites = new long[numWords];
+        int numUnpacked = 0;
+        for (int s = 0; s < numSites; s++) {
+            if (numValues[s] > NUM_CODED_VALUES) {
+                unpackedIndex[s] = numUnpacked++;
+                unpackedSites[s >>> 6] |= 1L << s;
+            } else {
+                unpackedIndex[s] = -1;
+            }
+        }
+
+        if (numSites == 0 || (double) (numSites - numUnpacked) / (double) numSites < MIN_PACKED_SITE_FRACTION) {
+            return null;
+        }
+
+        final SuperByteMatrix unpacked = (numUnpacked == 0) ? null : SuperByteMatrixBuilder.getInstance(numTaxa, numUnpacked);
+        final long[][] codes = new long[numTaxa][];
+        IntStream.range(0, numTaxa).parallel().forEach(t -> {
+            long[] words = new long[numWords << 1];
+            byte[] row = genotype.getAllColumns(t);
+            for (int s = 0; s < numSites; s++) {
+                int index = unpackedIndex[s];
+                if (index >= 0) {
+                    unpacked.set(t, index, row[s]);
+                    continue;
+                }
+                int code = code(siteValues, s, row[s]);
+                int w = (s >>> 6) << 1;
+                if ((code & 1) != 0) {
+                    words[w] |= 1L << s;
+                }
+                if ((code & 2) != 0) {
+                    words[w + 1] |= 1L << s;
+                }
+            }
+            codes[t] = words;
+        });
+
+        myLogger.info("getInstance: packed " + (numSites - numUnpacked) + " of " + numSites + " sites into two bits per genotype");
+        return new BitPackedGenotypeCallTable(numTaxa, numSites, phased, alleleEncodings, codes, siteValues, unpackedIndex, unpackedSites, unpacked);
+
+    }
+
+    private static int code(byte[] siteValues, int site, byte value) {
+        if (value == GenotypeTable.UNKNOWN_DIPLOID_ALLELE) {
+            return UNKNOWN_CODE;
+        }
+        int base = site * NUM_CODED_VALUES;
+        for (int i = 0; i < NUM_CODED_VALUES; i++) {
+            if (siteValues[base + i] == value) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("BitPackedGenotypeCallTable: code: value not in code table for site: " + site);
+    }
+
+    @Override
+    public byte genotype(int taxon, int site) {
+        int index = myUnpackedIndex[site];
+        if (index >= 0) {
+            return myUnpacked.get(taxon, index);
+        }
+        long[] words = myCodes[taxon];
+        int w = (site >>> 6) << 1;
+        int code = (int) ((words[w] >>> site) & 1L) | ((int) ((words[w + 1] >>> site) & 1L) << 1);
+        return (code == UNKNOWN_CODE) ? GenotypeTable.UNKNOWN_DIPLOID_ALLELE : mySiteValues[site * NUM_CODED_VALUES + code];
+    }
+
+    @Override
+    public byte[] genotypeForSiteRange(int taxon, int start, int end) {
+        byte[] result = new byte[end - start];
+        long[] words = myCodes[taxon];
+        for (int s = start; s < end; s++) {
+            int index = myUnpackedIndex[s];
+            if (index >= 0) {
+                result[s - start] = myUnpacked.get(taxon, index);
+                continue;
+            }
+            int w = (s >>> 6) << 1;
+            int code = (int) ((words[w] >>> s) & 1L) | ((int) ((words[w + 1] >>> s) & 1L) << 1);
+            result[s - start] = (code == UNKNOWN_CODE) ? GenotypeTable.UNKNOWN_DIPLOID_ALLELE : mySiteValues[s * NUM_CODED_VALUES + code];
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] genotypeForAllSites(int taxon) {
+        return genotypeForSiteRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public byte[] genotypeRange(int taxon, int startSite, int endSite) {
+        return genotypeForSiteRange(taxon, startSite, endSite);
+    }
+
+    @Override
+    public byte[] genotypeAllSites(int taxon) {
+        return genotypeForSiteRange(taxon, 0, mySiteCount);
+    }
+
+    @Override
+    public String genotypeAsString(int taxon, int site) {
+        if (myIsNucleotide) {
+            return NucleotideAlignmentConstants.getNucleotideIUPAC(genotype(taxon, site));
+        }
+        return super.genotypeAsString(taxon, site);
+    }
+
+    @Override
+    public String genotypeAsStringRange(int taxon, int startSite, int endSite) {
+        if (myIsNucleotide) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = startSite; i < endSite; i++) {
+                builder.append(genotypeAsString(taxon, i));
+            }
+            return builder.toString();
+        }
+        return super.genotypeAsStringRange(taxon, startSite, endSite);
+    }
+
+    @Override
+    public String diploidAsString(int site, byte value) {
+        if (myIsNucleotide) {
+            return NucleotideAlignmentConstants.getNucleotideIUPAC(value);
+        }
+        return super.diploidAsString(site, value);
+    }
+
+    @Override
+    public boolean retainsRareAlleles() {
+        return !myIsNucleotide;
+    }
+
+    @Override
+    public void transposeData(boolean siteInnerLoop) {
+        // storage is always by taxon
+    }
+
+    @Override
+    public boolean isSiteOptimized() {
+        return false;
+    }
+
+    /**
+     * Returns BitStorage that computes allele presence directly from the
+     * packed codes.
+     *
+     * @param allele which allele the preferred alleles represent
+     * @param prefAllele preferred allele for each site
+     *
+     * @return BitStorage
+     */
+    public BitStorage bitStorage(WHICH_ALLELE allele, byte[] prefAllele) {
+        return new PackedBitStorage(prefAllele);
+    }
+
+    /**
+     * Returns BitStorage indicating unknown genotypes.
+     *
+     * @return BitStorage
+     */
+    public BitStorage unknownBitStorage() {
+        return new PackedBitStorage(null);
+    }
+
+    private class PackedBitStorage implements BitStorage {
+
+        // null means presence of unknown
+        private final byte[] myPrefAllele;
+        // for each code, bits of the sites where that code contains the preferred allele
+        private final long[][] myCodeMasks = new long[UNKNOWN_CODE + 1][myNumWords];
+
+        private PackedBitStorage(byte[] prefAllele) {
+            myPrefAllele = (prefAllele == null) ? null : Arrays.copyOf(prefAllele, prefAllele.length);
+            for (int s = 0; s < mySiteCount; s++) {
+                if (myUnpackedIndex[s] >= 0) {
+                    continue;
+                }
+                int w = s >>> 6;
+                long bit = 1L << s;
+                for (int c = 0; c < NUM_CODED_VALUES; c++) {
+                    byte value = mySiteValues[s * NUM_CODED_VALUES + c];
+                    if (value != GenotypeTable.UNKNOWN_DIPLOID_ALLELE && isPresent(s, value)) {
+                        myCodeMasks[c][w] |= bit;
+                    }
+                }
+                if (myPrefAllele == null) {
+                    myCodeMasks[UNKNOWN_CODE][w] |= bit;
+                }
+            }
+        }
+
+        private boolean isPresent(int site, byte value) {
+            if (myPrefAllele == null) {
+                return value == GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            }
+            byte pref = myPrefAllele[site];
+            if (pref == GenotypeTable.UNKNOWN_ALLELE) {
+                return false;
+            }
+            return (pref == (byte) (value & 0xf)) || (pref == (byte) ((value >>> 4) & 0xf));
+        }
+
+        private long word(int taxon, int w) {
+            long[] words = myCodes[taxon];
+            long low = words[w << 1];
+            long high = words[(w << 1) + 1];
+            long result = (~high & ~low & myCodeMasks[0][w])
+                    | (~high & low & myCodeMasks[1][w])
+                    | (high & ~low & myCodeMasks[2][w])
+                    | (high & low & myCodeMasks[UNKNOWN_CODE][w]);
+            long unpacked = myUnpackedSites[w];
+            while (unpacked != 0) {
+                int bit = Long.numberOfTrailingZeros(unpacked);
+                int site = (w << 6) + bit;
+                if (isPresent(site, myUnpacked.get(taxon, myUnpackedIndex[site]))) {
+                    result |= 1L << bit;
+                }
+                unpacked &= unpacked - 1;
+            }
+            return result;
+        }
+
+        @Override
+        public BitSet allelePresenceForAllSites(int taxon) {
+            return UnmodifiableBitSet.getInstance(new OpenBitSet(allelePresenceForSitesBlock(taxon, 0, myNumWords)));
+        }
+
+        @Override
+        public BitSet allelePresenceForAllTaxa(int site) {
+            OpenBitSet result = new OpenBitSet(myTaxaCount);
+            for (int t = 0; t < myTaxaCount; t++) {
+                if (isPresent(site, genotype(t, site))) {
+                    result.fastSet(t);
+                }
+            }
+            return UnmodifiableBitSet.getInstance(result);
+        }
+
+        @Override
+        public long[] allelePresenceForSitesBlock(int taxon, int startBlock, int endBlock) {
+            long[] result = new long[endBlock - startBlock];
+            for (int w = startBlock, n = Math.min(endBlock, myNumWords); w < n; w++) {
+                result[w - startBlock] = word(taxon, w);
+            }
+            return result;
+        }
+
+        @Override
+        public BitSet haplotypeAllelePresenceForAllSites(int taxon, boolean firstParent) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public BitSet haplotypeAllelePresenceForAllTaxa(int site, boolean firstParent) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long[] haplotypeAllelePresenceForSitesBlock(int taxon, boolean firstParent, int startBlock, int endBlock) {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+    }
+
+}
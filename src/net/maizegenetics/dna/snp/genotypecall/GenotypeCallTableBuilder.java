@@ -21,6 +21,7 @@ import net.maizegenetics.dna.snp.Translate;
 import net.maizegenetics.dna.snp.TranslateBuilder;
 import net.maizegenetics.util.SuperByteMatrix;
 import net.maizegenetics.util.SuperByteMatrixBuilder;
+import net.maizegenetics.util.SuperByteMatrixMapped;
 import net.maizegenetics.util.Tuple;
 
 import org.apache.logging.log4j.LogManager;
@@ -39,6 +40,7 @@ public class GenotypeCallTableBuilder {
     private SuperByteMatrix myGenotype;
     private boolean myIsPhased = false;
     private String[][] myAlleleEncodings = NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES;
+    private boolean myBitPacking = false;
 
     private GenotypeCallTableBuilder(SuperByteMatrix genotype) {
         myGenotype = genotype;
@@ -90,6 +92,40 @@ public class GenotypeCallTableBuilder {
         return new GenotypeCallTableBuilder(matrix);
     }
 
+    /**
+     * Get Genotype Builder given number of taxa and sites, with the genotypes
+     * stored in the given memory mapped file instead of the Java heap. This
+     * allows tables larger than the heap. Performance optimized for site loop
+     * inside taxon loop. The file can be reopened later with
+     * getInstanceMapped(filename).
+     *
+     * @param numTaxa number of taxa
+     * @param numSites number of sites.
+     * @param filename file to store genotypes
+     *
+     * @return Genotype Builder
+     */
+    public static GenotypeCallTableBuilder getInstanceMapped(int numTaxa, int numSites, String filename) {
+        SuperByteMatrix matrix = SuperByteMatrixBuilder.getInstanceMapped(numTaxa, numSites, filename);
+        matrix.setAll(GenotypeTable.UNKNOWN_DIPLOID_ALLELE);
+        return new GenotypeCallTableBuilder(matrix);
+    }
+
+    /**
+     * Get Genotype Builder for genotypes previously stored with
+     * getInstanceMapped(numTaxa, numSites, filename). Genotypes are not read
+     * until accessed. Phasing and allele encodings are not stored in the file
+     * and should be set on the returned builder if not the defaults. The file
+     * is opened read only, so genotypes can't be set or reordered.
+     *
+     * @param filename file storing genotypes
+     *
+     * @return Genotype Builder
+     */
+    public static GenotypeCallTableBuilder getInstanceMapped(String filename) {
+        return new GenotypeCallTableBuilder(SuperByteMatrixBuilder.getInstanceMapped(filename));
+    }
+
     public static Tuple<GenotypeCallTable, Translate> getFilteredInstance(GenotypeCallTable genotype, Translate translate) {
         if (genotype == null) {
             return null;
@@ -235,6 +271,19 @@ public class GenotypeCallTableBuilder {
         return this;
     }
 
+    /**
+     * Whether build() may return a BitPackedGenotypeCallTable when most sites
+     * have at most three distinct genotypes. Default is false.
+     *
+     * @param bitPacking whether to allow bit packing
+     *
+     * @return this builder
+     */
+    public GenotypeCallTableBuilder bitPacking(boolean bitPacking) {
+        myBitPacking = bitPacking;
+        return this;
+    }
+
     public int getTaxaCount() {
         return myGenotype.getNumRows();
     }
@@ -254,6 +303,12 @@ public class GenotypeCallTableBuilder {
     public GenotypeCallTable build() {
         SuperByteMatrix temp = myGenotype;
         myGenotype = null;
+        if (myBitPacking && !(temp instanceof SuperByteMatrixMapped)) {
+            BitPackedGenotypeCallTable packed = BitPackedGenotypeCallTable.getInstance(temp, myIsPhased, myAlleleEncodings);
+            if (packed != null) {
+                return packed;
+            }
+        }
         if (NucleotideAlignmentConstants.isNucleotideEncodings(myAlleleEncodings)) {
             return new NucleotideGenotypeCallTable(temp, myIsPhased);
         } else {
@@ -3,6 +3,7 @@
  */
 package net.maizegenetics.dna.snp.genotypecall;
 
+import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -15,7 +16,12 @@ import net.maizegenetics.taxa.TaxaListBuilder;
 import net.maizegenetics.util.Tassel5HDF5Constants;
 import net.maizegenetics.util.HDF5Utils;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
 import java.util.Spliterator;
 import java.util.stream.Stream;
@@ -27,6 +33,12 @@ import org.apache.logging.log4j.Logger;
 /**
  * HDF5 implementation of GenotypeTable. Uses caching of GenotypeTable,
  * alleleCounts, MAF, and siteCoverage
+ * <p>
+ * Genotype blocks are read with a pool of HDF5 readers opened on the same
+ * file, so threads don't wait on one reader. The pooled readers are closed
+ * when the table is garbage collected. When a block is first needed,
+ * or the first site of a cached block is accessed, the next blocks of the
+ * taxon are read ahead asynchronously into the bounded LRU genotype cache.
  *
  * @author Ed Buckler
  * @author Terry Casstevens
@@ -45,16 +57,36 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
     public static final int SITE_BLOCK_MASK = ~(HDF5_GENOTYPE_BLOCK_SIZE - 1);
     private final IHDF5Reader myHDF5Reader;
 
+    /**
+     * Maximum number of blocks per taxon read ahead of the current one
+     */
+    private static final int MAX_READ_AHEAD_BLOCKS = 2;
+    private static final int MAX_READ_AHEAD_THREADS = 4;
+
+    // null if file name of reader unknown, in which case only myHDF5Reader is used
+    private final String myFilename;
+    private final ConcurrentLinkedQueue<IHDF5Reader> myReaders = new ConcurrentLinkedQueue<>();
+    private final int myNumReadAheadBlocks;
+    private final ForkJoinPool myReadAheadPool;
+    private final Set<Long> myReadingAhead = ConcurrentHashMap.newKeySet();
+
     private final LoadingCache<Long, byte[]> myGenoCache;
     private final CacheLoader<Long, byte[]> myGenoLoader = new CacheLoader<Long, byte[]>() {
         @Override
         public byte[] load(Long key) {
             long offset = getSiteStartFromKey(key) << SHIFT_AMOUNT;
-            byte[] data;
-            synchronized (myHDF5Reader) {
-                data = myHDF5Reader.int8().readArrayBlockWithOffset(getTaxaGenoPath(getTaxonFromKey(key)), HDF5_GENOTYPE_BLOCK_SIZE, offset);
+            String path = getTaxaGenoPath(getTaxonFromKey(key));
+            IHDF5Reader reader = getReader();
+            if (reader == null) {
+                synchronized (myHDF5Reader) {
+                    return myHDF5Reader.int8().readArrayBlockWithOffset(path, HDF5_GENOTYPE_BLOCK_SIZE, offset);
+                }
+            }
+            try {
+                return reader.int8().readArrayBlockWithOffset(path, HDF5_GENOTYPE_BLOCK_SIZE, offset);
+            } finally {
+                myReaders.offer(reader);
             }
-            return data;
         }
     };
 
@@ -152,16 +184,115 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
             genotypePaths[i] = Tassel5HDF5Constants.getGenotypesCallsPath(tL.taxaName(i));
         }
         myHDF5Reader = reader;
+        myFilename = getFilename(reader);
         long oneThirdMemory = Runtime.getRuntime().maxMemory() / 196608l;
         long oneColumnBlockForEachProcess = numTaxa * Runtime.getRuntime().availableProcessors();
+        long maxCacheSize = Math.min(oneThirdMemory, oneColumnBlockForEachProcess);
         myGenoCache = CacheBuilder.newBuilder()
-                .maximumSize(Math.min(oneThirdMemory, oneColumnBlockForEachProcess))
+                .maximumSize(maxCacheSize)
                 .build(myGenoLoader);
+
+        //
+        // Blocks read ahead for every taxon must fit in the cache with
+        // the current block, otherwise they would evict blocks in use.
+        //
+        myNumReadAheadBlocks = (int) Math.max(0, Math.min(MAX_READ_AHEAD_BLOCKS, maxCacheSize / Math.max(1, numTaxa) - 1));
+        if (myNumReadAheadBlocks > 0) {
+            myReadAheadPool = new ForkJoinPool(Math.max(1, Math.min(MAX_READ_AHEAD_THREADS, Runtime.getRuntime().availableProcessors())));
+        } else {
+            myReadAheadPool = null;
+        }
         mySiteAnnoCache = CacheBuilder.newBuilder()
                 .maximumSize(150)
                 .build(siteAnnotLoader);
     }
 
+    private static String getFilename(IHDF5Reader reader) {
+        try {
+            return reader.file().getFile().getAbsolutePath();
+        } catch (Exception e) {
+            myLogger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    //
+    // Returns reader from pool, opening another on the same file if
+    // all are in use.  Callers return it to myReaders when done.
+    //
+    private IHDF5Reader getReader() {
+        IHDF5Reader reader = myReaders.poll();
+        if ((reader == null) && (myFilename != null)) {
+            try {
+                reader = HDF5Factory.openForReading(myFilename);
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+            }
+        }
+        return reader;
+    }
+
+    //
+    // Asynchronously loads the blocks of the given taxon following the
+    // block of the given site that aren't already cached or being read.
+    // Loads done by the read ahead pool don't read further ahead.
+    //
+    private void readAhead(int taxon, int site) {
+        if ((myReadAheadPool == null) || (ForkJoinTask.getPool() == myReadAheadPool)) {
+            return;
+        }
+        int numSites = numberOfSites();
+        for (int i = 1; i <= myNumReadAheadBlocks; i++) {
+            int nextSite = getStartSite(site) + i * HDF5_GENOTYPE_BLOCK_SIZE;
+            if (nextSite >= numSites) {
+                return;
+            }
+            long key = getCacheKey(taxon, nextSite);
+            if ((myGenoCache.getIfPresent(key) == null) && myReadingAhead.add(key)) {
+                myReadAheadPool.execute(() -> {
+                    try {
+                        myGenoCache.get(key);
+                    } catch (Exception e) {
+                        myLogger.debug(e.getMessage(), e);
+                    } finally {
+                        myReadingAhead.remove(key);
+                    }
+                });
+            }
+        }
+    }
+
+    private byte[] getBlock(int taxon, int site) throws ExecutionException {
+        long key = getCacheKey(taxon, site);
+        byte[] data = myGenoCache.getIfPresent(key);
+        if (data == null) {
+            data = myGenoCache.get(key);
+            readAhead(taxon, site);
+        } else if ((site & (HDF5_GENOTYPE_BLOCK_SIZE - 1)) == 0) {
+            readAhead(taxon, site);
+        }
+        return data;
+    }
+
+    //
+    // GenotypeCallTable has no close(), so the pooled readers are closed
+    // when the table is released.  myHDF5Reader belongs to the caller
+    // and is left open.
+    //
+    @Override
+    protected void finalize() throws Throwable {
+        if (myReadAheadPool != null) myReadAheadPool.shutdownNow();
+        IHDF5Reader reader;
+        while ((reader = myReaders.poll()) != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+            }
+        }
+        super.finalize();
+    }
+
     static HDF5ByteGenotypeCallTable getInstance(IHDF5Reader reader) {
         if (!HDF5Utils.isHDF5GenotypeLocked(reader)) {
             throw new IllegalStateException("The Genotype module of this HDF5 file hasn't been locked, and therefore can't be opened for reading. This could occur if the file was created using the -ko (keep open) option when running the plugin ProductionSNPCallerPluginV2. Please check your file, close if appropriate, and try again.");
@@ -175,7 +306,7 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
     @Override
     public byte genotype(int taxon, int site) {
         try {
-            byte[] data = myGenoCache.get(getCacheKey(taxon, site));
+            byte[] data = getBlock(taxon, site);
             return data[site % HDF5_GENOTYPE_BLOCK_SIZE];
         } catch (ExecutionException ex) {
             myLogger.error(ex.getMessage(), ex);
@@ -253,6 +384,7 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
                 while (mySiteOrigin < myNumSites) {
                     try {
                         byte[] data = myGenoCache.get(getCacheKey(myTaxaOrigin, mySiteOrigin));
+                        readAhead(myTaxaOrigin, mySiteOrigin);
                         int startIndex = mySiteOrigin % HDF5_GENOTYPE_BLOCK_SIZE;
                         int endIndex = data.length;
                         for (int i = startIndex; i < endIndex; i++) {
@@ -269,6 +401,7 @@ class HDF5ByteGenotypeCallTable extends AbstractGenotypeCallTable {
             while (mySiteOrigin < mySiteFence) {
                 try {
                     byte[] data = myGenoCache.get(getCacheKey(myTaxaOrigin, mySiteOrigin));
+                    readAhead(myTaxaOrigin, mySiteOrigin);
                     int startIndex = mySiteOrigin % HDF5_GENOTYPE_BLOCK_SIZE;
                     int endIndex = Math.min(data.length, mySiteFence - mySiteOrigin);
                     for (int i = startIndex; i < endIndex; i++) {
@@ -26,6 +26,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -57,6 +58,7 @@ public class BuilderFromVCF {
     private final String infile;
     private boolean includeDepth=false;
     private boolean inMemory=true;
+    private boolean parseFromBytes=false;
     private String hdf5Outfile=null;
     private GenotypeTableBuilder hdf5GenoTableBuilder=null;
     private final ProgressListener myProgressListener;
@@ -107,6 +109,16 @@ public class BuilderFromVCF {
         return this;
     }
 
+    /**
+     * Parse the data lines directly from their bytes rather than through a String per line and field.  This
+     * produces the same GenotypeTable, but with far less garbage, which matters for files with many taxa.
+     * @return this builder
+     */
+    public BuilderFromVCF parseFromBytes() {
+        parseFromBytes=true;
+        return this;
+    }
+
     public GenotypeTable buildAndSortInMemory() {
         return buildEngine(true);
     }
@@ -147,7 +159,33 @@ public class BuilderFromVCF {
             ArrayList<ProcessVCFBlock> pbs=new ArrayList<>();
             List<Future<ProcessVCFBlock>> futures = new ArrayList<>();
             int sitesRead=0;
-            while ((currLine=r.readLine())!=null) {
+            if(parseFromBytes) {
+                //header was consumed through the reader, the byte reader skips it again on its own stream
+                r.close();
+                try (VCFByteBlockReader byteReader=new VCFByteBlockReader(Utils.getInputStream(infile))) {
+                    VCFByteBlockReader.Block block;
+                    while ((block=byteReader.next(linesAtTime))!=null) {
+                        int startSite=(inMemory)?Integer.MIN_VALUE:sitesRead;
+                        futures.add(pool.submit(ProcessVCFBlock.getInstance(taxaList.numberOfTaxa(), hp, block, startSite,
+                                (inMemory)?null:gtbDiskBuild, includeDepth)));
+                        sitesRead+=block.numLines();
+                        //If We are streaming to HDF5, we need to block temporarily and clean out the queue.
+                        if(!inMemory && futures.size()>=numThreads) {
+                            try {
+                                for(Future<ProcessVCFBlock> future : futures) {
+                                    pbs.add(future.get());
+                                }
+                            }
+                            catch(Exception e) {
+                                myLogger.debug(e.getMessage(), e);
+                                throw new IllegalStateException(e.getMessage());
+                            }
+                            futures = new ArrayList<>();
+                        }
+                    }
+                }
+            }
+            while (!parseFromBytes && (currLine=r.readLine())!=null) {
                 if(currLine.startsWith("#")) continue;
                 txtLines.add(currLine);
                 sitesRead++;
@@ -435,6 +473,7 @@ class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
     private final int startSite; //if unknown Int.Mini
     private final GenotypeTableBuilder hdf5Builder; //null is building in memory
     private ArrayList<String> txtL;
+    private VCFByteBlockReader.Block rawBlock; //raw lines, null when parsing from txtL
     private byte[][] gTS;  //genotypes
     private byte[][][] dTS; //depth
     private final ArrayList<Position> blkPosList;
@@ -452,6 +491,18 @@ class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
         this.hdf5Builder=hdf5Builder;
         this.keepDepth=keepDepth;
     }
+
+    private ProcessVCFBlock(int taxaN, HeaderPositions hp, VCFByteBlockReader.Block rawBlock, int startSite,
+                            GenotypeTableBuilder hdf5Builder, boolean keepDepth) {
+        this.taxaN=taxaN;
+        this.siteN=rawBlock.numLines();
+        this.rawBlock=rawBlock;
+        this.hp=hp;
+        blkPosList=new ArrayList<>(siteN);
+        this.startSite=startSite;
+        this.hdf5Builder=hdf5Builder;
+        this.keepDepth=keepDepth;
+    }
     /*Used to process VCF blocks and return the result for a in memory GenotypeTable*/
     static ProcessVCFBlock getInstance(int taxaN, HeaderPositions hp, ArrayList<String> txtL,boolean keepDepth) {
         return new ProcessVCFBlock(taxaN, hp, txtL, Integer.MIN_VALUE, null,keepDepth);
@@ -462,11 +513,20 @@ class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
         return new ProcessVCFBlock(taxaN, hp, txtL, startSite, hdf5Builder,keepDepth);
     }
 
+    /*Used to process raw VCF lines without creating a String per line or field. hdf5Builder is null for in memory*/
+    static ProcessVCFBlock getInstance(int taxaN, HeaderPositions hp, VCFByteBlockReader.Block rawBlock, int startSite, GenotypeTableBuilder hdf5Builder, boolean keepDepth) {
+        return new ProcessVCFBlock(taxaN, hp, rawBlock, startSite, hdf5Builder, keepDepth);
+    }
+
     @Override
     public ProcessVCFBlock call() throws Exception{
         Map<String, Chromosome> chromosomeLookup=new HashMap<>();
         gTS=new byte[taxaN][siteN];
         if(keepDepth==true) dTS=new byte[taxaN][6][siteN];
+        if(rawBlock!=null) {
+            processRawBlock(chromosomeLookup);
+            return finishBlock();
+        }
         for (int s=0; s<siteN; s++) {
             //really needs to use a Splitter iterator to make this cleaner if it is performant
             String input=txtL.get(s);
@@ -489,95 +549,9 @@ class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
                 if(hp.SNPID_INDEX>0) snpID=input.substring(tabPos[hp.SNPID_INDEX-1]+1, tabPos[hp.SNPID_INDEX]);
                 String refS=input.substring(tabPos[hp.REF_INDEX-1]+1, tabPos[hp.REF_INDEX]);
                 String alt=input.substring(tabPos[hp.ALT_INDEX-1]+1, tabPos[hp.ALT_INDEX]);
-                String variants;
-                if(alt.equals(".")) {variants=refS;}
-                else {variants=(refS+"/"+alt).replace(',','/')
-                        .replace("<INS>", "+").replace('I', '+')
-                        .replace("<DEL>", "-").replace('D', '-')
-                        .replace("*", "N");}
-            
-                //GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, currentPosition)
-                //                                               .knownVariants(variants); //TODO strand, variants,
-                //ZRM 8_26
-                GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, Integer.parseInt(input.substring(tabPos[hp.POSITION_INDEX-1]+1, tabPos[hp.POSITION_INDEX])))
-                        .knownVariants(variants) //TODO strand, variants,
-                        ;
-                if(snpID!=null && !snpID.equals(".")) {
-                    apb.snpName(snpID);
-                }
-                //byte[] alleles=new byte[(variants.length()+1)/2];
-                byte[] alleles = new byte[variants.split("/").length];
-                for (int i = 0, varInd=0; i < alleles.length; i++, varInd+=2) {
-                    alleles[i]=NucleotideAlignmentConstants.getNucleotideAlleleByte(variants.charAt(varInd));
-                }
-                /***ZRM 8_27 New code ***/
-                String[] variantList = variants.split("/");
-                if(variantList[0].length()>1) {
-                    String[] parsedVariantList = new String[variantList.length];
-                    //alt deletion
-                    for(int i = 0; i < variantList.length; i++) {
-                        //Pull off the first character if it exists
-                        if(variantList[i].length()>1) {
-                            parsedVariantList[i] = variantList[i].substring(1);
-                            if(parsedVariantList[i].length()==0) {
-                                parsedVariantList[i] = "-";
-                            }
-                        }
-                        else {
-                            //Mark as deletion
-                            parsedVariantList[i] = "-";
-                        }
-                    }
-                    for(int i = 0; i<parsedVariantList.length; i++) {
-                        alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
-                    }
-                }
-                else {
-                    //Check for reference deletion(insertion)
-                    //Loop through all variants to see if one alt is longer than the ref
-                    boolean isIndel = false;
-                    for(int i = 1; i < variantList.length; i++) {
-                        if(variantList[i].length() > variantList[0].length()) {
-                            isIndel = true;
-                            break;
-                        }
-                    }
-                    if(isIndel) {
-                        String[] parsedVariantList = new String[variantList.length];
-                        //ref+alt deletion
-                        for(int i = 0; i < variantList.length; i++) {
-                            //Pull off the first character if it exists
-                            if(variantList[i].length()>1) {
-                                parsedVariantList[i] = variantList[i].substring(1);
-                                if(parsedVariantList[i].length()==0) {
-                                    parsedVariantList[i] = "-";
-                                }
-                            }
-                            else {
-                                //Mark as deletion
-                                parsedVariantList[i] = "-";
-                            }
-                        }
-                        for(int i = 0; i<parsedVariantList.length; i++) {
-                            alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
-                        }
-                    }
-                    else {
-                        //if not just put it in the allele array
-                        for(int i = 0; i<variantList.length; i++) {
-                            alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(variantList[i].charAt(0));
-                        }
-                    }
-                }
-                /***ZRM 8_27 New code end ***/
-                apb.allele(WHICH_ALLELE.Reference, alleles[0]);
-                if (alleles.length > 1) {
-                    apb.allele(WHICH_ALLELE.Alternate, alleles[1]);
-                }
-                for(String annoS: Splitter.on(";").split(input.substring(tabPos[hp.INFO_INDEX-1]+1, tabPos[hp.INFO_INDEX]))) {
-                    apb.addAnno(annoS);
-                }
-                blkPosList.add(apb.build());
+                byte[] alleles=addPosition(currChr, snpID, refS, alt,
+                        Integer.parseInt(input.substring(tabPos[hp.POSITION_INDEX-1]+1, tabPos[hp.POSITION_INDEX])),
+                        input.substring(tabPos[hp.INFO_INDEX-1]+1, tabPos[hp.INFO_INDEX]));
                 final int iGT=0; //genotype index
                 int iAD=-1,iDP=-1,iGQ=-1, iPL=-1;  //alleleDepth, overall depth, genotypeQuality, phredGenotypeLikelihoods
                 if(hp.FORMAT_INDEX>=0) {
@@ -682,7 +656,12 @@ class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
             }
 
         }
+        return finishBlock();
+    }
+
+    private ProcessVCFBlock finishBlock() {
         txtL=null;
+        rawBlock=null;
         if(hdf5Builder!=null) {
             addResultsToHDF5Builder();
             gTS=null;
@@ -694,6 +673,271 @@ class ProcessVCFBlock implements Callable<ProcessVCFBlock> {
         return this;
     }
 
+    /**
+     * Parses the lines of the raw block directly from their bytes.  Only the per site columns needed for the
+     * Position (ID, REF, ALT, INFO) become Strings; the genotype and AD fields of every taxon are decoded in place.
+     */
+    private void processRawBlock(Map<String, Chromosome> chromosomeLookup) {
+        final byte[] b=rawBlock.buffer();
+        final int nonTaxaHeaders=hp.NUM_HAPMAP_NON_TAXA_HEADERS;
+        int[] colStart=new int[nonTaxaHeaders];
+        int[] colEnd=new int[nonTaxaHeaders];
+        Chromosome currChr=null;
+        String currChrName=null;  //name as written in the file, Chromosome may reformat it
+        for (int s=0; s<siteN; s++) {
+            final int lineStart=rawBlock.lineStart(s);
+            final int lineEnd=rawBlock.lineEnd(s);
+            try {
+                int p=lineStart;
+                for (int c=0; c<nonTaxaHeaders; c++) {
+                    colStart[c]=p;
+                    while (p<lineEnd && b[p]!='\t') p++;
+                    colEnd[c]=p++;
+                }
+                int chrStart=colStart[hp.CHROMOSOME_INDEX];
+                int chrEnd=colEnd[hp.CHROMOSOME_INDEX];
+                if (currChrName==null || !sameName(currChrName, b, chrStart, chrEnd)) {
+                    currChrName=ascii(b, chrStart, chrEnd);
+                    currChr=chromosomeLookup.get(currChrName);
+                    if (currChr==null) {
+                        currChr=new Chromosome(currChrName);
+                        chromosomeLookup.put(currChrName, currChr);
+                    }
+                }
+                String snpID=null;
+                if(hp.SNPID_INDEX>0) snpID=ascii(b, colStart[hp.SNPID_INDEX], colEnd[hp.SNPID_INDEX]);
+                byte[] alleles=addPosition(currChr, snpID,
+                        ascii(b, colStart[hp.REF_INDEX], colEnd[hp.REF_INDEX]),
+                        ascii(b, colStart[hp.ALT_INDEX], colEnd[hp.ALT_INDEX]),
+                        parseInt(b, colStart[hp.POSITION_INDEX], colEnd[hp.POSITION_INDEX]),
+                        ascii(b, colStart[hp.INFO_INDEX], colEnd[hp.INFO_INDEX]));
+                int iAD=-1;  //alleleDepth
+                if(hp.FORMAT_INDEX>=0) {
+                    int formatStart=colStart[hp.FORMAT_INDEX];
+                    int formatEnd=colEnd[hp.FORMAT_INDEX];
+                    //Check to see if FORMAT tag is missing. Only applicable for single taxa files
+                    if(formatEnd>=lineEnd) {
+                        throw new IllegalStateException("Error Processing VCF: Missing FORMAT tag.");
+                    }
+                    if(formatEnd-formatStart<2 || b[formatStart]!='G' || b[formatStart+1]!='T') {
+                        if(ascii(b, formatStart, formatEnd).contains("GT")) {
+                            throw new IllegalStateException("Error Processing VCF Block: GT field is not in first position of FORMAT.");
+                        }
+                        else {
+                            throw new IllegalStateException("Error Processing VCF Block: Missing FORMAT tag.");
+                        }
+                    }
+                    iAD=formatFieldIndex(b, formatStart, formatEnd, 'A', 'D');
+                }
+                for (int t=0; t<taxaN && p<=lineEnd; t++) {
+                    int fieldEnd=p;
+                    while (fieldEnd<lineEnd && b[fieldEnd]!='\t') fieldEnd++;
+                    processRawGenotype(b, p, fieldEnd, t, s, alleles, iAD);
+                    p=fieldEnd+1;
+                }
+            } catch(IllegalStateException e) {
+                e.printStackTrace();
+                throw e;
+            }
+            catch(RuntimeException e) {
+                System.err.println("Err Site Number:"+s);
+                if(!blkPosList.isEmpty()) System.err.println("Err Site Number:"+blkPosList.get(blkPosList.size()-1).toString());
+                System.err.println("Err:"+ascii(b, lineStart, lineEnd));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Decodes one taxon's colon separated field (GT first) that occupies b[start, end) into gTS and,
+     * when depth is kept, dTS.
+     */
+    private void processRawGenotype(byte[] b, int start, int end, int t, int s, byte[] alleles, int iAD) {
+        if(start<end && b[start]=='.') {
+            gTS[t][s]=GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            return;
+        }
+        int gtEnd=start;
+        while (gtEnd<end && b[gtEnd]!=':') gtEnd++;
+        int gtLength=gtEnd-start;
+        if(gtLength!=1 && gtLength<3) {
+            throw new IllegalStateException("Error Processing VCF block: Found malformed genotype: "
+                    + ascii(b, start, end) + ".\nExpected a diploid entry.");
+        }
+        int a1=b[start]-'0';
+        int a2=(gtLength==1)?a1:b[start+2]-'0';
+        if(a1>alleles.length-1 || a2>alleles.length-1) {
+            Position pos = blkPosList.get(blkPosList.size()-1);
+            throw new IllegalStateException("\nError Processing VCF block: Mismatch of alleles.\n  At Chromosome "+ pos.getChromosome().getName() + ", Position "+pos.getPosition() +".\nAllele ID larger than number of alleles" );
+        }
+        if (a1 < 0 || a2 < 0) {
+            gTS[t][s]=GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+            return;
+        }
+        gTS[t][s]=GenotypeTableUtils.getDiploidValue(alleles[a1], alleles[a2]);
+        if(!keepDepth || iAD<1) return;
+        int fieldEnd=gtEnd;
+        for (int f=1; f<=iAD && fieldEnd<end; f++) {
+            int fieldStart=fieldEnd+1;
+            fieldEnd=fieldStart;
+            while (fieldEnd<end && b[fieldEnd]!=':') fieldEnd++;
+            if(f==iAD) processRawDepths(b, fieldStart, fieldEnd, t, s, alleles);
+        }
+    }
+
+    private void processRawDepths(byte[] b, int start, int end, int t, int s, byte[] alleles) {
+        int p=start;
+        for (int i=0; i<alleles.length && p<=end; i++) {
+            int adEnd=p;
+            while (adEnd<end && b[adEnd]!=',') adEnd++;
+            byte allele=alleles[i];
+            boolean missing=(adEnd-p==1) && (b[p]=='.');
+            if(!(allele==GenotypeTable.UNKNOWN_ALLELE || missing || allele==NucleotideAlignmentConstants.UNDEFINED_ALLELE ||
+                    allele==NucleotideAlignmentConstants.UNDEFINED_DIPLOID_ALLELE)) {  //no position for depth of unknown alleles or depth is set to missing, so skip
+                dTS[t][allele][s]=AlleleDepthUtil.depthIntToByte(parseInt(b, p, adEnd));
+            }
+            p=adEnd+1;
+        }
+    }
+
+    /**
+     * Index of the colon separated two letter key (e.g. AD) within the FORMAT column b[start, end), or -1 if absent.
+     */
+    private static int formatFieldIndex(byte[] b, int start, int end, char c1, char c2) {
+        int index=0;
+        int fieldStart=start;
+        for (int i=start; i<=end; i++) {
+            if(i==end || b[i]==':') {
+                if(i-fieldStart==2 && b[fieldStart]==c1 && b[fieldStart+1]==c2) return index;
+                index++;
+                fieldStart=i+1;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseInt(byte[] b, int start, int end) {
+        boolean negative=(start<end) && (b[start]=='-');
+        int p=(negative)?start+1:start;
+        if(p>=end) throw new NumberFormatException("For input string: \""+ascii(b, start, end)+"\"");
+        int result=0;
+        for (; p<end; p++) {
+            int digit=b[p]-'0';
+            if(digit<0 || digit>9) throw new NumberFormatException("For input string: \""+ascii(b, start, end)+"\"");
+            result=result*10+digit;
+        }
+        return (negative)?-result:result;
+    }
+
+    private static boolean sameName(String name, byte[] b, int start, int end) {
+        if(name.length()!=end-start) return false;
+        for (int i=0; i<name.length(); i++) {
+            if(name.charAt(i)!=b[start+i]) return false;
+        }
+        return true;
+    }
+
+    private static String ascii(byte[] b, int start, int end) {
+        return new String(b, start, end-start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Builds the position for a site from its VCF columns, adds it to this block, and returns the alleles
+     * (reference first) that the genotype indices of the site refer to.
+     */
+    private byte[] addPosition(Chromosome currChr, String snpID, String refS, String alt, int position, String info) {
+        String variants;
+        if(alt.equals(".")) {variants=refS;}
+        else {variants=(refS+"/"+alt).replace(',','/')
+                .replace("<INS>", "+").replace('I', '+')
+                .replace("<DEL>", "-").replace('D', '-')
+                .replace("*", "N");}
+    
+        //GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, currentPosition)
+        //                                               .knownVariants(variants); //TODO strand, variants,
+        //ZRM 8_26
+        GeneralPosition.Builder apb=new GeneralPosition.Builder(currChr, position)
+                .knownVariants(variants) //TODO strand, variants,
+                ;
+        if(snpID!=null && !snpID.equals(".")) {
+            apb.snpName(snpID);
+        }
+        //byte[] alleles=new byte[(variants.length()+1)/2];
+        byte[] alleles = new byte[variants.split("/").length];
+        for (int i = 0, varInd=0; i < alleles.length; i++, varInd+=2) {
+            alleles[i]=NucleotideAlignmentConstants.getNucleotideAlleleByte(variants.charAt(varInd));
+        }
+        /***ZRM 8_27 New code ***/
+        String[] variantList = variants.split("/");
+        if(variantList[0].length()>1) {
+            String[] parsedVariantList = new String[variantList.length];
+            //alt deletion
+            for(int i = 0; i < variantList.length; i++) {
+                //Pull off the first character if it exists
+                if(variantList[i].length()>1) {
+                    parsedVariantList[i] = variantList[i].substring(1);
+                    if(parsedVariantList[i].length()==0) {
+                        parsedVariantList[i] = "-";
+                    }
+                }
+                else {
+                    //Mark as deletion
+                    parsedVariantList[i] = "-";
+                }
+            }
+            for(int i = 0; i<parsedVariantList.length; i++) {
+                alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
+            }
+        }
+        else {
+            //Check for reference deletion(insertion)
+            //Loop through all variants to see if one alt is longer than the ref
+            boolean isIndel = false;
+            for(int i = 1; i < variantList.length; i++) {
+                if(variantList[i].length() > variantList[0].length()) {
+                    isIndel = true;
+                    break;
+                }
+            }
+            if(isIndel) {
+                String[] parsedVariantList = new String[variantList.length];
+                //ref+alt deletion
+                for(int i = 0; i < variantList.length; i++) {
+                    //Pull off the first character if it exists
+                    if(variantList[i].length()>1) {
+                        parsedVariantList[i] = variantList[i].substring(1);
+                        if(parsedVariantList[i].length()==0) {
+                            parsedVariantList[i] = "-";
+                        }
+                    }
+                    else {
+                        //Mark as deletion
+                        parsedVariantList[i] = "-";
+                    }
+                }
+                for(int i = 0; i<parsedVariantList.length; i++) {
+                    alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(parsedVariantList[i].charAt(0));
+                }
+            }
+            else {
+                //if not just put it in the allele array
+                for(int i = 0; i<variantList.length; i++) {
+                    alleles[i] = NucleotideAlignmentConstants.getNucleotideAlleleByte(variantList[i].charAt(0));
+                }
+            }
+        }
+        /***ZRM 8_27 New code end ***/
+        apb.allele(WHICH_ALLELE.Reference, alleles[0]);
+        if (alleles.length > 1) {
+            apb.allele(WHICH_ALLELE.Alternate, alleles[1]);
+        }
+        for(String annoS: Splitter.on(";").split(info)) {
+            apb.addAnno(annoS);
+        }
+        blkPosList.add(apb.build());
+        return alleles;
+    }
+
     private void addResultsToHDF5Builder() {
 
         hdf5Builder.addSiteBlock(startSite, PositionListBuilder.getInstance(blkPosList), gTS, dTS);
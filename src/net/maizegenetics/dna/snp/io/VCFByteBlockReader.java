@@ -0,0 +1,143 @@
+package net.maizegenetics.dna.snp.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the data lines of a VCF file as blocks of raw bytes.  Each block owns its buffer, so blocks can be handed
+ * to other threads for parsing while the next one is read.  Header lines (starting with #) and blank lines are
+ * skipped.  No Strings are created.
+ */
+class VCFByteBlockReader implements Closeable {
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 20;
+
+    private final InputStream myInput;
+    private byte[] myBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int myLength = 0;
+    private boolean myEndOfInput = false;
+
+    VCFByteBlockReader(InputStream input) {
+        if (input == null) {
+            throw new IllegalArgumentException("VCFByteBlockReader: input stream is null");
+        }
+        myInput = input;
+    }
+
+    /**
+     * Reads up to maxLines data lines.
+     *
+     * @param maxLines maximum number of lines in the block
+     *
+     * @return next block or null when the input is exhausted
+     */
+    Block next(int maxLines) throws IOException {
+
+        int[] starts = new int[maxLines];
+        int[] ends = new int[maxLines];
+        int numLines = 0;
+        int lineStart = 0;
+        int pos = 0;
+        while (numLines < maxLines) {
+            while (pos < myLength && myBuffer[pos] != '\n') {
+                pos++;
+            }
+            if (pos == myLength) {
+                if (myEndOfInput) {
+                    if (lineStart < myLength && isDataLine(lineStart, myLength)) {
+                        starts[numLines] = lineStart;
+                        ends[numLines++] = lineEnd(lineStart, myLength);
+                    }
+                    lineStart = myLength;
+                    break;
+                }
+                fill();
+                continue;
+            }
+            if (isDataLine(lineStart, pos)) {
+                starts[numLines] = lineStart;
+                ends[numLines++] = lineEnd(lineStart, pos);
+            }
+            pos++;
+            lineStart = pos;
+        }
+
+        if (numLines == 0) {
+            return null;
+        }
+
+        // hand the current buffer to the block and carry the unread remainder into a new one
+        Block result = new Block(myBuffer, starts, ends, numLines);
+        byte[] next = new byte[myBuffer.length];
+        int remainder = myLength - lineStart;
+        System.arraycopy(myBuffer, lineStart, next, 0, remainder);
+        myBuffer = next;
+        myLength = remainder;
+        return result;
+
+    }
+
+    private void fill() throws IOException {
+        if (myLength == myBuffer.length) {
+            byte[] temp = new byte[myBuffer.length * 2];
+            System.arraycopy(myBuffer, 0, temp, 0, myLength);
+            myBuffer = temp;
+        }
+        int numRead = myInput.read(myBuffer, myLength, myBuffer.length - myLength);
+        if (numRead < 0) {
+            myEndOfInput = true;
+        } else {
+            myLength += numRead;
+        }
+    }
+
+    private boolean isDataLine(int start, int end) {
+        return lineEnd(start, end) > start && myBuffer[start] != '#';
+    }
+
+    private int lineEnd(int start, int end) {
+        return (end > start && myBuffer[end - 1] == '\r') ? end - 1 : end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        myInput.close();
+    }
+
+    /**
+     * Lines of a block.  Line i occupies buffer()[lineStart(i), lineEnd(i)) without its line terminator.
+     */
+    static class Block {
+
+        private final byte[] myBuffer;
+        private final int[] myStarts;
+        private final int[] myEnds;
+        private final int myNumLines;
+
+        private Block(byte[] buffer, int[] starts, int[] ends, int numLines) {
+            myBuffer = buffer;
+            myStarts = starts;
+            myEnds = ends;
+            myNumLines = numLines;
+        }
+
+        byte[] buffer() {
+            return myBuffer;
+        }
+
+        int lineStart(int line) {
+            return myStarts[line];
+        }
+
+        int lineEnd(int line) {
+            return myEnds[line];
+        }
+
+        int numLines() {
+            return myNumLines;
+        }
+
+    }
+
+}
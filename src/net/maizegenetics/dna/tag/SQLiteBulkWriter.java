@@ -0,0 +1,210 @@
+package net.maizegenetics.dna.tag;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Inserts rows with one prepared statement on a dedicated writer thread, so
+ * the caller can prepare (encode and sort) the next rows while the previous
+ * ones are written.  Rows are committed in large transactions and the rate
+ * is reported when finished.  The caller must not use the connection between
+ * construction and {@link #finish()}.
+ */
+class SQLiteBulkWriter implements AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(SQLiteBulkWriter.class);
+
+    static final int DEFAULT_ROWS_PER_TRANSACTION = 1_000_000;
+    private static final int QUEUE_SIZE = 4;
+
+    // marks the end of the rows in the queue
+    private static final List<Object[]> END = new ArrayList<>();
+
+    private final String myName;
+    private final Connection myConnection;
+    private final PreparedStatement myStatement;
+    private final int myRowsPerTransaction;
+    private final BlockingQueue<List<Object[]>> myQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread myWriterThread;
+    private final long myStartTime = System.nanoTime();
+    private volatile SQLException myException = null;
+    private volatile boolean myAborted = false;
+    private long myNumRows = 0;
+    private boolean myFinished = false;
+
+    /**
+     * Constructor
+     *
+     * @param connection database connection
+     * @param name name used when reporting rate
+     * @param insertSQL insert statement with one parameter per column of a
+     * row
+     * @param rowsPerTransaction rows written per transaction
+     */
+    SQLiteBulkWriter(Connection connection, String name, String insertSQL, int rowsPerTransaction) throws SQLException {
+        myName = name;
+        myConnection = connection;
+        myRowsPerTransaction = rowsPerTransaction;
+        myConnection.setAutoCommit(false);
+        myStatement = myConnection.prepareStatement(insertSQL);
+        myWriterThread = new Thread(this::writeRows, "SQLiteBulkWriter: " + name);
+        myWriterThread.setDaemon(true);
+        myWriterThread.start();
+    }
+
+    SQLiteBulkWriter(Connection connection, String name, String insertSQL) throws SQLException {
+        this(connection, name, insertSQL, DEFAULT_ROWS_PER_TRANSACTION);
+    }
+
+    /**
+     * Queues rows to be written in the given order.  Blocks if the writer is
+     * more than a few chunks behind.
+     *
+     * @param rows rows (column values in statement parameter order)
+     */
+    void add(List<Object[]> rows) throws SQLException {
+        if (myException != null) {
+            throw myException;
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            myQueue.put(rows);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("SQLiteBulkWriter: " + myName + ": interrupted", e);
+        }
+    }
+
+    /**
+     * Waits for all rows to be written and committed, and restores auto
+     * commit.
+     *
+     * @return number of rows written
+     */
+    long finish() throws SQLException {
+        if (myFinished) {
+            return myNumRows;
+        }
+        myFinished = true;
+        stopWriter();
+        if (myException != null) {
+            rollback();
+            throw myException;
+        }
+        myStatement.close();
+        myConnection.setAutoCommit(true);
+        double seconds = (System.nanoTime() - myStartTime) / 1e9;
+        myLogger.info(String.format("%s: %,d rows written in %.1f s (%,.0f rows/s)", myName, myNumRows, seconds, myNumRows / Math.max(seconds, 1e-9)));
+        return myNumRows;
+    }
+
+    /**
+     * Discards uncommitted rows if not finished.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (myFinished) {
+            return;
+        }
+        myFinished = true;
+        myAborted = true;
+        stopWriter();
+        rollback();
+    }
+
+    private void stopWriter() throws SQLException {
+        try {
+            myQueue.put(END);
+            myWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("SQLiteBulkWriter: " + myName + ": interrupted", e);
+        }
+    }
+
+    private void rollback() throws SQLException {
+        try {
+            myConnection.rollback();
+        } finally {
+            myStatement.close();
+            myConnection.setAutoCommit(true);
+        }
+    }
+
+    private void writeRows() {
+        int rowsInTransaction = 0;
+        try {
+            while (true) {
+                List<Object[]> rows = myQueue.take();
+                if (rows == END) {
+                    break;
+                }
+                if (myAborted || myException != null) {
+                    continue;
+                }
+                for (Object[] row : rows) {
+                    bind(row);
+                    myStatement.addBatch();
+                }
+                myStatement.executeBatch();
+                myNumRows += rows.size();
+                rowsInTransaction += rows.size();
+                if (rowsInTransaction >= myRowsPerTransaction) {
+                    myConnection.commit();
+                    rowsInTransaction = 0;
+                }
+            }
+            if (!myAborted && myException == null) {
+                myConnection.commit();
+            }
+        } catch (SQLException e) {
+            myException = e;
+            drain();
+        } catch (InterruptedException e) {
+            myException = new SQLException("SQLiteBulkWriter: " + myName + ": interrupted", e);
+        }
+    }
+
+    // keeps taking rows after a failure so callers aren't blocked
+    private void drain() {
+        try {
+            while (myQueue.take() != END) {
+                // discard
+            }
+        } catch (InterruptedException e) {
+            // done
+        }
+    }
+
+    private void bind(Object[] row) throws SQLException {
+        for (int c = 0; c < row.length; c++) {
+            Object value = row[c];
+            int index = c + 1;
+            if (value == null) {
+                myStatement.setNull(index, Types.NULL);
+            } else if (value instanceof byte[]) {
+                myStatement.setBytes(index, (byte[]) value);
+            } else if (value instanceof Integer) {
+                myStatement.setInt(index, (Integer) value);
+            } else if (value instanceof Short) {
+                myStatement.setShort(index, (Short) value);
+            } else if (value instanceof String) {
+                myStatement.setString(index, (String) value);
+            } else {
+                myStatement.setObject(index, value);
+            }
+        }
+    }
+
+}
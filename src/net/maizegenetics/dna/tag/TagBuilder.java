@@ -66,6 +66,20 @@ public class TagBuilder {
         return new TagBuilder(seq2Bit,(short)sequence.length());
     }
 
+    /**
+     * Encodes sequence[offset, offset + length) directly from the bytes of a
+     * read (A, C, G, T in either case).  Gives the same tag as
+     * instance(String), including an empty encoding (build() returns null) when
+     * any base is not A, C, G, or T.
+     */
+    public static TagBuilder instance(byte[] sequence, int offset, int length) {
+        long[] seq2Bit = new long[(length + BaseEncoder.chunkSize - 1) / BaseEncoder.chunkSize];
+        if (!BaseEncoder.getLongArrayFromSeq(sequence, offset, length, seq2Bit)) {
+            seq2Bit = new long[0];
+        }
+        return new TagBuilder(seq2Bit, (short) length);
+    }
+
     public static TagBuilder reverseComplement(Tag tag) {
         String revSequence = BaseEncoder.getReverseComplement(tag.sequence());
         if (revSequence == null) return null;
@@ -4,6 +4,7 @@ import cern.colt.list.FloatArrayList;
 import cern.colt.list.IntArrayList;
 import com.google.common.collect.*;
 import com.google.common.io.CharStreams;
+import com.google.common.primitives.UnsignedBytes;
 
 import net.maizegenetics.dna.WHICH_ALLELE;
 import net.maizegenetics.dna.map.*;
@@ -17,6 +18,8 @@ import net.maizegenetics.taxa.Taxon;
 import net.maizegenetics.util.*;
 
 import net.maizegenetics.util.db.DBTuple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.sqlite.SQLiteConfig;
 
 import java.io.InputStreamReader;
@@ -26,6 +29,7 @@ import java.sql.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -38,6 +42,9 @@ import net.maizegenetics.util.db.SQL;
  * @author Ed Buckler
  */
 public class TagDataSQLite implements TagDataWriter, AutoCloseable {
+
+    private static final Logger myLogger = LogManager.getLogger(TagDataSQLite.class);
+
     private Connection connection = null;
 
     /*These maps contain  objects that are most queried by users.  This is a not the simplest way to do this, which
@@ -56,6 +63,17 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     private TaxaList myTaxaList;
 
+    // rows prepared in parallel and handed to SQLiteBulkWriter at a time
+    private static final int BULK_ROWS_PER_CHUNK = 100_000;
+
+    // secondary indices that are dropped during a bulk load and created afterwards {name, create statement}
+    private static final String[][] BULK_LOAD_DEFERRED_INDICES = {
+            {"tagid_idx", "CREATE INDEX IF NOT EXISTS tagid_idx ON tagtaxadistribution(tagid)"},
+            {"newalleleidta_idx", "CREATE INDEX IF NOT EXISTS newalleleidta_idx on tagallele(alleleid)"}};
+
+    private boolean myIsBulkLoad = false;
+    private long myBulkLoadStart;
+
     PreparedStatement tagTaxaDistPS;
     PreparedStatement tagAlleleWhereTagPS;
     PreparedStatement tagidWhereSNPidPS;
@@ -115,9 +133,96 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
     @Override
     public void close() throws Exception {
         System.out.println("Closing SQLDB");
+        if (myIsBulkLoad) finishBulkLoad();
         connection.close();
     }
 
+    /**
+     * Starts bulk load mode for loading a large number of tags, taxa
+     * distributions, and alleles.  The database is switched to write ahead
+     * logging without syncing to disk, and secondary indices on the loaded
+     * tables are dropped.  Rows are always written in sorted order in large
+     * transactions on a writer thread.  Call finishBulkLoad() (or close()) to
+     * create the indices again.  A failure during a bulk load can leave
+     * the database corrupt, so it should only be used for a new or
+     * recreatable database.
+     */
+    public void startBulkLoad() {
+        if (myIsBulkLoad) return;
+        try (Statement statement = connection.createStatement()) {
+            myBulkLoadStart = System.nanoTime();
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=OFF");
+            statement.execute("PRAGMA temp_store=MEMORY");
+            statement.execute("PRAGMA cache_size=-262144");  //256 MB
+            for (String[] index : BULK_LOAD_DEFERRED_INDICES) {
+                statement.execute("DROP INDEX IF EXISTS " + index[0]);
+            }
+            myIsBulkLoad = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Finishes bulk load mode.  Creates the dropped indices and returns the
+     * database to a single file with the default journal.  The journal and
+     * sync settings are restored even if an index can't be created.
+     */
+    public void finishBulkLoad() {
+        if (!myIsBulkLoad) return;
+        try (Statement statement = connection.createStatement()) {
+            try {
+                long time = System.nanoTime();
+                for (String[] index : BULK_LOAD_DEFERRED_INDICES) {
+                    statement.execute(index[1]);
+                }
+                myLogger.info(String.format("finishBulkLoad: indices created in %.1f s", (System.nanoTime() - time) / 1e9));
+            } finally {
+                myIsBulkLoad = false;
+                statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                statement.execute("PRAGMA journal_mode=DELETE");
+                statement.execute("PRAGMA synchronous=FULL");
+            }
+            myLogger.info(String.format("finishBulkLoad: bulk load took %.1f s", (System.nanoTime() - myBulkLoadStart) / 1e9));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes rows with a SQLiteBulkWriter.  Rows are made in parallel from
+     * the items a chunk at a time, so the next chunk is made while the writer
+     * thread writes the previous one.
+     */
+    private <T> long bulkInsert(String name, String insertSQL, List<T> items, Function<T, Object[]> toRow) throws SQLException {
+        try (SQLiteBulkWriter writer = new SQLiteBulkWriter(connection, name, insertSQL)) {
+            for (int start = 0; start < items.size(); start += BULK_ROWS_PER_CHUNK) {
+                List<T> chunk = items.subList(start, Math.min(items.size(), start + BULK_ROWS_PER_CHUNK));
+                writer.add(chunk.parallelStream().map(toRow).collect(Collectors.toList()));
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Tags not already in the database, sorted by the order of the tag
+     * table's (sequence, seqlen) index, so the index is built in order.
+     */
+    private List<Tag> newTagsInIndexOrder(Collection<Tag> tags) {
+        Comparator<byte[]> blobOrder = UnsignedBytes.lexicographicalComparator();
+        Map<Tag, byte[]> sequences = tags.parallelStream()
+                .filter(tag -> !tagTagIDMap.containsKey(tag))
+                .distinct()
+                .collect(Collectors.toConcurrentMap(tag -> tag, Tag::seq2BitAsBytes));
+        List<Tag> result = new ArrayList<>(sequences.keySet());
+        result.sort((tag1, tag2) -> {
+            int compare = blobOrder.compare(sequences.get(tag1), sequences.get(tag2));
+            return (compare != 0) ? compare : Short.compare(tag1.seqLength(), tag2.seqLength());
+        });
+        return result;
+    }
+
     private void initPreparedStatements() {
         try{
             posTagInsertPS=connection.prepareStatement(
@@ -310,26 +415,10 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     @Override
     public boolean putAllTag(Set<Tag> tags) {
-        int batchCount=0, totalCount=0;
+        long totalCount=0;
         try {
-            connection.setAutoCommit(false);
-            PreparedStatement tagInsertPS=connection.prepareStatement("insert into tag (sequence, seqlen) values(?,?)");
-            for (Tag tag : tags) {
-                if(tagTagIDMap.containsKey(tag)) continue;  //it is already in the DB skip
-                tagInsertPS.setBytes(1, tag.seq2BitAsBytes());
-                tagInsertPS.setShort(2, tag.seqLength());
-                tagInsertPS.addBatch();
-                batchCount++;
-                totalCount++;
-                if(batchCount>100000) {
-                    System.out.println("tagInsertPS.executeBatch() "+batchCount);
-                    tagInsertPS.executeBatch();
-                    //connection.commit();
-                    batchCount=0;
-                }
-            }
-            tagInsertPS.executeBatch();
-            connection.setAutoCommit(true);
+            totalCount=bulkInsert("putAllTag", "insert into tag (sequence, seqlen) values(?,?)", newTagsInIndexOrder(tags),
+                    tag -> new Object[]{tag.seq2BitAsBytes(), tag.seqLength()});
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -340,28 +429,10 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     @Override
     public boolean putAllNamesTag(Map<Tag, String> tagNameMap) {
-        int batchCount=0, totalCount=0;
+        long totalCount=0;
         try {
-            connection.setAutoCommit(false);
-            PreparedStatement tagInsertPS=connection.prepareStatement("insert into tag (sequence, seqlen, tagName) values(?,?,?)");
-            for (Map.Entry<Tag, String> entry : tagNameMap.entrySet()) {
-                Tag tag=entry.getKey();
-                if(tagTagIDMap.containsKey(tag)) continue;  //it is already in the DB skip
-                tagInsertPS.setBytes(1, tag.seq2BitAsBytes());
-                tagInsertPS.setShort(2, tag.seqLength());
-                tagInsertPS.setString(3, entry.getValue());
-                tagInsertPS.addBatch();
-                batchCount++;
-                totalCount++;
-                if(batchCount>100000) {
-                    System.out.println("tagInsertPS.executeBatch() "+batchCount);
-                    tagInsertPS.executeBatch();
-                    //connection.commit();
-                    batchCount=0;
-                }
-            }
-            tagInsertPS.executeBatch();
-            connection.setAutoCommit(true);
+            totalCount=bulkInsert("putAllNamesTag", "insert into tag (sequence, seqlen, tagName) values(?,?,?)", newTagsInIndexOrder(tagNameMap.keySet()),
+                    tag -> new Object[]{tag.seq2BitAsBytes(), tag.seqLength(), tagNameMap.get(tag)});
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -424,28 +495,22 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     @Override
     public void putTaxaDistribution(Map<Tag, TaxaDistribution> tagTaxaDistributionMap) {
-        int batchCount=0;
         try {
             int numTaxa=myTaxaList.numberOfTaxa();
-            connection.setAutoCommit(false);
-            PreparedStatement tagInsertPS=connection.prepareStatement("insert into tagtaxadistribution (tagid, depthsRLE, totalDepth) values(?,?,?)");
-            for (Map.Entry<Tag, TaxaDistribution> entry : tagTaxaDistributionMap.entrySet()) {
-                int tagID=tagTagIDMap.get(entry.getKey());
-                tagInsertPS.setInt(1,tagID);
-                if(entry.getValue().maxTaxa()!=numTaxa) throw new IllegalStateException("Number of taxa does not agree with taxa distribution");
-                tagInsertPS.setBytes(2, entry.getValue().encodeTaxaDepth());
-                tagInsertPS.setInt(3, entry.getValue().totalDepth());
-                tagInsertPS.addBatch();
-                batchCount++;
-                if(batchCount>100000) {
-                    System.out.println("putTaxaDistribution next"+batchCount);
-                    tagInsertPS.executeBatch();
-                    //connection.commit();
-                    batchCount=0;
-                }
+            // in tagid order, which is the order of the tagid index
+            List<Map.Entry<Tag, TaxaDistribution>> entries = new ArrayList<>(tagTaxaDistributionMap.entrySet());
+            int[] tagIDs = new int[entries.size()];
+            for (int i = 0; i < tagIDs.length; i++) {
+                tagIDs[i] = tagTagIDMap.get(entries.get(i).getKey());
             }
-            tagInsertPS.executeBatch();
-            connection.setAutoCommit(true);  
+            List<Integer> order = IntStream.range(0, tagIDs.length).boxed()
+                    .sorted(Comparator.comparingInt(i -> tagIDs[i]))
+                    .collect(Collectors.toList());
+            bulkInsert("putTaxaDistribution", "insert into tagtaxadistribution (tagid, depthsRLE, totalDepth) values(?,?,?)", order, i -> {
+                TaxaDistribution taxaDistribution = entries.get(i).getValue();
+                if(taxaDistribution.maxTaxa()!=numTaxa) throw new IllegalStateException("Number of taxa does not agree with taxa distribution");
+                return new Object[]{tagIDs[i], taxaDistribution.encodeTaxaDepth(), taxaDistribution.totalDepth()};
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -672,10 +737,7 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
 
     @Override
     public boolean putTagAlleles(Multimap<Tag, Allele> tagAlleleMap) {
-        int batchCount=0;
         try {
-            PreparedStatement alleleTagInsertPS=connection.prepareStatement(
-                    "INSERT OR IGNORE into tagallele (alleleid, tagid) values(?,?)");
             putAllTag(tagAlleleMap.keySet());
             loadSNPPositionHash(false);
             putSNPPositionsIfAbsent(tagAlleleMap.values().stream()
@@ -685,21 +747,12 @@ public class TagDataSQLite implements TagDataWriter, AutoCloseable {
             putAlleleIfAbsent(tagAlleleMap.values().stream()
                     .distinct()
                     .collect(Collectors.toSet()));
-            connection.setAutoCommit(false);
-            for (Map.Entry<Tag, Allele> tagAlleleEntry : tagAlleleMap.entries()) {
-                int ind=1;
-                alleleTagInsertPS.setInt(ind++, alleleToIDMap.get(tagAlleleEntry.getValue()));
-                alleleTagInsertPS.setInt(ind++, tagTagIDMap.get(tagAlleleEntry.getKey()));
-                alleleTagInsertPS.addBatch();
-                batchCount++;
-                if(batchCount>10000) {
-                    System.out.println("alleleTagInsertPS next"+batchCount);
-                    alleleTagInsertPS.executeBatch();
-                    batchCount=0;
-                }
-            }
-            alleleTagInsertPS.executeBatch();
-            connection.setAutoCommit(true);
+            // (tagid, alleleid) in primary key order
+            List<Object[]> rows = tagAlleleMap.entries().stream()
+                    .map(entry -> new Object[]{tagTagIDMap.get(entry.getKey()), alleleToIDMap.get(entry.getValue())})
+                    .sorted(Comparator.<Object[]>comparingInt(row -> (Integer) row[0]).thenComparingInt(row -> (Integer) row[1]))
+                    .collect(Collectors.toList());
+            bulkInsert("putTagAlleles", "INSERT OR IGNORE into tagallele (tagid, alleleid) values(?,?)", rows, row -> row);
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -21,6 +21,8 @@ import java.util.Arrays;
  * Builder for TaxaDistribution.  Deals with the
  */
 public class TaxaDistBuilder {
+    static final int MAX_ENCODED_BYTE=UnsignedBytes.toInt(UnsignedBytes.MAX_VALUE);
+
     private TaxaDistBuilder() {}
     
     /**
@@ -46,13 +48,36 @@ public class TaxaDistBuilder {
     }
     
     /**
-     * Create an fixed TaxaDistribution with set values
+     * Create an fixed TaxaDistribution with set values.  Taxa are normally in increasing order; otherwise they are
+     * sorted and the depths of repeated taxa are added.
      * @param maxTaxa
      * @return
      */
     public static TaxaDistribution create(int maxTaxa, int[] taxaWithTags, int[] depthOfTags) {
-        return new TaxaDistFixed(maxTaxa,taxaWithTags,depthOfTags);
-        
+        if(taxaWithTags.length!=depthOfTags.length) throw new IllegalArgumentException("TaxaDistBuilder: create: taxa and depths differ in length");
+        TaxaDistCompact.Encoder encoder=new TaxaDistCompact.Encoder(maxTaxa,taxaWithTags.length);
+        boolean increasing=true;
+        for (int i = 1; i < taxaWithTags.length && increasing; i++) {
+            increasing=taxaWithTags[i-1]<taxaWithTags[i];
+        }
+        if(increasing) {
+            for (int i = 0; i < taxaWithTags.length; i++) {
+                encoder.add(taxaWithTags[i],depthOfTags[i]);
+            }
+            return encoder.build();
+        }
+        long[] taxaDepths=new long[taxaWithTags.length];
+        for (int i = 0; i < taxaWithTags.length; i++) {
+            taxaDepths[i]=((long)taxaWithTags[i]<<32)|depthOfTags[i];
+        }
+        Arrays.sort(taxaDepths);
+        for (int i = 0; i < taxaDepths.length; ) {
+            int taxon=(int)(taxaDepths[i]>>>32);
+            int depth=0;
+            for (; i < taxaDepths.length && (int)(taxaDepths[i]>>>32)==taxon; i++) depth+=(int)taxaDepths[i];
+            encoder.add(taxon,depth);
+        }
+        return encoder.build();
     }
     
     /**
@@ -61,9 +86,37 @@ public class TaxaDistBuilder {
      * @return
      */
     public static TaxaDistribution create(byte[] encodedTaxaDistribution) {
-        int[][] decodedTD=getDepthMatrixForEncodedDepths(encodedTaxaDistribution);
-        return new TaxaDistFixed(decodedTD[2][0],decodedTD[0], decodedTD[1]);
-        
+        try{
+            byte[] input=Snappy.uncompress(encodedTaxaDistribution);
+            ByteBuffer bb=ByteBuffer.wrap(input);
+            int maxTaxa=bb.getInt();
+            int taxaWithDepth=bb.getInt();
+            //taxa gaps and depths are in separate sections, find the start of the depths and read both together
+            int depthPos=bb.position();
+            for (int i = 0; i < taxaWithDepth; i++) {
+                while(input[depthPos++]==UnsignedBytes.MAX_VALUE) {}
+            }
+            int taxaPos=bb.position();
+            TaxaDistCompact.Encoder encoder=new TaxaDistCompact.Encoder(maxTaxa,taxaWithDepth);
+            int taxon=0;
+            for (int i = 0; i < taxaWithDepth; i++) {
+                int inc;
+                do {
+                    inc=UnsignedBytes.toInt(input[taxaPos++]);
+                    taxon+=inc;
+                } while(inc==MAX_ENCODED_BYTE);
+                int depth=0;
+                do {
+                    inc=UnsignedBytes.toInt(input[depthPos++]);
+                    depth+=inc;
+                } while(inc==MAX_ENCODED_BYTE);
+                encoder.add(taxon,depth);
+            }
+            return encoder.build();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
     
     /**
@@ -74,12 +127,11 @@ public class TaxaDistBuilder {
      */
     public static TaxaDistribution create(TaxaDistribution srcTaxaDist) {
         TaxaDistribution dstTD=create(srcTaxaDist.maxTaxa());
-        int[] depths=srcTaxaDist.depths();
-        for (int taxaIndex = 0; taxaIndex < depths.length; taxaIndex++) {
-            for (int j = 0; j < depths[taxaIndex]; j++) {
+        srcTaxaDist.forEachTaxonDepth((taxaIndex, depth) -> {
+            for (int j = 0; j < depth; j++) {
                 dstTD.increment(taxaIndex);
             }
-        }
+        });
         return dstTD;
     }
     
@@ -91,24 +143,29 @@ public class TaxaDistBuilder {
      */
     public static TaxaDistribution combine(TaxaDistribution taxaDist1, TaxaDistribution taxaDist2) {
         if(taxaDist1.maxTaxa()!=taxaDist2.maxTaxa()) throw new IllegalStateException("TaxaDistributions not of same size");
-        int[] depths1=taxaDist1.depths();
-        int[] depths2=taxaDist2.depths();
-        int taxaWithDepth=0;
-        for (int i = 0; i < depths1.length; i++) {
-            depths1[i]+=depths2[i];
-            if(depths1[i]>0) taxaWithDepth++;
-        }
-        int[] taxaWithTags=new int[taxaWithDepth];
-        int[] depthOfTags=new int[taxaWithDepth];
-        taxaWithDepth=0;
-        for (int i = 0; i < depths1.length; i++) {
-            if(depths1[i]>0) {
-                taxaWithTags[taxaWithDepth]=i;
-                depthOfTags[taxaWithDepth]=depths1[i];
-                taxaWithDepth++;
+        TaxaDistCompact.Cursor cursor1=TaxaDistCompact.cursor(taxaDist1);
+        TaxaDistCompact.Cursor cursor2=TaxaDistCompact.cursor(taxaDist2);
+        TaxaDistCompact.Encoder encoder=new TaxaDistCompact.Encoder(taxaDist1.maxTaxa(),cursor1.numberOfTaxa()+cursor2.numberOfTaxa());
+        boolean has1=cursor1.next();
+        boolean has2=cursor2.next();
+        while(has1 && has2) {
+            int taxon1=cursor1.taxon();
+            int taxon2=cursor2.taxon();
+            if(taxon1<taxon2) {
+                encoder.add(taxon1,cursor1.depth());
+                has1=cursor1.next();
+            } else if(taxon2<taxon1) {
+                encoder.add(taxon2,cursor2.depth());
+                has2=cursor2.next();
+            } else {
+                encoder.add(taxon1,cursor1.depth()+cursor2.depth());
+                has1=cursor1.next();
+                has2=cursor2.next();
             }
         }
-        return create(taxaDist1.maxTaxa(),taxaWithTags,depthOfTags);
+        for (; has1; has1=cursor1.next()) encoder.add(cursor1.taxon(),cursor1.depth());
+        for (; has2; has2=cursor2.next()) encoder.add(cursor2.taxon(),cursor2.depth());
+        return encoder.build();
     }
     
     /**
@@ -194,28 +251,35 @@ abstract class AbstractTaxaDistribution implements TaxaDistribution {
     
     @Override
     public byte[] encodeTaxaDepth() {
-        int[][] tds=taxaWithDepths();
-        ByteBuffer bb=ByteBuffer.allocate(8+(maxTaxa()/64)+(2*tds[0].length)+(totalDepth()/64));
+        //first pass sizes the saturated byte encoding of the taxa gaps {0} and depths {1}, and counts the taxa {2}
+        int[] sizes=new int[3];
+        int[] priorTaxa={0};
+        forEachTaxonDepth((taxon, depth) -> {
+            sizes[0]+=(taxon-priorTaxa[0])/TaxaDistBuilder.MAX_ENCODED_BYTE+1;
+            sizes[1]+=depth/TaxaDistBuilder.MAX_ENCODED_BYTE+1;
+            sizes[2]++;
+            priorTaxa[0]=taxon;
+        });
+        byte[] result=new byte[8+sizes[0]+sizes[1]];
+        ByteBuffer bb=ByteBuffer.wrap(result);
         bb.putInt(maxTaxa());  //maximum number of taxa with depth
-        bb.putInt(tds[0].length);  //number of taxa with depth
-        int priorTaxa=0;
-        for (int i = 0; i < tds[0].length; i++) {
-            int space=tds[0][i]-priorTaxa;
+        bb.putInt(sizes[2]);  //number of taxa with depth
+        int[] depthPos={8+sizes[0]};
+        priorTaxa[0]=0;
+        forEachTaxonDepth((taxon, depth) -> {
+            int space=taxon-priorTaxa[0];
             while(space>=0) {
                 bb.put(UnsignedBytes.saturatedCast(space));
                 space-=255;
             }
-            priorTaxa=tds[0][i];
-        }
-        for (int i = 0; i < tds[1].length; i++) {
-            int depth=tds[1][i];
+            priorTaxa[0]=taxon;
             while(depth>=0) {
-                bb.put(UnsignedBytes.saturatedCast(depth));
+                result[depthPos[0]++]=UnsignedBytes.saturatedCast(depth);
                 depth-=255;
             }
-        }
+        });
         try{
-            return Snappy.compress(Arrays.copyOf(bb.array(), bb.position()));
+            return Snappy.compress(result);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,385 @@
+package net.maizegenetics.dna.tag;
+
+import java.util.Arrays;
+
+/**
+ * Fixed TaxaDistribution held in one byte array with a column of taxa followed by a column of depths.
+ *
+ * The taxa column has one of two forms, whichever is smaller.  The sparse form is a varint per taxon with the
+ * gap from the previous taxon (taxon - previous - 1, the first taxon is written as is).  The dense form is a
+ * bitmap of maxTaxa bits, least significant bit first, and is smaller once more than about one taxon in eight has the tag.
+ * The depth column is run length encoded as varint (depth, run length) pairs, as most depths are 1 or 2.
+ *
+ * Distributions are merged, decoded and iterated with {@link Cursor} and {@link Encoder}, so no arrays sized by
+ * maxTaxa or by the number of taxa are needed.
+ */
+class TaxaDistCompact extends AbstractTaxaDistribution {
+    //minimal size 8 (object) + 12 (array) + 4 + 4 + 4 + 4 + 1 = 37
+    private final byte[] myEncoding;
+    private final int myDepthStart;
+    private final int maxTaxa;
+    private final int numTaxaWithTags;
+    private final int totalDepth;
+    private final boolean myDense;
+
+    private TaxaDistCompact(int maxTaxa, int numTaxaWithTags, int totalDepth, boolean dense, byte[] encoding, int depthStart) {
+        this.maxTaxa = maxTaxa;
+        this.numTaxaWithTags = numTaxaWithTags;
+        this.totalDepth = totalDepth;
+        myDense = dense;
+        myEncoding = encoding;
+        myDepthStart = depthStart;
+    }
+
+    @Override
+    public synchronized TaxaDistribution increment(int taxaNum) {
+        throw new UnsupportedOperationException("TaxaDistCompact cannot be increment.  Change to expandable first.");
+    }
+
+    @Override
+    public int[] depths() {
+        int[] depths = new int[maxTaxa];
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            depths[cursor.taxon()] = cursor.depth();
+        }
+        return depths;
+    }
+
+    @Override
+    public int[][] taxaWithDepths() {
+        int[][] taxaDepth = new int[2][numTaxaWithTags];
+        Cursor cursor = cursor();
+        for (int i = 0; cursor.next(); i++) {
+            taxaDepth[0][i] = cursor.taxon();
+            taxaDepth[1][i] = cursor.depth();
+        }
+        return taxaDepth;
+    }
+
+    @Override
+    public void forEachTaxonDepth(TaxonDepthConsumer consumer) {
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            consumer.accept(cursor.taxon(), cursor.depth());
+        }
+    }
+
+    @Override
+    public int totalDepth() {
+        return totalDepth;
+    }
+
+    @Override
+    public int maxTaxa() {
+        return maxTaxa;
+    }
+
+    @Override
+    public int numberOfTaxaWithTag() {
+        return numTaxaWithTags;
+    }
+
+    @Override
+    public int memorySize() {
+        return 37 + myEncoding.length;
+    }
+
+    boolean isDense() {
+        return myDense;
+    }
+
+    Cursor cursor() {
+        return new CompactCursor(this);
+    }
+
+    /**
+     * Cursor over any TaxaDistribution.  Compact distributions are read in place, others through taxaWithDepths().
+     */
+    static Cursor cursor(TaxaDistribution taxaDistribution) {
+        if (taxaDistribution instanceof TaxaDistCompact) {
+            return ((TaxaDistCompact) taxaDistribution).cursor();
+        }
+        return new ArrayCursor(taxaDistribution.taxaWithDepths());
+    }
+
+    /**
+     * Iterates the taxa with depth in increasing taxon order.
+     */
+    static abstract class Cursor {
+
+        /**
+         * Advances to the next taxon with depth
+         * @return false when no taxa remain
+         */
+        abstract boolean next();
+
+        abstract int taxon();
+
+        abstract int depth();
+
+        /**
+         * Number of taxa with depth
+         */
+        abstract int numberOfTaxa();
+    }
+
+    private static final class CompactCursor extends Cursor {
+
+        private final byte[] myEncoding;
+        private final boolean myDense;
+        private int myTaxaPos = 0;
+        private int myDepthPos;
+        private int myVarintEnd;
+        private int myTaxon = -1;
+        private int myDepth = 0;
+        private int myRunRemaining = 0;
+        private int myRemaining;
+        // bits of the current bitmap byte not yet returned, dense form only
+        private int myBits = 0;
+        private final int myNumTaxa;
+
+        private CompactCursor(TaxaDistCompact td) {
+            myEncoding = td.myEncoding;
+            myDense = td.myDense;
+            myDepthPos = td.myDepthStart;
+            myRemaining = td.numTaxaWithTags;
+            myNumTaxa = td.numTaxaWithTags;
+        }
+
+        @Override
+        boolean next() {
+            if (myRemaining == 0) {
+                return false;
+            }
+            myRemaining--;
+            if (myDense) {
+                while (myBits == 0) {
+                    myBits = myEncoding[myTaxaPos++] & 0xFF;
+                }
+                int bit = Integer.numberOfTrailingZeros(myBits);
+                myBits &= myBits - 1;
+                myTaxon = ((myTaxaPos - 1) << 3) + bit;
+            } else {
+                byte b = myEncoding[myTaxaPos];
+                if (b >= 0) {
+                    myTaxon += b + 1;
+                    myTaxaPos++;
+                } else {
+                    myTaxon += readVarint(myTaxaPos) + 1;
+                    myTaxaPos = myVarintEnd;
+                }
+            }
+            if (myRunRemaining == 0) {
+                byte depth = myEncoding[myDepthPos];
+                byte run = myEncoding[myDepthPos + 1];
+                if ((depth | run) >= 0) {
+                    myDepth = depth;
+                    myRunRemaining = run;
+                    myDepthPos += 2;
+                } else {
+                    myDepth = readVarint(myDepthPos);
+                    myRunRemaining = readVarint(myVarintEnd);
+                    myDepthPos = myVarintEnd;
+                }
+            }
+            myRunRemaining--;
+            return true;
+        }
+
+        @Override
+        int taxon() {
+            return myTaxon;
+        }
+
+        @Override
+        int depth() {
+            return myDepth;
+        }
+
+        @Override
+        int numberOfTaxa() {
+            return myNumTaxa;
+        }
+
+        // reads the varint at pos, and sets myVarintEnd to the position after it
+        private int readVarint(int pos) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = myEncoding[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            myVarintEnd = pos;
+            return value;
+        }
+    }
+
+    private static final class ArrayCursor extends Cursor {
+
+        private final int[] myTaxa;
+        private final int[] myDepths;
+        private int myIndex = -1;
+
+        private ArrayCursor(int[][] taxaWithDepths) {
+            myTaxa = taxaWithDepths[0];
+            myDepths = taxaWithDepths[1];
+        }
+
+        @Override
+        boolean next() {
+            return ++myIndex < myTaxa.length;
+        }
+
+        @Override
+        int taxon() {
+            return myTaxa[myIndex];
+        }
+
+        @Override
+        int depth() {
+            return myDepths[myIndex];
+        }
+
+        @Override
+        int numberOfTaxa() {
+            return myTaxa.length;
+        }
+    }
+
+    /**
+     * Builds a TaxaDistCompact from taxa added in increasing order.  The taxa are written in the sparse form until
+     * it becomes larger than the bitmap, and are then converted to the bitmap.
+     */
+    static final class Encoder {
+
+        private final int maxTaxa;
+        private final int myBitmapLength;
+        // sparse form until the bitmap is smaller, then null
+        private byte[] myTaxa;
+        private int myTaxaLength = 0;
+        private byte[] myBitmap = null;
+        private byte[] myDepths;
+        private int myDepthsLength = 0;
+        private int myPrevTaxon = -1;
+        private int myNumTaxa = 0;
+        private long myTotalDepth = 0;
+        private int myRunDepth = 0;
+        private int myRunLength = 0;
+
+        Encoder(int maxTaxa) {
+            this(maxTaxa, 8);
+        }
+
+        /**
+         * @param maxTaxa number of taxa
+         * @param expectedTaxa expected number of taxa with depth, used to size the buffers
+         */
+        Encoder(int maxTaxa, int expectedTaxa) {
+            if (maxTaxa < 0) {
+                throw new IllegalArgumentException("TaxaDistCompact: Encoder: maxTaxa must be non-negative: " + maxTaxa);
+            }
+            this.maxTaxa = maxTaxa;
+            myBitmapLength = (maxTaxa + 7) >>> 3;
+            int expected = Math.max(Math.min(expectedTaxa, maxTaxa), 1);
+            myTaxa = new byte[Math.min(expected + 8, myBitmapLength + 5)];
+            myDepths = new byte[Math.min(expected, 1 << 16) + 10];
+        }
+
+        /**
+         * Adds a taxon with depth.  Taxa must be added in increasing order, and depths of zero are skipped.
+         */
+        Encoder add(int taxon, int depth) {
+            if (depth == 0) {
+                return this;
+            }
+            if (taxon <= myPrevTaxon || taxon >= maxTaxa) {
+                throw new IllegalArgumentException("TaxaDistCompact: Encoder: taxa must be increasing and less than " + maxTaxa + ": " + taxon);
+            }
+            if (depth < 0) {
+                throw new IllegalArgumentException("TaxaDistCompact: Encoder: negative depth: " + depth + " for taxon: " + taxon);
+            }
+            if (myBitmap != null) {
+                myBitmap[taxon >>> 3] |= 1 << (taxon & 7);
+            } else {
+                if (myTaxaLength + 5 > myTaxa.length) {
+                    myTaxa = Arrays.copyOf(myTaxa, myTaxa.length * 2);
+                }
+                myTaxaLength = writeVarint(myTaxa, myTaxaLength, taxon - myPrevTaxon - 1);
+                if (myTaxaLength > myBitmapLength) {
+                    toBitmap(taxon);
+                }
+            }
+            myPrevTaxon = taxon;
+            myNumTaxa++;
+            myTotalDepth += depth;
+            if (depth == myRunDepth) {
+                myRunLength++;
+            } else {
+                endRun();
+                myRunDepth = depth;
+                myRunLength = 1;
+            }
+            return this;
+        }
+
+        TaxaDistCompact build() {
+            endRun();
+            if (myTotalDepth > Integer.MAX_VALUE) {
+                throw new IllegalStateException("TaxaDistCompact: Encoder: total depth exceeds int: " + myTotalDepth);
+            }
+            boolean dense = myBitmap != null;
+            int taxaLength = dense ? myBitmapLength : myTaxaLength;
+            byte[] encoding = new byte[taxaLength + myDepthsLength];
+            System.arraycopy(dense ? myBitmap : myTaxa, 0, encoding, 0, taxaLength);
+            System.arraycopy(myDepths, 0, encoding, taxaLength, myDepthsLength);
+            return new TaxaDistCompact(maxTaxa, myNumTaxa, (int) myTotalDepth, dense, encoding, taxaLength);
+        }
+
+        // sets the bits of the taxa in the sparse form, which ends with lastTaxon
+        private void toBitmap(int lastTaxon) {
+            myBitmap = new byte[myBitmapLength];
+            int taxon = -1;
+            int pos = 0;
+            while (pos < myTaxaLength) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = myTaxa[pos++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                taxon += gap + 1;
+                myBitmap[taxon >>> 3] |= 1 << (taxon & 7);
+            }
+            assert taxon == lastTaxon;
+            myTaxa = null;
+        }
+
+        private void endRun() {
+            if (myRunLength == 0) {
+                return;
+            }
+            if (myDepthsLength + 10 > myDepths.length) {
+                myDepths = Arrays.copyOf(myDepths, myDepths.length * 2);
+            }
+            myDepthsLength = writeVarint(myDepths, myDepthsLength, myRunDepth);
+            myDepthsLength = writeVarint(myDepths, myDepthsLength, myRunLength);
+            myRunLength = 0;
+            myRunDepth = 0;
+        }
+
+        private static int writeVarint(byte[] dest, int pos, int value) {
+            while ((value & ~0x7F) != 0) {
+                dest[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            dest[pos++] = (byte) value;
+            return pos;
+        }
+    }
+
+}
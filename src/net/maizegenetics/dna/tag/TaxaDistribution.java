@@ -29,6 +29,17 @@ public interface TaxaDistribution {
      */
     int[][] taxaWithDepths();
 
+    /**
+     * Passes each taxon with the tag (i.e. depth>0) and its depth to the consumer in increasing taxon order.
+     * Implementations override this to avoid creating the arrays of taxaWithDepths().
+     */
+    default void forEachTaxonDepth(TaxonDepthConsumer consumer) {
+        int[][] taxaDepth = taxaWithDepths();
+        for (int i = 0; i < taxaDepth[0].length; i++) {
+            consumer.accept(taxaDepth[0][i], taxaDepth[1][i]);
+        }
+    }
+
     /**
      * Custom run length encoding compression that also use Snappy
      */
@@ -62,4 +73,12 @@ public interface TaxaDistribution {
      * these distributions.
      */
     int memorySize();
+
+    /**
+     * Receives a taxon index and the depth of the tag in that taxon
+     */
+    @FunctionalInterface
+    interface TaxonDepthConsumer {
+        void accept(int taxon, int depth);
+    }
 }
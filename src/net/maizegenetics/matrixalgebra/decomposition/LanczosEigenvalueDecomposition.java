@@ -0,0 +1,234 @@
+package net.maizegenetics.matrixalgebra.decomposition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+
+/**
+ * The largest eigenvalues and their eigenvectors of a symmetric matrix, calculated with the Lanczos algorithm with full
+ * reorthogonalization. The matrix is never formed; it is used only through a matrix-vector product, so it can be held
+ * in any form, for example the packed half of a distance matrix, or not stored at all. Each Lanczos step costs one
+ * product and the reorthogonalization against the earlier Lanczos vectors. Every CHECK_INTERVAL steps the tridiagonal
+ * matrix is decomposed, and the algorithm stops when the residual bound of each of the requested Ritz values is less
+ * than TOLERANCE times the largest one.
+ * <p></p>
+ * The eigenvalues are sorted high to low, and column i of the eigenvector matrix is the eigenvector of eigenvalue i.
+ */
+public class LanczosEigenvalueDecomposition implements EigenvalueDecomposition {
+	private static final Logger myLogger = LogManager.getLogger(LanczosEigenvalueDecomposition.class);
+	private static final int CHECK_INTERVAL = 10;
+	private static final double TOLERANCE = 1e-10;
+	private static final long DEFAULT_SEED = 1234567L;
+
+	/**
+	 * The product of a symmetric matrix and a vector.
+	 */
+	@FunctionalInterface
+	public interface MatrixVectorProduct {
+		/**
+		 * @param x	a vector
+		 * @param result	an array to be filled with the product of the matrix and x
+		 */
+		void multiply(double[] x, double[] result);
+	}
+
+	private final int n;
+	private final double[] eigenvalues;
+	private final double[][] eigenvectors;	//by column
+	private int numberOfSteps = 0;
+
+	/**
+	 * @param size	the number of rows (and columns) of the matrix
+	 * @param matrix	the product of the matrix and a vector
+	 * @param numberOfEigenvalues	the number of eigenvalues to calculate, the largest ones
+	 */
+	public LanczosEigenvalueDecomposition(int size, MatrixVectorProduct matrix, int numberOfEigenvalues) {
+		this(size, matrix, numberOfEigenvalues, Math.min(size, Math.max(200, 20 * numberOfEigenvalues)), DEFAULT_SEED);
+	}
+
+	/**
+	 * @param size	the number of rows (and columns) of the matrix
+	 * @param matrix	the product of the matrix and a vector
+	 * @param numberOfEigenvalues	the number of eigenvalues to calculate, the largest ones
+	 * @param maximumSteps	the maximum number of Lanczos steps, which is the maximum number of Lanczos vectors held
+	 * @param seed	the seed of the random starting vector
+	 */
+	public LanczosEigenvalueDecomposition(int size, MatrixVectorProduct matrix, int numberOfEigenvalues, int maximumSteps, long seed) {
+		if (numberOfEigenvalues < 1) throw new IllegalArgumentException("LanczosEigenvalueDecomposition: number of eigenvalues must be positive: " + numberOfEigenvalues);
+		n = size;
+		int k = Math.min(numberOfEigenvalues, n);
+		int maxSteps = Math.max(k, Math.min(maximumSteps, n));
+		Random random = new Random(seed);
+
+		List<double[]> lanczosVectors = new ArrayList<>();
+		double[] alpha = new double[maxSteps];
+		double[] beta = new double[maxSteps];
+		double[] v = randomUnitVector(random, lanczosVectors);
+		double[] w = new double[n];
+		double[] ritzValues = null;
+		double[] ritzVectors = null;
+		boolean converged = false;
+		while (true) {
+			int j = lanczosVectors.size();
+			lanczosVectors.add(v);
+			matrix.multiply(v, w);
+			alpha[j] = dot(v, w);
+
+			//w = Av - alpha v - beta v(j-1), then reorthogonalized against all the Lanczos vectors
+			for (int pass = 0; pass < 2; pass++) {
+				for (double[] q : lanczosVectors) {
+					double qtw = dot(q, w);
+					for (int i = 0; i < n; i++) w[i] -= qtw * q[i];
+				}
+			}
+			beta[j] = Math.sqrt(dot(w, w));
+			int m = j + 1;
+
+			if (m >= k && (m % CHECK_INTERVAL == 0 || m == maxSteps)) {
+				SymmetricEigenvalueDecomposition tridiagonal = new SymmetricEigenvalueDecomposition(tridiagonalMatrix(alpha, beta, m));
+				ritzValues = tridiagonal.getRealEigenvalues();
+				ritzVectors = tridiagonal.getEigenvectorsAs1dArray();
+				converged = isConverged(ritzValues, ritzVectors, beta[j], m, k);
+			}
+			if (converged || m == maxSteps) break;
+
+			double scale = 0;
+			for (int i = 0; i <= j; i++) scale = Math.max(scale, Math.abs(alpha[i]) + beta[i]);
+			if (beta[j] <= scale * 1e-14) {
+				//an invariant subspace has been found, so start again from a vector orthogonal to it
+				beta[j] = 0;
+				v = randomUnitVector(random, lanczosVectors);
+				if (v == null) {
+					m = j + 1;
+					SymmetricEigenvalueDecomposition tridiagonal = new SymmetricEigenvalueDecomposition(tridiagonalMatrix(alpha, beta, m));
+					ritzValues = tridiagonal.getRealEigenvalues();
+					ritzVectors = tridiagonal.getEigenvectorsAs1dArray();
+					converged = true;
+					break;
+				}
+			} else {
+				v = new double[n];
+				for (int i = 0; i < n; i++) v[i] = w[i] / beta[j];
+			}
+		}
+		numberOfSteps = lanczosVectors.size();
+		if (!converged) {
+			myLogger.warn(String.format("LanczosEigenvalueDecomposition: %d eigenvalues had not converged after %d steps", k, numberOfSteps));
+		}
+
+		//Ritz values are sorted low to high; the eigenvectors are the Lanczos vectors times the Ritz vectors
+		int m = numberOfSteps;
+		k = Math.min(k, m);
+		eigenvalues = new double[k];
+		eigenvectors = new double[k][n];
+		for (int c = 0; c < k; c++) {
+			int ndx = m - 1 - c;
+			eigenvalues[c] = ritzValues[ndx];
+			double[] u = eigenvectors[c];
+			for (int i = 0; i < m; i++) {
+				double s = ritzVectors[i * m + ndx];
+				double[] q = lanczosVectors.get(i);
+				for (int r = 0; r < n; r++) u[r] += s * q[r];
+			}
+		}
+	}
+
+	@Override
+	public double[] getEigenvalues() {
+		return eigenvalues;
+	}
+
+	@Override
+	public double getEigenvalue(int i) {
+		return eigenvalues[i];
+	}
+
+	/**
+	 * @return	the eigenvectors as the columns of a size x number of eigenvalues matrix
+	 */
+	@Override
+	public DoubleMatrix getEigenvectors() {
+		int k = eigenvalues.length;
+		double[] values = new double[n * k];
+		for (int c = 0; c < k; c++) System.arraycopy(eigenvectors[c], 0, values, c * n, n);
+		return DoubleMatrixFactory.DEFAULT.make(n, k, values, true);
+	}
+
+	@Override
+	public DoubleMatrix getEigenvalueMatrix() {
+		return DoubleMatrixFactory.DEFAULT.diagonal(eigenvalues);
+	}
+
+	/**
+	 * @param i	the index of an eigenvalue
+	 * @return	its eigenvector
+	 */
+	public double[] getEigenvector(int i) {
+		return eigenvectors[i];
+	}
+
+	/**
+	 * @return	the number of Lanczos steps taken, which is the number of matrix-vector products
+	 */
+	public int numberOfSteps() {
+		return numberOfSteps;
+	}
+
+	//the residual of Ritz pair i is |beta * last element of its eigenvector of T|
+	private static boolean isConverged(double[] ritzValues, double[] ritzVectors, double lastBeta, int m, int k) {
+		double largest = 0;
+		for (double d : ritzValues) largest = Math.max(largest, Math.abs(d));
+		for (int c = 0; c < k; c++) {
+			int ndx = m - 1 - c;
+			if (Math.abs(lastBeta * ritzVectors[(m - 1) * m + ndx]) > TOLERANCE * largest) return false;
+		}
+		return true;
+	}
+
+	private static double[] tridiagonalMatrix(double[] alpha, double[] beta, int m) {
+		double[] T = new double[m * m];
+		for (int i = 0; i < m; i++) {
+			T[i * m + i] = alpha[i];
+			if (i + 1 < m) {
+				T[i * m + i + 1] = beta[i];
+				T[(i + 1) * m + i] = beta[i];
+			}
+		}
+		return T;
+	}
+
+	//a random unit vector orthogonal to the vectors, or null if they span the space
+	private double[] randomUnitVector(Random random, List<double[]> vectors) {
+		if (vectors.size() >= n) return null;
+		for (int attempt = 0; attempt < 10; attempt++) {
+			double[] v = new double[n];
+			for (int i = 0; i < n; i++) v[i] = random.nextGaussian();
+			double originalSS = dot(v, v);
+			for (int pass = 0; pass < 2; pass++) {
+				for (double[] q : vectors) {
+					double qtv = dot(q, v);
+					for (int i = 0; i < n; i++) v[i] -= qtv * q[i];
+				}
+			}
+			double ss = dot(v, v);
+			if (ss > originalSS * 1e-20) {
+				double scale = 1 / Math.sqrt(ss);
+				for (int i = 0; i < n; i++) v[i] *= scale;
+				return v;
+			}
+		}
+		return null;
+	}
+
+	private static double dot(double[] x, double[] y) {
+		double sum = 0;
+		for (int i = 0; i < x.length; i++) sum += x[i] * y[i];
+		return sum;
+	}
+}
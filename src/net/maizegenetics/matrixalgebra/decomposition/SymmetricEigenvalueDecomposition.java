@@ -257,7 +257,7 @@ public class SymmetricEigenvalueDecomposition implements EigenvalueDecomposition
 	   
 					  // Accumulate transformation.
 					  int celliplus1 = i + 1;
-					  int celli = 1;
+					  int celli = i;
 					  for (int k = 0; k < n; k++) {
 						 h = V[celliplus1];
 						 V[celliplus1] = s * V[celli] + c * h;
@@ -87,7 +87,7 @@ public class TasselPipeline implements PluginListener {
         includeTaxaInFile, excludeTaxa, excludeTaxaInFile, includeSiteNames,
         includeSiteNamesInFile, excludeSiteNames, excludeSiteNamesInFile,
         subsetSites, subsetTaxa, newCoordinates,
-        archaeopteryx, filterTaxaNames, maxThreads, mhd, pca,
+        archaeopteryx, filterTaxaNames, maxThreads, spillDir, mhd, pca,
         printGenoSummary, printMemoryUsage;
 
         @Override
@@ -465,6 +465,12 @@ public class TasselPipeline implements PluginListener {
                         throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with number of max threads: " + str);
                     }
                     TasselPrefs.putMaxThreads(numThreads);
+                } else if (current.equalsIgnoreCase("-spillDir")) {
+                    String spillDir = args[index++].trim();
+                    if (!new File(spillDir).isDirectory()) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: spill directory doesn't exist: " + spillDir);
+                    }
+                    TasselPrefs.putSpillDir(spillDir);
                 } else if (current.equalsIgnoreCase("-t")) {
                     String traitFile = args[index++].trim();
                     loadFile(traitFile, FileLoadPlugin.TasselFileType.Phenotype);
@@ -989,6 +995,97 @@ public class TasselPipeline implements PluginListener {
                         throw new IllegalArgumentException("TasselPipeline: parseArgs: LD Het Treatment parameter must be Haplotype, Homozygous, or Genotype.");
                     }
 
+                } else if (current.equalsIgnoreCase("-ldOutputFile")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String filename = args[index++].trim();
+                    plugin.setOutputFile(filename);
+
+                } else if (current.equalsIgnoreCase("-ldMinR2")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String str = args[index++].trim();
+                    try {
+                        plugin.setMinR2(Float.parseFloat(str));
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with LD minimum R2: " + str);
+                    }
+
+                } else if (current.equalsIgnoreCase("-ldTopK")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String str = args[index++].trim();
+                    int k = -1;
+                    try {
+                        k = Integer.parseInt(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with LD Top K: " + str);
+                    }
+                    if (k < 1) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: LD Top K can't be less than 1.");
+                    }
+                    plugin.setTopK(k);
+
+                } else if (current.equalsIgnoreCase("-ldDecayBinWidth")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String str = args[index++].trim();
+                    int width = -1;
+                    try {
+                        width = Integer.parseInt(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with LD decay bin width: " + str);
+                    }
+                    if (width < 1) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: LD decay bin width can't be less than 1.");
+                    }
+                    plugin.setDecayBinWidth(width);
+
+                } else if (current.equalsIgnoreCase("-ldDecayMaxDistance")) {
+
+                    LinkageDisequilibriumPlugin plugin = null;
+                    try {
+                        plugin = (LinkageDisequilibriumPlugin) myCurrentPipe.get(myCurrentPipe.size() - 1);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: No LinkageDisequilibriumPlugin step defined: " + current);
+                    }
+
+                    String str = args[index++].trim();
+                    int distance = -1;
+                    try {
+                        distance = Integer.parseInt(str);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: Problem with LD decay max distance: " + str);
+                    }
+                    if (distance < 0) {
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: LD decay max distance can't be negative.");
+                    }
+                    plugin.setDecayMaxDistance(distance);
+
                 } else if (current.equalsIgnoreCase("-ldd")) {
                     String outputType = args[index++].trim();
                     getLinkageDiseqDisplayPlugin(outputType);
@@ -1065,10 +1162,12 @@ public class TasselPipeline implements PluginListener {
                     String temp = args[index++].trim();
                     if (temp.equalsIgnoreCase("Neighbor")) {
                         plugin.clusteringMethod(CreateTreePlugin.CLUSTERING_METHOD.Neighbor_Joining);
+                    } else if (temp.equalsIgnoreCase("RapidNeighbor")) {
+                        plugin.clusteringMethod(CreateTreePlugin.CLUSTERING_METHOD.Rapid_Neighbor_Joining);
                     } else if (temp.equalsIgnoreCase("UPGMA")) {
                         plugin.clusteringMethod(CreateTreePlugin.CLUSTERING_METHOD.UPGMA);
                     } else {
-                        throw new IllegalArgumentException("TasselPipeline: parseArgs: tree clustering method must be Neighbor or UPGMA: " + temp);
+                        throw new IllegalArgumentException("TasselPipeline: parseArgs: tree clustering method must be Neighbor, RapidNeighbor or UPGMA: " + temp);
                     }
 
                 } else if (current.equalsIgnoreCase("-treeSaveDistance")) {
@@ -49,6 +49,8 @@ public class TasselPrefs {
     public static final String TASSEL_CONFIG_FILE = "configFile";
     public static final String TASSEL_CONFIG_FILE_DEFAULT = "";
     public static final String TASSEL_LOCALE = "locale";
+    public static final String TASSEL_SPILL_DIR = "spillDir";
+    public static final String TASSEL_SPILL_DIR_DEFAULT = "";
     //
     // ExportPlugin preferences
     //
@@ -324,6 +326,20 @@ public class TasselPrefs {
         putPref(TASSEL_TOP, TASSEL_CONFIG_FILE, value);
     }
 
+    /**
+     * Directory where genotype matrices too large for the heap are stored as memory mapped files. Empty means
+     * always keep them on the heap.
+     *
+     * @return spill directory
+     */
+    public static String getSpillDir() {
+        return getPref(TASSEL_TOP, TASSEL_SPILL_DIR, TASSEL_SPILL_DIR_DEFAULT);
+    }
+
+    public static void putSpillDir(String value) {
+        putPref(TASSEL_TOP, TASSEL_SPILL_DIR, value);
+    }
+
     public static Locale getLocale() {
         String localeStr = getPref(TASSEL_TOP, TASSEL_LOCALE, Locale.getDefault().toString());
         Locale result = Locale.getDefault();
@@ -6,11 +6,13 @@ import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory.FactoryType;
 import net.maizegenetics.matrixalgebra.decomposition.EigenvalueDecomposition;
+import net.maizegenetics.matrixalgebra.decomposition.LanczosEigenvalueDecomposition;
 import net.maizegenetics.taxa.distance.DistanceMatrix;
 
 public class ClassicMds {
 	//The method implemented in this class was adapted from R source code for the function cmdscale()
 	//expected input is a distance matrix
+	private static final int ROWS_PER_BLOCK = 64;
 	
 	private DistanceMatrix myDistanceMatrix;
 	private EigenvalueDecomposition eigenDecomp;
@@ -25,6 +27,21 @@ public class ClassicMds {
 		calculatePCs();
 	}
 	
+	/**
+	 * Calculates only the first numberOfAxes principal coordinates. The double centered matrix of squared distances is
+	 * never formed. Its largest eigenvalues are found with a {@link LanczosEigenvalueDecomposition}, which needs only its
+	 * product with a vector, and that is calculated in parallel from the packed distances of the DistanceMatrix. The
+	 * memory used is the Lanczos vectors, a few hundred vectors of length number of taxa at most, rather than two dense
+	 * taxa x taxa matrices.
+	 * @param dm	a distance matrix
+	 * @param numberOfAxes	the number of principal coordinates to calculate
+	 */
+	public ClassicMds(DistanceMatrix dm, int numberOfAxes) {
+		myDistanceMatrix = dm;
+		testDMforMissing();
+		calculateLeadingPCs(numberOfAxes);
+	}
+	
 	public int maximumNumberOfPCs() {
 		return numberOfPositiveEigenvalues;
 	}
@@ -84,6 +101,52 @@ public class ClassicMds {
 		}).mapToInt(I -> I.intValue()).toArray();
 	}
 	
+	private void calculateLeadingPCs(int numberOfAxes) {
+		int n = myDistanceMatrix.getSize();
+		eigenDecomp = new LanczosEigenvalueDecomposition(n, this::multiplyByCenteredSquaredDistances, numberOfAxes);
+		eigenVectors = eigenDecomp.getEigenvectors();
+		
+		//the eigenvalues are sorted high to low
+		double[] eval = eigenDecomp.getEigenvalues();
+		numberOfPositiveEigenvalues = 0;
+		for (double d : eval) if (d > tol) numberOfPositiveEigenvalues++;
+		eigenSort = IntStream.range(0, eval.length).toArray();
+	}
+	
+	//Bx, where B = -1/2 JD2J, D2 is the squared distances and J = I - 11'/n centers a vector
+	private void multiplyByCenteredSquaredDistances(double[] x, double[] result) {
+		int n = x.length;
+		double xmean = 0;
+		for (double d : x) xmean += d;
+		xmean /= n;
+		double[] xc = new double[n];
+		for (int i = 0; i < n; i++) xc[i] = x[i] - xmean;
+		
+		//D2 xc, using each distance of the packed half matrix for both of its cells
+		int numberOfBlocks = (n + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+		double[] y = IntStream.range(0, numberOfBlocks).parallel().collect(() -> new double[n], (sum, b) -> {
+			for (int r = b * ROWS_PER_BLOCK, end = Math.min(n, r + ROWS_PER_BLOCK); r < end; r++) {
+				double xr = xc[r];
+				double yr = 0;
+				for (int c = 0; c < r; c++) {
+					double val = myDistanceMatrix.getDistance(r, c);
+					val *= val;
+					yr += val * xc[c];
+					sum[c] += val * xr;
+				}
+				double diag = myDistanceMatrix.getDistance(r, r);
+				sum[r] += yr + diag * diag * xr;
+			}
+		}, (sum1, sum2) -> {
+			for (int i = 0; i < n; i++) sum1[i] += sum2[i];
+		});
+		
+		double ymean = 0;
+		for (double d : y) ymean += d;
+		ymean /= n;
+		for (int i = 0; i < n; i++) result[i] = -0.5 * (y[i] - ymean);
+	}
+	
 	private DoubleMatrix SquaredDoubleMatrixFromDistanceMatrix() {
 		int n = myDistanceMatrix.getSize();
 		DoubleMatrix dm = DoubleMatrixFactory.DEFAULT.make(n, n);
@@ -100,7 +163,7 @@ public class ClassicMds {
 	private void testDMforMissing() {
 		int n = myDistanceMatrix.getSize();
 		for (int r = 0; r < n; r++) {
-			for (int c = 0; c < n; c++) {
+			for (int c = 0; c <= r; c++) {
 				if (!Double.isFinite(myDistanceMatrix.getDistance(r, c))) {
 					throw new RuntimeException("Distance matrix contains missing values in ClassicMds.");
 				}
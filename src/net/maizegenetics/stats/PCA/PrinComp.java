@@ -4,7 +4,7 @@ import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
 import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
 import net.maizegenetics.matrixalgebra.decomposition.SingularValueDecomposition;
 
-public class PrinComp {
+public class PrinComp implements PrincipalComponents {
 	public enum PC_TYPE {corr, cov};
 	SingularValueDecomposition svd;
 	DoubleMatrix datamatrix;
@@ -30,6 +30,7 @@ public class PrinComp {
 	/**
 	 * @return	a double[] of eigenvalues from the decomposition of either the covariance or correlation matrix of the data
 	 */
+	@Override
 	public double[] getEigenValues() {
 		double[] singularvals = svd.getSingularValues();
 		int n = singularvals.length;
@@ -38,6 +39,16 @@ public class PrinComp {
 		return eigenvals;
 	}
 	
+	/**
+	 * @return	the sum of the eigenvalues
+	 */
+	@Override
+	public double getTotalVariance() {
+		double total = 0;
+		for (double eigenvalue : getEigenValues()) total += eigenvalue;
+		return total;
+	}
+	
 	/**
 	 * @return	a column vector of eigenvalues from the decomposition of either the covariance or correlation matrix of the data
 	 */
@@ -57,6 +68,7 @@ public class PrinComp {
 	/**
 	 * @return	the eigenvectors from the decomposition of either the covariance or correlation matrix of the data	
 	 */
+	@Override
 	public DoubleMatrix getEigenVectors() {
 		return svd.getV(false);
 	}
@@ -65,6 +77,7 @@ public class PrinComp {
 	 * calculated as data * eigenvectors
 	 * @return	all of the principal components
 	 */
+	@Override
 	public DoubleMatrix getPrincipalComponents() {
 		return datamatrix.mult(svd.getV(false));
 	}
@@ -0,0 +1,30 @@
+package net.maizegenetics.stats.PCA;
+
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+
+/**
+ * The results of a principal components analysis of a data matrix with observations as rows and variables as columns,
+ * as calculated by {@link PrinComp} (all components) or {@link TruncatedPrinComp} (the leading components only).
+ */
+public interface PrincipalComponents {
+
+	/**
+	 * @return	the eigenvalues of the covariance or correlation matrix that were calculated, sorted high to low
+	 */
+	double[] getEigenValues();
+
+	/**
+	 * @return	the sum of all the eigenvalues, including any that were not calculated, which is the total variance
+	 */
+	double getTotalVariance();
+
+	/**
+	 * @return	the eigenvectors, one column for each eigenvalue, with a row for each variable
+	 */
+	DoubleMatrix getEigenVectors();
+
+	/**
+	 * @return	the principal components, one column for each eigenvalue, with a row for each observation
+	 */
+	DoubleMatrix getPrincipalComponents();
+}
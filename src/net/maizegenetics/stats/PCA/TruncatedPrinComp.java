@@ -0,0 +1,329 @@
+package net.maizegenetics.stats.PCA;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.score.ReferenceProbability;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrix;
+import net.maizegenetics.matrixalgebra.Matrix.DoubleMatrixFactory;
+import net.maizegenetics.matrixalgebra.decomposition.SymmetricEigenvalueDecomposition;
+import net.maizegenetics.prefs.TasselPrefs;
+import net.maizegenetics.stats.PCA.PrinComp.PC_TYPE;
+
+/**
+ * Calculates the leading principal components of a data matrix with a randomized block Krylov method (Musco and Musco.
+ * 2015. Randomized block Krylov methods for stronger and faster approximate singular value decomposition. NIPS 28).
+ * The results are those of {@link PrinComp} for the requested number of components, to within the accuracy of the method,
+ * which for the leading components is close to machine precision with the default number of iterations.
+ * <p></p>
+ * The data matrix A, taxa x sites, is never held in memory. The values of a block of sites are read, centered (and scaled
+ * for a correlation matrix) when they are needed, and the only operation on A is the product AA'X for a matrix X with a
+ * few columns, which is calculated in one pass over the sites by several threads, each adding the products of the blocks
+ * it reads to its own taxa x columns sum. Starting from AA'G for a random Gaussian G, each iteration multiplies the last
+ * block by AA' again and orthonormalizes it against all earlier blocks, building a basis Q of the Krylov space. The
+ * eigenvalue decomposition of the small matrix Q'AA'Q then gives the eigenvalues and principal components. The working
+ * memory is a few taxa x basis size matrices for each thread, independent of the number of sites.
+ */
+public class TruncatedPrinComp implements PrincipalComponents {
+	private static final Logger myLogger = LogManager.getLogger(TruncatedPrinComp.class);
+	private static final int SITES_PER_BLOCK = 64;
+	private static final int OVERSAMPLING = 10;
+	private static final int DEFAULT_ITERATIONS = 6;
+	private static final long DEFAULT_SEED = 20150101L;
+
+	/**
+	 * Supplies the values of one site (column of the data matrix) for every taxon (row).
+	 */
+	@FunctionalInterface
+	public interface SiteValues {
+		/**
+		 * @param site	a site index
+		 * @param values	an array to be filled with the value of each taxon at site
+		 */
+		void values(int site, double[] values);
+	}
+
+	private final SiteValues mySiteValues;
+	private final int ntaxa;
+	private final int nsites;
+	private final int numberOfThreads;
+	private final double[] siteMean;
+	private final double[] siteScale;
+	private final double totalVariance;
+	private final double[] eigenvalues;
+	private final double[][] leftSingularVectors;	//U, by column
+	private final double[] singularValues;
+	private int numberOfPasses = 0;
+
+	/**
+	 * Calculates the leading principal components of the reference probabilities of a genotype table, which must not
+	 * have missing values.
+	 * @param genotypes	a genotype table with reference probabilities
+	 * @param numberOfComponents	the number of components to calculate
+	 * @param type	should the analysis use the covariance (cov) or the correlation (corr) matrix of the data
+	 */
+	public TruncatedPrinComp(GenotypeTable genotypes, int numberOfComponents, PC_TYPE type) {
+		this(genotypes.numberOfTaxa(), genotypes.numberOfSites(), referenceProbabilityValues(genotypes), numberOfComponents,
+				type, DEFAULT_ITERATIONS, DEFAULT_SEED, TasselPrefs.getMaxThreads());
+	}
+
+	/**
+	 * @param ntaxa	the number of taxa (rows)
+	 * @param nsites	the number of sites (columns)
+	 * @param values	the values of the data matrix by site. It is called by several threads at once.
+	 * @param numberOfComponents	the number of components to calculate
+	 * @param type	should the analysis use the covariance (cov) or the correlation (corr) matrix of the data
+	 * @param numberOfIterations	the number of Krylov iterations after the first block
+	 * @param seed	the seed of the random starting block
+	 * @param numberOfThreads	the number of threads used to read sites
+	 */
+	public TruncatedPrinComp(int ntaxa, int nsites, SiteValues values, int numberOfComponents, PC_TYPE type,
+			int numberOfIterations, long seed, int numberOfThreads) {
+		if (ntaxa < 2) throw new IllegalArgumentException("TruncatedPrinComp: at least two taxa are needed: " + ntaxa);
+		if (numberOfComponents < 1) throw new IllegalArgumentException("TruncatedPrinComp: number of components must be positive: " + numberOfComponents);
+		long start = System.nanoTime();
+		mySiteValues = values;
+		this.ntaxa = ntaxa;
+		this.nsites = nsites;
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+		int maxRank = Math.min(ntaxa - 1, nsites);
+		int ncomponents = Math.min(numberOfComponents, maxRank);
+		int blockSize = Math.min(ncomponents + OVERSAMPLING, maxRank);
+
+		//site means, scales and the total variance
+		siteMean = new double[nsites];
+		siteScale = new double[nsites];
+		double[] siteVariance = new double[nsites];
+		IntStream.range(0, (nsites + SITES_PER_BLOCK - 1) / SITES_PER_BLOCK).parallel().forEach(b -> {
+			double[] buffer = new double[ntaxa];
+			for (int s = b * SITES_PER_BLOCK, end = Math.min(nsites, s + SITES_PER_BLOCK); s < end; s++) {
+				mySiteValues.values(s, buffer);
+				double sum = 0;
+				for (double d : buffer) sum += d;
+				double mean = sum / ntaxa;
+				double sumsq = 0;
+				for (double d : buffer) sumsq += (d - mean) * (d - mean);
+				siteMean[s] = mean;
+				if (type == PC_TYPE.corr) {
+					siteScale[s] = sumsq > 0 ? 1 / Math.sqrt(sumsq / (ntaxa - 1)) : 0;
+					siteVariance[s] = sumsq > 0 ? 1 : 0;
+				} else {
+					siteScale[s] = 1;
+					siteVariance[s] = sumsq / (ntaxa - 1);
+				}
+			}
+		});
+		double total = 0;
+		for (double d : siteVariance) total += d;
+		totalVariance = total;
+		numberOfPasses++;
+
+		//the Krylov basis, Q
+		List<double[]> basis = new ArrayList<>();
+		if (blockSize > 0) {
+			Random random = new Random(seed);
+			double[][] block = new double[blockSize][ntaxa];
+			for (double[] column : block) {
+				for (int t = 0; t < ntaxa; t++) column[t] = random.nextGaussian();
+			}
+			for (int iter = 0; iter <= numberOfIterations && basis.size() < maxRank; iter++) {
+				block = orthonormalize(multiplyByAAt(block), basis);
+				if (block.length == 0) break;
+			}
+		}
+		int basisSize = basis.size();
+
+		//Rayleigh-Ritz: the eigenvalue decomposition of Q'AA'Q
+		double[][] Q = basis.toArray(new double[basisSize][]);
+		double[][] AAtQ = multiplyByAAt(Q);
+		double[] QtAAtQ = new double[basisSize * basisSize];
+		for (int i = 0; i < basisSize; i++) {
+			for (int j = 0; j <= i; j++) {
+				double value = (dot(Q[i], AAtQ[j]) + dot(Q[j], AAtQ[i])) / 2;
+				QtAAtQ[i * basisSize + j] = value;
+				QtAAtQ[j * basisSize + i] = value;
+			}
+		}
+
+		ncomponents = Math.min(ncomponents, basisSize);
+		eigenvalues = new double[ncomponents];
+		singularValues = new double[ncomponents];
+		leftSingularVectors = new double[ncomponents][ntaxa];
+		if (basisSize > 0) {
+			SymmetricEigenvalueDecomposition eigen = new SymmetricEigenvalueDecomposition(QtAAtQ);
+			double[] ritzValues = eigen.getRealEigenvalues();
+			double[] ritzVectors = eigen.getEigenvectorsAs1dArray();
+
+			//the eigenvalues are sorted low to high
+			for (int c = 0; c < ncomponents; c++) {
+				int ndx = basisSize - 1 - c;
+				double lambda = Math.max(ritzValues[ndx], 0);
+				eigenvalues[c] = lambda / (ntaxa - 1);
+				singularValues[c] = Math.sqrt(lambda);
+				double[] u = leftSingularVectors[c];
+				for (int i = 0; i < basisSize; i++) {
+					double w = ritzVectors[i * basisSize + ndx];
+					double[] q = Q[i];
+					for (int t = 0; t < ntaxa; t++) u[t] += w * q[t];
+				}
+			}
+		}
+
+		long workingMemory = 8L * ntaxa * (3L * basisSize + (long) this.numberOfThreads * Math.max(basisSize, blockSize)) + 24L * nsites;
+		myLogger.info(String.format("TruncatedPrinComp: %d components of %,d taxa x %,d sites from a basis of %d columns in %d passes over the sites, %.1f s, working memory %,d MB",
+				ncomponents, ntaxa, nsites, basisSize, numberOfPasses, (System.nanoTime() - start) / 1e9, workingMemory >> 20));
+	}
+
+	@Override
+	public double[] getEigenValues() {
+		return eigenvalues;
+	}
+
+	/**
+	 * @return	the sum of the variances (1 for correlation) of the sites, which is the sum of all the eigenvalues
+	 */
+	@Override
+	public double getTotalVariance() {
+		return totalVariance;
+	}
+
+	/**
+	 * The eigenvectors are A'U/singular value. Calculating them takes another pass over the sites.
+	 * @return	the eigenvectors, sites x components
+	 */
+	@Override
+	public DoubleMatrix getEigenVectors() {
+		int ncomponents = eigenvalues.length;
+		double[] values = new double[nsites * ncomponents];
+		IntStream.range(0, (nsites + SITES_PER_BLOCK - 1) / SITES_PER_BLOCK).parallel().forEach(b -> {
+			double[] a = new double[ntaxa];
+			for (int s = b * SITES_PER_BLOCK, end = Math.min(nsites, s + SITES_PER_BLOCK); s < end; s++) {
+				readSite(s, a);
+				for (int c = 0; c < ncomponents; c++) {
+					if (singularValues[c] > 0) values[s * ncomponents + c] = dot(a, leftSingularVectors[c]) / singularValues[c];
+				}
+			}
+		});
+		return DoubleMatrixFactory.DEFAULT.make(nsites, ncomponents, values);
+	}
+
+	/**
+	 * calculated as U * singular values, which equals the centered data * eigenvectors
+	 * @return	the principal components, taxa x components
+	 */
+	@Override
+	public DoubleMatrix getPrincipalComponents() {
+		int ncomponents = eigenvalues.length;
+		double[] values = new double[ntaxa * ncomponents];
+		for (int c = 0; c < ncomponents; c++) {
+			for (int t = 0; t < ntaxa; t++) values[c * ntaxa + t] = leftSingularVectors[c][t] * singularValues[c];
+		}
+		return DoubleMatrixFactory.DEFAULT.make(ntaxa, ncomponents, values, true);
+	}
+
+	/**
+	 * @return	the number of passes over the sites made to calculate the components
+	 */
+	public int numberOfPasses() {
+		return numberOfPasses;
+	}
+
+	//the centered (and scaled) values of a site
+	private void readSite(int site, double[] values) {
+		mySiteValues.values(site, values);
+		double mean = siteMean[site];
+		double scale = siteScale[site];
+		for (int t = 0; t < ntaxa; t++) values[t] = (values[t] - mean) * scale;
+	}
+
+	//AA'X in one pass over the sites. Each thread takes blocks of sites from a shared counter and adds to its own sum.
+	private double[][] multiplyByAAt(double[][] X) {
+		int ncol = X.length;
+		int numberOfBlocks = (nsites + SITES_PER_BLOCK - 1) / SITES_PER_BLOCK;
+		AtomicInteger nextBlock = new AtomicInteger(0);
+		ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+		try {
+			double[][] result = pool.submit(() -> IntStream.range(0, numberOfThreads).parallel().mapToObj(thread -> {
+				double[][] sum = new double[ncol][ntaxa];
+				double[][] a = new double[SITES_PER_BLOCK][ntaxa];
+				double[][] z = new double[ncol][SITES_PER_BLOCK];
+				int b;
+				while ((b = nextBlock.getAndIncrement()) < numberOfBlocks) {
+					int first = b * SITES_PER_BLOCK;
+					int nblock = Math.min(nsites, first + SITES_PER_BLOCK) - first;
+					for (int s = 0; s < nblock; s++) readSite(first + s, a[s]);
+
+					//z = A'X for the block, then sum += Az
+					for (int j = 0; j < ncol; j++) {
+						for (int s = 0; s < nblock; s++) z[j][s] = dot(a[s], X[j]);
+					}
+					for (int j = 0; j < ncol; j++) {
+						double[] sumj = sum[j];
+						for (int s = 0; s < nblock; s++) {
+							double zjs = z[j][s];
+							double[] as = a[s];
+							for (int t = 0; t < ntaxa; t++) sumj[t] += zjs * as[t];
+						}
+					}
+				}
+				return sum;
+			}).reduce((sum1, sum2) -> {
+				for (int j = 0; j < ncol; j++) {
+					for (int t = 0; t < ntaxa; t++) sum1[j][t] += sum2[j][t];
+				}
+				return sum1;
+			}).get()).get();
+			numberOfPasses++;
+			return result;
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("TruncatedPrinComp: multiplyByAAt: " + e.getMessage(), e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	//orthonormalizes the columns against the basis and each other (modified Gram-Schmidt, twice), adds the independent
+	//ones to the basis and returns them
+	private static double[][] orthonormalize(double[][] columns, List<double[]> basis) {
+		List<double[]> added = new ArrayList<>();
+		for (double[] v : columns) {
+			double originalSS = dot(v, v);
+			if (originalSS == 0) continue;
+			for (int pass = 0; pass < 2; pass++) {
+				for (double[] q : basis) {
+					double qtv = dot(q, v);
+					for (int t = 0; t < v.length; t++) v[t] -= qtv * q[t];
+				}
+			}
+			double ss = dot(v, v);
+			if (ss <= originalSS * 1e-20) continue;
+			double scale = 1 / Math.sqrt(ss);
+			for (int t = 0; t < v.length; t++) v[t] *= scale;
+			basis.add(v);
+			added.add(v);
+		}
+		return added.toArray(new double[added.size()][]);
+	}
+
+	private static double dot(double[] x, double[] y) {
+		double sum = 0;
+		for (int i = 0; i < x.length; i++) sum += x[i] * y[i];
+		return sum;
+	}
+
+	private static SiteValues referenceProbabilityValues(GenotypeTable genotypes) {
+		ReferenceProbability refprob = genotypes.referenceProbability();
+		return (site, values) -> {
+			for (int t = 0; t < values.length; t++) values[t] = refprob.value(t, site);
+		};
+	}
+}
@@ -0,0 +1,409 @@
+package net.maizegenetics.taxa.tree;
+
+import net.maizegenetics.taxa.distance.DistanceMatrix;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * constructs a neighbor-joining tree as {@link NeighborJoiningTree} does, but
+ * searches for the pair to join as RapidNJ does, so it scales to tens of
+ * thousands of taxa
+ * <br><br>
+ * Simonsen, M., Mailund, T., and Pedersen, C.N.S. (2008) Rapid
+ * neighbour-joining. <i>Algorithms in Bioinformatics, LNCS</i> 5251:113-122
+ * <br><br>
+ * Each cluster keeps a list of the clusters that existed when it was made,
+ * sorted by distance, so that every pair is in exactly one list. Reading a
+ * list in order, no later pair of the row can have a criterion (r[i] + r[j]) /
+ * (n - 2) - d(i,j) larger than (r[i] + max r) / (n - 2) - d(i,j), so the row is
+ * left as soon as that bound falls below the best pair found so far. Usually
+ * only a short prefix of each row is read, rather than the whole matrix at
+ * every join. Clusters that have been joined are not removed from the lists;
+ * they are skipped when read. The row sums r are updated at each join rather
+ * than summed again, which would take O(numSeqs^2) per join.
+ * <br><br>
+ * The working distances are the lower triangle only, half the memory of the
+ * full matrix NeighborJoiningTree clones, and the sorted lists hold only
+ * cluster numbers. Row sums, criteria and branch lengths are calculated in
+ * double, and ties are broken as in NeighborJoiningTree, by the first pair in
+ * taxa order. Updated row sums round differently from the row sums
+ * NeighborJoiningTree adds up at every join, and the difference grows over the
+ * joins, so where two pairs differ by no more than that rounding the pair
+ * joined, and so the tree, can differ. Where the row sums stay exact, as they
+ * usually do for small integer distances, the trees are identical, ties
+ * included. Otherwise the trees are the same apart from such near ties, and
+ * branch lengths agree to rounding. With float distances, as the
+ * DistanceMatrix holds them, the working distances take half the memory again,
+ * and the float rounding of joined distances adds to the differences.
+ * <br><br>
+ * With parallel set, the distances and row sums of a new cluster, the initial
+ * sorting and the search are divided among threads when there are at least
+ * PARALLEL_MIN_CLUSTERS clusters. The tree does not depend on the number of
+ * threads.
+ * <br><br>
+ * computational complexity O(numSeqs^3) worst case, usually nearer
+ * O(numSeqs^2 log(numSeqs))
+ */
+public class RapidNeighborJoiningTree extends SimpleTree {
+
+    private static final int PARALLEL_MIN_CLUSTERS = 1000;
+    private static final int ROWS_PER_BLOCK = 64;
+
+    /**
+     * construct NJ tree
+     *
+     * @param m distance matrix
+     */
+    public RapidNeighborJoiningTree(DistanceMatrix m) {
+        this(m, false, false);
+    }
+
+    /**
+     * construct NJ tree
+     *
+     * @param m distance matrix
+     * @param parallel whether to use multiple threads
+     * @param floatDistances whether to hold the working distances as floats
+     * rather than doubles
+     */
+    public RapidNeighborJoiningTree(DistanceMatrix m, boolean parallel, boolean floatDistances) {
+        if (m.getSize() < 3) {
+            throw new IllegalArgumentException("RapidNeighborJoiningTree: Less than 3 taxa in distance matrix.");
+        }
+        if (!m.isSymmetric()) {
+            throw new IllegalArgumentException("RapidNeighborJoiningTree: Unsymmetrix Distance Matrix: Probably due to taxa with large proportion of missing sites.");
+        }
+
+        myParallel = parallel;
+        init(m, floatDistances);
+
+        while (true) {
+            findNextPair();
+            newBranchLengths();
+            if (numClusters == 3) {
+                break;
+            }
+            newCluster();
+        }
+
+        finish();
+    }
+
+    private final boolean myParallel;
+    private int numClusters;
+    private int nextCluster;
+    private int besti, bestj;   // positions of the pair among the remaining clusters
+    private int slotI, slotJ;   // their slots, alias[besti] and alias[bestj]
+    private double scale;
+
+    // distance between slots a and b, b < a, at [a][b] of one of these
+    private float[][] floatDistance;
+    private double[][] doubleDistance;
+    // remaining slots, in taxa order
+    private int[] alias;
+    private double[] r;
+    // cluster in each slot, -1 once joined
+    private int[] clusterInSlot;
+    private int[] slotOfCluster;
+    // for each cluster, the clusters that existed when it was made, nearest first
+    private int[][] sorted;
+    // for each cluster, the first entry of its sorted list that may not have been joined
+    private int[] sortedStart;
+
+    private double getDist(int slot1, int slot2) {
+        if (slot1 == slot2) {
+            return 0.0;
+        }
+        int a = Math.max(slot1, slot2);
+        int b = Math.min(slot1, slot2);
+        return floatDistance != null ? floatDistance[a][b] : doubleDistance[a][b];
+    }
+
+    private void setDist(int slot1, int slot2, double value) {
+        int a = Math.max(slot1, slot2);
+        int b = Math.min(slot1, slot2);
+        if (floatDistance != null) {
+            floatDistance[a][b] = (float) value;
+        } else {
+            doubleDistance[a][b] = value;
+        }
+    }
+
+    /**
+     * value as it will be held by setDist
+     */
+    private double stored(double value) {
+        return floatDistance != null ? (float) value : value;
+    }
+
+    private boolean isRemaining(int cluster) {
+        return clusterInSlot[slotOfCluster[cluster]] == cluster;
+    }
+
+    private void init(DistanceMatrix m, boolean floatDistances) {
+        numClusters = m.getSize();
+        int n = numClusters;
+
+        if (floatDistances) {
+            floatDistance = new float[n][];
+        } else {
+            doubleDistance = new double[n][];
+        }
+        rows(n).forEach(i -> {
+            if (floatDistances) {
+                floatDistance[i] = new float[i];
+            } else {
+                doubleDistance[i] = new double[i];
+            }
+            for (int j = 0; j < i; j++) {
+                setDist(i, j, m.getDistance(i, j));
+            }
+        });
+
+        for (int i = 0; i < n; i++) {
+            Node tmp = NodeFactory.createNode();
+            tmp.setIdentifier(m.getTaxon(i));
+            getRoot().addChild(tmp);
+        }
+
+        alias = new int[n];
+        clusterInSlot = new int[n];
+        slotOfCluster = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            alias[i] = i;
+            clusterInSlot[i] = i;
+            slotOfCluster[i] = i;
+        }
+        nextCluster = n;
+
+        // summed in the same order as NeighborJoiningTree
+        r = new double[n];
+        sorted = new int[2 * n][];
+        sortedStart = new int[2 * n];
+        rows(n).forEach(i -> {
+            double sum = 0.0;
+            for (int j = 0; j < n; j++) {
+                sum += getDist(i, j);
+            }
+            r[i] = sum;
+
+            long[] keys = new long[i];
+            for (int j = 0; j < i; j++) {
+                keys[j] = sortKey(getDist(i, j), j);
+            }
+            sorted[i] = sortedClusters(keys);
+        });
+    }
+
+    private void finish() {
+        if (besti != 0 && bestj != 0) {
+            getRoot().getChild(0).setBranchLength(updatedDistance(alias[0]));
+        } else if (besti != 1 && bestj != 1) {
+            getRoot().getChild(1).setBranchLength(updatedDistance(alias[1]));
+        } else {
+            getRoot().getChild(2).setBranchLength(updatedDistance(alias[2]));
+        }
+        floatDistance = null;
+        doubleDistance = null;
+        sorted = null;
+
+        // make node heights available also
+        NodeUtils.lengths2Heights(getRoot());
+    }
+
+    private void findNextPair() {
+        scale = 1.0 / (numClusters - 2);
+        double rmax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numClusters; i++) {
+            rmax = Math.max(rmax, r[alias[i]]);
+        }
+        double maxR = rmax;
+
+        Pair best;
+        if (myParallel && numClusters >= PARALLEL_MIN_CLUSTERS) {
+            int numBlocks = (numClusters + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+            best = IntStream.range(0, numBlocks).parallel().mapToObj(b -> {
+                Pair blockBest = new Pair(alias[0], alias[1]);
+                int end = Math.min(numClusters, (b + 1) * ROWS_PER_BLOCK);
+                for (int i = b * ROWS_PER_BLOCK; i < end; i++) {
+                    searchRow(alias[i], maxR, blockBest);
+                }
+                return blockBest;
+            }).reduce((p1, p2) -> {
+                p1.offer(p2.value, p2.slot1, p2.slot2);
+                return p1;
+            }).get();
+        } else {
+            best = new Pair(alias[0], alias[1]);
+            for (int i = 0; i < numClusters; i++) {
+                searchRow(alias[i], maxR, best);
+            }
+        }
+
+        slotI = best.slot1;
+        slotJ = best.slot2;
+        besti = position(slotI);
+        bestj = position(slotJ);
+    }
+
+    /**
+     * offers best the pairs of the sorted list of the cluster in slot, until
+     * the bound shows no later pair can be better
+     */
+    private void searchRow(int slot, double rmax, Pair best) {
+        int cluster = clusterInSlot[slot];
+        int[] list = sorted[cluster];
+        int k = sortedStart[cluster];
+        while (k < list.length && !isRemaining(list[k])) {
+            k++;
+        }
+        sortedStart[cluster] = k;
+
+        double ri = r[slot];
+        double bound = (ri + rmax) * scale;
+        for (; k < list.length; k++) {
+            int other = list[k];
+            if (!isRemaining(other)) {
+                continue;
+            }
+            int otherSlot = slotOfCluster[other];
+            double dij = getDist(slot, otherSlot);
+            if (bound - floorFloat(dij) < best.value) {
+                break;
+            }
+            double sij = (ri + r[otherSlot]) * scale - dij;
+            if (slot < otherSlot) {
+                best.offer(sij, slot, otherSlot);
+            } else {
+                best.offer(sij, otherSlot, slot);
+            }
+        }
+    }
+
+    private void newBranchLengths() {
+        double dij = getDist(slotI, slotJ);
+        double li = (dij + (r[slotI] - r[slotJ]) * scale) * 0.5;
+        double lj = dij - li; // = (dij + (r[bestj]-r[besti])*scale)*0.5
+
+        getRoot().getChild(besti).setBranchLength(li);
+        getRoot().getChild(bestj).setBranchLength(lj);
+    }
+
+    private void newCluster() {
+        // Update distances and row sums, keeping the new distances by position
+        double[] newDistances = new double[numClusters];
+        rows(numClusters).forEach(k -> {
+            if (k != besti && k != bestj) {
+                int ak = alias[k];
+                double dki = getDist(ak, slotI);
+                double dkj = getDist(ak, slotJ);
+                double dk = stored(updatedDistance(ak));
+                setDist(ak, slotI, dk);
+                newDistances[k] = dk;
+                r[ak] += dk - dki - dkj;
+            }
+        });
+
+        int cluster = nextCluster++;
+        long[] keys = new long[numClusters - 2];
+        double sum = 0.0;
+        int numKeys = 0;
+        for (int k = 0; k < numClusters; k++) {
+            if (k != besti && k != bestj) {
+                sum += newDistances[k];
+                keys[numKeys++] = sortKey(newDistances[k], clusterInSlot[alias[k]]);
+            }
+        }
+        r[slotI] = sum;
+        sorted[cluster] = sortedClusters(keys);
+
+        // Replace besti with new cluster
+        sorted[clusterInSlot[slotI]] = null;
+        sorted[clusterInSlot[slotJ]] = null;
+        clusterInSlot[slotI] = cluster;
+        clusterInSlot[slotJ] = -1;
+        slotOfCluster[cluster] = slotI;
+        NodeUtils.joinChilds(getRoot(), besti, bestj);
+
+        // Update alias
+        for (int i = bestj; i < numClusters - 1; i++) {
+            alias[i] = alias[i + 1];
+        }
+
+        numClusters--;
+    }
+
+    /**
+     * compute updated distance between the new cluster (i,j) to the cluster in
+     * slot k
+     */
+    private double updatedDistance(int slotK) {
+        return (getDist(slotK, slotI) + getDist(slotK, slotJ) - getDist(slotI, slotJ)) * 0.5;
+    }
+
+    // position of a remaining slot among the remaining clusters
+    private int position(int slot) {
+        return Arrays.binarySearch(alias, 0, numClusters, slot);
+    }
+
+    private IntStream rows(int count) {
+        IntStream rows = IntStream.range(0, count);
+        return myParallel && count >= PARALLEL_MIN_CLUSTERS ? rows.parallel() : rows;
+    }
+
+    /**
+     * sorts by distance and then cluster, with the bits of the distance
+     * rounded down to a float made to order as signed ints, negative distances
+     * included. A double distance is never less than its key, so a row can be
+     * left by the key of its distance.
+     */
+    private static long sortKey(double value, int cluster) {
+        int bits = Float.floatToIntBits(floorFloat(value));
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | cluster;
+    }
+
+    /**
+     * largest float not more than value
+     */
+    private static float floorFloat(double value) {
+        float result = (float) value;
+        return result > value ? Math.nextDown(result) : result;
+    }
+
+    private static int[] sortedClusters(long[] keys) {
+        Arrays.sort(keys);
+        int[] result = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = (int) keys[i];
+        }
+        return result;
+    }
+
+    /**
+     * The best pair found so far. A larger criterion is better, and of equal
+     * criteria the first pair in taxa order, as in NeighborJoiningTree, which
+     * starts from the first two clusters and a criterion of -1.
+     */
+    private static class Pair {
+
+        private double value = -1.0;
+        private int slot1;
+        private int slot2;
+
+        private Pair(int slot1, int slot2) {
+            this.slot1 = slot1;
+            this.slot2 = slot2;
+        }
+
+        private void offer(double sij, int i, int j) {
+            if (sij > value || (sij == value && (i < slot1 || (i == slot1 && j < slot2)))) {
+                value = sij;
+                slot1 = i;
+                slot2 = j;
+            }
+        }
+    }
+
+}
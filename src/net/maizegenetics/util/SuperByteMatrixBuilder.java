@@ -3,6 +3,9 @@
  */
 package net.maizegenetics.util;
 
+import net.maizegenetics.prefs.TasselPrefs;
+
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -29,13 +32,78 @@ public class SuperByteMatrixBuilder {
      */
     public static SuperByteMatrix getInstance(int numRows, int numColumns) {
         long numElements = (long) numRows * (long) numColumns;
-        if (numElements > (long) (Integer.MAX_VALUE - 10)) {
+        File spillDir = spillDirectory(numElements);
+        if (spillDir != null) {
+            return SuperByteMatrixMapped.createTemp(spillDir, numRows, numColumns, true);
+        } else if (numElements > (long) (Integer.MAX_VALUE - 10)) {
             return new SuperByteMatrixMultiple(numRows, numColumns);
         } else {
             return new SuperByteMatrixSingle(numRows, numColumns);
         }
     }
     
+    /**
+     * This returns a SuperByteMatrix stored in the given file (memory mapped)
+     * instead of the Java heap. Designed for better performance when column
+     * iteration loop inside row iteration loop. The file remains after exit
+     * and can be reopened with getInstanceMapped(filename).
+     *
+     * @param numRows number of rows
+     * @param numColumns number of columns
+     * @param filename file name
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceMapped(int numRows, int numColumns, String filename) {
+        return SuperByteMatrixMapped.create(new File(filename), numRows, numColumns, true);
+    }
+
+    /**
+     * This returns a SuperByteMatrix stored in the given file (memory mapped)
+     * instead of the Java heap. Designed for better performance when row
+     * iteration loop inside column iteration loop.
+     *
+     * @param numRows number of rows
+     * @param numColumns number of columns
+     * @param filename file name
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceTransposeMapped(int numRows, int numColumns, String filename) {
+        return SuperByteMatrixMapped.create(new File(filename), numRows, numColumns, false);
+    }
+
+    /**
+     * Reopens a SuperByteMatrix previously created with getInstanceMapped()
+     * or getInstanceTransposeMapped(). Values are paged in as accessed, so
+     * this returns immediately regardless of size. The file is mapped read
+     * only, so changing the matrix throws IllegalStateException.
+     *
+     * @param filename file name
+     *
+     * @return SuperByteMatrix (double dimension byte array)
+     */
+    public static SuperByteMatrix getInstanceMapped(String filename) {
+        return SuperByteMatrixMapped.open(new File(filename));
+    }
+
+    /**
+     * Returns directory to spill matrix of given size to, or null if it should
+     * be on the heap. Only spills when a spill directory is set
+     * (TasselPrefs.putSpillDir()) and the matrix would take more than half the
+     * maximum heap.
+     */
+    private static File spillDirectory(long numElements) {
+        String dir = TasselPrefs.getSpillDir();
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        if (numElements > Runtime.getRuntime().maxMemory() / 2) {
+            return new File(dir);
+        }
+        return null;
+    }
+
     public static SuperByteMatrix getInstanceSingleValue(int numRows, int numColumns, byte value) {
         return new SuperByteMatrixSingleValue(numRows, numColumns, value);
     }
@@ -52,6 +120,20 @@ public class SuperByteMatrixBuilder {
                 }
             }
             return result;
+        } else if (matrix instanceof SuperByteMatrixMapped) {
+            SuperByteMatrix result = SuperByteMatrixMapped.createTemp(((SuperByteMatrixMapped) matrix).getFile().getParentFile(), numRows, numColumns, matrix.isColumnInnerLoop());
+            if (matrix.isColumnInnerLoop()) {
+                for (int r = 0; r < numRows; r++) {
+                    result.arraycopy(r, matrix.getAllColumns(r), 0);
+                }
+            } else {
+                for (int c = 0; c < numColumns; c++) {
+                    for (int r = 0; r < numRows; r++) {
+                        result.set(r, c, matrix.get(r, c));
+                    }
+                }
+            }
+            return result;
         } else if (matrix instanceof SuperByteMatrixTranspose) {
             SuperByteMatrix result = getInstanceTranspose(numRows, numColumns);
             for (int c = 0; c < numColumns; c++) {
@@ -76,6 +158,10 @@ public class SuperByteMatrixBuilder {
      * @return SuperByteMatrix (double dimension byte array)
      */
     public static SuperByteMatrix getInstanceTranspose(int numRows, int numColumns) {
+        File spillDir = spillDirectory((long) numRows * (long) numColumns);
+        if (spillDir != null) {
+            return SuperByteMatrixMapped.createTemp(spillDir, numRows, numColumns, false);
+        }
         return new SuperByteMatrixTranspose(numRows, numColumns);
     }
 
@@ -96,8 +182,13 @@ public class SuperByteMatrixBuilder {
         int numThreads = Runtime.getRuntime().availableProcessors();
         ExecutorService pool = Executors.newFixedThreadPool(numThreads);
 
-        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple)) {
-            result = getInstanceTranspose(numRows, numColumns);
+        if ((matrix instanceof SuperByteMatrixSingle) || (matrix instanceof SuperByteMatrixMultiple)
+                || ((matrix instanceof SuperByteMatrixMapped) && matrix.isColumnInnerLoop())) {
+            if (matrix instanceof SuperByteMatrixMapped) {
+                result = SuperByteMatrixMapped.createTemp(((SuperByteMatrixMapped) matrix).getFile().getParentFile(), numRows, numColumns, false);
+            } else {
+                result = getInstanceTranspose(numRows, numColumns);
+            }
             int rowBlockSize = TRANSPOSE_BLOCK_SIZE;
             for (int rowOffset = 0; rowOffset < numRows; rowOffset += TRANSPOSE_BLOCK_SIZE) {
                 if (numRows - rowOffset < TRANSPOSE_BLOCK_SIZE) {
@@ -116,8 +207,12 @@ public class SuperByteMatrixBuilder {
                 e.printStackTrace();
             }
 
-        } else if (matrix instanceof SuperByteMatrixTranspose) {
-            result = getInstance(numRows, numColumns);
+        } else if ((matrix instanceof SuperByteMatrixTranspose) || (matrix instanceof SuperByteMatrixMapped)) {
+            if (matrix instanceof SuperByteMatrixMapped) {
+                result = SuperByteMatrixMapped.createTemp(((SuperByteMatrixMapped) matrix).getFile().getParentFile(), numRows, numColumns, true);
+            } else {
+                result = getInstance(numRows, numColumns);
+            }
             int columnBlockSize = TRANSPOSE_BLOCK_SIZE;
             for (int columnOffset = 0; columnOffset < numColumns; columnOffset += TRANSPOSE_BLOCK_SIZE) {
                 if (numColumns - columnOffset < TRANSPOSE_BLOCK_SIZE) {
@@ -0,0 +1,487 @@
+/*
+ *  SuperByteMatrixMapped
+ */
+package net.maizegenetics.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.util.Spliterator.IMMUTABLE;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterator.SIZED;
+import static java.util.Spliterator.SUBSIZED;
+
+/**
+ * SuperByteMatrix stored in a memory mapped file rather than on the Java heap. The operating system pages the
+ * values in and out, so the matrix can be larger than the maximum heap size and doesn't add to garbage collection.
+ * The file starts with a small header (dimensions and orientation), so a matrix written once can be reopened later
+ * without reading or copying the values.
+ */
+public class SuperByteMatrixMapped implements SuperByteMatrix {
+
+    private static final int MAGIC_NUMBER = 0x5342594D;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final long MAX_BYTES_PER_BUFFER = 1L << 30;
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+    private final File myFile;
+    private final int myNumRows;
+    private final int myNumColumns;
+    private final boolean myIsColumnInnerLoop;
+    private final boolean myIsReadOnly;
+
+    // major is row when column inner loop, otherwise column
+    private final int myNumMajor;
+    private final int myNumMinor;
+    private final int myNumMajorPerBuffer;
+    private final MappedByteBuffer[] myBuffers;
+
+    private SuperByteMatrixMapped(File file, int numRows, int numColumns, boolean columnInnerLoop, boolean create) {
+
+        myFile = file;
+        myIsReadOnly = !create;
+        myNumRows = numRows;
+        myNumColumns = numColumns;
+        myIsColumnInnerLoop = columnInnerLoop;
+        myNumMajor = columnInnerLoop ? numRows : numColumns;
+        myNumMinor = columnInnerLoop ? numColumns : numRows;
+        myNumMajorPerBuffer = (int) Math.max(1L, Math.min((long) myNumMajor, MAX_BYTES_PER_BUFFER / Math.max(1, myNumMinor)));
+
+        int numBuffers = (myNumMajor + myNumMajorPerBuffer - 1) / myNumMajorPerBuffer;
+        myBuffers = new MappedByteBuffer[numBuffers];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, myIsReadOnly ? "r" : "rw")) {
+            long numBytes = (long) numRows * (long) numColumns;
+            if (create) {
+                raf.setLength(HEADER_SIZE + numBytes);
+                raf.seek(0);
+                raf.writeInt(MAGIC_NUMBER);
+                raf.writeInt(VERSION);
+                raf.writeInt(numRows);
+                raf.writeInt(numColumns);
+                raf.writeBoolean(columnInnerLoop);
+            }
+            FileChannel channel = raf.getChannel();
+            for (int b = 0; b < numBuffers; b++) {
+                long start = (long) b * (long) myNumMajorPerBuffer;
+                int numMajor = (int) Math.min((long) myNumMajorPerBuffer, myNumMajor - start);
+                myBuffers[b] = channel.map(myIsReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start * (long) myNumMinor, (long) numMajor * (long) myNumMinor);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("SuperByteMatrixMapped: problem mapping file: " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Creates matrix in given file. Any existing file is overwritten. Values are initially zero.
+     */
+    static SuperByteMatrixMapped create(File file, int numRows, int numColumns, boolean columnInnerLoop) {
+        return new SuperByteMatrixMapped(file, numRows, numColumns, columnInnerLoop, true);
+    }
+
+    /**
+     * Creates matrix in a temporary file in the given directory (or system default if null). The file is deleted
+     * when the JVM exits.
+     */
+    static SuperByteMatrixMapped createTemp(File directory, int numRows, int numColumns, boolean columnInnerLoop) {
+        try {
+            File temp = File.createTempFile("SuperByteMatrix", ".sbm", directory);
+            temp.deleteOnExit();
+            return create(temp, numRows, numColumns, columnInnerLoop);
+        } catch (IOException e) {
+            throw new IllegalStateException("SuperByteMatrixMapped: createTemp: problem creating temporary file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens matrix previously created in given file. The file is mapped read only, so the matrix can't be changed
+     * and the file itself only needs read permission.
+     */
+    static SuperByteMatrixMapped open(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC_NUMBER) {
+                throw new IllegalArgumentException("SuperByteMatrixMapped: open: not a SuperByteMatrix file: " + file.getAbsolutePath());
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("SuperByteMatrixMapped: open: unsupported version: " + version);
+            }
+            int numRows = raf.readInt();
+            int numColumns = raf.readInt();
+            boolean columnInnerLoop = raf.readBoolean();
+            if (raf.length() < HEADER_SIZE + (long) numRows * (long) numColumns) {
+                throw new IllegalArgumentException("SuperByteMatrixMapped: open: file truncated: " + file.getAbsolutePath());
+            }
+            return new SuperByteMatrixMapped(file, numRows, numColumns, columnInnerLoop, false);
+        } catch (IOException e) {
+            throw new IllegalStateException("SuperByteMatrixMapped: open: problem reading file: " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the file backing this matrix.
+     *
+     * @return file
+     */
+    public File getFile() {
+        return myFile;
+    }
+
+    /**
+     * Writes any changes still held by the operating system to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer buffer : myBuffers) {
+            buffer.force();
+        }
+    }
+
+    private void checkWritable(String method) {
+        if (myIsReadOnly) {
+            throw new IllegalStateException("SuperByteMatrixMapped: " + method + ": matrix opened read only: " + myFile.getAbsolutePath());
+        }
+    }
+
+    private MappedByteBuffer buffer(int major) {
+        return myBuffers[major / myNumMajorPerBuffer];
+    }
+
+    private int offset(int major, int minor) {
+        return (major % myNumMajorPerBuffer) * myNumMinor + minor;
+    }
+
+    private int major(int row, int column) {
+        return myIsColumnInnerLoop ? row : column;
+    }
+
+    private int minor(int row, int column) {
+        return myIsColumnInnerLoop ? column : row;
+    }
+
+    private void readMajor(int major, int startMinor, byte[] dest, int length) {
+        ByteBuffer temp = buffer(major).duplicate();
+        temp.position(offset(major, startMinor));
+        temp.get(dest, 0, length);
+    }
+
+    private void writeMajor(int major, int startMinor, byte[] src, int length) {
+        ByteBuffer temp = buffer(major).duplicate();
+        temp.position(offset(major, startMinor));
+        temp.put(src, 0, length);
+    }
+
+    @Override
+    public int getNumRows() {
+        return myNumRows;
+    }
+
+    @Override
+    public int getNumColumns() {
+        return myNumColumns;
+    }
+
+    @Override
+    public void set(int row, int column, byte value) {
+        checkWritable("set");
+        int major = major(row, column);
+        buffer(major).put(offset(major, minor(row, column)), value);
+    }
+
+    @Override
+    public void arraycopy(int row, byte[] src, int startColumn) {
+        checkWritable("arraycopy");
+        if (myIsColumnInnerLoop) {
+            writeMajor(row, startColumn, src, src.length);
+        } else {
+            for (int i = 0; i < src.length; i++) {
+                set(row, startColumn + i, src[i]);
+            }
+        }
+    }
+
+    @Override
+    public void setAll(byte value) {
+        checkWritable("setAll");
+        byte[] temp = new byte[COPY_BUFFER_SIZE];
+        Arrays.fill(temp, value);
+        for (MappedByteBuffer buffer : myBuffers) {
+            ByteBuffer current = buffer.duplicate();
+            current.clear();
+            while (current.hasRemaining()) {
+                current.put(temp, 0, Math.min(temp.length, current.remaining()));
+            }
+        }
+    }
+
+    @Override
+    public byte get(int row, int column) {
+        int major = major(row, column);
+        return buffer(major).get(offset(major, minor(row, column)));
+    }
+
+    @Override
+    public byte[] getAllColumns(int row) {
+
+        if ((row < 0) || (row >= myNumRows)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getAllColumns: row: " + row);
+        }
+
+        byte[] result = new byte[myNumColumns];
+        if (myIsColumnInnerLoop) {
+            readMajor(row, 0, result, myNumColumns);
+        } else {
+            for (int c = 0; c < myNumColumns; c++) {
+                result[c] = get(row, c);
+            }
+        }
+        return result;
+
+    }
+
+    @Override
+    public byte[] getColumnRange(int row, int start, int end) {
+
+        if ((row < 0) || (row >= myNumRows)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getColumnRange: row: " + row);
+        }
+
+        if ((start < 0) || (start >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getColumnRange: start: " + start);
+        }
+
+        if ((end < 0) || (end >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getColumnRange: end: " + end);
+        }
+
+        if (end < start) {
+            throw new IllegalArgumentException("SuperByteMatrixMapped: getColumnRange: end: " + end + " less than start: " + start);
+        }
+
+        int numElements = end - start;
+        byte[] result = new byte[numElements];
+        if (myIsColumnInnerLoop) {
+            readMajor(row, start, result, numElements);
+        } else {
+            for (int c = start; c < end; c++) {
+                result[c - start] = get(row, c);
+            }
+        }
+        return result;
+
+    }
+
+    @Override
+    public byte[] getAllRows(int column) {
+
+        if ((column < 0) || (column >= myNumColumns)) {
+            throw new IndexOutOfBoundsException("SuperByteMatrixMapped: getAllRows: column: " + column);
+        }
+
+        byte[] result = new byte[myNumRows];
+        if (myIsColumnInnerLoop) {
+            for (int r = 0; r < myNumRows; r++) {
+                result[r] = get(r, column);
+            }
+        } else {
+            readMajor(column, 0, result, myNumRows);
+        }
+        return result;
+
+    }
+
+    @Override
+    public boolean isColumnInnerLoop() {
+        return myIsColumnInnerLoop;
+    }
+
+    @Override
+    public void reorderRows(int[] newIndices) {
+
+        checkWritable("reorderRows");
+
+        if (newIndices.length != myNumRows) {
+            throw new IllegalArgumentException("SuperByteMatrixMapped: reorderRows: index array size: " + newIndices.length + " doesn't equal num rows in matrix: " + myNumRows);
+        }
+
+        if (myIsColumnInnerLoop) {
+            reorderMajor(newIndices);
+        } else {
+            reorderMinor(newIndices);
+        }
+
+    }
+
+    @Override
+    public void reorderColumns(int[] newIndices) {
+
+        checkWritable("reorderColumns");
+
+        if (newIndices.length != myNumColumns) {
+            throw new IllegalArgumentException("SuperByteMatrixMapped: reorderColumns: index array size: " + newIndices.length + " doesn't equal num columns in matrix: " + myNumColumns);
+        }
+
+        if (myIsColumnInnerLoop) {
+            reorderMinor(newIndices);
+        } else {
+            reorderMajor(newIndices);
+        }
+
+    }
+
+    /**
+     * Moves whole contiguous runs following the permutation cycles, so each run is read and written once.
+     */
+    private void reorderMajor(int[] newIndices) {
+
+        int[] tempIndices = new int[newIndices.length];
+        System.arraycopy(newIndices, 0, tempIndices, 0, myNumMajor);
+
+        byte[] temp = new byte[myNumMinor];
+        byte[] move = new byte[myNumMinor];
+
+        for (int current = 0; current < myNumMajor; current++) {
+
+            if ((tempIndices[current] == current) || (tempIndices[current] == -1)) {
+                tempIndices[current] = -1;
+                continue;
+            }
+
+            readMajor(current, 0, temp, myNumMinor);
+
+            int src = tempIndices[current];
+            int dest = current;
+            while (src != current) {
+                readMajor(src, 0, move, myNumMinor);
+                writeMajor(dest, 0, move, myNumMinor);
+                tempIndices[dest] = -1;
+                dest = src;
+                src = tempIndices[dest];
+            }
+
+            writeMajor(dest, 0, temp, myNumMinor);
+            tempIndices[dest] = -1;
+
+        }
+
+    }
+
+    /**
+     * Permutes the values within each contiguous run.
+     */
+    private void reorderMinor(int[] newIndices) {
+
+        byte[] original = new byte[myNumMinor];
+        byte[] reordered = new byte[myNumMinor];
+        for (int major = 0; major < myNumMajor; major++) {
+            readMajor(major, 0, original, myNumMinor);
+            for (int i = 0; i < myNumMinor; i++) {
+                reordered[i] = original[newIndices[i]];
+            }
+            writeMajor(major, 0, reordered, myNumMinor);
+        }
+
+    }
+
+    @Override
+    public void setHetsTo(byte value) {
+        checkWritable("setHetsTo");
+        for (MappedByteBuffer buffer : myBuffers) {
+            for (int i = 0, n = buffer.capacity(); i < n; i++) {
+                byte current = buffer.get(i);
+                if (((current >>> 4) & 0xf) != (current & 0xf)) {
+                    buffer.put(i, value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Stream<Byte> stream() {
+        return StreamSupport.stream(new SuperByteMatrixMappedSpliterator(0, (long) myNumRows * (long) myNumColumns), true);
+    }
+
+    @Override
+    public Stream<Byte> stream(int row) {
+        if (myIsColumnInnerLoop) {
+            long start = (long) row * (long) myNumMinor;
+            return StreamSupport.stream(new SuperByteMatrixMappedSpliterator(start, start + (long) myNumMinor), true);
+        } else {
+            byte[] values = getAllColumns(row);
+            return IntStream.range(0, values.length).mapToObj(i -> Byte.valueOf(values[i])).parallel();
+        }
+    }
+
+    /**
+     * Spliterator over the values in storage order.
+     */
+    class SuperByteMatrixMappedSpliterator implements Spliterator<Byte> {
+
+        private long myCurrentIndex;
+        private final long myFence;
+
+        SuperByteMatrixMappedSpliterator(long currentIndex, long fence) {
+            myCurrentIndex = currentIndex;
+            myFence = fence;
+        }
+
+        private byte value(long index) {
+            int major = (int) (index / myNumMinor);
+            int minor = (int) (index % myNumMinor);
+            return buffer(major).get(offset(major, minor));
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Byte> action) {
+            for (long i = myCurrentIndex; i < myFence; i++) {
+                action.accept(Byte.valueOf(value(i)));
+            }
+            myCurrentIndex = myFence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Byte> action) {
+            if (myCurrentIndex < myFence) {
+                action.accept(Byte.valueOf(value(myCurrentIndex)));
+                myCurrentIndex++;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public Spliterator<Byte> trySplit() {
+            long lo = myCurrentIndex;
+            long mid = (lo + myFence) >>> 1;
+            if (lo < mid) {
+                myCurrentIndex = mid;
+                return new SuperByteMatrixMappedSpliterator(lo, mid);
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return myFence - myCurrentIndex;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | IMMUTABLE | SUBSIZED;
+        }
+    }
+
+}
@@ -114,6 +114,31 @@ public class TableReportBuilder {
         add(list);
     }
 
+    /**
+     * Writes rows already formatted as lines of delimited values.  Only for
+     * reports written to a file.  This may be called from several threads,
+     * each writing whole lines, so that the rows can be formatted in
+     * parallel.
+     *
+     * @param rows lines of tab delimited values, each ending in a newline
+     */
+    public void addDelimitedRows(CharSequence rows) {
+
+        if (myInMemory) {
+            throw new IllegalStateException("TableReportBuilder: addDelimitedRows: only supported for reports written to a file: " + myTableName);
+        }
+
+        synchronized (myWriter) {
+            try {
+                myWriter.append(rows);
+            } catch (Exception e) {
+                myLogger.debug(e.getMessage(), e);
+                throw new IllegalStateException("TableReportBuilder: addDelimitedRows: Problem adding rows to file: " + myFilename + ": " + e.getMessage());
+            }
+        }
+
+    }
+
     private void writeRow(Object[] row) {
         try {
             for (int i = 0; i < row.length; i++) {
@@ -0,0 +1,68 @@
+/*
+ *  IBSBitKernelBenchmark
+ */
+package net.maizegenetics.analysis.distance;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.ImportUtils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times {@link IBSBitKernel} on a genotype file and reports taxa pairs per
+ * second.
+ * <p></p>
+ * Arguments are the genotype file, the number of measured repetitions
+ * (default 3), and a comma separated list of thread counts (default number of
+ * processors).
+ */
+public class IBSBitKernelBenchmark {
+
+    private IBSBitKernelBenchmark() {
+        // utility
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 1) {
+            System.out.println("Usage: IBSBitKernelBenchmark <genotype file> [repetitions] [thread counts]");
+            return;
+        }
+        GenotypeTable genotype = ImportUtils.read(args[0]);
+        int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        String[] threads = (args.length > 2) ? args[2].split(",") : new String[]{String.valueOf(Runtime.getRuntime().availableProcessors())};
+
+        System.out.println("Taxa: " + genotype.numberOfTaxa() + " Sites: " + genotype.numberOfSites());
+        for (boolean useThirdState : new boolean[]{false, true}) {
+            for (String numThreads : threads) {
+                time(genotype, useThirdState, Integer.parseInt(numThreads.trim()), repetitions);
+            }
+        }
+
+    }
+
+    private static void time(GenotypeTable genotype, boolean useThirdState, int numThreads, int repetitions) {
+
+        LongAdder numPairs = new LongAdder();
+        IBSBitKernel.compute(genotype, useThirdState, false, numThreads, null, (i, j, same, diff, het) -> numPairs.increment());
+        long pairsPerRun = numPairs.sum();
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            IBSBitKernel.compute(genotype, useThirdState, false, numThreads, null, (i, j, same, diff, het) -> {
+                // only counting is measured
+            });
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        System.out.printf("%d alleles, %d threads: best %.3fs mean %.3fs (%.0f pairs/s, %.1f billion pair sites/s)%n",
+                useThirdState ? 3 : 2, numThreads, best / 1e9, total / 1e9 / repetitions, pairsPerRun / (best / 1e9),
+                (double) pairsPerRun * genotype.numberOfSites() / best);
+
+    }
+
+}
@@ -0,0 +1,185 @@
+package net.maizegenetics.dna.snp.genotypecall;
+
+import net.maizegenetics.dna.WHICH_ALLELE;
+import net.maizegenetics.dna.snp.GenotypeTable;
+import net.maizegenetics.dna.snp.NucleotideAlignmentConstants;
+import net.maizegenetics.dna.snp.bit.BitStorage;
+import net.maizegenetics.dna.snp.bit.DynamicBitStorage;
+import net.maizegenetics.util.BitSet;
+import net.maizegenetics.util.SuperByteMatrix;
+import net.maizegenetics.util.SuperByteMatrixBuilder;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link BitPackedGenotypeCallTable} with the byte table built from
+ * the same genotypes.
+ */
+public class BitPackedGenotypeCallTableTest {
+
+    private static final int NUM_TAXA = 37;
+    // not a multiple of 64, so the last word is partial
+    private static final int NUM_SITES = 1000;
+
+    @Test
+    public void testUnphased() {
+        byte[][] genotypes = genotypes(new Random(3), false, 0);
+        assertSameTable(build(genotypes, false, false), build(genotypes, false, true));
+    }
+
+    @Test
+    public void testPhased() {
+        byte[][] genotypes = genotypes(new Random(5), true, 0);
+        assertSameTable(build(genotypes, true, false), build(genotypes, true, true));
+    }
+
+    @Test
+    public void testMixedSitesUnphased() {
+        byte[][] genotypes = genotypes(new Random(7), false, NUM_SITES / 20);
+        assertSameTable(build(genotypes, false, false), build(genotypes, false, true));
+    }
+
+    @Test
+    public void testMixedSitesPhased() {
+        byte[][] genotypes = genotypes(new Random(11), true, NUM_SITES / 20);
+        assertSameTable(build(genotypes, true, false), build(genotypes, true, true));
+    }
+
+    @Test
+    public void testOnlyPackedWhenAsked() {
+        byte[][] genotypes = genotypes(new Random(13), false, 0);
+        assertFalse(build(genotypes, false, false) instanceof BitPackedGenotypeCallTable);
+        assertTrue(build(genotypes, false, true) instanceof BitPackedGenotypeCallTable);
+    }
+
+    @Test
+    public void testTooManyMixedSites() {
+        byte[][] genotypes = genotypes(new Random(17), false, NUM_SITES / 5);
+        assertNull(BitPackedGenotypeCallTable.getInstance(matrix(genotypes), false, NucleotideAlignmentConstants.NUCLEOTIDE_ALLELES));
+        assertFalse(build(genotypes, false, true) instanceof BitPackedGenotypeCallTable);
+    }
+
+    private static void assertSameTable(GenotypeCallTable expected, GenotypeCallTable actual) {
+
+        assertTrue(actual instanceof BitPackedGenotypeCallTable);
+        assertEquals(expected.isPhased(), actual.isPhased());
+
+        for (int t = 0; t < NUM_TAXA; t++) {
+            for (int s = 0; s < NUM_SITES; s++) {
+                assertEquals(expected.genotype(t, s), actual.genotype(t, s));
+            }
+            assertArrayEquals(expected.genotypeAllSites(t), actual.genotypeAllSites(t));
+            assertArrayEquals(expected.genotypeForAllSites(t), actual.genotypeForAllSites(t));
+            assertArrayEquals(expected.genotypeRange(t, 60, 131), actual.genotypeRange(t, 60, 131));
+            assertArrayEquals(expected.genotypeRange(t, 900, NUM_SITES), actual.genotypeRange(t, 900, NUM_SITES));
+            assertArrayEquals(expected.genotypeForSiteRange(t, 5, 6), actual.genotypeForSiteRange(t, 5, 6));
+        }
+        for (int s = 0; s < NUM_SITES; s++) {
+            assertArrayEquals(expected.genotypeForAllTaxa(s), actual.genotypeForAllTaxa(s));
+        }
+
+        byte[] major = expected.majorAlleleForAllSites();
+        byte[] minor = expected.minorAlleleForAllSites();
+        assertArrayEquals(major, actual.majorAlleleForAllSites());
+        assertArrayEquals(minor, actual.minorAlleleForAllSites());
+
+        BitPackedGenotypeCallTable packed = (BitPackedGenotypeCallTable) actual;
+        assertSameBits(new DynamicBitStorage(expected, WHICH_ALLELE.Major, major), packed.bitStorage(WHICH_ALLELE.Major, major));
+        assertSameBits(new DynamicBitStorage(expected, WHICH_ALLELE.Minor, minor), packed.bitStorage(WHICH_ALLELE.Minor, minor));
+        assertSameBits(DynamicBitStorage.getUnknownInstance(expected), packed.unknownBitStorage());
+
+    }
+
+    private static void assertSameBits(BitStorage expected, BitStorage actual) {
+        int numWords = (NUM_SITES + 63) >>> 6;
+        for (int t = 0; t < NUM_TAXA; t++) {
+            assertSameBits(expected.allelePresenceForAllSites(t), actual.allelePresenceForAllSites(t), NUM_SITES);
+            assertArrayEquals(expected.allelePresenceForSitesBlock(t, 0, numWords), actual.allelePresenceForSitesBlock(t, 0, numWords));
+            assertArrayEquals(expected.allelePresenceForSitesBlock(t, 3, 7), actual.allelePresenceForSitesBlock(t, 3, 7));
+        }
+        for (int s = 0; s < NUM_SITES; s++) {
+            assertSameBits(expected.allelePresenceForAllTaxa(s), actual.allelePresenceForAllTaxa(s), NUM_TAXA);
+        }
+    }
+
+    private static void assertSameBits(BitSet expected, BitSet actual, int numBits) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        for (int i = 0; i < numBits; i++) {
+            assertEquals(expected.fastGet(i), actual.fastGet(i));
+        }
+    }
+
+    private static GenotypeCallTable build(byte[][] genotypes, boolean phased, boolean bitPacking) {
+        return builder(genotypes, phased).bitPacking(bitPacking).build();
+    }
+
+    private static GenotypeCallTableBuilder builder(byte[][] genotypes, boolean phased) {
+        GenotypeCallTableBuilder builder = GenotypeCallTableBuilder.getInstance(NUM_TAXA, NUM_SITES).isPhased(phased);
+        for (int t = 0; t < NUM_TAXA; t++) {
+            builder.setBaseRangeForTaxon(t, 0, genotypes[t]);
+        }
+        return builder;
+    }
+
+    private static SuperByteMatrix matrix(byte[][] genotypes) {
+        SuperByteMatrix result = SuperByteMatrixBuilder.getInstance(NUM_TAXA, NUM_SITES);
+        for (int t = 0; t < NUM_TAXA; t++) {
+            result.arraycopy(t, genotypes[t], 0);
+        }
+        return result;
+    }
+
+    /**
+     * Nucleotide genotypes with about 10% unknown. Packed sites have at most
+     * three values: two homozygotes and a heterozygote when unphased, and
+     * three of the four ordered pairs of two alleles when phased. Mixed sites
+     * are random pairs of A, C, G, T, insertion and deletion.
+     */
+    private static byte[][] genotypes(Random random, boolean phased, int numMixedSites) {
+        byte[][] result = new byte[NUM_TAXA][NUM_SITES];
+        for (int s = 0; s < NUM_SITES; s++) {
+            boolean mixed = random.nextInt(NUM_SITES) < numMixedSites;
+            byte[] values = null;
+            if (!mixed) {
+                int a = random.nextInt(4);
+                int b = (a + 1 + random.nextInt(3)) % 4;
+                if (phased) {
+                    byte[] pairs = {diploid(a, a), diploid(a, b), diploid(b, a), diploid(b, b)};
+                    int skip = random.nextInt(4);
+                    values = new byte[3];
+                    for (int i = 0, v = 0; i < 4; i++) {
+                        if (i != skip) {
+                            values[v++] = pairs[i];
+                        }
+                    }
+                } else {
+                    values = new byte[]{diploid(a, a), diploid(Math.min(a, b), Math.max(a, b)), diploid(b, b)};
+                }
+            }
+            for (int t = 0; t < NUM_TAXA; t++) {
+                if (random.nextInt(10) == 0) {
+                    result[t][s] = GenotypeTable.UNKNOWN_DIPLOID_ALLELE;
+                } else if (mixed) {
+                    int a = random.nextInt(6);
+                    int b = random.nextInt(6);
+                    result[t][s] = phased ? diploid(a, b) : diploid(Math.min(a, b), Math.max(a, b));
+                } else {
+                    result[t][s] = values[random.nextInt(values.length)];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte diploid(int first, int second) {
+        return (byte) ((first << 4) | second);
+    }
+
+}
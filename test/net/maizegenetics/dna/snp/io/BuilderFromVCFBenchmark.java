@@ -0,0 +1,67 @@
+package net.maizegenetics.dna.snp.io;
+
+import net.maizegenetics.dna.snp.GenotypeTable;
+
+import java.util.function.Supplier;
+
+/**
+ * Times loading the same VCF file with BuilderFromVCF (String and byte parsing) and BuilderFromVCFUsingHTSJDK.
+ * <p></p>
+ * Arguments are the VCF file, the number of measured repetitions (default 3), and whether to keep depth
+ * (default false).
+ */
+public class BuilderFromVCFBenchmark {
+
+    private BuilderFromVCFBenchmark() {
+        // utility
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 1) {
+            System.out.println("Usage: BuilderFromVCFBenchmark <vcf file> [repetitions] [keep depth]");
+            return;
+        }
+        final String vcf = args[0];
+        int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        final boolean keepDepth = (args.length > 2) && Boolean.parseBoolean(args[2]);
+
+        time("BuilderFromVCF (String)", repetitions, () -> {
+            BuilderFromVCF builder = BuilderFromVCF.getBuilder(vcf);
+            if (keepDepth) builder.keepDepth();
+            return builder.build();
+        });
+
+        time("BuilderFromVCF (bytes)", repetitions, () -> {
+            BuilderFromVCF builder = BuilderFromVCF.getBuilder(vcf).parseFromBytes();
+            if (keepDepth) builder.keepDepth();
+            return builder.build();
+        });
+
+        time("BuilderFromVCFUsingHTSJDK", repetitions, () -> BuilderFromVCFUsingHTSJDK.instance(vcf).keepDepth(keepDepth).build());
+
+    }
+
+    private static void time(String name, int repetitions, Supplier<GenotypeTable> loader) {
+
+        GenotypeTable warmUp = loader.get();
+        long numCalls = (long) warmUp.numberOfTaxa() * (long) warmUp.numberOfSites();
+        warmUp = null;
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < repetitions; i++) {
+            System.gc();
+            long start = System.nanoTime();
+            loader.get();
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        System.out.printf("%s: best %.3fs mean %.3fs (%.1f million genotypes/s)%n", name, best / 1e9,
+                total / 1e9 / repetitions, numCalls / (best / 1e9) / 1e6);
+
+    }
+
+}
@@ -0,0 +1,139 @@
+package net.maizegenetics.dna.tag;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that compact distributions encode to the same bytes as the encoder
+ * used before {@link TaxaDistCompact}, and decode back to the same taxa and
+ * depths.
+ */
+public class TaxaDistBuilderTest {
+
+    private static final int MAX_TAXA = 5000;
+
+    @Test
+    public void testEmpty() {
+        assertRoundTrip(MAX_TAXA, new int[0], new int[0]);
+    }
+
+    @Test
+    public void testSparse() {
+        // gaps and depths of 255 or more take more than one byte
+        assertRoundTrip(MAX_TAXA, new int[]{0, 254, 255, 510, 1020, 4999}, new int[]{1, 254, 255, 256, 1000, 3});
+        assertRoundTrip(MAX_TAXA, new int[]{4999}, new int[]{70000});
+        assertRoundTrip(MAX_TAXA, randomTaxa(new Random(3), 0.005), null);
+    }
+
+    @Test
+    public void testDense() {
+        int[] allTaxa = new int[MAX_TAXA];
+        Arrays.setAll(allTaxa, t -> t);
+        int[] depths = new int[MAX_TAXA];
+        Arrays.fill(depths, 1);
+        assertRoundTrip(MAX_TAXA, allTaxa, depths);
+        assertRoundTrip(MAX_TAXA, randomTaxa(new Random(5), 0.5), null);
+        assertRoundTrip(MAX_TAXA, randomTaxa(new Random(7), 0.95), null);
+    }
+
+    @Test
+    public void testCombine() {
+        Random random = new Random(11);
+        for (double fraction : new double[]{0.005, 0.05, 0.5}) {
+            int[] taxa1 = randomTaxa(random, fraction);
+            int[] depths1 = randomDepths(random, taxa1.length);
+            int[] taxa2 = randomTaxa(random, fraction);
+            int[] depths2 = randomDepths(random, taxa2.length);
+            int[] sum = new int[MAX_TAXA];
+            for (int i = 0; i < taxa1.length; i++) {
+                sum[taxa1[i]] += depths1[i];
+            }
+            for (int i = 0; i < taxa2.length; i++) {
+                sum[taxa2[i]] += depths2[i];
+            }
+            TaxaDistribution combined = TaxaDistBuilder.combine(TaxaDistBuilder.create(MAX_TAXA, taxa1, depths1), TaxaDistBuilder.create(MAX_TAXA, taxa2, depths2));
+            assertArrayEquals(sum, combined.depths());
+            int[][] taxaWithDepths = combined.taxaWithDepths();
+            assertArrayEquals(oldEncode(MAX_TAXA, taxaWithDepths[0], taxaWithDepths[1]), combined.encodeTaxaDepth());
+        }
+    }
+
+    private static void assertRoundTrip(int maxTaxa, int[] taxa, int[] depths) {
+
+        if (depths == null) {
+            depths = randomDepths(new Random(taxa.length), taxa.length);
+        }
+
+        byte[] expected = oldEncode(maxTaxa, taxa, depths);
+        TaxaDistribution distribution = TaxaDistBuilder.create(maxTaxa, taxa, depths);
+        assertArrayEquals(expected, distribution.encodeTaxaDepth());
+
+        TaxaDistribution decoded = TaxaDistBuilder.create(expected);
+        assertEquals(maxTaxa, decoded.maxTaxa());
+        assertEquals(taxa.length, decoded.numberOfTaxaWithTag());
+        int[][] taxaWithDepths = decoded.taxaWithDepths();
+        assertArrayEquals(taxa, taxaWithDepths[0]);
+        assertArrayEquals(depths, taxaWithDepths[1]);
+        assertArrayEquals(expected, decoded.encodeTaxaDepth());
+
+        int[][] oldDecoded = TaxaDistBuilder.getDepthMatrixForEncodedDepths(distribution.encodeTaxaDepth());
+        assertArrayEquals(taxa, oldDecoded[0]);
+        assertArrayEquals(depths, oldDecoded[1]);
+        assertEquals(maxTaxa, oldDecoded[2][0]);
+
+    }
+
+    private static int[] randomTaxa(Random random, double fraction) {
+        return IntStream.range(0, MAX_TAXA).filter(t -> random.nextDouble() < fraction).toArray();
+    }
+
+    // mostly 1 or 2, some more than one byte
+    private static int[] randomDepths(Random random, int numTaxa) {
+        int[] result = new int[numTaxa];
+        for (int i = 0; i < numTaxa; i++) {
+            int draw = random.nextInt(100);
+            result[i] = (draw < 70) ? 1 : (draw < 90) ? 2 : 3 + random.nextInt(600);
+        }
+        return result;
+    }
+
+    // the encoder used before the compact encoding
+    private static byte[] oldEncode(int maxTaxa, int[] taxa, int[] depths) {
+        int totalDepth = Arrays.stream(depths).sum();
+        ByteBuffer bb = ByteBuffer.allocate(8 + (maxTaxa / 64) + (2 * taxa.length) + (totalDepth / 64));
+        bb.putInt(maxTaxa);
+        bb.putInt(taxa.length);
+        int priorTaxa = 0;
+        for (int i = 0; i < taxa.length; i++) {
+            int space = taxa[i] - priorTaxa;
+            while (space >= 0) {
+                bb.put(UnsignedBytes.saturatedCast(space));
+                space -= 255;
+            }
+            priorTaxa = taxa[i];
+        }
+        for (int i = 0; i < depths.length; i++) {
+            int depth = depths[i];
+            while (depth >= 0) {
+                bb.put(UnsignedBytes.saturatedCast(depth));
+                depth -= 255;
+            }
+        }
+        try {
+            return Snappy.compress(Arrays.copyOf(bb.array(), bb.position()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ *  TaxaDistributionBenchmark
+ */
+package net.maizegenetics.dna.tag;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Times decoding, combining and encoding of TaxaDistributions with the
+ * compact encoding ({@link TaxaDistCompact}) against the previous Snappy
+ * compressed int array ({@link TaxaDistFixed}), and reports the memory of
+ * each.
+ * <p></p>
+ * Arguments are the number of taxa (default 5000), the number of
+ * distributions (default 20000), a comma separated list of the fraction of
+ * taxa with each tag (default 0.005,0.05,0.5), and the number of measured
+ * repetitions (default 5). Distributions are random, with most depths 1 or 2.
+ */
+public class TaxaDistributionBenchmark {
+
+    // keeps results live so the work isn't optimized away
+    private static long mySink = 0;
+
+    private TaxaDistributionBenchmark() {
+        // utility
+    }
+
+    public static void main(String[] args) {
+
+        int maxTaxa = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int numDistributions = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        String[] fractions = (args.length > 2) ? args[2].split(",") : new String[]{"0.005", "0.05", "0.5"};
+        int repetitions = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+
+        for (String fraction : fractions) {
+            double taxaFraction = Double.parseDouble(fraction.trim());
+            Random random = new Random(42);
+            byte[][] encoded = new byte[numDistributions][];
+            for (int i = 0; i < numDistributions; i++) {
+                encoded[i] = randomDistribution(random, maxTaxa, taxaFraction).encodeTaxaDepth();
+            }
+            TaxaDistribution[] fixed = new TaxaDistribution[numDistributions];
+            TaxaDistribution[] compact = new TaxaDistribution[numDistributions];
+            long fixedMemory = 0;
+            long compactMemory = 0;
+            for (int i = 0; i < numDistributions; i++) {
+                fixed[i] = decodeFixed(encoded[i]);
+                compact[i] = TaxaDistBuilder.create(encoded[i]);
+                fixedMemory += fixed[i].memorySize();
+                compactMemory += compact[i].memorySize();
+            }
+
+            System.out.printf("Taxa: %d Distributions: %d Fraction of taxa with tag: %s%n", maxTaxa, numDistributions, fraction.trim());
+            System.out.printf("memory: fixed %.1f bytes/distribution compact %.1f bytes/distribution%n",
+                    (double) fixedMemory / numDistributions, (double) compactMemory / numDistributions);
+            time("decode fixed", numDistributions, repetitions, i -> decodeFixed(encoded[i]));
+            time("decode compact", numDistributions, repetitions, i -> TaxaDistBuilder.create(encoded[i]));
+            time("combine fixed", numDistributions, repetitions, i -> combineFixed(fixed[i], fixed[(i + 1) % numDistributions]));
+            time("combine compact", numDistributions, repetitions, i -> TaxaDistBuilder.combine(compact[i], compact[(i + 1) % numDistributions]));
+            time("encode fixed", numDistributions, repetitions, i -> fixed[i].encodeTaxaDepth());
+            time("encode compact", numDistributions, repetitions, i -> compact[i].encodeTaxaDepth());
+            time("iterate fixed", numDistributions, repetitions, i -> fixed[i].taxaWithDepths());
+            time("iterate compact", numDistributions, repetitions, i -> {
+                long[] sum = {0};
+                compact[i].forEachTaxonDepth((taxon, depth) -> sum[0] += taxon + depth);
+                return sum[0];
+            });
+        }
+        if (mySink == 42) {
+            System.out.println();
+        }
+
+    }
+
+    private static void time(String name, int numDistributions, int repetitions, IntFunction<Object> operation) {
+
+        run(numDistributions, operation);
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            run(numDistributions, operation);
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        System.out.printf("%s: best %.3fs mean %.3fs (%.0f distributions/s)%n",
+                name, best / 1e9, total / 1e9 / repetitions, numDistributions / (best / 1e9));
+
+    }
+
+    private static void run(int numDistributions, IntFunction<Object> operation) {
+        for (int i = 0; i < numDistributions; i++) {
+            mySink += System.identityHashCode(operation.apply(i));
+        }
+    }
+
+    private static TaxaDistribution randomDistribution(Random random, int maxTaxa, double taxaFraction) {
+        int[] taxa = new int[maxTaxa];
+        int[] depths = new int[maxTaxa];
+        int numTaxa = 0;
+        for (int t = 0; t < maxTaxa; t++) {
+            if (random.nextDouble() < taxaFraction) {
+                taxa[numTaxa] = t;
+                int draw = random.nextInt(100);
+                depths[numTaxa] = (draw < 70) ? 1 : (draw < 90) ? 2 : 3 + random.nextInt(300);
+                numTaxa++;
+            }
+        }
+        return new TaxaDistFixed(maxTaxa, Arrays.copyOf(taxa, numTaxa), Arrays.copyOf(depths, numTaxa));
+    }
+
+    // the decoding used before the compact encoding
+    private static TaxaDistribution decodeFixed(byte[] encoded) {
+        int[][] decoded = TaxaDistBuilder.getDepthMatrixForEncodedDepths(encoded);
+        return new TaxaDistFixed(decoded[2][0], decoded[0], decoded[1]);
+    }
+
+    // the combine used before the compact encoding
+    private static TaxaDistribution combineFixed(TaxaDistribution taxaDist1, TaxaDistribution taxaDist2) {
+        int[] depths1 = taxaDist1.depths();
+        int[] depths2 = taxaDist2.depths();
+        int taxaWithDepth = 0;
+        for (int i = 0; i < depths1.length; i++) {
+            depths1[i] += depths2[i];
+            if (depths1[i] > 0) taxaWithDepth++;
+        }
+        int[] taxaWithTags = new int[taxaWithDepth];
+        int[] depthOfTags = new int[taxaWithDepth];
+        taxaWithDepth = 0;
+        for (int i = 0; i < depths1.length; i++) {
+            if (depths1[i] > 0) {
+                taxaWithTags[taxaWithDepth] = i;
+                depthOfTags[taxaWithDepth] = depths1[i];
+                taxaWithDepth++;
+            }
+        }
+        return new TaxaDistFixed(taxaDist1.maxTaxa(), taxaWithTags, depthOfTags);
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ *  RapidNeighborJoiningTreeBenchmark
+ */
+package net.maizegenetics.taxa.tree;
+
+import net.maizegenetics.taxa.Taxon;
+import net.maizegenetics.taxa.distance.DistanceMatrix;
+import net.maizegenetics.taxa.distance.DistanceMatrixBuilder;
+
+import java.util.Random;
+
+/**
+ * Times {@link RapidNeighborJoiningTree}, single threaded, parallel and with
+ * float distances, against {@link NeighborJoiningTree} on simulated distance
+ * matrices, and checks that the trees are the same.
+ * <p></p>
+ * Arguments are a comma separated list of numbers of taxa (default
+ * 1000,5000,20000), the number of measured repetitions (default 3), and the
+ * largest number of taxa to also run NeighborJoiningTree on (default 5000).
+ * Distances are those between points of a random tree of populations, so the
+ * matrix has the structure of a real panel.
+ */
+public class RapidNeighborJoiningTreeBenchmark {
+
+    private static final int NUM_POPULATIONS = 50;
+    private static final int DIMENSIONS = 20;
+
+    private RapidNeighborJoiningTreeBenchmark() {
+        // utility
+    }
+
+    public static void main(String[] args) {
+
+        String[] sizes = (args.length > 0) ? args[0].split(",") : new String[]{"1000", "5000", "20000"};
+        int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int maxClassic = (args.length > 2) ? Integer.parseInt(args[2]) : 5000;
+
+        for (String size : sizes) {
+            int numTaxa = Integer.parseInt(size.trim());
+            DistanceMatrix distances = simulate(numTaxa, new Random(numTaxa));
+            System.out.println("Taxa: " + numTaxa);
+
+            Tree rapid = time("RapidNeighborJoiningTree, 1 thread", () -> new RapidNeighborJoiningTree(distances, false, false), repetitions);
+            Tree parallel = time("RapidNeighborJoiningTree, parallel", () -> new RapidNeighborJoiningTree(distances, true, false), repetitions);
+            compare("1 thread", rapid.getRoot(), parallel.getRoot());
+            Tree floats = time("RapidNeighborJoiningTree, parallel, float distances", () -> new RapidNeighborJoiningTree(distances, true, true), repetitions);
+            compare("double distances", rapid.getRoot(), floats.getRoot());
+
+            if (numTaxa <= maxClassic) {
+                Tree classic = time("NeighborJoiningTree", () -> new NeighborJoiningTree(distances), repetitions);
+                compare("NeighborJoiningTree", classic.getRoot(), rapid.getRoot());
+            }
+        }
+
+    }
+
+    private interface TreeSupplier {
+
+        Tree build();
+    }
+
+    private static Tree time(String name, TreeSupplier supplier, int repetitions) {
+
+        Tree tree = supplier.build();
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int r = 0; r < repetitions; r++) {
+            long start = System.nanoTime();
+            tree = supplier.build();
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        System.out.printf("%s: best %.3fs mean %.3fs%n", name, best / 1e9, total / 1e9 / repetitions);
+        return tree;
+
+    }
+
+    /**
+     * The trees are built by the same joins in the same order, so the nodes
+     * correspond one to one if the trees are the same.
+     */
+    private static void compare(String name, Node expected, Node actual) {
+
+        double[] maxDifference = new double[1];
+        if (sameTopology(expected, actual, maxDifference)) {
+            System.out.printf("Same tree as %s, largest branch length difference %.3g%n", name, maxDifference[0]);
+        } else {
+            System.out.println("Tree differs from " + name);
+        }
+
+    }
+
+    private static boolean sameTopology(Node expected, Node actual, double[] maxDifference) {
+
+        if (expected.getChildCount() != actual.getChildCount()) {
+            return false;
+        }
+        if (expected.isLeaf() && !expected.getIdentifier().equals(actual.getIdentifier())) {
+            return false;
+        }
+        maxDifference[0] = Math.max(maxDifference[0], Math.abs(expected.getBranchLength() - actual.getBranchLength()));
+        for (int c = 0; c < expected.getChildCount(); c++) {
+            if (!sameTopology(expected.getChild(c), actual.getChild(c), maxDifference)) {
+                return false;
+            }
+        }
+        return true;
+
+    }
+
+    /**
+     * Taxa are points around population centers that are themselves points
+     * along the branches of a random tree, with distance the Euclidean distance
+     * between points.
+     */
+    private static DistanceMatrix simulate(int numTaxa, Random random) {
+
+        double[][] centers = new double[NUM_POPULATIONS][DIMENSIONS];
+        for (int p = 1; p < NUM_POPULATIONS; p++) {
+            double[] parent = centers[random.nextInt(p)];
+            for (int d = 0; d < DIMENSIONS; d++) {
+                centers[p][d] = parent[d] + random.nextGaussian();
+            }
+        }
+
+        double[][] points = new double[numTaxa][DIMENSIONS];
+        DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(numTaxa);
+        for (int t = 0; t < numTaxa; t++) {
+            double[] center = centers[random.nextInt(NUM_POPULATIONS)];
+            for (int d = 0; d < DIMENSIONS; d++) {
+                points[t][d] = center[d] + 0.3 * random.nextGaussian();
+            }
+            builder.addTaxon(new Taxon("Taxon" + t));
+            for (int u = 0; u < t; u++) {
+                double sum = 0.0;
+                for (int d = 0; d < DIMENSIONS; d++) {
+                    double diff = points[t][d] - points[u][d];
+                    sum += diff * diff;
+                }
+                builder.set(t, u, Math.sqrt(sum));
+            }
+        }
+        return builder.build();
+
+    }
+
+}
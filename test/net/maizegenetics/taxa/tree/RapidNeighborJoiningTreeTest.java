@@ -0,0 +1,128 @@
+package net.maizegenetics.taxa.tree;
+
+import net.maizegenetics.taxa.Taxon;
+import net.maizegenetics.taxa.distance.DistanceMatrix;
+import net.maizegenetics.taxa.distance.DistanceMatrixBuilder;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link RapidNeighborJoiningTree} with {@link NeighborJoiningTree}.
+ * Both build the tree by joins in the same order, so the nodes of the two trees
+ * correspond one to one when the same pairs are joined.
+ */
+public class RapidNeighborJoiningTreeTest {
+
+    @Test
+    public void testStructuredDistances() {
+        DistanceMatrix distances = structuredDistances(400, new Random(400));
+        assertSameTree(new NeighborJoiningTree(distances), new RapidNeighborJoiningTree(distances), 1e-9);
+    }
+
+    @Test
+    public void testParallel() {
+        // enough taxa that the first joins run in parallel
+        DistanceMatrix distances = structuredDistances(1200, new Random(1200));
+        Tree sequential = new RapidNeighborJoiningTree(distances, false, false);
+        assertSameTree(sequential, new RapidNeighborJoiningTree(distances, true, false), 0.0);
+        assertSameTree(new NeighborJoiningTree(distances), sequential, 1e-9);
+    }
+
+    @Test
+    public void testTiedIntegerDistances() {
+        Random random = new Random(17);
+        int numTaxa = 200;
+        DistanceMatrixBuilder builder = builder(numTaxa);
+        for (int i = 0; i < numTaxa; i++) {
+            for (int j = 0; j < i; j++) {
+                builder.set(i, j, (float) (1 + random.nextInt(4)));
+            }
+        }
+        DistanceMatrix distances = builder.build();
+        assertSameTree(new NeighborJoiningTree(distances), new RapidNeighborJoiningTree(distances), 0.0);
+    }
+
+    @Test
+    public void testFloatDistances() {
+        DistanceMatrix distances = structuredDistances(400, new Random(401));
+        assertSameTree(new NeighborJoiningTree(distances), new RapidNeighborJoiningTree(distances, false, true), 1e-5);
+    }
+
+    @Test
+    public void testThreeTaxa() {
+        DistanceMatrixBuilder builder = builder(3);
+        builder.set(1, 0, 3.0f);
+        builder.set(2, 0, 4.0f);
+        builder.set(2, 1, 5.0f);
+        DistanceMatrix distances = builder.build();
+        assertSameTree(new NeighborJoiningTree(distances), new RapidNeighborJoiningTree(distances), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewTaxa() {
+        new RapidNeighborJoiningTree(builder(2).build());
+    }
+
+    private static void assertSameTree(Tree expected, Tree actual, double tolerance) {
+        assertSameNode(expected.getRoot(), actual.getRoot(), tolerance);
+    }
+
+    private static void assertSameNode(Node expected, Node actual, double tolerance) {
+        assertEquals(expected.getChildCount(), actual.getChildCount());
+        if (expected.isLeaf()) {
+            assertEquals(expected.getIdentifier(), actual.getIdentifier());
+        }
+        assertEquals(expected.getBranchLength(), actual.getBranchLength(), tolerance);
+        for (int c = 0; c < expected.getChildCount(); c++) {
+            assertSameNode(expected.getChild(c), actual.getChild(c), tolerance);
+        }
+        assertTrue(Math.abs(expected.getNodeHeight() - actual.getNodeHeight()) <= Math.max(tolerance, 1e-9));
+    }
+
+    private static DistanceMatrixBuilder builder(int numTaxa) {
+        DistanceMatrixBuilder builder = DistanceMatrixBuilder.getInstance(numTaxa);
+        for (int t = 0; t < numTaxa; t++) {
+            builder.addTaxon(new Taxon("Taxon" + t));
+        }
+        return builder;
+    }
+
+    /**
+     * Euclidean distances between points around the centers of populations,
+     * which are themselves points along the branches of a random tree.
+     */
+    private static DistanceMatrix structuredDistances(int numTaxa, Random random) {
+        int numPopulations = 20;
+        int dimensions = 10;
+        double[][] centers = new double[numPopulations][dimensions];
+        for (int p = 1; p < numPopulations; p++) {
+            double[] parent = centers[random.nextInt(p)];
+            for (int d = 0; d < dimensions; d++) {
+                centers[p][d] = parent[d] + random.nextGaussian();
+            }
+        }
+
+        double[][] points = new double[numTaxa][dimensions];
+        DistanceMatrixBuilder builder = builder(numTaxa);
+        for (int t = 0; t < numTaxa; t++) {
+            double[] center = centers[random.nextInt(numPopulations)];
+            for (int d = 0; d < dimensions; d++) {
+                points[t][d] = center[d] + 0.3 * random.nextGaussian();
+            }
+            for (int u = 0; u < t; u++) {
+                double sum = 0.0;
+                for (int d = 0; d < dimensions; d++) {
+                    double diff = points[t][d] - points[u][d];
+                    sum += diff * diff;
+                }
+                builder.set(t, u, Math.sqrt(sum));
+            }
+        }
+        return builder.build();
+    }
+
+}